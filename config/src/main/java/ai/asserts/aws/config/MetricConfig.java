@@ -13,6 +13,7 @@ import lombok.Setter;
 import lombok.ToString;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
 import software.amazon.awssdk.services.cloudwatch.model.Metric;
 
 import java.util.ArrayList;
@@ -20,7 +21,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 
 @Getter
 @Setter
@@ -49,11 +49,26 @@ public class MetricConfig {
     }
 
     public boolean matchesMetric(Metric cwMetric) {
-        Map<String, String> dimensionValues = new TreeMap<>();
-        cwMetric.dimensions().forEach(d -> dimensionValues.put(d.name(), d.value()));
-        return CollectionUtils.isEmpty(namespace.getDimensionFilterPattern()) ||
-                namespace.getDimensionFilterPattern().entrySet().stream()
-                        .allMatch(entry -> entry.getValue().matches(dimensionValues.get(entry.getKey())));
+        Map<String, PatternMatcher> filters = namespace.getDimensionFilterPattern();
+        if (CollectionUtils.isEmpty(filters)) {
+            return true;
+        }
+        // A metric has a handful of dimensions, so they are looked up in place instead of being copied to a map
+        for (Map.Entry<String, PatternMatcher> entry : filters.entrySet()) {
+            if (!entry.getValue().matches(getDimensionValue(cwMetric, entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getDimensionValue(Metric cwMetric, String name) {
+        for (Dimension dimension : cwMetric.dimensions()) {
+            if (name.equals(dimension.name())) {
+                return dimension.value();
+            }
+        }
+        return null;
     }
 
     void validate(int position) {
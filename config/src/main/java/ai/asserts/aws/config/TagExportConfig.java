@@ -6,6 +6,9 @@ package ai.asserts.aws.config;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -15,13 +18,20 @@ import org.springframework.util.CollectionUtils;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
+/**
+ * The tags to export. A tag is exported if it is included, either because there are no include rules or because it
+ * matches one, and isn't excluded. {@link #compile()} combines the patterns of each kind into a single pattern, and the
+ * decisions are cached by tag name, as the same few tag names show up on every resource in every cycle.
+ */
 @Getter
 @Setter
 @NoArgsConstructor
 @EqualsAndHashCode
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class TagExportConfig {
+    private static final int MAX_CACHED_DECISIONS = 10000;
     private Set<String> excludePatterns = new HashSet<>();
     private Set<String> excludeTags = new HashSet<>();
     private Set<String> includePatterns = new HashSet<>();
@@ -30,31 +40,61 @@ public class TagExportConfig {
     private Set<Pattern> _exclude = new HashSet<>();
     @EqualsAndHashCode.Exclude
     private Set<Pattern> _include = new HashSet<>();
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    private Pattern combinedExclude;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    private Pattern combinedInclude;
+    @Getter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    private final Cache<String, Boolean> decisions = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_DECISIONS)
+            .build();
 
+    /**
+     * Compiles the patterns. Has to be called again after the rules change.
+     */
     public void compile() {
         excludePatterns.forEach(pattern -> _exclude.add(Pattern.compile(pattern)));
         includePatterns.forEach(pattern -> _include.add(Pattern.compile(pattern)));
+        combinedExclude = combine(excludePatterns);
+        combinedInclude = combine(includePatterns);
+        decisions.invalidateAll();
     }
 
     public boolean shouldCaptureTag(String tagName, String value) {
-        Set<String> tagNames = new HashSet<>();
-        if (CollectionUtils.isEmpty(includeTags) && CollectionUtils.isEmpty(includePatterns)) {
-            tagNames.add(tagName);
-        } else if (!CollectionUtils.isEmpty(includeTags) && includeTags.contains(tagName)) {
-            tagNames.add(tagName);
-        } else if (!CollectionUtils.isEmpty(includePatterns) &&
-                _include.stream().anyMatch(p -> p.matcher(tagName).matches())) {
-            tagNames.add(tagName);
+        Boolean decision = decisions.getIfPresent(tagName);
+        if (decision == null) {
+            decision = isIncluded(tagName) && !isExcluded(tagName);
+            decisions.put(tagName, decision);
         }
+        return decision;
+    }
 
-        if (!CollectionUtils.isEmpty(excludeTags) && excludeTags.contains(tagName)) {
-            tagNames.remove(tagName);
-        } else if (!CollectionUtils.isEmpty(excludePatterns) &&
-                _exclude.stream().anyMatch(p -> p.matcher(tagName).matches())) {
-            tagNames.remove(tagName);
-        }
+    private boolean isIncluded(String tagName) {
+        return (CollectionUtils.isEmpty(includeTags) && CollectionUtils.isEmpty(includePatterns)) ||
+                (!CollectionUtils.isEmpty(includeTags) && includeTags.contains(tagName)) ||
+                (combinedInclude != null && combinedInclude.matcher(tagName).matches());
+    }
 
-        return tagNames.size() > 0;
+    private boolean isExcluded(String tagName) {
+        return (!CollectionUtils.isEmpty(excludeTags) && excludeTags.contains(tagName)) ||
+                (combinedExclude != null && combinedExclude.matcher(tagName).matches());
+    }
+
+    /**
+     * @return A pattern that matches what any of the patterns matches, <code>null</code> if there are none
+     */
+    private static Pattern combine(Set<String> patterns) {
+        if (CollectionUtils.isEmpty(patterns)) {
+            return null;
+        }
+        return Pattern.compile(patterns.stream()
+                .map(pattern -> "(?:" + pattern + ")")
+                .collect(Collectors.joining("|")));
     }
 
     @JsonIgnore
@@ -48,4 +48,29 @@ public class TagExportConfigTest extends EasyMockSupport {
 
         assertFalse(tagExportConfig.shouldCaptureTag("name", "value"));
     }
+
+    @Test
+    void shouldExportTag_IncludeTagsAndPatterns() {
+        TagExportConfig tagExportConfig = new TagExportConfig();
+        tagExportConfig.setIncludeTags(ImmutableSet.of("env"));
+        tagExportConfig.setIncludePatterns(ImmutableSet.of("na.+", "team|owner"));
+        tagExportConfig.setExcludeTags(ImmutableSet.of("nano"));
+        tagExportConfig.compile();
+        assertTrue(tagExportConfig.shouldCaptureTag("env", "value"));
+        assertTrue(tagExportConfig.shouldCaptureTag("name", "value"));
+        assertTrue(tagExportConfig.shouldCaptureTag("owner", "value"));
+        assertFalse(tagExportConfig.shouldCaptureTag("nano", "value"));
+        assertFalse(tagExportConfig.shouldCaptureTag("teams", "value"));
+    }
+
+    @Test
+    void shouldExportTag_RecompiledRules() {
+        TagExportConfig tagExportConfig = new TagExportConfig();
+        tagExportConfig.compile();
+        assertTrue(tagExportConfig.shouldCaptureTag("name", "value"));
+
+        tagExportConfig.setExcludeTags(ImmutableSet.of("name"));
+        tagExportConfig.compile();
+        assertFalse(tagExportConfig.shouldCaptureTag("name", "value"));
+    }
 }
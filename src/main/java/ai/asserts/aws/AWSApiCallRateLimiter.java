@@ -4,17 +4,30 @@
  */
 package ai.asserts.aws;
 
+import ai.asserts.aws.Deadline.DeadlineExceededException;
 import ai.asserts.aws.account.AccountTenantMapper;
 import ai.asserts.aws.exporter.BasicMetricCollector;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static ai.asserts.aws.MetricNameUtil.ASSERTS_ERROR_TYPE;
 import static ai.asserts.aws.MetricNameUtil.ASSERTS_CUSTOMER;
@@ -29,14 +42,26 @@ import static java.util.stream.Collectors.joining;
 
 @Slf4j
 @SuppressWarnings("UnstableApiUsage")
-public class AWSApiCallRateLimiter {
+public class AWSApiCallRateLimiter implements DisposableBean {
+    /**
+     * The longest a low priority call waits for the high priority calls to the same API to get their permits
+     */
+    private static final long MAX_YIELD_MILLIS = 1000;
     private final BasicMetricCollector metricCollector;
     private final AccountTenantMapper accountTenantMapper;
     private final double defaultRateLimit;
+    private final AWSApiCostTracker costTracker;
+    /**
+     * Polls for the permits of the async calls that can't get one right away. No thread is held while they wait, and
+     * the wait isn't on the thread that completed the previous call, which is an event loop thread of the SDK when the
+     * pages of an API are chained
+     */
+    private final ScheduledExecutorService permitScheduler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("aws-api-permits"));
 
     private final ThreadLocal<Map<String, Integer>> apiCallCounts = ThreadLocal.withInitial(TreeMap::new);
 
-    private final Map<String, RateLimiter> rateLimiters = new HashMap<>();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
 
     @VisibleForTesting
     public AWSApiCallRateLimiter(BasicMetricCollector metricCollector, AccountTenantMapper accountTenantMapper) {
@@ -45,55 +70,215 @@ public class AWSApiCallRateLimiter {
 
     public AWSApiCallRateLimiter(BasicMetricCollector metricCollector, AccountTenantMapper accountTenantMapper,
                                  double defaultRateLimit) {
+        this(metricCollector, accountTenantMapper, defaultRateLimit, new AWSApiCostTracker());
+    }
+
+    public AWSApiCallRateLimiter(BasicMetricCollector metricCollector, AccountTenantMapper accountTenantMapper,
+                                 double defaultRateLimit, AWSApiCostTracker costTracker) {
         this.metricCollector = metricCollector;
         this.accountTenantMapper = accountTenantMapper;
         this.defaultRateLimit = defaultRateLimit;
+        this.costTracker = costTracker;
     }
 
     public <K extends AWSAPICall<V>, V> V doWithRateLimit(String api, SortedMap<String, String> labels, K k) {
         String accountId = labels.get(SCRAPE_ACCOUNT_ID_LABEL);
         String region = labels.get(SCRAPE_REGION_LABEL);
         String regionKey = accountId + "/" + region;
-        String fullKey = regionKey + "/" + api;
-        RateLimiter rateLimiter = rateLimiters.computeIfAbsent(fullKey, s -> RateLimiter.create(defaultRateLimit));
         long tick = System.currentTimeMillis();
         String tenantName = accountTenantMapper.getTenantName(labels.get(SCRAPE_ACCOUNT_ID_LABEL));
         try {
-            double waitTime = rateLimiter.acquire();
-            if (waitTime > 0.5) {
-                log.warn("Operation {} throttled for {} seconds", fullKey, waitTime);
-            }
-            Map<String, Integer> callCounts = apiCallCounts.get();
-            String operationName = labels.getOrDefault(SCRAPE_OPERATION_LABEL, "unknown");
-            String callCountKey = regionKey + "/" + operationName;
-            Integer count = callCounts.getOrDefault(callCountKey, 0);
-            count++;
-            callCounts.put(callCountKey, count);
+            acquire(api, labels, TaskPriority.current(), Deadline.current());
             tick = System.currentTimeMillis();
             return k.makeCall();
         } catch (Throwable e) {
             log.error("Exception in: " + regionKey, e);
-            SortedMap<String, String> errorLabels = new TreeMap<>(labels);
-            errorLabels.put(ASSERTS_ERROR_TYPE, e.getClass().getSimpleName());
-
-            // In SaaS mode, we don't want the exporter internal metrics to end up in the tenant's TSDB
-            errorLabels.remove(TENANT);
-            if (tenantName != null) {
-                errorLabels.put(ASSERTS_CUSTOMER, tenantName);
-            }
-            metricCollector.recordCounterValue(SCRAPE_ERROR_COUNT_METRIC, errorLabels, 1);
+            recordError(labels, tenantName, e);
             throw new RuntimeException(e);
         } finally {
-            tick = System.currentTimeMillis() - tick;
+            recordLatency(labels, tenantName, System.currentTimeMillis() - tick);
+        }
+    }
+
+    /**
+     * Same as {@link #doWithRateLimit(String, SortedMap, AWSAPICall)} but for calls made through the async AWS
+     * clients. The call is made on the calling thread if a permit is available right away, or else on the permit
+     * scheduler once a poll gets one, so that neither blocks. The latency and errors are recorded when the returned
+     * future completes.
+     */
+    public <V> CompletableFuture<V> doWithRateLimitAsync(String api, SortedMap<String, String> labels,
+                                                         AWSAsyncAPICall<V> k) {
+        String regionKey = labels.get(SCRAPE_ACCOUNT_ID_LABEL) + "/" + labels.get(SCRAPE_REGION_LABEL);
+        String tenantName = accountTenantMapper.getTenantName(labels.get(SCRAPE_ACCOUNT_ID_LABEL));
+        // The thread locals are not set on the permit scheduler
+        TaskPriority priority = TaskPriority.current();
+        Deadline deadline = Deadline.current();
+        TaskThreadPool pool = TaskThreadPool.current();
+        CompletableFuture<Void> permit;
+        if (tryAcquire(api, labels, priority, priority == TaskPriority.LOW)) {
+            permit = CompletableFuture.completedFuture(null);
+        } else {
+            permit = schedulePermit(api, labels, priority, deadline);
+        }
+        AtomicLong start = new AtomicLong(System.currentTimeMillis());
+        return permit.thenCompose(ignored -> {
+            start.set(System.currentTimeMillis());
+            // Attributes the call to the pool of the task that made it
+            return TaskThreadPool.callAs(pool, k::makeCall);
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                log.error("Exception in: " + regionKey, cause);
+                recordError(labels, tenantName, cause);
+            }
+            recordLatency(labels, tenantName, System.currentTimeMillis() - start.get());
+        });
+    }
+
+    @Override
+    public void destroy() {
+        permitScheduler.shutdownNow();
+    }
+
+    /**
+     * @return Whether a permit was available without waiting for it
+     */
+    private boolean tryAcquire(String api, SortedMap<String, String> labels, TaskPriority priority,
+                               boolean yieldToHighPriority) {
+        String fullKey = labels.get(SCRAPE_ACCOUNT_ID_LABEL) + "/" + labels.get(SCRAPE_REGION_LABEL) + "/" + api;
+        Bucket bucket = getBucket(fullKey);
+        if (yieldToHighPriority && bucket.hasHighPriorityWaiting()) {
+            return false;
+        }
+        if (!bucket.rateLimiter.tryAcquire()) {
+            return false;
+        }
+        recordCall(api, labels);
+        return true;
+    }
+
+    /**
+     * Waits for a permit without holding a thread, by polling for it on the permit scheduler at the rate of the API.
+     * Like {@link #acquire}, a low priority call yields to the waiting high priority calls for up to
+     * {@link #MAX_YIELD_MILLIS}, and the wait ends with a {@link DeadlineExceededException} once the deadline expires.
+     */
+    private CompletableFuture<Void> schedulePermit(String api, SortedMap<String, String> labels,
+                                                   TaskPriority priority, Deadline deadline) {
+        String fullKey = labels.get(SCRAPE_ACCOUNT_ID_LABEL) + "/" + labels.get(SCRAPE_REGION_LABEL) + "/" + api;
+        Bucket bucket = getBucket(fullKey);
+        // A few polls per permit interval, so that a freed up permit isn't left unused for long
+        long pollMillis = Math.max(1, (long) (250 / bucket.rateLimiter.getRate()));
+        long start = System.currentTimeMillis();
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        if (priority == TaskPriority.HIGH) {
+            bucket.highPriorityWaiting(1);
+            permit.whenComplete((ignored, e) -> bucket.highPriorityWaiting(-1));
+        }
+        class Poll implements Runnable {
+            @Override
+            public void run() {
+                long waitTime = System.currentTimeMillis() - start;
+                boolean yield = priority == TaskPriority.LOW && waitTime < MAX_YIELD_MILLIS;
+                if (tryAcquire(api, labels, priority, yield)) {
+                    if (waitTime > 500) {
+                        log.warn("Operation {} throttled for {} ms", fullKey, waitTime);
+                    }
+                    permit.complete(null);
+                } else if (deadline != null && deadline.isExpired()) {
+                    permit.completeExceptionally(
+                            new DeadlineExceededException("Deadline expired waiting for a permit for " + fullKey));
+                } else {
+                    schedule();
+                }
+            }
 
-            // In SaaS mode, we don't want the exporter internal metrics to end up in the tenant's TSDB
-            SortedMap<String, String> latencyLabels = new TreeMap<>(labels);
-            latencyLabels.remove(TENANT);
-            if (tenantName != null) {
-                latencyLabels.put(ASSERTS_CUSTOMER, tenantName);
+            private void schedule() {
+                long delay = pollMillis;
+                if (deadline != null) {
+                    // Poll once more when the deadline expires, rather than after it
+                    delay = Math.max(0, Math.min(delay, deadline.remaining(TimeUnit.MILLISECONDS)));
+                }
+                try {
+                    permitScheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    permit.completeExceptionally(e);
+                }
             }
-            metricCollector.recordLatency(SCRAPE_LATENCY_METRIC, latencyLabels, tick);
         }
+        new Poll().schedule();
+        return permit;
+    }
+
+    private void acquire(String api, SortedMap<String, String> labels, TaskPriority priority, Deadline deadline) {
+        String regionKey = labels.get(SCRAPE_ACCOUNT_ID_LABEL) + "/" + labels.get(SCRAPE_REGION_LABEL);
+        String fullKey = regionKey + "/" + api;
+        Bucket bucket = getBucket(fullKey);
+        if (priority == TaskPriority.LOW) {
+            bucket.yieldToHighPriority(fullKey, deadline);
+        } else if (priority == TaskPriority.HIGH) {
+            bucket.highPriorityWaiting(1);
+        }
+        try {
+            RateLimiter rateLimiter = bucket.rateLimiter;
+            if (deadline != null) {
+                // Don't wait for a permit that would only be granted after the work is due
+                long start = System.currentTimeMillis();
+                if (!rateLimiter.tryAcquire(deadline.remaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)) {
+                    throw new DeadlineExceededException("Deadline expired waiting for a permit for " + fullKey);
+                }
+                long waitTime = System.currentTimeMillis() - start;
+                if (waitTime > 500) {
+                    log.warn("Operation {} throttled for {} ms", fullKey, waitTime);
+                }
+            } else {
+                double waitTime = rateLimiter.acquire();
+                if (waitTime > 0.5) {
+                    log.warn("Operation {} throttled for {} seconds", fullKey, waitTime);
+                }
+            }
+        } finally {
+            if (priority == TaskPriority.HIGH) {
+                bucket.highPriorityWaiting(-1);
+            }
+        }
+        recordCall(api, labels);
+    }
+
+    private Bucket getBucket(String fullKey) {
+        return buckets.computeIfAbsent(fullKey, s -> new Bucket(RateLimiter.create(defaultRateLimit)));
+    }
+
+    private void recordCall(String api, SortedMap<String, String> labels) {
+        String regionKey = labels.get(SCRAPE_ACCOUNT_ID_LABEL) + "/" + labels.get(SCRAPE_REGION_LABEL);
+        Map<String, Integer> callCounts = apiCallCounts.get();
+        String operationName = labels.getOrDefault(SCRAPE_OPERATION_LABEL, "unknown");
+        String callCountKey = regionKey + "/" + operationName;
+        Integer count = callCounts.getOrDefault(callCountKey, 0);
+        count++;
+        callCounts.put(callCountKey, count);
+        costTracker.recordApiCall(api, labels);
+    }
+
+    private void recordError(SortedMap<String, String> labels, String tenantName, Throwable e) {
+        SortedMap<String, String> errorLabels = new TreeMap<>(labels);
+        errorLabels.put(ASSERTS_ERROR_TYPE, e.getClass().getSimpleName());
+
+        // In SaaS mode, we don't want the exporter internal metrics to end up in the tenant's TSDB
+        errorLabels.remove(TENANT);
+        if (tenantName != null) {
+            errorLabels.put(ASSERTS_CUSTOMER, tenantName);
+        }
+        metricCollector.recordCounterValue(SCRAPE_ERROR_COUNT_METRIC, errorLabels, 1);
+    }
+
+    private void recordLatency(SortedMap<String, String> labels, String tenantName, long latency) {
+        // In SaaS mode, we don't want the exporter internal metrics to end up in the tenant's TSDB
+        SortedMap<String, String> latencyLabels = new TreeMap<>(labels);
+        latencyLabels.remove(TENANT);
+        if (tenantName != null) {
+            latencyLabels.put(ASSERTS_CUSTOMER, tenantName);
+        }
+        metricCollector.recordLatency(SCRAPE_LATENCY_METRIC, latencyLabels, latency);
     }
 
     public <T> T call(Callable<T> callable) throws Exception {
@@ -112,7 +297,67 @@ public class AWSApiCallRateLimiter {
         apiCallCounts.get().clear();
     }
 
+    /**
+     * The permits of an API in an account and region. The calls of low priority tasks hold back while calls of high
+     * priority tasks are waiting for a permit, for up to {@link #MAX_YIELD_MILLIS} so that they are not starved
+     */
+    private static class Bucket {
+        private final RateLimiter rateLimiter;
+        // Not a monitor, which would pin the carrier of a virtual thread while it waits
+        private final Lock lock = new ReentrantLock();
+        private final Condition noHighPriorityWaiting = lock.newCondition();
+        private int highPriorityWaiting;
+
+        private Bucket(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+        }
+
+        private void highPriorityWaiting(int delta) {
+            lock.lock();
+            try {
+                highPriorityWaiting += delta;
+                if (highPriorityWaiting == 0) {
+                    noHighPriorityWaiting.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean hasHighPriorityWaiting() {
+            lock.lock();
+            try {
+                return highPriorityWaiting > 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void yieldToHighPriority(String fullKey, Deadline deadline) {
+            long remaining = MAX_YIELD_MILLIS;
+            if (deadline != null) {
+                remaining = Math.min(remaining, deadline.remaining(TimeUnit.MILLISECONDS));
+            }
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(remaining);
+            lock.lock();
+            try {
+                while (highPriorityWaiting > 0 && remainingNanos > 0) {
+                    log.debug("Operation {} yielding to high priority calls", fullKey);
+                    remainingNanos = noHighPriorityWaiting.awaitNanos(remainingNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     public interface AWSAPICall<V> {
         V makeCall();
     }
+
+    public interface AWSAsyncAPICall<V> {
+        CompletableFuture<V> makeCall();
+    }
 }
@@ -0,0 +1,27 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import lombok.AllArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Exposes the estimated AWS API cost and the state of the cost budgets at <code>/actuator/awscost</code>
+ */
+@Component
+@Endpoint(id = "awscost")
+@AllArgsConstructor
+public class AWSApiCostEndpoint {
+    private final AWSApiCostTracker costTracker;
+
+    @ReadOperation
+    public Map<String, Object> cost() {
+        return costTracker.getReport();
+    }
+}
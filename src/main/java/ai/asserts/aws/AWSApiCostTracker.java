@@ -0,0 +1,292 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.cloudwatch.query.MetricQuery;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_NAMESPACE_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
+import static ai.asserts.aws.exporter.MetricScrapeTask.GET_METRIC_DATA_OPERATION;
+
+/**
+ * Turns the AWS API calls made by the exporter into an estimated cost. <code>GetMetricData</code> is billed per
+ * metric requested, while the other CloudWatch APIs are billed per request. The prices are in USD and can be
+ * configured, as they vary by region and change over time.
+ * <p>
+ * Optionally, a daily budget can be set per account and per CloudWatch namespace. Once the budget of a namespace is
+ * exhausted, the metrics of that namespace are not scraped for the rest of the day (UTC). Once the budget of an
+ * account is exhausted, the low priority namespaces of the account are not scraped for the rest of the day. If no
+ * namespace is marked as low priority, all the namespaces of the account stop being scraped.
+ */
+@Component
+@Slf4j
+public class AWSApiCostTracker extends Collector implements InitializingBean {
+    public static final String API_COST_METRIC = "aws_exporter_api_cost_dollars_total";
+    public static final String METRICS_REQUESTED_METRIC = "aws_exporter_get_metric_data_metrics_total";
+    public static final String SHED_QUERIES_METRIC = "aws_exporter_budget_shed_queries_total";
+    public static final String BUDGET_SPEND_METRIC = "aws_exporter_budget_spend_dollars";
+    public static final String BUDGET_EXHAUSTED_METRIC = "aws_exporter_budget_exhausted";
+    public static final String DEFAULT_REQUEST_PRICES = "CloudWatchClient/ListMetrics=0.01," +
+            "CloudWatchClient/describeAlarms=0.01";
+    private final CollectorRegistry collectorRegistry;
+    private final double pricePer1000Metrics;
+    private final Map<String, Double> pricesPer1000Requests = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final double accountDailyBudget;
+    private final double namespaceDailyBudget;
+    private final Set<String> lowPriorityNamespaces = new TreeSet<>();
+    private final Map<String, Map<String, DoubleAdder>> costByOperation = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, LongAdder>> metricsRequested = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, LongAdder>> shedQueries = new ConcurrentHashMap<>();
+    private volatile BudgetWindow window;
+
+    @VisibleForTesting
+    public AWSApiCostTracker() {
+        this(null, 0.01, DEFAULT_REQUEST_PRICES, 0, 0, "");
+    }
+
+    @Autowired
+    public AWSApiCostTracker(CollectorRegistry collectorRegistry,
+                             @Value("${aws_exporter.cost.get_metric_data_per_1000_metrics:0.01}")
+                                     double pricePer1000Metrics,
+                             @Value("${aws_exporter.cost.per_1000_requests:" + DEFAULT_REQUEST_PRICES + "}")
+                                     String pricesPer1000Requests,
+                             @Value("${aws_exporter.cost.account_daily_budget:0}") double accountDailyBudget,
+                             @Value("${aws_exporter.cost.namespace_daily_budget:0}") double namespaceDailyBudget,
+                             @Value("${aws_exporter.cost.low_priority_namespaces:}") String lowPriorityNamespaces) {
+        this.collectorRegistry = collectorRegistry;
+        this.pricePer1000Metrics = pricePer1000Metrics;
+        Splitter.on(',').omitEmptyStrings().trimResults()
+                .withKeyValueSeparator('=')
+                .split(pricesPer1000Requests)
+                .forEach((api, price) -> this.pricesPer1000Requests.put(api.trim(), Double.parseDouble(price)));
+        this.accountDailyBudget = accountDailyBudget;
+        this.namespaceDailyBudget = namespaceDailyBudget;
+        this.lowPriorityNamespaces.addAll(Splitter.on(',').omitEmptyStrings().trimResults()
+                .splitToList(lowPriorityNamespaces));
+        this.window = new BudgetWindow(today());
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        register(collectorRegistry);
+    }
+
+    /**
+     * Records the cost of an API call billed per request
+     */
+    public void recordApiCall(String api, SortedMap<String, String> labels) {
+        Double price = pricesPer1000Requests.get(api);
+        String accountId = labels.get(SCRAPE_ACCOUNT_ID_LABEL);
+        if (price == null || price <= 0 || accountId == null) {
+            return;
+        }
+        recordCost(accountId, labels.getOrDefault(SCRAPE_OPERATION_LABEL, api), null, price / 1000);
+    }
+
+    /**
+     * Records the cost of a <code>GetMetricData</code> call, which is billed for the number of metrics requested
+     */
+    public void recordMetricsRequested(String accountId, List<MetricQuery> batch) {
+        Map<String, Integer> countByNamespace = new TreeMap<>();
+        batch.forEach(query -> countByNamespace.merge(query.getMetric().namespace(), 1, Integer::sum));
+        countByNamespace.forEach((namespace, count) -> {
+            metricsRequested.computeIfAbsent(accountId, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(namespace, k -> new LongAdder()).add(count);
+            recordCost(accountId, GET_METRIC_DATA_OPERATION, namespace, count * pricePer1000Metrics / 1000);
+        });
+    }
+
+    /**
+     * Drops the queries of the namespaces whose budget, or whose account's budget, is exhausted for the day.
+     *
+     * @return The queries that can be scraped. The given list is returned as is if none of the queries is dropped.
+     */
+    public List<MetricQuery> withinBudget(String accountId, List<MetricQuery> queries) {
+        if (accountDailyBudget <= 0 && namespaceDailyBudget <= 0) {
+            return queries;
+        }
+        BudgetWindow current = currentWindow();
+        boolean accountExhausted = isAccountExhausted(current, accountId);
+        List<MetricQuery> allowed = new ArrayList<>();
+        Map<String, Integer> shedByNamespace = new TreeMap<>();
+        queries.forEach(query -> {
+            String namespace = query.getMetric().namespace();
+            if (isNamespaceExhausted(current, accountId, namespace) ||
+                    (accountExhausted && (lowPriorityNamespaces.isEmpty() ||
+                            lowPriorityNamespaces.contains(namespace)))) {
+                shedByNamespace.merge(namespace, 1, Integer::sum);
+            } else {
+                allowed.add(query);
+            }
+        });
+        if (shedByNamespace.isEmpty()) {
+            return queries;
+        }
+        shedByNamespace.forEach((namespace, count) -> shedQueries
+                .computeIfAbsent(accountId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(namespace, k -> new LongAdder()).add(count));
+        log.warn("Cost budget exhausted for account {}. Skipping metrics of namespaces {}", accountId,
+                shedByNamespace);
+        return allowed;
+    }
+
+    /**
+     * Summary of the cost for the <code>awscost</code> actuator endpoint
+     */
+    public Map<String, Object> getReport() {
+        BudgetWindow current = currentWindow();
+        Map<String, Object> accounts = new TreeMap<>();
+        Set<String> accountIds = new TreeSet<>(costByOperation.keySet());
+        accountIds.addAll(current.accountSpend.keySet());
+        accountIds.forEach(accountId -> {
+            Map<String, Object> account = new TreeMap<>();
+            account.put("spend", spend(current.accountSpend.get(accountId)));
+            account.put("budgetExhausted", isAccountExhausted(current, accountId));
+            Map<String, Object> namespaces = new TreeMap<>();
+            current.namespaceSpend.getOrDefault(accountId, Collections.emptyMap())
+                    .forEach((namespace, spend) -> namespaces.put(namespace, spend.sum()));
+            account.put("spendByNamespace", namespaces);
+            Map<String, Object> operations = new TreeMap<>();
+            costByOperation.getOrDefault(accountId, Collections.emptyMap())
+                    .forEach((operation, cost) -> operations.put(operation, cost.sum()));
+            account.put("totalCostByOperation", operations);
+            accounts.put(accountId, account);
+        });
+
+        Map<String, Object> report = new TreeMap<>();
+        report.put("budgetDay", current.day.toString());
+        report.put("accountDailyBudget", accountDailyBudget);
+        report.put("namespaceDailyBudget", namespaceDailyBudget);
+        report.put("lowPriorityNamespaces", lowPriorityNamespaces);
+        report.put("accounts", accounts);
+        return report;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> familySamples = new ArrayList<>();
+        List<Sample> costSamples = new ArrayList<>();
+        costByOperation.forEach((accountId, byOperation) -> byOperation.forEach((operation, cost) ->
+                costSamples.add(new Sample(API_COST_METRIC,
+                        ImmutableList.of(SCRAPE_ACCOUNT_ID_LABEL, SCRAPE_OPERATION_LABEL),
+                        ImmutableList.of(accountId, operation), cost.sum()))));
+        addFamily(familySamples, API_COST_METRIC, Type.COUNTER, costSamples);
+        addFamily(familySamples, METRICS_REQUESTED_METRIC, Type.COUNTER,
+                namespaceSamples(METRICS_REQUESTED_METRIC, metricsRequested));
+        addFamily(familySamples, SHED_QUERIES_METRIC, Type.COUNTER,
+                namespaceSamples(SHED_QUERIES_METRIC, shedQueries));
+
+        BudgetWindow current = currentWindow();
+        List<Sample> spendSamples = new ArrayList<>();
+        List<Sample> exhaustedSamples = new ArrayList<>();
+        current.accountSpend.forEach((accountId, spend) -> {
+            spendSamples.add(new Sample(BUDGET_SPEND_METRIC, ImmutableList.of(SCRAPE_ACCOUNT_ID_LABEL),
+                    ImmutableList.of(accountId), spend.sum()));
+            if (accountDailyBudget > 0) {
+                exhaustedSamples.add(new Sample(BUDGET_EXHAUSTED_METRIC, ImmutableList.of(SCRAPE_ACCOUNT_ID_LABEL),
+                        ImmutableList.of(accountId), isAccountExhausted(current, accountId) ? 1.0D : 0.0D));
+            }
+        });
+        addFamily(familySamples, BUDGET_SPEND_METRIC, Type.GAUGE, spendSamples);
+        addFamily(familySamples, BUDGET_EXHAUSTED_METRIC, Type.GAUGE, exhaustedSamples);
+        return familySamples;
+    }
+
+    @VisibleForTesting
+    LocalDate today() {
+        return LocalDate.now(ZoneOffset.UTC);
+    }
+
+    private void recordCost(String accountId, String operation, String namespace, double cost) {
+        costByOperation.computeIfAbsent(accountId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(operation, k -> new DoubleAdder()).add(cost);
+        BudgetWindow current = currentWindow();
+        current.accountSpend.computeIfAbsent(accountId, k -> new DoubleAdder()).add(cost);
+        if (namespace != null) {
+            current.namespaceSpend.computeIfAbsent(accountId, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(namespace, k -> new DoubleAdder()).add(cost);
+        }
+    }
+
+    private boolean isAccountExhausted(BudgetWindow current, String accountId) {
+        return accountDailyBudget > 0 && spend(current.accountSpend.get(accountId)) >= accountDailyBudget;
+    }
+
+    private boolean isNamespaceExhausted(BudgetWindow current, String accountId, String namespace) {
+        return namespaceDailyBudget > 0 && spend(current.namespaceSpend
+                .getOrDefault(accountId, Collections.emptyMap()).get(namespace)) >= namespaceDailyBudget;
+    }
+
+    private double spend(DoubleAdder adder) {
+        return adder != null ? adder.sum() : 0.0D;
+    }
+
+    private BudgetWindow currentWindow() {
+        LocalDate today = today();
+        BudgetWindow current = window;
+        if (!current.day.equals(today)) {
+            synchronized (this) {
+                if (!window.day.equals(today)) {
+                    log.info("Resetting cost budgets for {}", today);
+                    window = new BudgetWindow(today);
+                }
+                current = window;
+            }
+        }
+        return current;
+    }
+
+    private List<Sample> namespaceSamples(String metricName, Map<String, Map<String, LongAdder>> counts) {
+        List<Sample> samples = new ArrayList<>();
+        counts.forEach((accountId, byNamespace) -> byNamespace.forEach((namespace, count) ->
+                samples.add(new Sample(metricName,
+                        ImmutableList.of(SCRAPE_ACCOUNT_ID_LABEL, SCRAPE_NAMESPACE_LABEL),
+                        ImmutableList.of(accountId, namespace), count.sum()))));
+        return samples;
+    }
+
+    private void addFamily(List<MetricFamilySamples> familySamples, String metricName, Type type,
+                           List<Sample> samples) {
+        if (samples.size() > 0) {
+            familySamples.add(new MetricFamilySamples(metricName, type, "", samples));
+        }
+    }
+
+    private static class BudgetWindow {
+        private final LocalDate day;
+        private final Map<String, DoubleAdder> accountSpend = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, DoubleAdder>> namespaceSpend = new ConcurrentHashMap<>();
+
+        private BudgetWindow(LocalDate day) {
+            this.day = day;
+        }
+    }
+}
@@ -2,68 +2,70 @@ package ai.asserts.aws;
 
 import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.exporter.AccountIDProvider;
+import ai.asserts.aws.exporter.BasicMetricCollector;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableMap;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
+import software.amazon.awssdk.awscore.retry.AwsRetryPolicy;
 import software.amazon.awssdk.core.SdkClient;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.apigateway.ApiGatewayClient;
-import software.amazon.awssdk.services.apigateway.ApiGatewayClientBuilder;
 import software.amazon.awssdk.services.autoscaling.AutoScalingClient;
-import software.amazon.awssdk.services.autoscaling.AutoScalingClientBuilder;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClientBuilder;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClientBuilder;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
-import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
 import software.amazon.awssdk.services.ec2.Ec2Client;
-import software.amazon.awssdk.services.ec2.Ec2ClientBuilder;
 import software.amazon.awssdk.services.ecs.EcsClient;
-import software.amazon.awssdk.services.ecs.EcsClientBuilder;
 import software.amazon.awssdk.services.elasticloadbalancing.ElasticLoadBalancingClient;
-import software.amazon.awssdk.services.elasticloadbalancing.ElasticLoadBalancingClientBuilder;
 import software.amazon.awssdk.services.elasticloadbalancingv2.ElasticLoadBalancingV2Client;
-import software.amazon.awssdk.services.elasticloadbalancingv2.ElasticLoadBalancingV2ClientBuilder;
 import software.amazon.awssdk.services.emr.EmrClient;
-import software.amazon.awssdk.services.emr.EmrClientBuilder;
 import software.amazon.awssdk.services.firehose.FirehoseClient;
-import software.amazon.awssdk.services.firehose.FirehoseClientBuilder;
 import software.amazon.awssdk.services.kinesis.KinesisClient;
-import software.amazon.awssdk.services.kinesis.KinesisClientBuilder;
 import software.amazon.awssdk.services.kinesisanalyticsv2.KinesisAnalyticsV2Client;
-import software.amazon.awssdk.services.kinesisanalyticsv2.KinesisAnalyticsV2ClientBuilder;
 import software.amazon.awssdk.services.lambda.LambdaClient;
-import software.amazon.awssdk.services.lambda.LambdaClientBuilder;
 import software.amazon.awssdk.services.rds.RdsClient;
-import software.amazon.awssdk.services.rds.RdsClientBuilder;
 import software.amazon.awssdk.services.redshift.RedshiftClient;
-import software.amazon.awssdk.services.redshift.RedshiftClientBuilder;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiAsyncClient;
 import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerClientBuilder;
 import software.amazon.awssdk.services.sns.SnsClient;
-import software.amazon.awssdk.services.sns.SnsClientBuilder;
 import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.SqsClientBuilder;
-import software.amazon.awssdk.services.sts.StsClient;
-import software.amazon.awssdk.services.sts.StsClientBuilder;
-import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
-import software.amazon.awssdk.services.sts.model.AssumeRoleResponse;
 
-import java.time.Instant;
+import java.net.URI;
+import java.time.Duration;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.springframework.util.StringUtils.hasLength;
@@ -71,454 +73,269 @@ import static org.springframework.util.StringUtils.hasLength;
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 @Component
 @Slf4j
-public class AWSClientProvider {
+public class AWSClientProvider implements DisposableBean {
+    public static final String SDK_CLIENT_COUNT_METRIC = "aws_exporter_sdk_clients";
+    public static final String SERVICE_LABEL = "service";
+    /**
+     * The endpoint that all the AWS API calls go to instead of the AWS endpoints, like a local fake of AWS
+     */
+    private static final Optional<URI> ENDPOINT_OVERRIDE = Optional.ofNullable(System.getenv("AWS_ENDPOINT_OVERRIDE"))
+            .filter(StringUtils::hasLength)
+            .map(URI::create);
     private final AccountIDProvider accountIDProvider;
-    private final Map<AccountRegion, AWSSessionConfig> credentialCache = new ConcurrentHashMap<>();
+    private final AWSSessionProvider sessionProvider;
+    private final BasicMetricCollector metricCollector;
     private final Cache<ClientCacheKey, SdkClient> clientCache;
+    /**
+     * Fingerprint of the credentials with which the clients of an account were built. A change in the fingerprint
+     * means the credentials were rotated, and the clients built with the old credentials are closed
+     */
+    private final Map<String, Integer> credentialFingerprints = new ConcurrentHashMap<>();
+    private final Set<String> knownServices = ConcurrentHashMap.newKeySet();
+    @Getter
+    private final boolean asyncEnabled;
+    private final int asyncEventLoopThreads;
+    private final int asyncMaxConcurrency;
+    /**
+     * Counts the attempts of the calls, and the throttled ones, for the pool that made them
+     */
+    private final ThrottleRecorder throttleRecorder = new ThrottleRecorder();
+    private final ClientOverrideConfiguration overrideConfiguration =
+            throttleRecorder.overrideConfiguration(AwsRetryPolicy.defaultRetryPolicy());
+    /**
+     * The SDK's own defaults for DynamoDB, which retries more often and sooner than the other services
+     */
+    private final ClientOverrideConfiguration dynamoDBOverrideConfiguration =
+            throttleRecorder.overrideConfiguration(AwsRetryPolicy.defaultRetryPolicy().toBuilder()
+                    .numRetries(8)
+                    .backoffStrategy(FullJitterBackoffStrategy.builder()
+                            .baseDelay(Duration.ofMillis(25))
+                            .maxBackoffTime(Duration.ofSeconds(20))
+                            .build())
+                    .build());
+    /**
+     * The async clients of all accounts and regions share one Netty event loop group and connection pool. Built
+     * lazily so that no event loop threads are started unless the async clients are used
+     */
+    private volatile SdkAsyncHttpClient asyncHttpClient;
 
-    public AWSClientProvider(AccountIDProvider accountIDProvider) {
+    public AWSClientProvider(AccountIDProvider accountIDProvider, AWSSessionProvider sessionProvider,
+                             BasicMetricCollector metricCollector) {
         this.accountIDProvider = accountIDProvider;
+        this.sessionProvider = sessionProvider;
+        this.metricCollector = metricCollector;
         Map<String, String> env = System.getenv();
+        this.asyncEnabled = Boolean.parseBoolean(env.getOrDefault("AWS_SDK_ASYNC_CLIENTS_ENABLED", "false"));
+        this.asyncEventLoopThreads = Integer.parseInt(env.getOrDefault("AWS_SDK_ASYNC_EVENT_LOOP_THREADS", "4"));
+        this.asyncMaxConcurrency = Integer.parseInt(env.getOrDefault("AWS_SDK_ASYNC_MAX_CONCURRENCY", "500"));
+        ENDPOINT_OVERRIDE.ifPresent(uri -> log.info("AWS API endpoint overridden to {}", uri));
         this.clientCache = CacheBuilder.newBuilder()
                 .expireAfterAccess(Long.parseLong(env.getOrDefault("AWS_SDK_CLIENT_CACHE_TTL", "30")), MINUTES)
-                .removalListener(removalNotification -> {
+                .maximumSize(Long.parseLong(env.getOrDefault("AWS_SDK_CLIENT_CACHE_MAX_SIZE", "2000")))
+                .removalListener((RemovalListener<ClientCacheKey, SdkClient>) removalNotification -> {
                     try {
-                        SdkClient sdkClient = (SdkClient) removalNotification.getValue();
-                        log.info("Shutting down SDK Client {}", sdkClient.serviceName());
+                        SdkClient sdkClient = removalNotification.getValue();
+                        log.info("Shutting down SDK Client {} for account {} in region {} ({})",
+                                sdkClient.serviceName(), removalNotification.getKey().getAccountId(),
+                                removalNotification.getKey().getRegion(), removalNotification.getCause());
                         sdkClient.close();
                     } catch (Exception e) {
                         log.error("Failed to close client", e);
                     }
+                    recordClientCounts();
                 })
                 .build();
     }
 
+    /**
+     * @return The endpoint from <code>AWS_ENDPOINT_OVERRIDE</code>, for the clients that aren't built here
+     */
+    public static Optional<URI> getEndpointOverride() {
+        return ENDPOINT_OVERRIDE;
+    }
+
     public SecretsManagerClient getSecretsManagerClient(String region) {
         ClientCacheKey clientCacheKey = ClientCacheKey.builder()
                 .region(region)
                 .accountId(accountIDProvider.getAccountId())
                 .clientType(SecretsManagerClient.class)
                 .build();
-        SecretsManagerClient client = (SecretsManagerClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            client = SecretsManagerClient.builder()
-                    .region(Region.of(region))
-                    .build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getOrCreate(clientCacheKey, () -> {
+            SecretsManagerClientBuilder clientBuilder = SecretsManagerClient.builder().region(Region.of(region));
+            if (ENDPOINT_OVERRIDE.isPresent()) {
+                clientBuilder = clientBuilder.endpointOverride(ENDPOINT_OVERRIDE.get());
+            }
+            return clientBuilder.build();
+        });
     }
 
     public SqsClient getSqsClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(SqsClient.class)
-                .build();
-        SqsClient client = (SqsClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            SqsClientBuilder clientBuilder = SqsClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, SqsClient.class, SqsClient::builder);
     }
 
     public SnsClient getSnsClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(SnsClient.class)
-                .build();
-        SnsClient client = (SnsClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            SnsClientBuilder clientBuilder = SnsClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, SnsClient.class, SnsClient::builder);
     }
 
     public AutoScalingClient getAutoScalingClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(AutoScalingClient.class)
-                .build();
-        AutoScalingClient client = (AutoScalingClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            AutoScalingClientBuilder clientBuilder = AutoScalingClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, AutoScalingClient.class, AutoScalingClient::builder);
     }
 
     public ApiGatewayClient getApiGatewayClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(ApiGatewayClient.class)
-                .build();
-        ApiGatewayClient client = (ApiGatewayClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            ApiGatewayClientBuilder clientBuilder = ApiGatewayClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, ApiGatewayClient.class, ApiGatewayClient::builder);
     }
 
     public ElasticLoadBalancingV2Client getELBV2Client(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(ElasticLoadBalancingV2Client.class)
-                .build();
-        ElasticLoadBalancingV2Client client = (ElasticLoadBalancingV2Client) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            ElasticLoadBalancingV2ClientBuilder clientBuilder =
-                    ElasticLoadBalancingV2Client.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, ElasticLoadBalancingV2Client.class, ElasticLoadBalancingV2Client::builder);
     }
 
     public ElasticLoadBalancingClient getELBClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(ElasticLoadBalancingClient.class)
-                .build();
-        ElasticLoadBalancingClient client = (ElasticLoadBalancingClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            ElasticLoadBalancingClientBuilder clientBuilder =
-                    ElasticLoadBalancingClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, ElasticLoadBalancingClient.class, ElasticLoadBalancingClient::builder);
     }
 
     public CloudWatchClient getCloudWatchClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(CloudWatchClient.class)
-                .build();
-        CloudWatchClient client = (CloudWatchClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            CloudWatchClientBuilder clientBuilder = cloudWatchClientBuilder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, CloudWatchClient.class, this::cloudWatchClientBuilder);
+    }
+
+    public CloudWatchAsyncClient getCloudWatchAsyncClient(String region, AWSAccount account) {
+        return getClient(region, account, CloudWatchAsyncClient.class,
+                () -> cloudWatchAsyncClientBuilder().httpClient(getAsyncHttpClient()));
     }
 
     public LambdaClient getLambdaClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(LambdaClient.class)
-                .build();
-        LambdaClient client = (LambdaClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            LambdaClientBuilder clientBuilder = LambdaClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, LambdaClient.class, LambdaClient::builder);
     }
 
     public ResourceGroupsTaggingApiClient getResourceTagClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(ResourceGroupsTaggingApiClient.class)
-                .build();
-        ResourceGroupsTaggingApiClient client =
-                (ResourceGroupsTaggingApiClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            ResourceGroupsTaggingApiClientBuilder clientBuilder =
-                    ResourceGroupsTaggingApiClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, ResourceGroupsTaggingApiClient.class,
+                ResourceGroupsTaggingApiClient::builder);
+    }
+
+    public ResourceGroupsTaggingApiAsyncClient getResourceTagAsyncClient(String region, AWSAccount account) {
+        return getClient(region, account, ResourceGroupsTaggingApiAsyncClient.class,
+                () -> ResourceGroupsTaggingApiAsyncClient.builder().httpClient(getAsyncHttpClient()));
     }
 
     public EcsClient getECSClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(EcsClient.class)
-                .build();
-        EcsClient client = (EcsClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            EcsClientBuilder clientBuilder = EcsClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, EcsClient.class, EcsClient::builder);
     }
 
     public Ec2Client getEc2Client(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(Ec2Client.class)
-                .build();
-        Ec2Client client = (Ec2Client) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            Ec2ClientBuilder clientBuilder = Ec2Client.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, Ec2Client.class, Ec2Client::builder);
     }
 
     public KinesisAnalyticsV2Client getKAClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(KinesisAnalyticsV2Client.class)
-                .build();
-        KinesisAnalyticsV2Client client = (KinesisAnalyticsV2Client) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            KinesisAnalyticsV2ClientBuilder clientBuilder =
-                    KinesisAnalyticsV2Client.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, KinesisAnalyticsV2Client.class, KinesisAnalyticsV2Client::builder);
     }
 
     public FirehoseClient getFirehoseClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(FirehoseClient.class)
-                .build();
-        FirehoseClient client = (FirehoseClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            FirehoseClientBuilder clientBuilder = FirehoseClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, FirehoseClient.class, FirehoseClient::builder);
     }
 
     public S3Client getS3Client(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(S3Client.class)
-                .build();
-        S3Client client = (S3Client) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            S3ClientBuilder clientBuilder = S3Client.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, S3Client.class, S3Client::builder);
     }
 
     public DynamoDbClient getDynamoDBClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(DynamoDbClient.class)
-                .build();
-        DynamoDbClient client = (DynamoDbClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            DynamoDbClientBuilder clientBuilder = DynamoDbClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, DynamoDbClient.class, DynamoDbClient::builder,
+                dynamoDBOverrideConfiguration);
     }
 
     public RedshiftClient getRedshiftClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(RedshiftClient.class)
-                .build();
-        RedshiftClient client = (RedshiftClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            RedshiftClientBuilder clientBuilder = RedshiftClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, RedshiftClient.class, RedshiftClient::builder);
     }
 
     public EmrClient getEmrClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(EmrClient.class)
-                .build();
-        EmrClient client = (EmrClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            EmrClientBuilder clientBuilder = EmrClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
-        }
-        return client;
+        return getClient(region, account, EmrClient.class, EmrClient::builder);
     }
 
     public KinesisClient getKinesisClient(String region, AWSAccount account) {
-        ClientCacheKey clientCacheKey = ClientCacheKey.builder()
-                .region(region)
-                .accountId(account.getAccountId())
-                .clientType(KinesisClient.class)
+        return getClient(region, account, KinesisClient.class, KinesisClient::builder);
+    }
+
+    public RdsClient getRDSClient(String region, AWSAccount account) {
+        return getClient(region, account, RdsClient.class, RdsClient::builder);
+    }
+
+    @VisibleForTesting
+    CloudWatchClientBuilder cloudWatchClientBuilder() {
+        return CloudWatchClient.builder();
+    }
+
+    @VisibleForTesting
+    CloudWatchAsyncClientBuilder cloudWatchAsyncClientBuilder() {
+        return CloudWatchAsyncClient.builder();
+    }
+
+    @VisibleForTesting
+    SdkAsyncHttpClient buildAsyncHttpClient() {
+        log.info("Creating shared async HTTP client with {} event loop threads and max concurrency {}",
+                asyncEventLoopThreads, asyncMaxConcurrency);
+        return NettyNioAsyncHttpClient.builder()
+                .eventLoopGroupBuilder(SdkEventLoopGroup.builder().numberOfThreads(asyncEventLoopThreads))
+                .maxConcurrency(asyncMaxConcurrency)
                 .build();
-        KinesisClient client = (KinesisClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            KinesisClientBuilder clientBuilder = KinesisClient.builder().region(Region.of(region));
-            Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
-            if (account.getAssumeRole() != null) {
-                clientBuilder = clientBuilder.credentialsProvider(() ->
-                        getAwsSessionCredentials(region, account, credentialsOpt));
-            } else if (credentialsOpt.isPresent()) {
-                clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
+    }
+
+    private SdkAsyncHttpClient getAsyncHttpClient() {
+        if (asyncHttpClient == null) {
+            synchronized (this) {
+                if (asyncHttpClient == null) {
+                    asyncHttpClient = buildAsyncHttpClient();
+                }
             }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
         }
-        return client;
+        return asyncHttpClient;
     }
 
-    public RdsClient getRDSClient(String region, AWSAccount account) {
+    /**
+     * Closes the clients and drops the sessions of the accounts that are no longer handled by this exporter, and of
+     * the accounts whose credentials have changed
+     */
+    public void retainAccounts(Set<AWSAccount> accounts) {
+        Map<String, AWSAccount> byId = accounts.stream()
+                .collect(Collectors.toMap(AWSAccount::getAccountId, account -> account, (a, b) -> a));
+        credentialFingerprints.keySet().stream()
+                .filter(accountId -> !byId.containsKey(accountId))
+                .collect(Collectors.toList())
+                .forEach(accountId -> {
+                    log.info("Account {} removed. Closing its clients", accountId);
+                    credentialFingerprints.remove(accountId);
+                    closeClients(accountId);
+                });
+        byId.values().forEach(this::checkCredentialRotation);
+    }
+
+    @Override
+    public void destroy() {
+        clientCache.invalidateAll();
+        if (asyncHttpClient != null) {
+            asyncHttpClient.close();
+        }
+    }
+
+    private <B extends AwsClientBuilder<B, C>, C extends SdkClient> C getClient(String region, AWSAccount account,
+                                                                                 Class<C> clientType,
+                                                                                 Supplier<B> builderSupplier) {
+        return getClient(region, account, clientType, builderSupplier, overrideConfiguration);
+    }
+
+    private <B extends AwsClientBuilder<B, C>, C extends SdkClient> C getClient(
+            String region, AWSAccount account, Class<C> clientType, Supplier<B> builderSupplier,
+            ClientOverrideConfiguration overrideConfiguration) {
         ClientCacheKey clientCacheKey = ClientCacheKey.builder()
                 .region(region)
                 .accountId(account.getAccountId())
-                .clientType(RdsClient.class)
+                .clientType(clientType)
                 .build();
-        RdsClient client = (RdsClient) clientCache.getIfPresent(clientCacheKey);
-        if (client == null) {
-            RdsClientBuilder clientBuilder = RdsClient.builder().region(Region.of(region));
+        return getOrCreate(clientCacheKey, () -> {
+            // The credentials the clients of the account are built with, until retainAccounts sees them change
+            credentialFingerprints.putIfAbsent(account.getAccountId(), credentialFingerprint(account));
+            B clientBuilder = builderSupplier.get().region(Region.of(region))
+                    .overrideConfiguration(overrideConfiguration);
+            if (ENDPOINT_OVERRIDE.isPresent()) {
+                clientBuilder = clientBuilder.endpointOverride(ENDPOINT_OVERRIDE.get());
+            }
             Optional<AwsCredentialsProvider> credentialsOpt = getCredentialsProvider(account);
             if (account.getAssumeRole() != null) {
                 clientBuilder = clientBuilder.credentialsProvider(() ->
@@ -526,52 +343,66 @@ public class AWSClientProvider {
             } else if (credentialsOpt.isPresent()) {
                 clientBuilder = clientBuilder.credentialsProvider(credentialsOpt.get());
             }
-            client = clientBuilder.build();
-            clientCache.put(clientCacheKey, client);
+            return clientBuilder.build();
+        });
+    }
+
+    /**
+     * Builds the client only if it is not already in the cache. Concurrent callers asking for the same client wait
+     * for the one being built instead of building and leaking their own copy
+     */
+    @SuppressWarnings("unchecked")
+    private <C extends SdkClient> C getOrCreate(ClientCacheKey clientCacheKey, Supplier<C> clientSupplier) {
+        AtomicBoolean created = new AtomicBoolean();
+        C client;
+        try {
+            client = (C) clientCache.get(clientCacheKey, () -> {
+                created.set(true);
+                return clientSupplier.get();
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        if (created.get()) {
+            recordClientCounts();
         }
         return client;
     }
 
-    @VisibleForTesting
-    CloudWatchClientBuilder cloudWatchClientBuilder() {
-        return CloudWatchClient.builder();
+    private void checkCredentialRotation(AWSAccount account) {
+        Integer fingerprint = credentialFingerprint(account);
+        Integer previous = credentialFingerprints.put(account.getAccountId(), fingerprint);
+        if (previous != null && !previous.equals(fingerprint)) {
+            log.info("Credentials of account {} changed. Closing its clients", account.getAccountId());
+            closeClients(account.getAccountId());
+        }
     }
 
-    @VisibleForTesting
-    StsClientBuilder stsBuilder() {
-        return StsClient.builder();
+    private Integer credentialFingerprint(AWSAccount account) {
+        return Objects.hash(account.getAccessId(), account.getSecretKey(), account.getAssumeRole(),
+                account.getExternalId());
+    }
+
+    private void closeClients(String accountId) {
+        clientCache.invalidateAll(clientCache.asMap().keySet().stream()
+                .filter(key -> accountId.equals(key.getAccountId()))
+                .filter(key -> key.getClientType() != SecretsManagerClient.class)
+                .collect(Collectors.toList()));
+        sessionProvider.removeSessions(accountId);
+    }
+
+    private void recordClientCounts() {
+        Map<String, Long> counts = clientCache.asMap().keySet().stream()
+                .collect(Collectors.groupingBy(key -> key.getClientType().getSimpleName(), Collectors.counting()));
+        knownServices.addAll(counts.keySet());
+        knownServices.forEach(service -> metricCollector.recordGaugeValue(SDK_CLIENT_COUNT_METRIC,
+                new TreeMap<>(ImmutableMap.of(SERVICE_LABEL, service)),
+                counts.getOrDefault(service, 0L).doubleValue()));
     }
 
     private AwsSessionCredentials getAwsSessionCredentials(String region, AWSAccount account,
                                                            Optional<AwsCredentialsProvider> credentialsOpt) {
-        AccountRegion key = new AccountRegion(account, region);
-        AWSSessionConfig credentials = credentialCache.get(key);
-        if (credentials == null || credentials.getExpiring().compareTo(Instant.now()) <= 0) {
-            StsClientBuilder stsClientBuilder = stsBuilder().region(Region.of(region));
-            if (credentialsOpt.isPresent()) {
-                stsClientBuilder = stsClientBuilder.credentialsProvider(credentialsOpt.get());
-            }
-            try (StsClient build = stsClientBuilder.build()) {
-                AssumeRoleRequest.Builder reqBuilder = AssumeRoleRequest.builder()
-                        .roleSessionName("session1")
-                        .roleArn(account.getAssumeRole());
-                if (hasLength(account.getExternalId())) {
-                    reqBuilder = reqBuilder.externalId(account.getExternalId());
-                }
-                AssumeRoleResponse response = build.assumeRole(reqBuilder.build());
-                credentials = AWSSessionConfig.builder()
-                        .accessKeyId(response.credentials().accessKeyId())
-                        .secretAccessKey(response.credentials().secretAccessKey())
-                        .sessionToken(response.credentials().sessionToken())
-                        .expiring(response.credentials().expiration())
-                        .build();
-                credentialCache.put(key, credentials);
-            }
-        }
-        return AwsSessionCredentials.create(
-                credentials.getAccessKeyId(),
-                credentials.getSecretAccessKey(),
-                credentials.getSessionToken());
+        return sessionProvider.getSessionCredentials(region, account, credentialsOpt);
     }
 
     private Optional<AwsCredentialsProvider> getCredentialsProvider(AWSAccount authConfig) {
@@ -590,12 +421,4 @@ public class AWSClientProvider {
         private final String region;
         private final Class<?> clientType;
     }
-
-    @EqualsAndHashCode
-    @Getter
-    @AllArgsConstructor
-    public static class AccountRegion {
-        private final AWSAccount account;
-        private final String region;
-    }
 }
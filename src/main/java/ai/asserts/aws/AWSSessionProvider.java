@@ -0,0 +1,263 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSortedMap;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.StsClientBuilder;
+import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
+import software.amazon.awssdk.services.sts.model.AssumeRoleResponse;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+import static org.springframework.util.StringUtils.hasLength;
+
+/**
+ * Provides the temporary credentials of the assumed role of an account. There is one session per
+ * (account, role, external id) which is shared by the clients of all regions of the account. The session is refreshed
+ * in the background ahead of its expiry, so that the clients do not all stall on an expired session at the same time.
+ * Concurrent refreshes of the same session are collapsed into a single STS call.
+ */
+@SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+@Component
+@Slf4j
+public class AWSSessionProvider implements DisposableBean {
+    public static final String ASSUME_ROLE_OPERATION = "StsClient/assumeRole";
+    public static final String CREDENTIAL_REFRESH_COUNT_METRIC = "aws_exporter_credential_refresh_total";
+    public static final String REFRESH_TYPE_LABEL = "refresh_type";
+    private final AWSApiCallRateLimiter rateLimiter;
+    private final BasicMetricCollector metricCollector;
+    private final Map<SessionKey, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refreshScheduler;
+    private final long refreshAheadSeconds;
+    private final long retryAfterFailureSeconds;
+
+    public AWSSessionProvider(AWSApiCallRateLimiter rateLimiter, BasicMetricCollector metricCollector) {
+        this.rateLimiter = rateLimiter;
+        this.metricCollector = metricCollector;
+        Map<String, String> env = System.getenv();
+        this.refreshAheadSeconds = Long.parseLong(env.getOrDefault("AWS_STS_REFRESH_AHEAD_SECONDS", "300"));
+        this.retryAfterFailureSeconds = Long.parseLong(env.getOrDefault("AWS_STS_RETRY_AFTER_SECONDS", "30"));
+        this.refreshScheduler = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("aws-session-refresh"));
+    }
+
+    public AwsSessionCredentials getSessionCredentials(String region, AWSAccount account,
+                                                      Optional<AwsCredentialsProvider> credentialsOpt) {
+        SessionKey key = new SessionKey(account.getAccountId(), account.getAssumeRole(), account.getExternalId());
+        Session session = sessions.computeIfAbsent(key, k -> new Session(k, region));
+        AWSSessionConfig config = session.get(credentialsOpt);
+        return AwsSessionCredentials.create(
+                config.getAccessKeyId(),
+                config.getSecretAccessKey(),
+                config.getSessionToken());
+    }
+
+    public void removeSessions(String accountId) {
+        sessions.keySet().removeIf(key -> accountId.equals(key.getAccountId()));
+    }
+
+    @Override
+    public void destroy() {
+        refreshScheduler.shutdownNow();
+        sessions.clear();
+    }
+
+    @VisibleForTesting
+    StsClientBuilder stsBuilder() {
+        return StsClient.builder();
+    }
+
+    @VisibleForTesting
+    Instant now() {
+        return Instant.now();
+    }
+
+    @VisibleForTesting
+    void scheduleRefresh(Runnable refresh, long delaySeconds) {
+        refreshScheduler.schedule(refresh, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    @VisibleForTesting
+    void refreshInBackground(Runnable refresh) {
+        refreshScheduler.execute(refresh);
+    }
+
+    private AWSSessionConfig assumeRole(SessionKey key, String region, Optional<AwsCredentialsProvider> credentialsOpt,
+                                        String refreshType) {
+        SortedMap<String, String> labels = ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, key.getAccountId(),
+                SCRAPE_REGION_LABEL, region,
+                SCRAPE_OPERATION_LABEL, ASSUME_ROLE_OPERATION);
+        metricCollector.recordCounterValue(CREDENTIAL_REFRESH_COUNT_METRIC, ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, key.getAccountId(),
+                REFRESH_TYPE_LABEL, refreshType), 1);
+        return rateLimiter.doWithRateLimit(ASSUME_ROLE_OPERATION, labels, () -> {
+            StsClientBuilder stsClientBuilder = stsBuilder().region(Region.of(region));
+            AWSClientProvider.getEndpointOverride().ifPresent(stsClientBuilder::endpointOverride);
+            if (credentialsOpt.isPresent()) {
+                stsClientBuilder = stsClientBuilder.credentialsProvider(credentialsOpt.get());
+            }
+            try (StsClient stsClient = stsClientBuilder.build()) {
+                AssumeRoleRequest.Builder reqBuilder = AssumeRoleRequest.builder()
+                        .roleSessionName("session1")
+                        .roleArn(key.getAssumeRole());
+                if (hasLength(key.getExternalId())) {
+                    reqBuilder = reqBuilder.externalId(key.getExternalId());
+                }
+                AssumeRoleResponse response = stsClient.assumeRole(reqBuilder.build());
+                return AWSSessionConfig.builder()
+                        .accessKeyId(response.credentials().accessKeyId())
+                        .secretAccessKey(response.credentials().secretAccessKey())
+                        .sessionToken(response.credentials().sessionToken())
+                        .expiring(response.credentials().expiration())
+                        .build();
+            }
+        });
+    }
+
+    private class Session {
+        private final SessionKey key;
+        /**
+         * STS is called in the region through which the session was first requested, as that region is known to be
+         * enabled for the account
+         */
+        private final String region;
+        private volatile Optional<AwsCredentialsProvider> credentialsOpt = Optional.empty();
+        private volatile AWSSessionConfig config;
+        private volatile Instant lastUsed;
+        private volatile Instant lastFailure;
+        private CompletableFuture<AWSSessionConfig> inFlight;
+
+        private Session(SessionKey key, String region) {
+            this.key = key;
+            this.region = region;
+        }
+
+        private AWSSessionConfig get(Optional<AwsCredentialsProvider> credentialsOpt) {
+            Instant now = now();
+            this.credentialsOpt = credentialsOpt;
+            this.lastUsed = now;
+            AWSSessionConfig current = config;
+            if (current == null || !current.getExpiring().isAfter(now)) {
+                return refresh("blocking", false);
+            }
+            if (current.getExpiring().minusSeconds(refreshAheadSeconds).isBefore(now) &&
+                    (lastFailure == null || lastFailure.plusSeconds(retryAfterFailureSeconds).isBefore(now))) {
+                refresh("proactive", true);
+            }
+            return current;
+        }
+
+        /**
+         * Only the first caller makes the STS call. Callers arriving while the call is in flight wait for its result
+         * instead of making their own call.
+         */
+        private AWSSessionConfig refresh(String refreshType, boolean background) {
+            CompletableFuture<AWSSessionConfig> future;
+            boolean leader = false;
+            synchronized (this) {
+                if (inFlight == null) {
+                    inFlight = new CompletableFuture<>();
+                    leader = true;
+                }
+                future = inFlight;
+            }
+            if (leader) {
+                Runnable task = () -> doRefresh(refreshType, future);
+                if (background) {
+                    refreshInBackground(task);
+                } else {
+                    task.run();
+                }
+            }
+            if (background) {
+                return null;
+            }
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        private void doRefresh(String refreshType, CompletableFuture<AWSSessionConfig> future) {
+            try {
+                AWSSessionConfig refreshed = assumeRole(key, region, credentialsOpt, refreshType);
+                config = refreshed;
+                lastFailure = null;
+                scheduleNextRefresh(refreshed);
+                complete(() -> future.complete(refreshed));
+            } catch (Throwable e) {
+                log.error("Failed to refresh session credentials for " + key, e);
+                lastFailure = now();
+                complete(() -> future.completeExceptionally(e));
+            }
+        }
+
+        private void complete(Runnable completion) {
+            synchronized (this) {
+                inFlight = null;
+            }
+            completion.run();
+        }
+
+        private void scheduleNextRefresh(AWSSessionConfig refreshed) {
+            Instant refreshedAt = now();
+            long delay = Math.max(0, refreshed.getExpiring().getEpochSecond() - refreshAheadSeconds -
+                    refreshedAt.getEpochSecond());
+            scheduleRefresh(() -> {
+                if (sessions.get(key) != this) {
+                    log.info("Session {} removed. Will not refresh it", key);
+                } else if (lastUsed.isBefore(refreshedAt)) {
+                    // Not used since the last refresh. Let the session lapse instead of refreshing it forever
+                    log.info("Session {} not in use. Will not refresh it", key);
+                    sessions.remove(key, this);
+                } else if (config == refreshed) {
+                    refresh("proactive", true);
+                }
+            }, delay);
+        }
+    }
+
+    @EqualsAndHashCode
+    @Getter
+    @AllArgsConstructor
+    @ToString
+    public static class SessionKey {
+        private final String accountId;
+        private final String assumeRole;
+        private final String externalId;
+    }
+}
@@ -25,8 +25,9 @@ public class AwsExporterBeanConfiguration {
     @Bean
     public AWSApiCallRateLimiter getRateLimiter(BasicMetricCollector metricCollector,
                                                 AccountTenantMapper accountTenantMapper,
+                                                AWSApiCostTracker costTracker,
                                                 @Value("${aws_exporter.aws_api_calls_rate_limit:5}") double rateLimit) {
-        return new AWSApiCallRateLimiter(metricCollector, accountTenantMapper, rateLimit);
+        return new AWSApiCallRateLimiter(metricCollector, accountTenantMapper, rateLimit, costTracker);
     }
 
     @Bean
@@ -36,18 +37,50 @@ public class AwsExporterBeanConfiguration {
     }
 
     @Bean("metadata-trigger-thread-pool")
-    public TaskThreadPool metadataTriggerPool(MeterRegistry meterRegistry) {
-        return new TaskThreadPool("metadata-trigger-thread-pool", 2, meterRegistry);
+    public TaskThreadPool metadataTriggerPool(MeterRegistry meterRegistry,
+                                              @Value("${aws_exporter.metadata_trigger.max_threads:2}")
+                                                      int maxThreads) {
+        TaskThreadPool taskThreadPool = new TaskThreadPool("metadata-trigger-thread-pool", 2, meterRegistry);
+        taskThreadPool.setSizeBounds(2, Math.max(2, maxThreads));
+        return taskThreadPool;
     }
 
     @Bean("metric-task-trigger-thread-pool")
-    public TaskThreadPool metricTaskTriggerPool(MeterRegistry meterRegistry) {
-        return new TaskThreadPool("metric-task-trigger-thread-pool", 2, meterRegistry);
+    public TaskThreadPool metricTaskTriggerPool(MeterRegistry meterRegistry,
+                                                @Value("${aws_exporter.metric_task_trigger.max_threads:2}")
+                                                        int maxThreads) {
+        TaskThreadPool taskThreadPool = new TaskThreadPool("metric-task-trigger-thread-pool", 2, meterRegistry);
+        taskThreadPool.setSizeBounds(2, Math.max(2, maxThreads));
+        return taskThreadPool;
     }
 
     @Bean("aws-api-calls-thread-pool")
-    public TaskThreadPool awsAPICallsPool(MeterRegistry meterRegistry) {
-        return new TaskThreadPool("aws-api-calls-thread-pool", 5, meterRegistry);
+    public TaskThreadPool awsAPICallsPool(MeterRegistry meterRegistry,
+                                          @Value("${aws_exporter.aws_api_calls.max_threads_per_account:0}")
+                                                  int maxThreadsPerAccount,
+                                          @Value("${aws_exporter.aws_api_calls.max_queued_per_account:5000}")
+                                                  int maxQueuedPerAccount,
+                                          @Value("${aws_exporter.aws_api_calls.low_priority_min_share:0.2}")
+                                                  double lowPriorityMinShare,
+                                          @Value("${aws_exporter.aws_api_calls.executor_mode:platform}")
+                                                  String executorMode,
+                                          @Value("${aws_exporter.aws_api_calls.max_concurrent_calls:200}")
+                                                  int maxConcurrentCalls,
+                                          @Value("${aws_exporter.aws_api_calls.min_threads:0}")
+                                                  int minThreads,
+                                          @Value("${aws_exporter.aws_api_calls.max_threads:0}")
+                                                  int maxThreads) {
+        TaskThreadPool.Mode mode = TaskThreadPool.Mode.valueOf(executorMode.toUpperCase());
+        // In lightweight mode the threads are cheap, so the concurrency is bounded by the scheduler instead. An
+        // account can use the whole pool unless it is given a cap, so that a single account isn't held back
+        int maxConcurrent = mode == TaskThreadPool.Mode.LIGHTWEIGHT ? maxConcurrentCalls : 5;
+        TaskThreadPool taskThreadPool = new TaskThreadPool("aws-api-calls-thread-pool", maxConcurrent,
+                maxThreadsPerAccount, maxQueuedPerAccount, lowPriorityMinShare, mode, meterRegistry);
+        // The pool keeps its size unless it is given a range for the tuner to shrink it within when AWS throttles,
+        // and to grow it within when the tasks wait for a thread
+        taskThreadPool.setSizeBounds(minThreads > 0 ? Math.min(minThreads, maxConcurrent) : maxConcurrent,
+                maxThreads > 0 ? Math.max(maxThreads, maxConcurrent) : maxConcurrent);
+        return taskThreadPool;
     }
 
     @Bean
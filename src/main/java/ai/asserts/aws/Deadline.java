@@ -0,0 +1,89 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which a unit of work, e.g. a scrape, has to be done. The deadline of the work in progress on
+ * a thread is available through {@link #current()} and is carried over to the tasks it submits through
+ * {@link TaskExecutorUtil}, so that the rate limiter and the AWS calls made by the tasks stop waiting when the time is
+ * up, instead of each step applying a timeout of its own. What was gathered before the deadline is kept.
+ */
+public class Deadline {
+    public static final String PARTIAL_RESULTS_METRIC = "aws_exporter_partial_results_total";
+    public static final String CANCELLED_WORK_METRIC = "aws_exporter_cancelled_work_total";
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+    private final long expiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public static Deadline after(long duration, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /**
+     * @return The deadline of the work in progress on this thread, <code>null</code> if there is none
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * @return The earlier of this deadline and the given one
+     */
+    public Deadline min(Deadline other) {
+        if (other == null || expiresAtNanos - other.expiresAtNanos <= 0) {
+            return this;
+        }
+        return other;
+    }
+
+    public long remaining(TimeUnit unit) {
+        return unit.convert(Math.max(0, expiresAtNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Override for an AWS request so that the SDK gives up on the call, including its retries, at the deadline
+     */
+    public AwsRequestOverrideConfiguration apiCallTimeout() {
+        return AwsRequestOverrideConfiguration.builder()
+                .apiCallTimeout(Duration.ofMillis(Math.max(1, remaining(TimeUnit.MILLISECONDS))))
+                .build();
+    }
+
+    /**
+     * Runs the callable with this deadline as the {@link #current()} deadline of the thread
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        Deadline previous = current.get();
+        current.set(this);
+        try {
+            return callable.call();
+        } finally {
+            if (previous != null) {
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+        }
+    }
+
+    public static class DeadlineExceededException extends RuntimeException {
+        public DeadlineExceededException(String message) {
+            super(message);
+        }
+    }
+}
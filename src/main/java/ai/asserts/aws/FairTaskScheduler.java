@@ -0,0 +1,392 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Schedules the tasks of a {@link TaskThreadPool} fairly across accounts. Each account has its own bounded queue and
+ * a cap on the number of its tasks that run at the same time. The accounts with pending tasks are served round-robin,
+ * so that an account with a large number of tasks cannot hold all the threads of the pool while the tasks of the
+ * other accounts wait behind it.
+ * <p>
+ * The queues are split into lanes by {@link TaskPriority}. A free thread goes to the highest lane with pending tasks,
+ * except that a lower lane that has been passed over often enough to fall below its minimum share of the threads
+ * gets the next one, so that it never starves.
+ * <p>
+ * Tasks are handed to the underlying executor only when a thread is available, so the queue of the executor stays
+ * short and the waiting happens in the per account queues.
+ */
+@Slf4j
+public class FairTaskScheduler {
+    public static final String QUEUE_WAIT_METRIC = "aws_exporter.task.queue.wait";
+    public static final String QUEUED_TASKS_METRIC = "aws_exporter.task.queued";
+    public static final String REJECTED_TASKS_METRIC = "aws_exporter.task.rejected";
+    public static final double DEFAULT_LOW_PRIORITY_MIN_SHARE = 0.2;
+    private final String name;
+    private final Supplier<ExecutorService> executorService;
+    private int maxRunning;
+    private final int maxRunningPerAccount;
+    private final int maxQueuedPerAccount;
+    private final int maxPassedOver;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Account> accounts = new HashMap<>();
+    private final Map<TaskPriority, Lane> lanes = new EnumMap<>(TaskPriority.class);
+    private final ThreadLocal<Boolean> inTask = ThreadLocal.withInitial(() -> false);
+    private int running;
+    private long queueWaitNanos;
+    private int started;
+
+    public FairTaskScheduler(String name, Supplier<ExecutorService> executorService, int maxRunning,
+                             int maxRunningPerAccount, int maxQueuedPerAccount, MeterRegistry meterRegistry) {
+        this(name, executorService, maxRunning, maxRunningPerAccount, maxQueuedPerAccount,
+                DEFAULT_LOW_PRIORITY_MIN_SHARE, meterRegistry);
+    }
+
+    /**
+     * @param maxRunningPerAccount The cap on the running tasks of an account, <code>0</code> for no cap other than
+     *                             the size of the pool
+     * @param lowPriorityMinShare  The minimum share of the threads that a lower lane gets while a higher lane has
+     *                             pending tasks
+     */
+    public FairTaskScheduler(String name, Supplier<ExecutorService> executorService, int maxRunning,
+                             int maxRunningPerAccount, int maxQueuedPerAccount, double lowPriorityMinShare,
+                             MeterRegistry meterRegistry) {
+        checkArgument(lowPriorityMinShare > 0 && lowPriorityMinShare <= 1,
+                "Minimum share %s has to be in (0, 1]", lowPriorityMinShare);
+        this.name = name;
+        this.executorService = executorService;
+        this.maxRunning = maxRunning;
+        this.maxRunningPerAccount = maxRunningPerAccount > 0 ? maxRunningPerAccount : Integer.MAX_VALUE;
+        this.maxQueuedPerAccount = maxQueuedPerAccount;
+        this.maxPassedOver = (int) Math.ceil(1 / lowPriorityMinShare) - 1;
+        this.meterRegistry = meterRegistry;
+        for (TaskPriority priority : TaskPriority.values()) {
+            lanes.put(priority, new Lane(priority));
+        }
+    }
+
+    public <T> Future<T> submit(String accountId, Callable<T> callable) {
+        return submit(accountId, TaskPriority.LOW, callable);
+    }
+
+    /**
+     * Tasks submitted by a running task are queued like any other, so that the tasks a task fans out to different
+     * accounts run in parallel. A task that waits for one of them that is still queued runs it on its own thread
+     * instead of holding on to its thread while the queued task waits for one.
+     *
+     * @throws RejectedExecutionException if the queue of the account is full
+     */
+    public <T> Future<T> submit(String accountId, TaskPriority priority, Callable<T> callable) {
+        QueuedTask<T> task;
+        synchronized (this) {
+            Account account = accounts.computeIfAbsent(accountId, k -> new Account());
+            AccountQueue queue = account.queues.computeIfAbsent(priority,
+                    k -> new AccountQueue(lanes.get(priority), accountId, account));
+            task = new QueuedTask<>(callable, queue, System.nanoTime());
+            if (queue.pending.size() >= maxQueuedPerAccount) {
+                if (queue.rejected != null) {
+                    queue.rejected.increment();
+                }
+                if (!inTask.get()) {
+                    throw new RejectedExecutionException(String.format(
+                            "%s: %s priority queue of account %s is full with %d tasks", name, queue.lane.priority,
+                            accountId, queue.pending.size()));
+                }
+                // The submitting task is most likely going to wait for it, run it on the thread of that task
+                task.queue = null;
+            } else {
+                queue.pending.add(task);
+                markReady(queue);
+            }
+        }
+        if (task.queue == null) {
+            task.run();
+            return task;
+        }
+        dispatch();
+        return task;
+    }
+
+    /**
+     * Drops the queues, and their meters, of the accounts that are no longer handled. An account that still has
+     * tasks queued or running is kept until they have completed.
+     */
+    public synchronized void retainAccounts(Set<String> accountIds) {
+        Iterator<Map.Entry<String, Account>> iterator = accounts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Account> entry = iterator.next();
+            Account account = entry.getValue();
+            if (accountIds.contains(entry.getKey()) || account.running > 0 ||
+                    account.queues.values().stream().anyMatch(queue -> !queue.pending.isEmpty())) {
+                continue;
+            }
+            log.info("{}: account {} removed. Dropping its queues", name, entry.getKey());
+            account.queues.values().forEach(queue -> {
+                queue.lane.ready.remove(queue);
+                queue.meters.forEach(meter -> meterRegistry.remove(meter));
+            });
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Changes the number of tasks that run at the same time
+     */
+    public void setMaxRunning(int maxRunning) {
+        synchronized (this) {
+            this.maxRunning = maxRunning;
+        }
+        dispatch();
+    }
+
+    /**
+     * @return The average time the tasks that started since the last call waited in the queue, or the time the
+     * oldest task still in the queue has waited if that is longer
+     */
+    public synchronized long sampleQueueWaitMillis() {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for (Account account : accounts.values()) {
+            for (AccountQueue queue : account.queues.values()) {
+                QueuedTask first = queue.pending.peek();
+                if (first != null) {
+                    oldest = Math.max(oldest, now - first.queuedAt);
+                }
+            }
+        }
+        long average = started > 0 ? queueWaitNanos / started : 0;
+        queueWaitNanos = 0;
+        started = 0;
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(average, oldest));
+    }
+
+    private void dispatch() {
+        List<Runnable> toRun = new ArrayList<>();
+        synchronized (this) {
+            Lane lane;
+            while (running < maxRunning && (lane = nextLane()) != null) {
+                AccountQueue queue = lane.ready.poll();
+                queue.ready = false;
+                if (queue.account.running >= maxRunningPerAccount) {
+                    // Another lane of the account took its last slot since this queue became ready. The queue is
+                    // marked ready again when a task of the account completes
+                    continue;
+                }
+                QueuedTask<?> task = queue.pending.poll();
+                if (task == null) {
+                    continue;
+                }
+                queue.account.running++;
+                running++;
+                started++;
+                queueWaitNanos += System.nanoTime() - task.queuedAt;
+                // Back to the end of the line, behind the other accounts waiting for a thread
+                markReady(queue);
+                toRun.add(() -> run(queue, task));
+            }
+        }
+        toRun.forEach(task -> {
+            try {
+                executorService.get().submit(task);
+            } catch (RejectedExecutionException e) {
+                log.error(name + ": failed to submit task", e);
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * @return The lane that gets the next thread, <code>null</code> if no lane has a task that can run
+     */
+    private Lane nextLane() {
+        Lane next = null;
+        for (Lane lane : lanes.values()) {
+            if (lane.ready.isEmpty()) {
+                continue;
+            }
+            if (next == null) {
+                next = lane;
+            } else if (lane.passedOver >= maxPassedOver) {
+                next = lane;
+                break;
+            }
+        }
+        if (next != null) {
+            for (Lane lane : lanes.values()) {
+                if (lane == next) {
+                    lane.passedOver = 0;
+                } else if (!lane.ready.isEmpty()) {
+                    lane.passedOver++;
+                }
+            }
+        }
+        return next;
+    }
+
+    private void run(AccountQueue queue, QueuedTask<?> task) {
+        if (queue.queueWait != null) {
+            queue.queueWait.record(System.nanoTime() - task.queuedAt, TimeUnit.NANOSECONDS);
+        }
+        inTask.set(true);
+        try {
+            task.run();
+        } finally {
+            inTask.remove();
+            synchronized (this) {
+                queue.account.running--;
+                running--;
+                // The account is below its cap again, for the tasks of all its lanes
+                queue.account.queues.values().forEach(this::markReady);
+            }
+            dispatch();
+        }
+    }
+
+    private void markReady(AccountQueue queue) {
+        if (!queue.ready && !queue.pending.isEmpty() && queue.account.running < maxRunningPerAccount) {
+            queue.ready = true;
+            queue.lane.ready.add(queue);
+        }
+    }
+
+    private synchronized int queued(AccountQueue queue) {
+        return queue.pending.size();
+    }
+
+    /**
+     * @return Whether the task was still queued
+     */
+    private synchronized boolean unqueue(QueuedTask<?> task) {
+        return task.queue != null && task.queue.pending.remove(task);
+    }
+
+    private static class Lane {
+        private final TaskPriority priority;
+        private final Deque<AccountQueue> ready = new ArrayDeque<>();
+        /**
+         * The number of times in a row this lane had a task ready while a thread was given to another lane
+         */
+        private int passedOver;
+
+        private Lane(TaskPriority priority) {
+            this.priority = priority;
+        }
+    }
+
+    private static class Account {
+        private final Map<TaskPriority, AccountQueue> queues = new EnumMap<>(TaskPriority.class);
+        private int running;
+    }
+
+    private class AccountQueue {
+        private final Lane lane;
+        private final Account account;
+        private final Deque<QueuedTask<?>> pending = new ArrayDeque<>();
+        private final Timer queueWait;
+        private final Counter rejected;
+        private final List<Meter> meters = new ArrayList<>();
+        private boolean ready;
+
+        private AccountQueue(Lane lane, String accountId, Account account) {
+            this.lane = lane;
+            this.account = account;
+            if (meterRegistry != null) {
+                queueWait = Timer.builder(QUEUE_WAIT_METRIC)
+                        .tag("pool", name)
+                        .tag("lane", lane.priority.getLane())
+                        .tag(SCRAPE_ACCOUNT_ID_LABEL, accountId)
+                        .register(meterRegistry);
+                rejected = Counter.builder(REJECTED_TASKS_METRIC)
+                        .tag("pool", name)
+                        .tag("lane", lane.priority.getLane())
+                        .tag(SCRAPE_ACCOUNT_ID_LABEL, accountId)
+                        .register(meterRegistry);
+                Gauge queued = Gauge.builder(QUEUED_TASKS_METRIC, this, FairTaskScheduler.this::queued)
+                        .tag("pool", name)
+                        .tag("lane", lane.priority.getLane())
+                        .tag(SCRAPE_ACCOUNT_ID_LABEL, accountId)
+                        .register(meterRegistry);
+                meters.add(queueWait);
+                meters.add(rejected);
+                meters.add(queued);
+            } else {
+                queueWait = null;
+                rejected = null;
+            }
+        }
+    }
+
+    private class QueuedTask<T> extends FutureTask<T> {
+        /**
+         * The queue the task is in, <code>null</code> if it runs on the thread of the task that submitted it
+         */
+        private AccountQueue queue;
+        private final long queuedAt;
+
+        private QueuedTask(Callable<T> callable, AccountQueue queue, long queuedAt) {
+            super(callable);
+            this.queue = queue;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            runIfWaitedOnByTask();
+            return super.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            runIfWaitedOnByTask();
+            return super.get(timeout, unit);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // Frees its place in the queue
+            unqueue(this);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        /**
+         * A task waiting for a queued task would hold its thread, and its slot of the account, while the queued task
+         * waits for one. If the pool, or the account, is at its cap, they would wait for each other.
+         */
+        private void runIfWaitedOnByTask() {
+            if (inTask.get() && !isDone() && unqueue(this)) {
+                run();
+            }
+        }
+    }
+}
@@ -24,14 +24,23 @@ import ai.asserts.aws.exporter.SNSTopicExporter;
 import ai.asserts.aws.exporter.SQSQueueExporter;
 import ai.asserts.aws.exporter.TargetGroupLBMapProvider;
 import ai.asserts.aws.lambda.LambdaFunctionScraper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import io.micrometer.core.annotation.Timed;
 import io.prometheus.client.CollectorRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ai.asserts.aws.TaskGraph.GRAPH_LABEL;
+
 @Component
 @Slf4j
 public class MetadataTaskManager implements InitializingBean {
@@ -63,6 +72,17 @@ public class MetadataTaskManager implements InitializingBean {
     private final DynamoDBExporter dynamoDBExporter;
     private final SNSTopicExporter snsTopicExporter;
     private final EMRExporter emrExporter;
+    private final TaskGraph metadataGraph;
+    private final SpreadScheduler spreadScheduler;
+    private final long updatePeriodMillis;
+    private final long minRequestedUpdateIntervalMillis;
+    private final AtomicBoolean firstUpdate = new AtomicBoolean(true);
+    /**
+     * Whether a requested update is scheduled or running
+     */
+    private final AtomicBoolean updateRequested = new AtomicBoolean();
+    private final AtomicBoolean requestedDuringUpdate = new AtomicBoolean();
+    private final AtomicLong lastRequestedUpdate = new AtomicLong();
 
     public MetadataTaskManager(EnvironmentConfig environmentConfig, CollectorRegistry collectorRegistry,
                                LambdaFunctionScraper lambdaFunctionScraper,
@@ -85,7 +105,12 @@ public class MetadataTaskManager implements InitializingBean {
                                RedshiftExporter redshiftExporter, SQSQueueExporter sqsQueueExporter,
                                KinesisStreamExporter kinesisStreamExporter, LoadBalancerExporter loadBalancerExporter,
                                RDSExporter rdsExporter, DynamoDBExporter dynamoDBExporter,
-                               SNSTopicExporter snsTopicExporter, EMRExporter emrExporter) {
+                               SNSTopicExporter snsTopicExporter, EMRExporter emrExporter,
+                               SpreadScheduler spreadScheduler,
+                               @Value("${aws.metadata.scrape.manager.task.fixedDelay:300000}")
+                                       long updatePeriodMillis,
+                                       @Value("${aws.metadata.scrape.manager.task.minRequestedInterval:60000}")
+                                       long minRequestedUpdateIntervalMillis) {
         this.environmentConfig = environmentConfig;
         this.collectorRegistry = collectorRegistry;
         this.lambdaFunctionScraper = lambdaFunctionScraper;
@@ -114,6 +139,33 @@ public class MetadataTaskManager implements InitializingBean {
         this.dynamoDBExporter = dynamoDBExporter;
         this.snsTopicExporter = snsTopicExporter;
         this.emrExporter = emrExporter;
+        this.spreadScheduler = spreadScheduler;
+        this.updatePeriodMillis = updatePeriodMillis;
+        this.minRequestedUpdateIntervalMillis = minRequestedUpdateIntervalMillis;
+        // A run that takes longer than the period no longer holds off the next one
+        this.metadataGraph = new TaskGraph("metadata", metricCollector, updatePeriodMillis)
+                .add("lambda-functions", lambdaFunctionScraper::update)
+                .add("lambda-capacity", lambdaCapacityExporter::update, "lambda-functions")
+                .add("lambda-event-sources", lambdaEventSourceExporter::update)
+                .add("lambda-invoke-config", lambdaInvokeConfigExporter::update, "lambda-functions")
+                .add("target-groups", targetGroupLBMapProvider::update)
+                .add("lb-to-asg", lbToASGRelationBuilder::updateRouting, "target-groups")
+                .add("lb-to-ecs", lbToECSRoutingBuilder, "target-groups")
+                .add("ec2-to-ebs", ec2ToEBSVolumeExporter::update)
+                .add("api-gateway-to-lambda", apiGatewayToLambdaBuilder::update)
+                .add("resource-relations", relationExporter::update,
+                        "lb-to-asg", "lb-to-ecs", "ec2-to-ebs", "api-gateway-to-lambda")
+                .add("kinesis-analytics", kinesisAnalyticsExporter::update)
+                .add("kinesis-firehose", kinesisFirehoseExporter::update)
+                .add("s3-buckets", s3BucketExporter::update)
+                .add("redshift", redshiftExporter::update)
+                .add("sqs-queues", sqsQueueExporter::update)
+                .add("kinesis-streams", kinesisStreamExporter::update)
+                .add("load-balancers", loadBalancerExporter::update)
+                .add("rds", rdsExporter::update)
+                .add("dynamodb", dynamoDBExporter::update)
+                .add("sns-topics", snsTopicExporter::update)
+                .add("emr", emrExporter::update);
     }
 
     public void afterPropertiesSet() {
@@ -149,30 +201,54 @@ public class MetadataTaskManager implements InitializingBean {
         if (environmentConfig.isSingleTenant() && environmentConfig.isSingleInstance() &&
                 !ecsServiceDiscoveryExporter.isPrimaryExporter()) {
             log.info("Not primary exporter. Skip meta data scraping.");
+            spreadScheduler.scheduleAll("metadata", Collections.emptyMap(), updatePeriodMillis);
+            return;
+        }
+
+        Runnable update = () -> metadataGraph.run(taskThreadPool.getExecutorService());
+        if (firstUpdate.compareAndSet(true, false)) {
+            // Don't wait for the slot of the metadata update to have the resources at startup
+            update.run();
+        }
+        // The update runs at its own offset within the period, away from the other periodic tasks
+        spreadScheduler.scheduleAll("metadata", ImmutableMap.of(
+                ImmutableSortedMap.of(GRAPH_LABEL, metadataGraph.getName()), update), updatePeriodMillis);
+    }
+
+    /**
+     * Runs the metadata update ahead of its slot, e.g. when a resource change may have changed the relationships
+     * between the resources. The requests are coalesced into one update, which starts at least
+     * <code>minRequestedInterval</code> after the previous requested update. Requests made before the update has
+     * started are served by the same update, while the requests made during the update get one more update after it.
+     */
+    public void requestUpdate() {
+        if (environmentConfig.isDisabled() || (environmentConfig.isSingleTenant() &&
+                environmentConfig.isSingleInstance() && !ecsServiceDiscoveryExporter.isPrimaryExporter())) {
             return;
         }
+        if (updateRequested.compareAndSet(false, true)) {
+            long delay = Math.max(0,
+                    lastRequestedUpdate.get() + minRequestedUpdateIntervalMillis - System.currentTimeMillis());
+            spreadScheduler.schedule(this::runRequestedUpdate, delay);
+        } else {
+            requestedDuringUpdate.set(true);
+        }
+    }
 
-        taskThreadPool.getExecutorService().submit(lambdaFunctionScraper::update);
-        taskThreadPool.getExecutorService().submit(lambdaCapacityExporter::update);
-        taskThreadPool.getExecutorService().submit(lambdaEventSourceExporter::update);
-        taskThreadPool.getExecutorService().submit(lambdaInvokeConfigExporter::update);
-        taskThreadPool.getExecutorService().submit(targetGroupLBMapProvider::update);
-        taskThreadPool.getExecutorService().submit(lbToASGRelationBuilder::updateRouting);
-        taskThreadPool.getExecutorService().submit(lbToECSRoutingBuilder);
-        taskThreadPool.getExecutorService().submit(relationExporter::update);
-        taskThreadPool.getExecutorService().submit(ec2ToEBSVolumeExporter::update);
-        taskThreadPool.getExecutorService().submit(apiGatewayToLambdaBuilder::update);
-        taskThreadPool.getExecutorService().submit(kinesisAnalyticsExporter::update);
-        taskThreadPool.getExecutorService().submit(kinesisFirehoseExporter::update);
-        taskThreadPool.getExecutorService().submit(s3BucketExporter::update);
-        taskThreadPool.getExecutorService().submit(redshiftExporter::update);
-        taskThreadPool.getExecutorService().submit(sqsQueueExporter::update);
-        taskThreadPool.getExecutorService().submit(kinesisStreamExporter::update);
-        taskThreadPool.getExecutorService().submit(loadBalancerExporter::update);
-        taskThreadPool.getExecutorService().submit(rdsExporter::update);
-        taskThreadPool.getExecutorService().submit(dynamoDBExporter::update);
-        taskThreadPool.getExecutorService().submit(snsTopicExporter::update);
-        taskThreadPool.getExecutorService().submit(emrExporter::update);
+    private void runRequestedUpdate() {
+        if (metadataGraph.isRunning()) {
+            // The update in progress may have read the resources before the change
+            spreadScheduler.schedule(this::runRequestedUpdate, minRequestedUpdateIntervalMillis);
+            return;
+        }
+        requestedDuringUpdate.set(false);
+        lastRequestedUpdate.set(System.currentTimeMillis());
+        metadataGraph.run(taskThreadPool.getExecutorService()).whenComplete((path, e) -> {
+            updateRequested.set(false);
+            if (requestedDuringUpdate.getAndSet(false)) {
+                requestUpdate();
+            }
+        });
     }
 
     @SuppressWarnings("unused")
@@ -5,24 +5,39 @@ import ai.asserts.aws.account.AccountProvider;
 import ai.asserts.aws.cloudwatch.alarms.AlarmFetcher;
 import ai.asserts.aws.config.MetricConfig;
 import ai.asserts.aws.config.ScrapeConfig;
+import ai.asserts.aws.exporter.BasicMetricCollector;
 import ai.asserts.aws.exporter.ECSServiceDiscoveryExporter;
 import ai.asserts.aws.exporter.MetricScrapeTask;
+import ai.asserts.aws.resource.ResourceInventory;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import io.prometheus.client.CollectorRegistry;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_INTERVAL_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_NAMESPACE_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+import static ai.asserts.aws.SingleFlightTask.TASK_LABEL;
+
 @Component
 @Slf4j
 public class MetricTaskManager {
@@ -34,19 +49,36 @@ public class MetricTaskManager {
     private final TaskThreadPool taskThreadPool;
     private final AlarmFetcher alarmFetcher;
     private final ECSServiceDiscoveryExporter ecsServiceDiscoveryExporter;
+    private final AWSClientProvider awsClientProvider;
+    private final TaskExecutorUtil taskExecutorUtil;
+    private final ResourceInventory resourceInventory;
+    private final BasicMetricCollector metricCollector;
+    private final SingleFlightTask alarmFetchRun;
+    private final SpreadScheduler spreadScheduler;
+    private final PublicationScheduler publicationScheduler;
+    private final long triggerPeriodMillis;
     /**
      * Maintains the last scrape time for all the metrics of a given scrape interval. The scrapes are
      * not expected to happen concurrently so no need to worry about thread safety
      */
     @Getter
     private final Map<String, Map<String, Map<Integer, MetricScrapeTask>>> metricScrapeTasks = new TreeMap<>();
+    /**
+     * The runs of the scrape tasks, by the labels of the task. A scrape is only triggered if its previous run has
+     * completed
+     */
+    private Map<SortedMap<String, String>, SingleFlightTask> scrapeRuns = new HashMap<>();
 
     public MetricTaskManager(EnvironmentConfig environmentConfig,
                              AccountProvider accountProvider,
                              ScrapeConfigProvider scrapeConfigProvider,
                              CollectorRegistry collectorRegistry, AutowireCapableBeanFactory beanFactory,
                              @Qualifier("metric-task-trigger-thread-pool") TaskThreadPool taskThreadPool,
-                             AlarmFetcher alarmFetcher, ECSServiceDiscoveryExporter ecsServiceDiscoveryExporter) {
+                             AlarmFetcher alarmFetcher, ECSServiceDiscoveryExporter ecsServiceDiscoveryExporter,
+                             AWSClientProvider awsClientProvider, TaskExecutorUtil taskExecutorUtil,
+                             ResourceInventory resourceInventory, BasicMetricCollector metricCollector,
+                             SpreadScheduler spreadScheduler, PublicationScheduler publicationScheduler,
+                             @Value("${aws.metric.scrape.manager.task.fixedDelay:60000}") long triggerPeriodMillis) {
         this.environmentConfig = environmentConfig;
         this.accountProvider = accountProvider;
         this.scrapeConfigProvider = scrapeConfigProvider;
@@ -55,6 +87,15 @@ public class MetricTaskManager {
         this.taskThreadPool = taskThreadPool;
         this.alarmFetcher = alarmFetcher;
         this.ecsServiceDiscoveryExporter = ecsServiceDiscoveryExporter;
+        this.awsClientProvider = awsClientProvider;
+        this.taskExecutorUtil = taskExecutorUtil;
+        this.resourceInventory = resourceInventory;
+        this.metricCollector = metricCollector;
+        this.spreadScheduler = spreadScheduler;
+        this.publicationScheduler = publicationScheduler;
+        this.triggerPeriodMillis = triggerPeriodMillis;
+        this.alarmFetchRun = new SingleFlightTask(ImmutableSortedMap.of(TASK_LABEL, "alarm-fetch"),
+                alarmFetcher::update, metricCollector);
     }
 
     @SuppressWarnings("unused")
@@ -69,14 +110,41 @@ public class MetricTaskManager {
                 ecsServiceDiscoveryExporter.isPrimaryExporter()) {
             ExecutorService executorService = taskThreadPool.getExecutorService();
             updateScrapeTasks();
-            metricScrapeTasks.values().stream()
-                    .flatMap(map -> map.values().stream())
-                    .flatMap(map -> map.values().stream())
-                    .forEach(task -> executorService.submit(task::update));
-            executorService.submit(alarmFetcher::update);
+            Map<SortedMap<String, String>, SingleFlightTask> runs = new HashMap<>();
+            Map<SortedMap<String, String>, PublicationScheduler.Scrape> scrapes = new HashMap<>();
+            metricScrapeTasks.forEach((accountId, byRegion) -> byRegion.forEach((region, byInterval) ->
+                    byInterval.forEach((interval, task) -> task.getNamespaces().forEach(namespace -> {
+                        SortedMap<String, String> labels = ImmutableSortedMap.of(
+                                SCRAPE_ACCOUNT_ID_LABEL, accountId,
+                                SCRAPE_REGION_LABEL, region,
+                                SCRAPE_INTERVAL_LABEL, interval.toString(),
+                                SCRAPE_NAMESPACE_LABEL, namespace,
+                                TASK_LABEL, "metric-scrape");
+                        SingleFlightTask run = scrapeRuns.get(labels);
+                        if (run == null) {
+                            run = new SingleFlightTask(labels, () -> task.update(namespace), metricCollector);
+                        }
+                        runs.put(labels, run);
+                        scrapes.put(labels, new PublicationScheduler.Scrape(accountId, region, namespace,
+                                interval, task.getDelaySeconds(), trigger(run, executorService)));
+                    }))));
+            // Runs of the tasks that were removed are dropped
+            scrapeRuns = runs;
+            // Each namespace is scraped once its data is expected to be published, instead of every minute
+            publicationScheduler.scheduleAll(scrapes);
+            spreadScheduler.scheduleAll("metric-task-manager",
+                    ImmutableMap.of(alarmFetchRun.getLabels(), trigger(alarmFetchRun, executorService)),
+                    triggerPeriodMillis);
+        } else {
+            publicationScheduler.scheduleAll(Collections.emptyMap());
+            spreadScheduler.scheduleAll("metric-task-manager", Collections.emptyMap(), triggerPeriodMillis);
         }
     }
 
+    private Runnable trigger(SingleFlightTask run, ExecutorService executorService) {
+        return () -> run.trigger(executorService);
+    }
+
     @VisibleForTesting
     MetricScrapeTask newScrapeTask(AWSAccount awsAccount, String region, Integer interval, Integer delay) {
         return new MetricScrapeTask(awsAccount, region, interval, delay);
@@ -88,22 +156,27 @@ public class MetricTaskManager {
         allAccounts.forEach(awsAccount -> {
             ScrapeConfig scrapeConfig = scrapeConfigProvider.getScrapeConfig(awsAccount.getTenant());
             log.debug("Updating Scrape task for AWS Account {}", awsAccount);
+            Map<Integer, Set<String>> namespacesByInterval = new TreeMap<>();
+            scrapeConfig.getNamespaces().stream()
+                    .filter(nc -> nc.isEnabled() && !CollectionUtils.isEmpty(nc.getMetrics()))
+                    .forEach(nc -> nc.getMetrics().stream()
+                            .map(MetricConfig::getEffectiveScrapeInterval)
+                            .forEach(interval -> namespacesByInterval.computeIfAbsent(interval,
+                                    k -> new TreeSet<>()).add(nc.getName())));
             awsAccount.getRegions().forEach(region -> {
                 log.debug("Updating Scrape task for region {}", region);
                 metricScrapeTasks.computeIfAbsent(awsAccount.getAccountId(), k -> new TreeMap<>())
                         .computeIfAbsent(region, k -> new TreeMap<>());
 
-                scrapeConfig.getNamespaces().stream()
-                        .filter(nc -> nc.isEnabled() && !CollectionUtils.isEmpty(nc.getMetrics()))
-                        .flatMap(nc -> nc.getMetrics().stream().map(MetricConfig::getEffectiveScrapeInterval))
-                        .forEach(interval -> {
-                            String accountId = awsAccount.getAccountId();
-                            metricScrapeTasks.computeIfAbsent(accountId, k -> new TreeMap<>())
-                                    .computeIfAbsent(region, k -> new TreeMap<>())
-                                    .computeIfAbsent(interval, k -> metricScrapeTask(
-                                            awsAccount, region,
-                                            interval, scrapeConfig.getDelay()));
-                        });
+                namespacesByInterval.forEach((interval, namespaces) -> {
+                    String accountId = awsAccount.getAccountId();
+                    metricScrapeTasks.computeIfAbsent(accountId, k -> new TreeMap<>())
+                            .computeIfAbsent(region, k -> new TreeMap<>())
+                            .computeIfAbsent(interval, k -> metricScrapeTask(
+                                    awsAccount, region,
+                                    interval, scrapeConfig.getDelay()))
+                            .setNamespaces(namespaces);
+                });
             });
         });
 
@@ -116,6 +189,9 @@ public class MetricTaskManager {
             Map<String, Map<Integer, MetricScrapeTask>> byRegions = metricScrapeTasks.get(account.getAccountId());
             byRegions.entrySet().removeIf(region -> !account.getRegions().contains(region.getKey()));
         });
+        awsClientProvider.retainAccounts(allAccounts);
+        taskExecutorUtil.retainAccounts(allAccounts);
+        resourceInventory.retainAccounts(allAccounts);
     }
 
     private MetricScrapeTask metricScrapeTask(AWSAccount awsAccount, String region, Integer interval,
@@ -0,0 +1,175 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.cloudwatch.IngestionDelayEstimator;
+import com.google.common.annotations.VisibleForTesting;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires the metric scrapes at the moment the data they query is expected to be complete. A scrape of a namespace
+ * with an interval runs once per interval, at the end of the interval plus the ingestion delay of the namespace
+ * learned by the {@link IngestionDelayEstimator}, instead of on a common one minute tick that queries some namespaces
+ * before their data is published and others more often than their data changes.
+ * <p>
+ * The scrapes of the different accounts and regions are spread over a short window after that moment, at an offset
+ * derived from their labels like the {@link SpreadScheduler} does. The due times are kept in a {@link TimingWheel}, as
+ * they range from a minute to a day.
+ */
+@Component
+@Slf4j
+public class PublicationScheduler implements DisposableBean {
+    private final IngestionDelayEstimator ingestionDelayEstimator;
+    private final SpreadScheduler spreadScheduler;
+    private final TimingWheel timingWheel;
+    private final long spreadWindowMillis;
+    private final Map<SortedMap<String, String>, Entry> scheduled = new HashMap<>();
+    /**
+     * Advances the timing wheel. Not started by the constructor for tests, which advance the wheel themselves
+     */
+    private ScheduledExecutorService ticker;
+
+    @Autowired
+    public PublicationScheduler(IngestionDelayEstimator ingestionDelayEstimator, SpreadScheduler spreadScheduler,
+                                @Value("${aws_exporter.schedule.spread_window:15000}") long spreadWindowMillis) {
+        this(ingestionDelayEstimator, spreadScheduler, new TimingWheel(1000, 64, 4, System.currentTimeMillis()),
+                spreadWindowMillis);
+        ticker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("publication-scheduler"));
+        ticker.scheduleAtFixedRate(() -> timingWheel.advanceTo(now()), 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    @VisibleForTesting
+    PublicationScheduler(IngestionDelayEstimator ingestionDelayEstimator, SpreadScheduler spreadScheduler,
+                         TimingWheel timingWheel, long spreadWindowMillis) {
+        this.ingestionDelayEstimator = ingestionDelayEstimator;
+        this.spreadScheduler = spreadScheduler;
+        this.timingWheel = timingWheel;
+        this.spreadWindowMillis = spreadWindowMillis;
+    }
+
+    /**
+     * Replaces the scheduled scrapes. A scrape that was already scheduled keeps its next run and picks up the new
+     * task, new scrapes are scheduled and the scrapes that are not in the map anymore are cancelled.
+     *
+     * @param scrapes The scrapes by their labels
+     */
+    public synchronized void scheduleAll(Map<SortedMap<String, String>, Scrape> scrapes) {
+        scheduled.entrySet().removeIf(entry -> {
+            if (!scrapes.containsKey(entry.getKey())) {
+                log.info("Cancelling scrape {}", entry.getKey());
+                entry.getValue().timeout.cancel();
+                return true;
+            }
+            return false;
+        });
+        scrapes.forEach((labels, scrape) -> {
+            Entry entry = scheduled.get(labels);
+            if (entry != null && entry.scrape.getIntervalSeconds() == scrape.getIntervalSeconds()) {
+                entry.scrape = scrape;
+            } else {
+                if (entry != null) {
+                    entry.timeout.cancel();
+                }
+                entry = new Entry(labels, scrape);
+                scheduled.put(labels, entry);
+                schedule(entry);
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    /**
+     * @return When the scrape runs next: the end of the current interval plus the ingestion delay of the namespace,
+     * plus the offset of the scrape within the spread window
+     */
+    @VisibleForTesting
+    long nextRun(SortedMap<String, String> labels, Scrape scrape, long now) {
+        long intervalMillis = TimeUnit.SECONDS.toMillis(scrape.getIntervalSeconds());
+        long delayMillis = TimeUnit.SECONDS.toMillis(ingestionDelayEstimator.getDelaySeconds(
+                scrape.getAccountId(), scrape.getRegion(), scrape.getNamespace(), scrape.getMinDelaySeconds()));
+        long offset = spreadScheduler.offset(labels, Math.max(1, Math.min(spreadWindowMillis, intervalMillis / 4)));
+        long intervalEnd = Math.floorDiv(now - delayMillis - offset, intervalMillis) * intervalMillis
+                + intervalMillis;
+        return intervalEnd + delayMillis + offset;
+    }
+
+    @VisibleForTesting
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private void schedule(Entry entry) {
+        long at = nextRun(entry.labels, entry.scrape, now());
+        log.debug("Scrape {} runs next at {}", entry.labels, at);
+        entry.timeout = timingWheel.schedule(() -> run(entry), at);
+    }
+
+    private void run(Entry entry) {
+        try {
+            entry.scrape.getTask().run();
+        } catch (Exception e) {
+            log.error("Failed to run scrape " + entry.labels, e);
+        }
+        synchronized (this) {
+            if (scheduled.get(entry.labels) == entry) {
+                schedule(entry);
+            }
+        }
+    }
+
+    /**
+     * A scrape of the metrics of a namespace of an account and region with a scrape interval
+     */
+    @AllArgsConstructor
+    @Getter
+    @EqualsAndHashCode
+    @ToString
+    public static class Scrape {
+        private final String accountId;
+        private final String region;
+        private final String namespace;
+        private final int intervalSeconds;
+        /**
+         * The delay configured for the scrape, which the learned delay never goes below
+         */
+        private final int minDelaySeconds;
+        @EqualsAndHashCode.Exclude
+        @ToString.Exclude
+        private final Runnable task;
+    }
+
+    private static class Entry {
+        private final SortedMap<String, String> labels;
+        private volatile Scrape scrape;
+        private TimingWheel.Timeout timeout;
+
+        private Entry(SortedMap<String, String> labels, Scrape scrape) {
+            this.labels = labels;
+            this.scrape = scrape;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A periodically triggered task of which at most one run is queued or running at any time. A trigger that arrives
+ * while a run is still in flight is skipped and counted, instead of queueing another run behind it. When a task
+ * cannot keep up with its schedule, it runs back to back rather than piling up runs that all call the same, probably
+ * throttled, APIs.
+ */
+@Slf4j
+public class SingleFlightTask {
+    public static final String TASK_RUN_LATENCY_METRIC = "aws_exporter_task_run_milliseconds";
+    public static final String TASK_LAG_METRIC = "aws_exporter_task_lag_milliseconds";
+    public static final String TASK_OVERLAP_COUNT_METRIC = "aws_exporter_task_overlap_total";
+    public static final String TASK_LABEL = "task";
+    @Getter
+    private final SortedMap<String, String> labels;
+    private final Runnable task;
+    private final BasicMetricCollector metricCollector;
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+
+    public SingleFlightTask(SortedMap<String, String> labels, Runnable task, BasicMetricCollector metricCollector) {
+        this.labels = labels;
+        this.task = task;
+        this.metricCollector = metricCollector;
+    }
+
+    /**
+     * @return <code>true</code> if a run was submitted, <code>false</code> if the trigger was skipped because the
+     * previous run has not finished yet
+     */
+    public boolean trigger(ExecutorService executorService) {
+        if (!inFlight.compareAndSet(false, true)) {
+            log.warn("Previous run of task {} still in progress. Skipping this run", labels);
+            metricCollector.recordCounterValue(TASK_OVERLAP_COUNT_METRIC, labels, 1);
+            return false;
+        }
+        long triggeredAt = System.currentTimeMillis();
+        try {
+            executorService.submit(() -> run(triggeredAt));
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.set(false);
+            throw e;
+        }
+    }
+
+    public boolean isInFlight() {
+        return inFlight.get();
+    }
+
+    private void run(long triggeredAt) {
+        long start = System.currentTimeMillis();
+        metricCollector.recordLatency(TASK_LAG_METRIC, labels, start - triggeredAt);
+        try {
+            task.run();
+        } finally {
+            metricCollector.recordLatency(TASK_RUN_LATENCY_METRIC, labels, System.currentTimeMillis() - start);
+            inFlight.set(false);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import ai.asserts.aws.model.CWNamespace;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSortedMap;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
@@ -22,16 +23,21 @@ import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.Map;
 import java.util.Optional;
-import java.util.TreeMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static ai.asserts.aws.ApiServerConstants.ASSERTS_API_SERVER_URL;
 
+/**
+ * Loads the scrape configuration from the Asserts server, S3 or a file. Each load builds a new configuration, entirely
+ * outside of any lock, and publishes it with a single write of an {@link AtomicReference}. The configuration is read
+ * on the hot paths of the scrapes and of the metric stream ingestion, which then never wait for a slow load.
+ */
 @Component
 @Slf4j
 @ConditionalOnProperty(name = "aws_exporter.tenant_mode", havingValue = "single", matchIfMissing = true)
@@ -39,15 +45,18 @@ public class SingleTenantScrapeConfigProvider implements ScrapeConfigProvider {
     private final EnvironmentConfig environmentConfig;
     private final ObjectMapperFactory objectMapperFactory;
     private final String scrapeConfigFile;
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private final Map<String, CWNamespace> byNamespace = new TreeMap<>();
-    private final Map<String, CWNamespace> byServiceName = new TreeMap<>();
+    private final Map<String, CWNamespace> byNamespace = Stream.of(CWNamespace.values())
+            .collect(ImmutableSortedMap.toImmutableSortedMap(Comparator.naturalOrder(), CWNamespace::getNamespace,
+                    Function.identity(), (a, b) -> b));
+    private final Map<String, CWNamespace> byServiceName = Stream.of(CWNamespace.values())
+            .collect(ImmutableSortedMap.toImmutableSortedMap(Comparator.naturalOrder(), CWNamespace::getServiceName,
+                    Function.identity(), (a, b) -> b));
     private final ResourceLoader resourceLoader = new FileSystemResourceLoader();
     private final ScrapeConfig NOOP_CONFIG = new ScrapeConfig();
     private final RestTemplate restTemplate;
     private final SnakeCaseUtil snakeCaseUtil;
     private final AssertsServerUtil assertsServerUtil;
-    private volatile ScrapeConfig configCache;
+    private final AtomicReference<ScrapeConfig> configCache = new AtomicReference<>();
 
     public SingleTenantScrapeConfigProvider(EnvironmentConfig environmentConfig,
                                             ObjectMapperFactory objectMapperFactory,
@@ -69,12 +78,7 @@ public class SingleTenantScrapeConfigProvider implements ScrapeConfigProvider {
 
     @Override
     public ScrapeConfig getScrapeConfig(String tenant) {
-        try {
-            readWriteLock.readLock().lock();
-            return configCache;
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        return configCache.get();
     }
 
     public void update() {
@@ -91,21 +95,14 @@ public class SingleTenantScrapeConfigProvider implements ScrapeConfigProvider {
             log.info("All processing off");
             return;
         }
-        readWriteLock.writeLock().lock();
+        ScrapeConfig scrapeConfig = load();
         try {
-            configCache = load();
-            byNamespace.clear();
-            byServiceName.clear();
-            Stream.of(CWNamespace.values()).forEach(namespace -> {
-                byNamespace.put(namespace.getNamespace(), namespace);
-                byServiceName.put(namespace.getServiceName(), namespace);
-            });
-            buildMetricLookupMap(configCache);
+            buildMetricLookupMap(scrapeConfig);
         } catch (Exception e) {
             log.error("Failed to load config", e);
-        } finally {
-            readWriteLock.writeLock().unlock();
         }
+        // The new config is complete before the readers can see it
+        configCache.set(scrapeConfig);
     }
 
     private ScrapeConfig getConfigFromServer() {
@@ -0,0 +1,132 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads periodic tasks evenly over their period. Each task, identified by its labels, e.g. account, region and
+ * task name, runs at a stable offset within the period that is derived from the hash of its labels. The offset
+ * is relative to the epoch, so a task keeps its slot across restarts and the tasks of all the accounts don't
+ * fire together at the top of the cycle, which causes a burst of API calls that trips the AWS throttling,
+ * followed by idle time.
+ * <p>
+ * When spreading is turned off the tasks run as soon as they are scheduled, as they did before.
+ */
+@Component
+@Slf4j
+public class SpreadScheduler implements DisposableBean {
+    public static final String SCHEDULE_SKEW_METRIC = "aws_exporter_schedule_skew_milliseconds";
+    private final BasicMetricCollector metricCollector;
+    private final ScheduledExecutorService scheduler;
+    private final boolean spread;
+    private final Map<String, Map<SortedMap<String, String>, ScheduledFuture<?>>> scheduled = new HashMap<>();
+
+    @Autowired
+    public SpreadScheduler(BasicMetricCollector metricCollector,
+                           @Value("${aws_exporter.schedule.spread:true}") boolean spread) {
+        this(metricCollector, Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("spread-scheduler")),
+                spread);
+    }
+
+    @VisibleForTesting
+    SpreadScheduler(BasicMetricCollector metricCollector, ScheduledExecutorService scheduler, boolean spread) {
+        this.metricCollector = metricCollector;
+        this.scheduler = scheduler;
+        this.spread = spread;
+    }
+
+    /**
+     * Replaces the tasks of a group. A task that was already scheduled keeps its schedule, new tasks are scheduled
+     * to run once per period at their offset and the tasks that are not in the group anymore are cancelled.
+     *
+     * @param group        The name of the group of tasks
+     * @param tasks        The tasks by their labels
+     * @param periodMillis The period of the tasks
+     */
+    public synchronized void scheduleAll(String group, Map<SortedMap<String, String>, Runnable> tasks,
+                                         long periodMillis) {
+        if (!spread) {
+            tasks.forEach((labels, task) -> runTask(labels, task, periodMillis));
+            return;
+        }
+        Map<SortedMap<String, String>, ScheduledFuture<?>> current = scheduled.computeIfAbsent(group,
+                k -> new HashMap<>());
+        current.entrySet().removeIf(entry -> {
+            if (!tasks.containsKey(entry.getKey())) {
+                log.info("Cancelling task {}", entry.getKey());
+                entry.getValue().cancel(false);
+                return true;
+            }
+            return false;
+        });
+        long now = now();
+        tasks.forEach((labels, task) -> current.computeIfAbsent(labels, k -> {
+            long initialDelay = Math.floorMod(offset(labels, periodMillis) - now, periodMillis);
+            log.info("Scheduling task {} every {}ms, first run in {}ms", labels, periodMillis, initialDelay);
+            return scheduler.scheduleAtFixedRate(() -> runTask(labels, task, periodMillis),
+                    initialDelay, periodMillis, TimeUnit.MILLISECONDS);
+        }));
+    }
+
+    /**
+     * Runs a task once after the delay, outside of the slots of the periodic tasks
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The offset of the task within the period, in milliseconds since the start of the period
+     */
+    public long offset(SortedMap<String, String> labels, long periodMillis) {
+        long hash = Hashing.murmur3_128().hashString(labels.toString(), StandardCharsets.UTF_8).asLong();
+        return Math.floorMod(hash, periodMillis);
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    @VisibleForTesting
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private void runTask(SortedMap<String, String> labels, Runnable task, long periodMillis) {
+        if (spread) {
+            // How late the task is in its slot. A late run of the scheduler thread shows up here
+            long skew = Math.floorMod(now() - offset(labels, periodMillis), periodMillis);
+            if (skew > periodMillis / 2) {
+                skew -= periodMillis;
+            }
+            metricCollector.recordLatency(SCHEDULE_SKEW_METRIC, labels, skew);
+        }
+        try {
+            task.run();
+        } catch (Exception e) {
+            // An exception would cancel all further runs of the task
+            log.error("Failed to run task " + labels, e);
+        }
+    }
+}
@@ -5,16 +5,31 @@
 package ai.asserts.aws;
 
 import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSortedMap;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static ai.asserts.aws.Deadline.CANCELLED_WORK_METRIC;
+import static ai.asserts.aws.Deadline.PARTIAL_RESULTS_METRIC;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
 
 @Component
 @Slf4j
@@ -22,36 +37,106 @@ public class TaskExecutorUtil {
     private final TaskThreadPool taskThreadPool;
 
     private final AWSApiCallRateLimiter rateLimiter;
+    private final BasicMetricCollector metricCollector;
+    private final int awaitTimeoutSeconds;
     private static final ThreadLocal<AWSAccount> accountDetails = new ThreadLocal<>();
 
+    @VisibleForTesting
+    public TaskExecutorUtil(TaskThreadPool taskThreadPool, AWSApiCallRateLimiter rateLimiter) {
+        this(taskThreadPool, rateLimiter, new BasicMetricCollector(), 30);
+    }
 
-    public TaskExecutorUtil(@Qualifier("aws-api-calls-thread-pool") TaskThreadPool taskThreadPool, AWSApiCallRateLimiter rateLimiter) {
+    @Autowired
+    public TaskExecutorUtil(@Qualifier("aws-api-calls-thread-pool") TaskThreadPool taskThreadPool,
+                            AWSApiCallRateLimiter rateLimiter, BasicMetricCollector metricCollector,
+                            @Value("${aws_exporter.await_all_timeout_seconds:30}") int awaitTimeoutSeconds) {
         this.taskThreadPool = taskThreadPool;
         this.rateLimiter = rateLimiter;
+        this.metricCollector = metricCollector;
+        this.awaitTimeoutSeconds = awaitTimeoutSeconds;
     }
 
+    /**
+     * Drops the task queues of the accounts that are no longer handled
+     */
+    public void retainAccounts(Set<AWSAccount> accounts) {
+        taskThreadPool.retainAccounts(accounts.stream().map(AWSAccount::getAccountId).collect(Collectors.toSet()));
+    }
+
+    /**
+     * Runs the task with the {@link Deadline#current()} deadline of the calling thread, if there is one
+     */
     public <T> Future<T> executeAccountTask(AWSAccount accountDetails, TenantTask<T> task) {
-        return taskThreadPool.getExecutorService().submit(() -> {
-            TaskExecutorUtil.accountDetails.set(accountDetails);
-            try {
-                return rateLimiter.call(task);
-            } catch (Exception e) {
-                log.error("Failed to execute tenant task for tenant:" + accountDetails, e);
-                return task.getReturnValueWhenError();
-            } finally {
-                TaskExecutorUtil.accountDetails.remove();
-            }
-        });
+        return executeAccountTask(accountDetails, task, Deadline.current());
+    }
+
+    /**
+     * Runs the task with the given deadline as its {@link Deadline#current()} deadline. A task that is still queued
+     * when the deadline expires is not run.
+     */
+    public <T> Future<T> executeAccountTask(AWSAccount accountDetails, TenantTask<T> task, Deadline deadline) {
+        try {
+            return taskThreadPool.submit(accountDetails.getAccountId(), task.getPriority(), () -> {
+                if (deadline != null && deadline.isExpired()) {
+                    log.warn("Deadline expired before the task for tenant {} could run", accountDetails);
+                    metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, ImmutableSortedMap.of(
+                            SCRAPE_ACCOUNT_ID_LABEL, accountDetails.getAccountId()), 1);
+                    return task.getReturnValueWhenError();
+                }
+                // Set when a task runs another task of the same account inline
+                AWSAccount previous = TaskExecutorUtil.accountDetails.get();
+                TaskExecutorUtil.accountDetails.set(accountDetails);
+                try {
+                    Callable<T> call = () -> task.getPriority().call(() -> rateLimiter.call(task));
+                    return deadline != null ? deadline.call(call) : call.call();
+                } catch (Exception e) {
+                    log.error("Failed to execute tenant task for tenant:" + accountDetails, e);
+                    return task.getReturnValueWhenError();
+                } finally {
+                    if (previous != null) {
+                        TaskExecutorUtil.accountDetails.set(previous);
+                    } else {
+                        TaskExecutorUtil.accountDetails.remove();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Dropping task for tenant:" + accountDetails, e);
+            return CompletableFuture.completedFuture(task.getReturnValueWhenError());
+        }
     }
 
+    /**
+     * Waits for all the futures up to a common deadline, the {@link Deadline#current()} deadline or the configured
+     * timeout from now, whichever is earlier. The results that are available by then are passed to the consumer and
+     * the rest of the tasks are cancelled.
+     */
     public <K> void awaitAll(List<Future<K>> futures, Consumer<K> consumer) {
-        futures.forEach(f -> {
+        Deadline deadline = awaitDeadline();
+        int cancelled = 0;
+        for (Future<K> f : futures) {
             try {
-                consumer.accept(f.get(30, TimeUnit.SECONDS));
-            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                consumer.accept(f.get(deadline.remaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                f.cancel(true);
+                cancelled++;
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
                 log.error("AWS API call error ", e);
             }
-        });
+        }
+        if (cancelled > 0) {
+            log.warn("Deadline expired. Cancelled {} of {} tasks, keeping the results of the others", cancelled,
+                    futures.size());
+            metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, ImmutableSortedMap.of(), cancelled);
+            metricCollector.recordCounterValue(PARTIAL_RESULTS_METRIC, ImmutableSortedMap.of(), 1);
+        }
+    }
+
+    /**
+     * @return The deadline that {@link #awaitAll} waits up to if called now, for the tasks to stop their own waits by
+     */
+    public Deadline awaitDeadline() {
+        return Deadline.after(awaitTimeoutSeconds, TimeUnit.SECONDS).min(Deadline.current());
     }
 
     public AWSAccount getAccountDetails() {
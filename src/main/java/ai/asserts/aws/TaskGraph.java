@@ -0,0 +1,235 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static ai.asserts.aws.Deadline.CANCELLED_WORK_METRIC;
+import static ai.asserts.aws.SingleFlightTask.TASK_LABEL;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs a set of tasks in which a task may depend on the results of other tasks. A task is submitted as soon as all
+ * the tasks it depends on have completed, so that independent tasks run in parallel, up to the number of threads of
+ * the executor, while a task never reads the state of an upstream task that has not been refreshed yet in the current
+ * run.
+ * <p>
+ * Tasks have to be added after the tasks they depend on, which rules out cycles.
+ * <p>
+ * The tasks of a run share a {@link Deadline}, after which a run that is still in progress no longer holds off the
+ * next run. Its tasks that have not started yet are skipped and the ones still running are interrupted.
+ */
+@Slf4j
+public class TaskGraph {
+    public static final String GRAPH_LABEL = "graph";
+    public static final String GRAPH_TASK_LATENCY_METRIC = "aws_exporter_graph_task_milliseconds";
+    public static final String GRAPH_CRITICAL_PATH_METRIC = "aws_exporter_graph_critical_path_milliseconds";
+    public static final String GRAPH_RUN_LATENCY_METRIC = "aws_exporter_graph_run_milliseconds";
+    @Getter
+    private final String name;
+    private final BasicMetricCollector metricCollector;
+    private final long runTimeoutMillis;
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final AtomicReference<Run> running = new AtomicReference<>();
+
+    public TaskGraph(String name, BasicMetricCollector metricCollector, long runTimeoutMillis) {
+        this.name = name;
+        this.metricCollector = metricCollector;
+        this.runTimeoutMillis = runTimeoutMillis;
+    }
+
+    public TaskGraph add(String taskName, Runnable task, String... upstream) {
+        checkArgument(!nodes.containsKey(taskName), "Duplicate task %s", taskName);
+        Arrays.stream(upstream).forEach(dependency -> checkArgument(nodes.containsKey(dependency),
+                "Task %s depends on %s which has to be added first", taskName, dependency));
+        nodes.put(taskName, new Node(taskName, task, ImmutableList.copyOf(upstream)));
+        return this;
+    }
+
+    /**
+     * Runs all the tasks of the graph. A run is skipped if the previous run has not completed yet, unless it is past
+     * its deadline, in which case it is abandoned.
+     *
+     * @return A future that completes when all the tasks have completed, with the critical path of the run, or
+     * <code>null</code> if the run was skipped or abandoned
+     */
+    public CompletableFuture<TaskPath> run(ExecutorService executorService) {
+        Run previous = running.get();
+        if (previous != null && !previous.deadline.isExpired()) {
+            log.warn("Previous run of {} still in progress. Skipping this run", name);
+            return CompletableFuture.completedFuture(null);
+        }
+        Run run = new Run(Deadline.after(runTimeoutMillis, TimeUnit.MILLISECONDS));
+        if (!running.compareAndSet(previous, run)) {
+            log.warn("Another run of {} has just started. Skipping this run", name);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (previous != null) {
+            abandon(previous);
+        }
+        long start = now();
+        Map<String, CompletableFuture<TaskPath>> paths = new LinkedHashMap<>();
+        nodes.values().forEach(node -> {
+            List<CompletableFuture<TaskPath>> upstream = new ArrayList<>();
+            node.upstream.forEach(dependency -> upstream.add(paths.get(dependency)));
+            CompletableFuture<TaskPath> path = new CompletableFuture<>();
+            CompletableFuture.allOf(upstream.toArray(new CompletableFuture[0]))
+                    .whenComplete((v, e) -> submit(executorService, run, node, longest(upstream), path));
+            paths.put(node.name, path);
+        });
+        return CompletableFuture.allOf(paths.values().toArray(new CompletableFuture[0]))
+                .thenApply(v -> {
+                    if (run.abandoned) {
+                        return null;
+                    }
+                    TaskPath criticalPath = longest(new ArrayList<>(paths.values()));
+                    long duration = now() - start;
+                    metricCollector.recordLatency(GRAPH_RUN_LATENCY_METRIC, ImmutableSortedMap.of(
+                            GRAPH_LABEL, name), duration);
+                    if (criticalPath != null) {
+                        metricCollector.recordLatency(GRAPH_CRITICAL_PATH_METRIC, ImmutableSortedMap.of(
+                                GRAPH_LABEL, name), criticalPath.getMillis());
+                        log.info("Run of {} took {}ms. Critical path {} took {}ms", name, duration,
+                                criticalPath.getTasks(), criticalPath.getMillis());
+                    }
+                    return criticalPath;
+                })
+                .whenComplete((path, e) -> running.compareAndSet(run, null));
+    }
+
+    /**
+     * @return Whether a run is in progress that is not past its deadline
+     */
+    public boolean isRunning() {
+        Run run = running.get();
+        return run != null && !run.deadline.isExpired();
+    }
+
+    @VisibleForTesting
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private void abandon(Run run) {
+        run.abandoned = true;
+        int cancelled = 0;
+        for (Future<?> task : run.tasks) {
+            if (task.cancel(true)) {
+                cancelled++;
+            }
+        }
+        log.warn("Run of {} did not complete in {}ms. Abandoned it and interrupted {} tasks", name,
+                runTimeoutMillis, cancelled);
+        metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, ImmutableSortedMap.of(GRAPH_LABEL, name),
+                cancelled);
+    }
+
+    private void submit(ExecutorService executorService, Run run, Node node, TaskPath upstreamPath,
+                        CompletableFuture<TaskPath> path) {
+        if (run.abandoned) {
+            path.complete(upstreamPath);
+            return;
+        }
+        try {
+            Future<?> task = executorService.submit(() -> {
+                TaskPath taskPath = upstreamPath;
+                try {
+                    if (!run.abandoned) {
+                        taskPath = runNode(run, node, upstreamPath);
+                    }
+                } finally {
+                    path.complete(taskPath);
+                }
+            });
+            if (task != null) {
+                run.tasks.add(task);
+            }
+        } catch (RejectedExecutionException e) {
+            log.error("Failed to submit task " + node.name, e);
+            path.complete(upstreamPath);
+        }
+    }
+
+    private TaskPath runNode(Run run, Node node, TaskPath upstreamPath) {
+        long start = now();
+        try {
+            run.deadline.call(() -> {
+                node.task.run();
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Task " + node.name + " failed", e);
+        }
+        long duration = now() - start;
+        metricCollector.recordLatency(GRAPH_TASK_LATENCY_METRIC, ImmutableSortedMap.of(
+                GRAPH_LABEL, name,
+                TASK_LABEL, node.name), duration);
+        List<String> tasks = new ArrayList<>();
+        long millis = duration;
+        if (upstreamPath != null) {
+            tasks.addAll(upstreamPath.getTasks());
+            millis += upstreamPath.getMillis();
+        }
+        tasks.add(node.name);
+        return new TaskPath(millis, tasks);
+    }
+
+    private TaskPath longest(List<CompletableFuture<TaskPath>> paths) {
+        return paths.stream()
+                .map(future -> future.getNow(null))
+                .filter(Objects::nonNull)
+                .max(Comparator.comparingLong(TaskPath::getMillis))
+                .orElse(null);
+    }
+
+    private static class Run {
+        private final Deadline deadline;
+        private final Queue<Future<?>> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean abandoned;
+
+        private Run(Deadline deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Node {
+        private final String name;
+        private final Runnable task;
+        private final List<String> upstream;
+    }
+
+    /**
+     * A chain of dependent tasks, and the time taken to run them one after another
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class TaskPath {
+        private final long millis;
+        private final List<String> tasks;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The lane of a task submitted through {@link TaskExecutorUtil}. The tasks of a higher lane, i.e. the metric scrapes
+ * and alarm fetches that have to complete within their slot, are given the threads of the pool and the permits of the
+ * rate limiter ahead of the metadata and discovery tasks, which can wait.
+ */
+public enum TaskPriority {
+    HIGH, LOW;
+
+    private static final ThreadLocal<TaskPriority> current = new ThreadLocal<>();
+
+    /**
+     * @return The priority of the task running on this thread, <code>null</code> if the thread is not running a
+     * task submitted through {@link TaskExecutorUtil}
+     */
+    public static TaskPriority current() {
+        return current.get();
+    }
+
+    public String getLane() {
+        return name().toLowerCase();
+    }
+
+    /**
+     * Runs the callable with this as the {@link #current()} priority of the thread
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        TaskPriority previous = current.get();
+        current.set(this);
+        try {
+            return callable.call();
+        } finally {
+            if (previous != null) {
+                current.set(previous);
+            } else {
+                current.remove();
+            }
+        }
+    }
+}
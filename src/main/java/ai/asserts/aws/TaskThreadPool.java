@@ -8,37 +8,311 @@ import com.google.common.annotations.VisibleForTesting;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import io.micrometer.core.instrument.util.NamedThreadFactory;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.lang.reflect.Method;
 import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 @Getter
 @Slf4j
 public class TaskThreadPool {
+    /**
+     * The pool that the current thread belongs to
+     */
+    private static final ThreadLocal<TaskThreadPool> currentPool = new ThreadLocal<>();
     private final String name;
     private final int numThreads;
+    private final Mode mode;
     private final ExecutorService executorService;
+    @Getter(AccessLevel.NONE)
+    private final FairTaskScheduler fairTaskScheduler;
+    /**
+     * The pool that runs the tasks, <code>null</code> when they run on virtual threads
+     */
+    @Getter(AccessLevel.NONE)
+    private TimedThreadPoolExecutor threadPoolExecutor;
+    private volatile int poolSize;
+    private volatile int minPoolSize;
+    private volatile int maxPoolSize;
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong apiCallAttempts = new AtomicLong();
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong throttledApiCallAttempts = new AtomicLong();
 
     public TaskThreadPool(String name, int numThreads, MeterRegistry meterRegistry) {
+        this(name, numThreads, 0, Integer.MAX_VALUE, FairTaskScheduler.DEFAULT_LOW_PRIORITY_MIN_SHARE,
+                Mode.PLATFORM, meterRegistry);
+    }
+
+    /**
+     * @param numThreads           The number of threads of the pool in {@link Mode#PLATFORM} mode, the maximum
+     *                             number of concurrent account tasks in {@link Mode#LIGHTWEIGHT} mode
+     * @param maxThreadsPerAccount The cap on the concurrent tasks of an account, <code>0</code> for the size of the
+     *                             pool
+     */
+    public TaskThreadPool(String name, int numThreads, int maxThreadsPerAccount, int maxQueuedPerAccount,
+                          double lowPriorityMinShare, Mode mode, MeterRegistry meterRegistry) {
         this.name = name;
         this.numThreads = numThreads;
+        this.mode = mode;
+        this.poolSize = numThreads;
+        this.minPoolSize = numThreads;
+        this.maxPoolSize = numThreads;
         executorService = buildExecutorService(name, numThreads, meterRegistry);
+        fairTaskScheduler = new FairTaskScheduler(name, this::getExecutorService, numThreads, maxThreadsPerAccount,
+                maxQueuedPerAccount, lowPriorityMinShare, meterRegistry);
+    }
+
+    /**
+     * Submits a task on behalf of an account. Unlike the tasks submitted directly to the {@link #getExecutorService()},
+     * these are scheduled fairly across accounts, and by priority.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if too many tasks of the account are already queued
+     */
+    public <T> Future<T> submit(String accountId, TaskPriority priority, Callable<T> task) {
+        return fairTaskScheduler.submit(accountId, priority, task);
+    }
+
+    /**
+     * @return The pool whose thread is running the caller, <code>null</code> if the caller isn't running on one
+     */
+    public static TaskThreadPool current() {
+        return currentPool.get();
+    }
+
+    /**
+     * Runs the call as if it were made from a thread of the given pool, for calls that a task hands over to another
+     * thread
+     */
+    public static <T> T callAs(TaskThreadPool pool, Supplier<T> call) {
+        TaskThreadPool previous = currentPool.get();
+        currentPool.set(pool);
+        try {
+            return call.get();
+        } finally {
+            if (previous != null) {
+                currentPool.set(previous);
+            } else {
+                currentPool.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the queues of the accounts that are no longer handled
+     */
+    public void retainAccounts(Set<String> accountIds) {
+        fairTaskScheduler.retainAccounts(accountIds);
+    }
+
+    /**
+     * Sets the range within which {@link #resize(int)} can change the size of the pool. By default the pool keeps the
+     * size it was created with.
+     */
+    public void setSizeBounds(int minPoolSize, int maxPoolSize) {
+        checkArgument(minPoolSize > 0 && minPoolSize <= poolSize && poolSize <= maxPoolSize,
+                "%s: size %s out of bounds [%s, %s]", name, poolSize, minPoolSize, maxPoolSize);
+        this.minPoolSize = minPoolSize;
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public boolean isResizable() {
+        return minPoolSize < maxPoolSize;
+    }
+
+    /**
+     * Changes the number of threads of the pool, and the number of account tasks that run at the same time.
+     *
+     * @return The new size, the requested size clamped to the bounds of the pool
+     */
+    public synchronized int resize(int size) {
+        int newSize = Math.max(minPoolSize, Math.min(maxPoolSize, size));
+        if (newSize == poolSize) {
+            return poolSize;
+        }
+        log.info("{}: resizing from {} to {}", name, poolSize, newSize);
+        if (threadPoolExecutor != null) {
+            // The core size can never be above the maximum size
+            if (newSize > poolSize) {
+                threadPoolExecutor.setMaximumPoolSize(newSize);
+                threadPoolExecutor.setCorePoolSize(newSize);
+            } else {
+                threadPoolExecutor.setCorePoolSize(newSize);
+                threadPoolExecutor.setMaximumPoolSize(newSize);
+            }
+        }
+        fairTaskScheduler.setMaxRunning(newSize);
+        poolSize = newSize;
+        return poolSize;
+    }
+
+    /**
+     * @return How long, in milliseconds, the tasks waited for a thread since the last call. This covers both the
+     * account tasks and the tasks submitted directly to the {@link #getExecutorService()}
+     */
+    public long sampleQueueWaitMillis() {
+        long queueWait = fairTaskScheduler.sampleQueueWaitMillis();
+        if (threadPoolExecutor != null) {
+            queueWait = Math.max(queueWait, threadPoolExecutor.sampleQueueWaitMillis());
+        }
+        return queueWait;
+    }
+
+    /**
+     * Counts an attempt of an AWS API call made by a task of this pool, including the attempts the SDK retries
+     */
+    public void recordApiCallAttempt() {
+        apiCallAttempts.incrementAndGet();
+    }
+
+    /**
+     * Counts an attempt of an AWS API call made by a task of this pool that AWS throttled
+     */
+    public void recordThrottledApiCallAttempt() {
+        throttledApiCallAttempts.incrementAndGet();
+    }
+
+    /**
+     * @return The fraction of the attempts of the AWS API calls made by the tasks of this pool since the last call
+     * that AWS throttled
+     */
+    public double sampleThrottleRate() {
+        long throttled = throttledApiCallAttempts.getAndSet(0);
+        long total = apiCallAttempts.getAndSet(0);
+        return total > 0 ? Math.min(1, (double) throttled / total) : 0;
     }
 
     @VisibleForTesting
     ExecutorService buildExecutorService(String name, int nThreads, MeterRegistry meterRegistry) {
-        ExecutorService executorService = new ThreadPoolExecutor(nThreads, nThreads,
-                0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>(),
-                new NamedThreadFactory(name));
+        ExecutorService executorService = null;
+        if (mode == Mode.LIGHTWEIGHT) {
+            executorService = virtualThreadExecutor(name, this::poolThreadFactory);
+        }
+        if (executorService == null) {
+            threadPoolExecutor = new TimedThreadPoolExecutor(nThreads,
+                    poolThreadFactory(new NamedThreadFactory(name)));
+            if (mode == Mode.LIGHTWEIGHT) {
+                // Threads are only started for the tasks in flight and stopped when idle
+                threadPoolExecutor.allowCoreThreadTimeOut(true);
+            }
+            executorService = threadPoolExecutor;
+        }
         return ExecutorServiceMetrics.monitor(meterRegistry,
                 executorService, name, "",
                 Collections.emptyList());
     }
-}
 
+    /**
+     * Looks up the virtual thread API reflectively, as the exporter is built for Java 8.
+     *
+     * @return An executor that starts a virtual thread per task, <code>null</code> if the runtime doesn't have
+     * virtual threads
+     */
+    @VisibleForTesting
+    static ExecutorService virtualThreadExecutor(String name, UnaryOperator<ThreadFactory> decorator) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory threadFactory = decorator.apply(
+                    (ThreadFactory) builderClass.getMethod("factory").invoke(builder));
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            log.info("{}: running tasks on virtual threads", name);
+            return (ExecutorService) newExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.info("{}: virtual threads not available, running tasks on an elastic thread pool", name);
+            return null;
+        }
+    }
+
+    /**
+     * Marks the threads as belonging to this pool, so that the AWS API calls they make are attributed to it
+     */
+    private ThreadFactory poolThreadFactory(ThreadFactory threadFactory) {
+        return runnable -> threadFactory.newThread(() -> {
+            currentPool.set(this);
+            runnable.run();
+        });
+    }
+
+    /**
+     * Keeps track of how long the tasks wait in the queue of the executor
+     */
+    private static class TimedThreadPoolExecutor extends ThreadPoolExecutor {
+        private final AtomicLong queueWaitNanos = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+
+        private TimedThreadPoolExecutor(int nThreads, ThreadFactory threadFactory) {
+            super(nThreads, nThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new TimedTask<>(callable);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return new TimedTask<>(Executors.callable(runnable, value));
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            if (r instanceof TimedTask) {
+                queueWaitNanos.addAndGet(System.nanoTime() - ((TimedTask<?>) r).queuedAt);
+                started.incrementAndGet();
+            }
+            super.beforeExecute(t, r);
+        }
+
+        private long sampleQueueWaitMillis() {
+            long oldest = 0;
+            Runnable first = getQueue().peek();
+            if (first instanceof TimedTask) {
+                oldest = System.nanoTime() - ((TimedTask<?>) first).queuedAt;
+            }
+            long count = started.getAndSet(0);
+            long total = queueWaitNanos.getAndSet(0);
+            long average = count > 0 ? total / count : 0;
+            return TimeUnit.NANOSECONDS.toMillis(Math.max(average, oldest));
+        }
+    }
+
+    private static class TimedTask<T> extends FutureTask<T> {
+        private final long queuedAt = System.nanoTime();
+
+        private TimedTask(Callable<T> callable) {
+            super(callable);
+        }
+    }
+
+    /**
+     * <ul>
+     *     <li>{@link #PLATFORM}: a fixed number of threads, that bounds the number of concurrent tasks</li>
+     *     <li>{@link #LIGHTWEIGHT}: for tasks that spend nearly all their time blocked on I/O. A virtual thread per
+     *     task where the runtime supports them, else a pool that only keeps threads while there are tasks to run.
+     *     The number of concurrent tasks is bounded by the {@link FairTaskScheduler}, not by the threads</li>
+     * </ul>
+     */
+    public enum Mode {
+        PLATFORM, LIGHTWEIGHT
+    }
+}
@@ -13,4 +13,11 @@ public abstract class TenantTask<T> implements Callable<T> {
     protected T result;
 
     public abstract T getReturnValueWhenError();
+
+    /**
+     * Metadata and discovery tasks can wait. Tasks that have to complete within their scrape slot override this
+     */
+    public TaskPriority getPriority() {
+        return TaskPriority.LOW;
+    }
 }
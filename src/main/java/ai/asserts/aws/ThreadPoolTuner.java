@@ -0,0 +1,93 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+
+/**
+ * Sizes the {@link TaskThreadPool}s that have a range to grow and shrink within. Every interval, the size of a pool is
+ * <ul>
+ *     <li>cut by a quarter when more than a small fraction of the attempts of the AWS calls its tasks made were
+ *     throttled, since more threads would only make more calls that get throttled and retried</li>
+ *     <li>else grown by a tenth when its tasks wait too long for a thread while the process has CPU to spare</li>
+ * </ul>
+ * Growing slowly and backing off fast keeps the pools near the largest size that AWS accepts. The attempts are counted
+ * by the {@link ThrottleRecorder}, including the ones the SDK retries. Only the pools that are given a range to resize
+ * within by {@link TaskThreadPool#setSizeBounds(int, int)} are tuned.
+ */
+@Component
+@Slf4j
+public class ThreadPoolTuner {
+    public static final String POOL_SIZE_METRIC = "aws_exporter.pool.size";
+    private final List<TaskThreadPool> pools;
+    private final boolean enabled;
+    private final double maxThrottleRate;
+    private final long targetQueueWaitMillis;
+    private final double maxCpuLoad;
+
+    @Autowired
+    public ThreadPoolTuner(List<TaskThreadPool> pools, MeterRegistry meterRegistry,
+                           @Value("${aws_exporter.pool_tuning.enabled:true}") boolean enabled,
+                           @Value("${aws_exporter.pool_tuning.max_throttle_rate:0.01}") double maxThrottleRate,
+                           @Value("${aws_exporter.pool_tuning.target_queue_wait_ms:1000}") long targetQueueWaitMillis,
+                           @Value("${aws_exporter.pool_tuning.max_cpu_load:0.8}") double maxCpuLoad) {
+        this.pools = pools;
+        this.enabled = enabled;
+        this.maxThrottleRate = maxThrottleRate;
+        this.targetQueueWaitMillis = targetQueueWaitMillis;
+        this.maxCpuLoad = maxCpuLoad;
+        pools.forEach(pool -> Gauge.builder(POOL_SIZE_METRIC, pool, TaskThreadPool::getPoolSize)
+                .tag("pool", pool.getName())
+                .register(meterRegistry));
+    }
+
+    @Scheduled(fixedDelayString = "${aws_exporter.pool_tuning.interval:30000}",
+            initialDelayString = "${aws_exporter.pool_tuning.interval:30000}")
+    public void tune() {
+        if (!enabled) {
+            return;
+        }
+        double cpuLoad = cpuLoad();
+        for (TaskThreadPool pool : pools) {
+            double throttleRate = pool.sampleThrottleRate();
+            long queueWait = pool.sampleQueueWaitMillis();
+            if (!pool.isResizable()) {
+                continue;
+            }
+            int size = pool.getPoolSize();
+            if (throttleRate > maxThrottleRate) {
+                log.info("{}: {}% of the AWS calls throttled, shrinking from {}", pool.getName(),
+                        Math.round(throttleRate * 100), size);
+                pool.resize(size * 3 / 4);
+            } else if (queueWait > targetQueueWaitMillis && cpuLoad < maxCpuLoad) {
+                log.info("{}: tasks waited {}ms for a thread, growing from {}", pool.getName(), queueWait, size);
+                pool.resize(size + Math.max(1, size / 10));
+            }
+        }
+    }
+
+    /**
+     * @return The recent CPU usage of the process, between 0 and 1, or 0 if the JVM doesn't report it
+     */
+    @VisibleForTesting
+    double cpuLoad() {
+        OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return Math.max(0, ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuLoad());
+        }
+        return 0;
+    }
+}
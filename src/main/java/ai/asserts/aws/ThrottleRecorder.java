@@ -0,0 +1,97 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import com.google.common.annotations.VisibleForTesting;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.RetryPolicyContext;
+import software.amazon.awssdk.core.retry.RetryUtils;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+
+/**
+ * Counts, for the {@link TaskThreadPool} whose task made an AWS API call, every attempt of the call and the attempts
+ * that AWS throttled. The SDK retries throttled attempts before the caller sees the outcome of the call, so the
+ * attempts are counted from within the SDK, by an interceptor and by the retry condition of the clients.
+ */
+public class ThrottleRecorder implements ExecutionInterceptor {
+    private static final ExecutionAttribute<TaskThreadPool> POOL = new ExecutionAttribute<>("TaskThreadPool");
+    /**
+     * The last attempt counted as throttled, as the retry condition can see the same attempt twice
+     */
+    private static final ExecutionAttribute<Integer> THROTTLED_ATTEMPT = new ExecutionAttribute<>("ThrottledAttempt");
+
+    /**
+     * The attempts are counted by wrapping the retry condition of the client, as only the retry condition sees the
+     * error of each attempt. A throttled attempt often has no other sign than the error code in the response body.
+     *
+     * @param retryPolicy The retry policy the client uses by default, which the recorder doesn't otherwise change
+     * @return The configuration that installs this recorder on a client
+     */
+    public ClientOverrideConfiguration overrideConfiguration(RetryPolicy retryPolicy) {
+        return ClientOverrideConfiguration.builder()
+                .addExecutionInterceptor(this)
+                .retryPolicy(retryPolicy.toBuilder()
+                        .retryCondition(retryCondition(retryPolicy.retryCondition()))
+                        .build())
+                .build();
+    }
+
+    @Override
+    public void beforeExecution(Context.BeforeExecution context, ExecutionAttributes executionAttributes) {
+        TaskThreadPool pool = TaskThreadPool.current();
+        if (pool != null) {
+            executionAttributes.putAttribute(POOL, pool);
+        }
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+        TaskThreadPool pool = executionAttributes.getAttribute(POOL);
+        if (pool != null) {
+            pool.recordApiCallAttempt();
+        }
+    }
+
+    @VisibleForTesting
+    RetryCondition retryCondition(RetryCondition retryCondition) {
+        return new RetryCondition() {
+            @Override
+            public boolean shouldRetry(RetryPolicyContext context) {
+                recordThrottled(context);
+                return retryCondition.shouldRetry(context);
+            }
+
+            @Override
+            public void requestWillNotBeRetried(RetryPolicyContext context) {
+                // The attempts that are not retried, because the retries are used up, never reach shouldRetry
+                recordThrottled(context);
+                retryCondition.requestWillNotBeRetried(context);
+            }
+
+            @Override
+            public void requestSucceeded(RetryPolicyContext context) {
+                retryCondition.requestSucceeded(context);
+            }
+        };
+    }
+
+    private void recordThrottled(RetryPolicyContext context) {
+        ExecutionAttributes executionAttributes = context.executionAttributes();
+        TaskThreadPool pool = executionAttributes.getAttribute(POOL);
+        if (pool == null || context.exception() == null || !RetryUtils.isThrottlingException(context.exception())) {
+            return;
+        }
+        Integer attempt = context.retriesAttempted();
+        if (!attempt.equals(executionAttributes.getAttribute(THROTTLED_ATTEMPT))) {
+            executionAttributes.putAttribute(THROTTLED_ATTEMPT, attempt);
+            pool.recordThrottledApiCallAttempt();
+        }
+    }
+}
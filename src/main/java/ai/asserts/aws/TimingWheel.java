@@ -0,0 +1,146 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A hierarchical timing wheel. Each level is a ring of buckets, a bucket of level <code>n</code> spanning
+ * <code>wheelSize<sup>n</sup></code> ticks. A task goes into the bucket of the lowest level that covers its due time
+ * and moves down a level each time its bucket comes up, until it is due. Scheduling and cancelling a task take
+ * constant time however many tasks are pending and however far apart their due times are, from a minute to a day.
+ * <p>
+ * The wheel has no thread of its own. It is driven by {@link #advanceTo(long)}, which runs the tasks that fell due on
+ * the calling thread, so they are expected to be short, e.g. hand off the actual work to a pool.
+ */
+@Slf4j
+public class TimingWheel {
+    private final long tickMillis;
+    private final int wheelSize;
+    private final Deque<Timeout>[][] levels;
+    private long currentTick;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int wheelSize, int numLevels, long nowMillis) {
+        checkArgument(tickMillis > 0 && wheelSize > 1 && numLevels > 0, "Invalid timing wheel dimensions");
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.levels = new Deque[numLevels][wheelSize];
+        for (Deque<Timeout>[] level : levels) {
+            for (int i = 0; i < wheelSize; i++) {
+                level[i] = new ArrayDeque<>();
+            }
+        }
+        this.currentTick = Math.floorDiv(nowMillis, tickMillis);
+    }
+
+    /**
+     * Schedules a task to run at the first tick at or after the given time. A time in the past runs the task at the
+     * next {@link #advanceTo(long)}
+     */
+    public Timeout schedule(Runnable task, long atMillis) {
+        Timeout timeout = new Timeout(task, Math.floorDiv(atMillis + tickMillis - 1, tickMillis));
+        List<Timeout> due = new ArrayList<>();
+        synchronized (this) {
+            add(timeout, due);
+            // Run with the tasks of the next tick instead of on the thread of the caller
+            due.forEach(t -> levels[0][(int) Math.floorMod(currentTick + 1, (long) wheelSize)].add(t));
+        }
+        return timeout;
+    }
+
+    /**
+     * Moves the wheel forward to the given time, one tick at a time, and runs the tasks that fell due
+     */
+    public void advanceTo(long nowMillis) {
+        List<Timeout> due = new ArrayList<>();
+        synchronized (this) {
+            long targetTick = Math.floorDiv(nowMillis, tickMillis);
+            while (currentTick < targetTick) {
+                currentTick++;
+                long levelTicks = 1;
+                List<Deque<Timeout>> buckets = new ArrayList<>();
+                for (Deque<Timeout>[] level : levels) {
+                    if (Math.floorMod(currentTick, levelTicks) != 0) {
+                        break;
+                    }
+                    buckets.add(level[(int) Math.floorMod(Math.floorDiv(currentTick, levelTicks), (long) wheelSize)]);
+                    levelTicks *= wheelSize;
+                }
+                // The higher levels first, so that what they cascade down is not missed by the lower ones
+                for (int i = buckets.size() - 1; i >= 0; i--) {
+                    Deque<Timeout> bucket = buckets.get(i);
+                    Timeout timeout;
+                    while ((timeout = bucket.poll()) != null) {
+                        add(timeout, due);
+                    }
+                }
+            }
+        }
+        due.forEach(timeout -> {
+            try {
+                timeout.task.run();
+            } catch (Exception e) {
+                log.error("Failed to run task", e);
+            }
+        });
+    }
+
+    private void add(Timeout timeout, List<Timeout> due) {
+        if (timeout.cancelled) {
+            return;
+        }
+        if (timeout.dueTick <= currentTick) {
+            due.add(timeout);
+            return;
+        }
+        long levelTicks = 1;
+        for (int level = 0; level < levels.length; level++) {
+            long span = levelTicks * wheelSize;
+            long slotStart = timeout.dueTick - Math.floorMod(timeout.dueTick, levelTicks);
+            if (slotStart > currentTick && slotStart - currentTick < span) {
+                levels[level][(int) Math.floorMod(Math.floorDiv(timeout.dueTick, levelTicks), (long) wheelSize)]
+                        .add(timeout);
+                return;
+            }
+            if (level == levels.length - 1) {
+                // Beyond the reach of the wheel. Parked in the farthest bucket, and placed again when it comes up
+                long farthest = Math.floorDiv(currentTick, levelTicks) + wheelSize - 1;
+                levels[level][(int) Math.floorMod(farthest, (long) wheelSize)].add(timeout);
+                return;
+            }
+            levelTicks = span;
+        }
+    }
+
+    public static class Timeout {
+        private final Runnable task;
+        private final long dueTick;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long dueTick) {
+            this.task = task;
+            this.dueTick = dueTick;
+        }
+
+        /**
+         * The task is dropped from the wheel when its bucket next comes up
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.cloudwatch;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_NAMESPACE_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+
+/**
+ * Learns, for each namespace of an account and region, how long after the end of a period CloudWatch has published
+ * its datapoints. The namespaces publish with very different latencies, so a single static delay either queries too
+ * early and gets empty or partial periods, or exports the data of the faster namespaces later than needed.
+ * <p>
+ * The scrape queries a few periods before the window it exports, so that the newest period that was published is
+ * known even when the last period of the window is missing. After each scrape the end of the newest period that had a
+ * datapoint is compared with the end of the queried window
+ * <ul>
+ *     <li>If the newest period is missing, either its data was not published yet, or there is no data for it, which
+ *     is common for quiet namespaces. Which one is known at the next scrape, when the period is queried again</li>
+ *     <li>If the period that was missing has been published by the next scrape, the data is published later than
+ *     estimated, and the estimate goes up to the time that has passed since the end of the period</li>
+ *     <li>If the period is still empty, it is a gap in the data rather than a delay. Like when the newest period is
+ *     there, the estimate goes down by a tenth, to find out if the data is published sooner</li>
+ * </ul>
+ */
+@Component
+@Slf4j
+public class IngestionDelayEstimator {
+    public static final String INGESTION_DELAY_METRIC = "aws_exporter.ingestion.delay.seconds";
+    private final MeterRegistry meterRegistry;
+    private final int initialDelaySeconds;
+    private final int maxDelaySeconds;
+    private final Map<EstimateKey, AtomicInteger> estimates = new ConcurrentHashMap<>();
+    /**
+     * The end of the newest period of the window of the last scrape, if it was missing
+     */
+    private final Map<EstimateKey, Instant> missingPeriodEnds = new ConcurrentHashMap<>();
+
+    @Autowired
+    public IngestionDelayEstimator(MeterRegistry meterRegistry,
+                                   @Value("${aws_exporter.ingestion_delay.initial_seconds:60}")
+                                           int initialDelaySeconds,
+                                   @Value("${aws_exporter.ingestion_delay.max_seconds:600}") int maxDelaySeconds) {
+        this.meterRegistry = meterRegistry;
+        this.initialDelaySeconds = initialDelaySeconds;
+        this.maxDelaySeconds = maxDelaySeconds;
+    }
+
+    /**
+     * @param minDelaySeconds The delay configured for the scrape, which the estimate never goes below
+     * @return The estimated time after the end of a period by which its data is published
+     */
+    public int getDelaySeconds(String accountId, String region, String namespace, int minDelaySeconds) {
+        return Math.max(minDelaySeconds, estimate(new EstimateKey(accountId, region, namespace)).get());
+    }
+
+    /**
+     * @param namespace     The namespace that was scraped
+     * @param windowEnd     The end of the queried time window
+     * @param newestDataEnd The end of the period of the newest datapoint returned
+     * @param now           The time the scrape completed
+     */
+    public void record(String accountId, String region, String namespace, Instant windowEnd,
+                       Instant newestDataEnd, Instant now) {
+        EstimateKey key = new EstimateKey(accountId, region, namespace);
+        AtomicInteger estimate = estimate(key);
+        int previous = estimate.get();
+        int updated;
+        boolean missing = newestDataEnd.isBefore(windowEnd);
+        Instant missingBefore = missing ? missingPeriodEnds.put(key, windowEnd) : missingPeriodEnds.remove(key);
+        if (missing && (missingBefore == null || !missingBefore.isBefore(windowEnd))) {
+            // Not known yet if the period is late or empty
+            updated = previous;
+        } else if (missing && !newestDataEnd.isBefore(missingBefore)) {
+            // The period that was missing at the last scrape has been published since
+            int lag = (int) Math.min(maxDelaySeconds, Duration.between(missingBefore, now).getSeconds());
+            updated = estimate.accumulateAndGet(lag, Math::max);
+        } else {
+            updated = estimate.updateAndGet(current -> Math.max(0, current - Math.max(1, current / 10)));
+        }
+        if (updated != previous) {
+            log.debug("Ingestion delay of {} changed from {}s to {}s", key, previous, updated);
+        }
+    }
+
+    private AtomicInteger estimate(EstimateKey key) {
+        return estimates.computeIfAbsent(key, k -> {
+            AtomicInteger estimate = new AtomicInteger(initialDelaySeconds);
+            if (meterRegistry != null) {
+                Gauge.builder(INGESTION_DELAY_METRIC, estimate, AtomicInteger::get)
+                        .tag(SCRAPE_ACCOUNT_ID_LABEL, key.getAccountId())
+                        .tag(SCRAPE_REGION_LABEL, key.getRegion())
+                        .tag(SCRAPE_NAMESPACE_LABEL, key.getNamespace())
+                        .register(meterRegistry);
+            }
+            return estimate;
+        });
+    }
+
+    /**
+     * The same namespace can be published with a different delay in different regions
+     */
+    @AllArgsConstructor
+    @Getter
+    @EqualsAndHashCode
+    @ToString
+    private static class EstimateKey {
+        private final String accountId;
+        private final String region;
+        private final String namespace;
+    }
+}
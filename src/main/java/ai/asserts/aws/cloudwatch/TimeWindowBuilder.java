@@ -4,6 +4,7 @@
  */
 package ai.asserts.aws.cloudwatch;
 
+import com.google.common.annotations.VisibleForTesting;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
@@ -26,6 +27,21 @@ public class TimeWindowBuilder {
         return new Instant[]{start.toInstant(), end.toInstant()};
     }
 
+    /**
+     * @return The latest window of the given length, aligned to the epoch, that ended at least
+     * <code>delaySeconds</code> ago
+     */
+    public Instant[] getCompletedTimePeriod(int scrapeIntervalSeconds, int delaySeconds) {
+        long end = Math.floorDiv(now().getEpochSecond() - delaySeconds, scrapeIntervalSeconds)
+                * scrapeIntervalSeconds;
+        return new Instant[]{Instant.ofEpochSecond(end - scrapeIntervalSeconds), Instant.ofEpochSecond(end)};
+    }
+
+    @VisibleForTesting
+    Instant now() {
+        return Instant.now();
+    }
+
     public Instant[] getDailyMetricTimeWindow(String region) {
 
         ZonedDateTime start, end;
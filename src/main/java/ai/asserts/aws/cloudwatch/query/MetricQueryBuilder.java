@@ -6,6 +6,7 @@ package ai.asserts.aws.cloudwatch.query;
 
 import ai.asserts.aws.config.MetricConfig;
 import ai.asserts.aws.resource.Resource;
+import ai.asserts.aws.resource.ResourceIndex;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.cloudwatch.model.Metric;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
@@ -14,17 +15,14 @@ import software.amazon.awssdk.services.cloudwatch.model.MetricStat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 
 @Component
 public class MetricQueryBuilder {
     public List<MetricQuery> buildQueries(QueryIdGenerator queryIdGenerator,
-                                          Set<Resource> tagFilteredResources,
+                                          ResourceIndex tagFilteredResources,
                                           MetricConfig metricConfig, Metric metric) {
         List<MetricQuery> metricQueries = new ArrayList<>();
-        Optional<Resource> ofResource = tagFilteredResources.stream()
-                .filter(resource -> resource.matches(metric))
-                .findFirst();
+        Optional<Resource> ofResource = tagFilteredResources.find(metric);
         metricConfig.getStats().forEach(stat -> {
             MetricQuery metricQuery = buildQuery(queryIdGenerator, metricConfig, stat, metric);
             ofResource.ifPresent(metricQuery::setResource);
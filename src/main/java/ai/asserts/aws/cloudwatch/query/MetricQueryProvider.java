@@ -14,12 +14,13 @@ import ai.asserts.aws.config.MetricConfig;
 import ai.asserts.aws.config.NamespaceConfig;
 import ai.asserts.aws.config.ScrapeConfig;
 import ai.asserts.aws.model.CWNamespace;
-import ai.asserts.aws.resource.Resource;
+import ai.asserts.aws.resource.ResourceIndex;
 import ai.asserts.aws.resource.ResourceTagHelper;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableSortedMap;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.ListMetricsRequest;
 import software.amazon.awssdk.services.cloudwatch.model.ListMetricsResponse;
@@ -33,6 +34,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
@@ -136,66 +138,29 @@ public class MetricQueryProvider {
 
     private void buildQueries(ScrapeConfig scrapeConfig, String region, AWSAccount accountRegion, String account,
                               Map<String, Map<String, Map<Integer, List<MetricQuery>>>> queriesByAccount) {
+        if (awsClientProvider.isAsyncEnabled()) {
+            buildQueriesAsync(scrapeConfig, region, accountRegion, account, queriesByAccount);
+            return;
+        }
         scrapeConfig.getNamespaces().stream()
                 .filter(NamespaceConfig::isEnabled)
                 .forEach(ns -> {
                     try {
                         CloudWatchClient cloudWatchClient =
                                 awsClientProvider.getCloudWatchClient(region, accountRegion);
-                        Set<Resource> tagFilteredResources =
-                                resourceTagHelper.getFilteredResources(accountRegion, region, ns);
-                        if (!ns.hasTagFilters() || tagFilteredResources.size() > 0) {
-
-                            Map<String, MetricConfig> configuredMetrics = new TreeMap<>();
-                            ns.getMetrics()
-                                    .forEach(metricConfig -> configuredMetrics.put(
-                                            metricConfig.getName(),
-                                            metricConfig));
-
+                        ResourceIndex tagFilteredResources =
+                                resourceTagHelper.getResourceIndex(accountRegion, region, ns);
+                        if (!ns.hasTagFilters() || !tagFilteredResources.isEmpty()) {
+                            Map<String, MetricConfig> configuredMetrics = configuredMetrics(ns);
                             String nextToken = null;
                             do {
-                                ListMetricsRequest.Builder builder = ListMetricsRequest.builder()
-                                        .nextToken(nextToken);
-                                Optional<CWNamespace> nsOpt =
-                                        scrapeConfigProvider.getStandardNamespace(ns.getName());
-                                if (nsOpt.isPresent()) {
-                                    String namespace = nsOpt.get().getNamespace();
-                                    builder = builder.namespace(namespace);
-                                    log.info("Discovering all metrics for region={}, namespace={} ",
-                                            region,
-                                            namespace);
-                                } else {
-                                    builder = builder.namespace(ns.getName());
-                                    log.info("Discovering all metrics for region={}, namespace={} ",
-                                            region,
-                                            ns.getName());
-                                }
-
-                                ListMetricsRequest request = builder.build();
+                                ListMetricsRequest request = listMetricsRequest(region, ns, nextToken);
                                 ListMetricsResponse response = rateLimiter.doWithRateLimit(
                                         "CloudWatchClient/ListMetrics",
                                         operationLabels(account, region, ns),
                                         () -> cloudWatchClient.listMetrics(request));
-
-                                if (response.hasMetrics()) {
-                                    // Check if the metric is on a tag filtered resource
-                                    // Also check if the metric matches any dimension filters that
-                                    // might be
-                                    // specified
-                                    response.metrics()
-                                            .stream()
-                                            .filter(metric -> isAConfiguredMetric(configuredMetrics,
-                                                    metric) &&
-                                                    belongsToFilteredResource(ns,
-                                                            tagFilteredResources,
-                                                            metric))
-                                            .forEach(metric -> buildQueries(queriesByAccount,
-                                                    account,
-                                                    region,
-                                                    tagFilteredResources,
-                                                    configuredMetrics.get(metric.metricName()),
-                                                    metric));
-                                }
+                                processMetrics(response, queriesByAccount, account, region, ns,
+                                        tagFilteredResources, configuredMetrics);
                                 nextToken = response.nextToken();
                             } while (nextToken != null);
                         }
@@ -205,6 +170,109 @@ public class MetricQueryProvider {
                 });
     }
 
+    /**
+     * Discovers the metrics of all the namespaces in the region concurrently, each as a chain of
+     * <code>GetResources</code> and <code>ListMetrics</code> futures on the async clients.
+     */
+    private void buildQueriesAsync(ScrapeConfig scrapeConfig, String region, AWSAccount accountRegion,
+                                   String account,
+                                   Map<String, Map<String, Map<Integer, List<MetricQuery>>>> queriesByAccount) {
+        CompletableFuture.allOf(scrapeConfig.getNamespaces().stream()
+                .filter(NamespaceConfig::isEnabled)
+                .map(ns -> resourceTagHelper.getResourceIndexAsync(accountRegion, region, ns)
+                        .thenCompose(tagFilteredResources -> {
+                            if (!ns.hasTagFilters() || !tagFilteredResources.isEmpty()) {
+                                CloudWatchAsyncClient cloudWatchClient =
+                                        awsClientProvider.getCloudWatchAsyncClient(region, accountRegion);
+                                return listMetricsAsync(cloudWatchClient, queriesByAccount, account, region, ns,
+                                        tagFilteredResources, configuredMetrics(ns), null);
+                            }
+                            return CompletableFuture.<Void>completedFuture(null);
+                        })
+                        .exceptionally(e -> {
+                            log.info("Failed to scrape metrics", e);
+                            return null;
+                        }))
+                .toArray(CompletableFuture[]::new)).join();
+    }
+
+    private CompletableFuture<Void> listMetricsAsync(
+            CloudWatchAsyncClient cloudWatchClient,
+            Map<String, Map<String, Map<Integer, List<MetricQuery>>>> queriesByAccount,
+            String account, String region, NamespaceConfig ns,
+            ResourceIndex tagFilteredResources,
+            Map<String, MetricConfig> configuredMetrics,
+            String nextToken) {
+        ListMetricsRequest request = listMetricsRequest(region, ns, nextToken);
+        return rateLimiter.doWithRateLimitAsync(
+                        "CloudWatchClient/ListMetrics",
+                        operationLabels(account, region, ns),
+                        () -> cloudWatchClient.listMetrics(request))
+                .thenCompose(response -> {
+                    processMetrics(response, queriesByAccount, account, region, ns, tagFilteredResources,
+                            configuredMetrics);
+                    if (response.nextToken() != null) {
+                        return listMetricsAsync(cloudWatchClient, queriesByAccount, account, region, ns,
+                                tagFilteredResources, configuredMetrics, response.nextToken());
+                    }
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    private Map<String, MetricConfig> configuredMetrics(NamespaceConfig ns) {
+        Map<String, MetricConfig> configuredMetrics = new TreeMap<>();
+        ns.getMetrics()
+                .forEach(metricConfig -> configuredMetrics.put(
+                        metricConfig.getName(),
+                        metricConfig));
+        return configuredMetrics;
+    }
+
+    private ListMetricsRequest listMetricsRequest(String region, NamespaceConfig ns, String nextToken) {
+        ListMetricsRequest.Builder builder = ListMetricsRequest.builder()
+                .nextToken(nextToken);
+        Optional<CWNamespace> nsOpt =
+                scrapeConfigProvider.getStandardNamespace(ns.getName());
+        if (nsOpt.isPresent()) {
+            String namespace = nsOpt.get().getNamespace();
+            builder = builder.namespace(namespace);
+            log.info("Discovering all metrics for region={}, namespace={} ",
+                    region,
+                    namespace);
+        } else {
+            builder = builder.namespace(ns.getName());
+            log.info("Discovering all metrics for region={}, namespace={} ",
+                    region,
+                    ns.getName());
+        }
+        return builder.build();
+    }
+
+    private void processMetrics(ListMetricsResponse response,
+                                Map<String, Map<String, Map<Integer, List<MetricQuery>>>> queriesByAccount,
+                                String account, String region, NamespaceConfig ns,
+                                ResourceIndex tagFilteredResources, Map<String, MetricConfig> configuredMetrics) {
+        if (response.hasMetrics()) {
+            // Check if the metric is on a tag filtered resource
+            // Also check if the metric matches any dimension filters that
+            // might be
+            // specified
+            response.metrics()
+                    .stream()
+                    .filter(metric -> isAConfiguredMetric(configuredMetrics,
+                            metric) &&
+                            belongsToFilteredResource(ns,
+                                    tagFilteredResources,
+                                    metric))
+                    .forEach(metric -> buildQueries(queriesByAccount,
+                            account,
+                            region,
+                            tagFilteredResources,
+                            configuredMetrics.get(metric.metricName()),
+                            metric));
+        }
+    }
+
     private ImmutableSortedMap<String, String> operationLabels(String account, String region, NamespaceConfig ns) {
         return ImmutableSortedMap.of(
                 SCRAPE_ACCOUNT_ID_LABEL, account,
@@ -214,10 +282,9 @@ public class MetricQueryProvider {
         );
     }
 
-    private boolean belongsToFilteredResource(NamespaceConfig namespaceConfig, Set<Resource> tagFilteredResources,
+    private boolean belongsToFilteredResource(NamespaceConfig namespaceConfig, ResourceIndex tagFilteredResources,
                                               Metric metric) {
-        return !namespaceConfig.hasTagFilters() ||
-                tagFilteredResources.stream().anyMatch(resource -> resource.matches(metric));
+        return !namespaceConfig.hasTagFilters() || tagFilteredResources.find(metric).isPresent();
     }
 
     private boolean isAConfiguredMetric(Map<String, MetricConfig> byName, Metric metric) {
@@ -226,12 +293,16 @@ public class MetricQueryProvider {
 
     private void buildQueries(Map<String, Map<String, Map<Integer, List<MetricQuery>>>> byIntervalWithDimensions,
                               String account, String region,
-                              Set<Resource> resources, MetricConfig metricConfig, Metric metric) {
-        List<MetricQuery> metricQueries = byIntervalWithDimensions
-                .computeIfAbsent(account, k -> new TreeMap<>())
-                .computeIfAbsent(region, k -> new TreeMap<>())
-                .computeIfAbsent(metricConfig.getEffectiveScrapeInterval(), k -> new ArrayList<>());
-        metricQueries.addAll(metricQueryBuilder.buildQueries(queryIdGenerator, resources, metricConfig,
-                metric));
+                              ResourceIndex resources, MetricConfig metricConfig, Metric metric) {
+        List<MetricQuery> queries = metricQueryBuilder.buildQueries(queryIdGenerator, resources, metricConfig,
+                metric);
+        // Queries of different accounts, regions and namespaces are discovered concurrently
+        synchronized (byIntervalWithDimensions) {
+            byIntervalWithDimensions
+                    .computeIfAbsent(account, k -> new TreeMap<>())
+                    .computeIfAbsent(region, k -> new TreeMap<>())
+                    .computeIfAbsent(metricConfig.getEffectiveScrapeInterval(), k -> new ArrayList<>())
+                    .addAll(queries);
+        }
     }
 }
@@ -4,6 +4,7 @@
  */
 package ai.asserts.aws.exporter;
 
+import ai.asserts.aws.AWSClientProvider;
 import ai.asserts.aws.EnvironmentConfig;
 import com.google.common.annotations.VisibleForTesting;
 import lombok.Getter;
@@ -11,6 +12,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.StsClientBuilder;
 import software.amazon.awssdk.services.sts.model.GetCallerIdentityResponse;
 
 @Component
@@ -38,6 +40,8 @@ public class AccountIDProvider implements InitializingBean {
 
     @VisibleForTesting
     StsClient getStsClient() {
-        return StsClient.builder().build();
+        StsClientBuilder builder = StsClient.builder();
+        AWSClientProvider.getEndpointOverride().ifPresent(builder::endpointOverride);
+        return builder.build();
     }
 }
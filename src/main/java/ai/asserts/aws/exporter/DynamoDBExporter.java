@@ -5,135 +5,69 @@
 package ai.asserts.aws.exporter;
 
 import ai.asserts.aws.AWSClientProvider;
-import ai.asserts.aws.CollectionBuilderTask;
 import ai.asserts.aws.AWSApiCallRateLimiter;
 import ai.asserts.aws.ScrapeConfigProvider;
 import ai.asserts.aws.TagUtil;
 import ai.asserts.aws.TaskExecutorUtil;
 import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.account.AccountProvider;
-import ai.asserts.aws.config.ScrapeConfig;
-import ai.asserts.aws.resource.Resource;
 import ai.asserts.aws.resource.ResourceTagHelper;
-import com.google.common.collect.ImmutableSortedMap;
-import io.prometheus.client.Collector;
-import io.prometheus.client.Collector.MetricFamilySamples.Sample;
 import io.prometheus.client.CollectorRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.ListTablesRequest;
 import software.amazon.awssdk.services.dynamodb.model.ListTablesResponse;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.TreeMap;
-import java.util.concurrent.Future;
-import java.util.stream.Collectors;
 
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
 
 @Component
 @Slf4j
-public class DynamoDBExporter extends Collector implements InitializingBean {
-    public final CollectorRegistry collectorRegistry;
-    private final AccountProvider accountProvider;
-    private final AWSClientProvider awsClientProvider;
-    private final AWSApiCallRateLimiter rateLimiter;
-    private final MetricSampleBuilder sampleBuilder;
-    private final ResourceTagHelper resourceTagHelper;
-    private final TagUtil tagUtil;
-    private final TaskExecutorUtil taskExecutorUtil;
-    private final ScrapeConfigProvider scrapeConfigProvider;
-    private volatile List<MetricFamilySamples> metricFamilySamples = new ArrayList<>();
-
+public class DynamoDBExporter extends ResourceExporter<String> {
     public DynamoDBExporter(
             AccountProvider accountProvider, AWSClientProvider awsClientProvider, CollectorRegistry collectorRegistry,
             AWSApiCallRateLimiter rateLimiter, MetricSampleBuilder sampleBuilder, ResourceTagHelper resourceTagHelper,
             TagUtil tagUtil, TaskExecutorUtil taskExecutorUtil, ScrapeConfigProvider scrapeConfigProvider) {
-        this.accountProvider = accountProvider;
-        this.awsClientProvider = awsClientProvider;
-        this.collectorRegistry = collectorRegistry;
-        this.rateLimiter = rateLimiter;
-        this.sampleBuilder = sampleBuilder;
-        this.resourceTagHelper = resourceTagHelper;
-        this.tagUtil = tagUtil;
-        this.taskExecutorUtil = taskExecutorUtil;
-        this.scrapeConfigProvider = scrapeConfigProvider;
+        super("DynamoDB Table Resources", accountProvider, awsClientProvider, collectorRegistry, rateLimiter,
+                sampleBuilder, resourceTagHelper, tagUtil, taskExecutorUtil, scrapeConfigProvider);
     }
 
     @Override
-    public void afterPropertiesSet() throws Exception {
-        register(collectorRegistry);
+    protected List<String> listResources(AWSAccount account, String region) {
+        DynamoDbClient client = awsClientProvider.getDynamoDBClient(region, account);
+        // A page holds at most 100 tables
+        return listPages("DynamoDbClient/listTables", account, region,
+                lastTable -> () -> client.listTables(ListTablesRequest.builder()
+                        .exclusiveStartTableName(lastTable)
+                        .build()),
+                ListTablesResponse::tableNames, ListTablesResponse::lastEvaluatedTableName);
     }
 
     @Override
-    public List<MetricFamilySamples> collect() {
-        return metricFamilySamples;
+    protected String getTagResourceType(String tableName) {
+        return "dynamodb:table";
     }
 
-    public void update() {
-        log.info("Exporting DynamoDB Table Resources");
-        List<MetricFamilySamples> newFamily = new ArrayList<>();
-        List<Sample> allSamples = new ArrayList<>();
-        List<Future<List<Sample>>> futures = new ArrayList<>();
-        accountProvider.getAccounts().forEach(account -> account.getRegions().forEach(region ->
-                futures.add(
-                        taskExecutorUtil.executeAccountTask(account, new CollectionBuilderTask<Sample>() {
-                            @Override
-                            public List<Sample> call() {
-                                return buildSamples(region, account, allSamples);
-                            }
-                        }))));
-        taskExecutorUtil.awaitAll(futures, allSamples::addAll);
-        sampleBuilder.buildFamily(allSamples).ifPresent(newFamily::add);
-        metricFamilySamples = newFamily;
+    @Override
+    protected String getName(String tableName) {
+        return tableName;
     }
 
-    private List<Sample> buildSamples(String region, AWSAccount account, List<Sample> allSamples) {
-        ScrapeConfig scrapeConfig = scrapeConfigProvider.getScrapeConfig(account.getTenant());
-        List<Sample> samples = new ArrayList<>();
-        DynamoDbClient client = awsClientProvider.getDynamoDBClient(region, account);
-        String api = "DynamoDbClient/listTables";
-        ListTablesResponse resp = rateLimiter.doWithRateLimit(
-                api, ImmutableSortedMap.of(
-                        SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId(),
-                        SCRAPE_REGION_LABEL, region,
-                        SCRAPE_OPERATION_LABEL, api
-                ), client::listTables);
-        if (resp.hasTableNames()) {
-            Map<String, Resource> resourcesWithTag =
-                    resourceTagHelper.getResourcesWithTag(account, region,
-                            "dynamodb:table", resp.tableNames());
-
-            List<Sample> regionTables = resp.tableNames().stream()
-                    .map(tableName -> {
-                        Map<String, String> labels = new TreeMap<>();
-                        labels.put(SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId());
-                        labels.put(SCRAPE_REGION_LABEL, region);
-                        labels.put("aws_resource_type", "AWS::DynamoDB::Table");
-                        labels.put("job", tableName);
-                        labels.put("name", tableName);
-                        labels.put("id", tableName);
-                        labels.put("namespace", "AWS/DynamoDB");
-                        if (resourcesWithTag.containsKey(tableName)) {
-                            labels.putAll(
-                                    tagUtil.tagLabels(
-                                            scrapeConfig,
-                                            resourcesWithTag.get(tableName).getTags()));
-                        }
-
-                        return sampleBuilder.buildSingleSample("aws_resource", labels, 1.0D);
-                    })
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .collect(Collectors.toList());
-            allSamples.addAll(regionTables);
-        }
-        return samples;
+    @Override
+    protected Map<String, String> buildLabels(AWSAccount account, String region, String tableName) {
+        Map<String, String> labels = new TreeMap<>();
+        labels.put(SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId());
+        labels.put(SCRAPE_REGION_LABEL, region);
+        labels.put("aws_resource_type", "AWS::DynamoDB::Table");
+        labels.put("job", tableName);
+        labels.put("name", tableName);
+        labels.put("id", tableName);
+        labels.put("namespace", "AWS/DynamoDB");
+        return labels;
     }
 }
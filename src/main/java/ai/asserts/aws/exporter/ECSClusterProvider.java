@@ -98,7 +98,7 @@ public class ECSClusterProvider {
             if (describeClustersResponse.hasClusters()) {
                 clusters.addAll(describeClustersResponse.clusters().stream()
                         .filter(cluster -> "ACTIVE".equals(cluster.status()))
-                        .map(cluster -> resourceMapper.map(cluster.clusterArn()))
+                        .map(cluster -> resourceMapper.map(awsAccount, cluster.clusterArn()))
                         .filter(Optional::isPresent)
                         .map(Optional::get)
                         .collect(Collectors.toSet()));
@@ -230,7 +230,8 @@ public class ECSServiceDiscoveryExporter implements InitializingBean, Runnable {
                     URI uri = URI.create(taskMetaDataURL);
                     TaskMetaData taskMetaData = restTemplate.getForObject(uri, TaskMetaData.class);
                     if (taskMetaData != null) {
-                        resourceMapper.map(taskMetaData.getTaskARN()).ifPresent(taskResource -> {
+                        // The subnet of the exporter's own task doesn't depend on the tenant
+                        resourceMapper.map(null, taskMetaData.getTaskARN()).ifPresent(taskResource -> {
                             subnetDetails.set(ecsTaskUtil.getSubnetDetails(taskResource));
                             log.info("Discovered self subnet as {}", subnetDetails);
                         });
@@ -155,7 +155,7 @@ public class ECSTaskProvider extends Collector implements Runnable, Initializing
                         Map<Resource, List<Resource>> clusterWiseNewTasks = new HashMap<>();
                         EcsClient ecsClient = awsClientProvider.getECSClient(region, account);
                         for (Resource cluster : ecsClusterProvider.getClusters(account, region)) {
-                            discoverNewTasks(clusterWiseNewTasks, ecsClient, cluster);
+                            discoverNewTasks(account, clusterWiseNewTasks, ecsClient, cluster);
                         }
                         buildNewTargets(account, scrapeConfig, clusterWiseNewTasks, ecsClient);
                         return null;
@@ -166,7 +166,8 @@ public class ECSTaskProvider extends Collector implements Runnable, Initializing
     }
 
     @VisibleForTesting
-    void discoverNewTasks(Map<Resource, List<Resource>> clusterWiseNewTasks, EcsClient ecsClient, Resource cluster) {
+    void discoverNewTasks(AWSAccount account, Map<Resource, List<Resource>> clusterWiseNewTasks, EcsClient ecsClient,
+                          Resource cluster) {
         Map<Resource, List<StaticConfig>> current =
                 tasksByCluster.computeIfAbsent(cluster, k -> new HashMap<>());
         Paginator taskPaginator = new Paginator();
@@ -191,7 +192,7 @@ public class ECSTaskProvider extends Collector implements Runnable, Initializing
                 log.info("Found {} tasks in cluster {}", tasksResponse.taskArns().size(), cluster.getArn());
                 // Build the current task list
                 latestTasks.addAll(tasksResponse.taskArns().stream()
-                        .map(resourceMapper::map)
+                        .map(arn -> resourceMapper.map(account, arn))
                         .filter(Optional::isPresent)
                         .map(Optional::get)
                         .collect(Collectors.toSet()));
@@ -237,7 +238,7 @@ public class ECSTaskProvider extends Collector implements Runnable, Initializing
                     if (taskResponse.hasTasks()) {
                         taskResponse.tasks().stream()
                                 .filter(ecsTaskUtil::hasAllInfo)
-                                .forEach(task -> resourceMapper.map(task.taskArn()).ifPresent(taskResource -> {
+                                .forEach(task -> resourceMapper.map(account, task.taskArn()).ifPresent(taskResource -> {
                                     String tenantName = account.getTenant();
                                     List<StaticConfig> staticConfigs =
                                             ecsTaskUtil.buildScrapeTargets(
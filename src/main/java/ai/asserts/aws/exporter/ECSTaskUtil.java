@@ -229,9 +229,9 @@ public class ECSTaskUtil {
 
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
     private LabelsBuilder getLabelsBuilder(AWSAccount account, Resource cluster, Optional<String> service, Task task) {
-        Resource taskDefResource = resourceMapper.map(task.taskDefinitionArn())
+        Resource taskDefResource = resourceMapper.map(account, task.taskDefinitionArn())
                 .orElseThrow(() -> new RuntimeException("Unknown resource ARN: " + task.taskDefinitionArn()));
-        Resource taskResource = resourceMapper.map(task.taskArn())
+        Resource taskResource = resourceMapper.map(account, task.taskArn())
                 .orElseThrow(() -> new RuntimeException("Unknown resource ARN: " + task.taskArn()));
 
         LabelsBuilder labelsBuilder;
@@ -101,7 +101,7 @@ public class KinesisAnalyticsExporter extends Collector implements InitializingB
         if (resp.hasApplicationSummaries()) {
             samples.addAll(resp.applicationSummaries().stream()
                     .map(ApplicationSummary::applicationARN)
-                    .map(resourceMapper::map)
+                    .map(arn -> resourceMapper.map(account, arn))
                     .filter(Optional::isPresent)
                     .map(Optional::get)
                     .map(resource -> {
@@ -5,131 +5,71 @@
 package ai.asserts.aws.exporter;
 
 import ai.asserts.aws.AWSClientProvider;
-import ai.asserts.aws.CollectionBuilderTask;
 import ai.asserts.aws.AWSApiCallRateLimiter;
 import ai.asserts.aws.ScrapeConfigProvider;
 import ai.asserts.aws.TagUtil;
 import ai.asserts.aws.TaskExecutorUtil;
 import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.account.AccountProvider;
-import ai.asserts.aws.config.ScrapeConfig;
-import ai.asserts.aws.resource.Resource;
 import ai.asserts.aws.resource.ResourceTagHelper;
-import com.google.common.collect.ImmutableSortedMap;
-import io.prometheus.client.Collector;
-import io.prometheus.client.Collector.MetricFamilySamples.Sample;
 import io.prometheus.client.CollectorRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.kinesis.KinesisClient;
+import software.amazon.awssdk.services.kinesis.model.ListStreamsRequest;
 import software.amazon.awssdk.services.kinesis.model.ListStreamsResponse;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.TreeMap;
-import java.util.concurrent.Future;
-import java.util.stream.Collectors;
 
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
 
 @Component
 @Slf4j
-public class KinesisStreamExporter extends Collector implements InitializingBean {
-    public final CollectorRegistry collectorRegistry;
-    private final AccountProvider accountProvider;
-    private final AWSClientProvider awsClientProvider;
-    private final AWSApiCallRateLimiter rateLimiter;
-    private final MetricSampleBuilder sampleBuilder;
-    private final ResourceTagHelper resourceTagHelper;
-    private final TagUtil tagUtil;
-    private final TaskExecutorUtil taskExecutorUtil;
-    private final ScrapeConfigProvider scrapeConfigProvider;
-    private volatile List<MetricFamilySamples> metricFamilySamples = new ArrayList<>();
-
+public class KinesisStreamExporter extends ResourceExporter<String> {
     public KinesisStreamExporter(
             AccountProvider accountProvider, AWSClientProvider awsClientProvider, CollectorRegistry collectorRegistry,
             AWSApiCallRateLimiter rateLimiter, MetricSampleBuilder sampleBuilder, ResourceTagHelper resourceTagHelper,
             TagUtil tagUtil, TaskExecutorUtil taskExecutorUtil, ScrapeConfigProvider scrapeConfigProvider) {
-        this.accountProvider = accountProvider;
-        this.awsClientProvider = awsClientProvider;
-        this.collectorRegistry = collectorRegistry;
-        this.rateLimiter = rateLimiter;
-        this.sampleBuilder = sampleBuilder;
-        this.resourceTagHelper = resourceTagHelper;
-        this.tagUtil = tagUtil;
-        this.taskExecutorUtil = taskExecutorUtil;
-        this.scrapeConfigProvider = scrapeConfigProvider;
+        super("Kinesis Streams", accountProvider, awsClientProvider, collectorRegistry, rateLimiter, sampleBuilder,
+                resourceTagHelper, tagUtil, taskExecutorUtil, scrapeConfigProvider);
     }
 
     @Override
-    public void afterPropertiesSet() throws Exception {
-        register(collectorRegistry);
+    protected List<String> listResources(AWSAccount account, String region) {
+        KinesisClient client = awsClientProvider.getKinesisClient(region, account);
+        // The next page starts after the last stream of the previous page
+        return listPages("KinesisClient/listStreams", account, region,
+                lastStream -> () -> client.listStreams(ListStreamsRequest.builder()
+                        .exclusiveStartStreamName(lastStream)
+                        .build()),
+                ListStreamsResponse::streamNames,
+                resp -> Boolean.TRUE.equals(resp.hasMoreStreams()) && !resp.streamNames().isEmpty() ?
+                        resp.streamNames().get(resp.streamNames().size() - 1) : null);
     }
 
     @Override
-    public List<MetricFamilySamples> collect() {
-        return metricFamilySamples;
+    protected String getTagResourceType(String stream) {
+        return "kinesis:stream";
     }
 
-    public void update() {
-        log.info("Exporting Kinesis Streams");
-        List<MetricFamilySamples> newFamily = new ArrayList<>();
-        List<Sample> allSamples = new ArrayList<>();
-        List<Future<List<Sample>>> futures = new ArrayList<>();
-        accountProvider.getAccounts().forEach(account -> account.getRegions().forEach(region ->
-                futures.add(taskExecutorUtil.executeAccountTask(account, new CollectionBuilderTask<Sample>() {
-                    @Override
-                    public List<Sample> call()  {
-                        return buildSamples(region, account);
-                    }
-                }))));
-        taskExecutorUtil.awaitAll(futures, allSamples::addAll);
-        sampleBuilder.buildFamily(allSamples).ifPresent(newFamily::add);
-        metricFamilySamples = newFamily;
+    @Override
+    protected String getName(String stream) {
+        return stream;
     }
 
-    private List<Sample> buildSamples(String region, AWSAccount account) {
-        ScrapeConfig scrapeConfig = scrapeConfigProvider.getScrapeConfig(account.getTenant());
-        List<Sample> samples = new ArrayList<>();
-        try {
-            KinesisClient client = awsClientProvider.getKinesisClient(region, account);
-            String api = "KinesisClient/listStreams";
-            ListStreamsResponse resp = rateLimiter.doWithRateLimit(
-                    api, ImmutableSortedMap.of(
-                            SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId(),
-                            SCRAPE_REGION_LABEL, region,
-                            SCRAPE_OPERATION_LABEL, api
-                    ), client::listStreams);
-            if (resp.hasStreamNames()) {
-                Map<String, Resource> byName = resourceTagHelper.getResourcesWithTag(account, region,
-                        "kinesis:stream", resp.streamNames());
-                samples.addAll(resp.streamNames().stream()
-                        .map(stream -> {
-                            Map<String, String> labels = new TreeMap<>();
-                            labels.put(SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId());
-                            labels.put(SCRAPE_REGION_LABEL, region);
-                            labels.put("aws_resource_type", "AWS::Kinesis::Stream");
-                            labels.put("namespace", "AWS/Kinesis");
-                            labels.put("job", stream);
-                            labels.put("name", stream);
-                            labels.put("id", stream);
-                            if (byName.containsKey(stream)) {
-                                labels.putAll(tagUtil.tagLabels(scrapeConfig, byName.get(stream).getTags()));
-                            }
-                            return sampleBuilder.buildSingleSample("aws_resource", labels, 1.0D);
-                        })
-                        .filter(Optional::isPresent)
-                        .map(Optional::get)
-                        .collect(Collectors.toList()));
-            }
-        } catch (Exception e) {
-            log.error("Error:" + account, e);
-        }
-        return samples;
+    @Override
+    protected Map<String, String> buildLabels(AWSAccount account, String region, String stream) {
+        Map<String, String> labels = new TreeMap<>();
+        labels.put(SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId());
+        labels.put(SCRAPE_REGION_LABEL, region);
+        labels.put("aws_resource_type", "AWS::Kinesis::Stream");
+        labels.put("namespace", "AWS/Kinesis");
+        labels.put("job", stream);
+        labels.put("name", stream);
+        labels.put("id", stream);
+        return labels;
     }
 }
@@ -148,7 +148,7 @@ public class LBToASGRelationBuilder extends Collector implements InitializingBea
                                 .add(Tag
                                         .builder().key(td.key()).value(td.value()).build()));
 
-                groups.forEach(asg -> resourceMapper.map(asg.autoScalingGroupARN()).ifPresent(asgRes -> {
+                groups.forEach(asg -> resourceMapper.map(accountRegion, asg.autoScalingGroupARN()).ifPresent(asgRes -> {
                     // Only discover Non k8s ASGs. K8S ASGs will be discovered through other means
                     Map<String, String> tagLabels =
                             tagUtil.tagLabels(scrapeConfig, tagLabelsByName.getOrDefault(asg.autoScalingGroupName(),
@@ -171,7 +171,7 @@ public class LBToASGRelationBuilder extends Collector implements InitializingBea
 
                     if (!isEmpty(asg.targetGroupARNs())) {
                         asg.targetGroupARNs().stream()
-                                .map(resourceMapper::map)
+                                .map(arn -> resourceMapper.map(accountRegion, arn))
                                 .filter(Optional::isPresent)
                                 .map(Optional::get)
                                 .filter(tg -> targetGroupLBMapProvider.getTgToLB().containsKey(tg))
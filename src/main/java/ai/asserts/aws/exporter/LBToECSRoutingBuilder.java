@@ -137,12 +137,12 @@ public class LBToECSRoutingBuilder implements Runnable {
                                 .build()));
                 if (response.hasServices()) {
                     response.services().stream()
-                            .filter(service -> resourceMapper.map(service.serviceArn()).isPresent())
+                            .filter(service -> resourceMapper.map(awsAccount, service.serviceArn()).isPresent())
                             .forEach(service -> {
-                                Optional<Resource> servResOpt = resourceMapper.map(service.serviceArn());
+                                Optional<Resource> servResOpt = resourceMapper.map(awsAccount, service.serviceArn());
                                 servResOpt.ifPresent(
                                         servRes -> newRouting.addAll(service.loadBalancers().stream()
-                                                .map(loadBalancer -> resourceMapper.map(
+                                                .map(loadBalancer -> resourceMapper.map(awsAccount,
                                                         loadBalancer.targetGroupArn()))
                                                 .filter(Optional::isPresent).map(Optional::get)
                                                 .map(tg -> targetGroupLBMapProvider.getTgToLB().get(tg))
@@ -97,7 +97,7 @@ public class LBToLambdaRoutingBuilder {
                                             .build()));
                             if (!isEmpty(response.targetHealthDescriptions())) {
                                 response.targetHealthDescriptions().stream()
-                                        .map(tH -> resourceMapper.map(tH.target().id()))
+                                        .map(tH -> resourceMapper.map(accountRegion, tH.target().id()))
                                         .filter(opt -> opt.isPresent() && opt.get().getType().equals(LambdaFunction))
                                         .map(Optional::get)
                                         .forEach(lambda -> routing.add(ResourceRelation.builder()
@@ -14,6 +14,7 @@ import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.account.AccountProvider;
 import ai.asserts.aws.config.NamespaceConfig;
 import ai.asserts.aws.config.ScrapeConfig;
+import ai.asserts.aws.lambda.FunctionRevisionCache;
 import ai.asserts.aws.lambda.LambdaFunction;
 import ai.asserts.aws.lambda.LambdaFunctionScraper;
 import ai.asserts.aws.resource.Resource;
@@ -60,6 +61,8 @@ public class LambdaCapacityExporter extends Collector implements MetricProvider
     private final ResourceTagHelper resourceTagHelper;
     private final AWSApiCallRateLimiter rateLimiter;
     private final TaskExecutorUtil taskExecutorUtil;
+    private final FunctionRevisionCache<GetFunctionConcurrencyResponse> concurrencyCache =
+            new FunctionRevisionCache<>();
     private volatile List<MetricFamilySamples> cache;
 
     public LambdaCapacityExporter(AccountProvider accountProvider,
@@ -178,7 +181,7 @@ public class LambdaCapacityExporter extends Collector implements MetricProvider
                     resourceTagHelper.getFilteredResources(accountRegion, region, lambdaConfig);
             functions.forEach((functionArn, lambdaFunction) -> {
                 String getFunctionConcurrency = "LambdaClient/getFunctionConcurrency";
-                GetFunctionConcurrencyResponse fCResponse =
+                GetFunctionConcurrencyResponse fCResponse = concurrencyCache.get(lambdaFunction, () ->
                         rateLimiter.doWithRateLimit(getFunctionConcurrency,
                                 ImmutableSortedMap.of(
                                         SCRAPE_ACCOUNT_ID_LABEL, account,
@@ -188,7 +191,7 @@ public class LambdaCapacityExporter extends Collector implements MetricProvider
                                 ), () -> lambdaClient.getFunctionConcurrency(
                                         GetFunctionConcurrencyRequest.builder()
                                                 .functionName(lambdaFunction.getArn())
-                                                .build()));
+                                                .build())));
 
                 if (fCResponse.reservedConcurrentExecutions() != null) {
                     Optional<Sample> reserved = sampleBuilder.buildSingleSample(reservedMetric,
@@ -139,7 +139,7 @@ public class LambdaEventSourceExporter extends Collector implements MetricProvid
                 if (response.hasEventSourceMappings()) {
                     byRegion.computeIfAbsent(region, k -> new ArrayList<>())
                             .addAll(response.eventSourceMappings().stream()
-                                    .filter(mapping -> resourceMapper.map(mapping.functionArn())
+                                    .filter(mapping -> resourceMapper.map(accountRegion, mapping.functionArn())
                                             .isPresent())
                                     .collect(Collectors.toList()));
 
@@ -154,10 +154,10 @@ public class LambdaEventSourceExporter extends Collector implements MetricProvid
                         Optional<Resource> fnResource = Optional.ofNullable(fnResources.stream()
                                 .filter(r -> r.getArn().equals(mappingConfiguration.functionArn()))
                                 .findFirst()
-                                .orElse(resourceMapper.map(mappingConfiguration.functionArn())
+                                .orElse(resourceMapper.map(accountRegion, mappingConfiguration.functionArn())
                                         .orElse(null)));
                         Optional<Resource> eventResourceOpt =
-                                resourceMapper.map(mappingConfiguration.eventSourceArn());
+                                resourceMapper.map(accountRegion, mappingConfiguration.eventSourceArn());
                         eventResourceOpt.ifPresent(eventResource ->
                                 fnResource.ifPresent(
                                         fn -> buildSample(region, fn, eventResource, samplesByName))
@@ -14,6 +14,7 @@ import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.account.AccountProvider;
 import ai.asserts.aws.config.NamespaceConfig;
 import ai.asserts.aws.config.ScrapeConfig;
+import ai.asserts.aws.lambda.FunctionRevisionCache;
 import ai.asserts.aws.lambda.LambdaFunction;
 import ai.asserts.aws.lambda.LambdaFunctionScraper;
 import ai.asserts.aws.resource.ResourceMapper;
@@ -56,6 +57,8 @@ public class LambdaInvokeConfigExporter extends Collector implements MetricProvi
     private final MetricSampleBuilder metricSampleBuilder;
     private final AWSApiCallRateLimiter rateLimiter;
     private final TaskExecutorUtil taskExecutorUtil;
+    private final FunctionRevisionCache<ListFunctionEventInvokeConfigsResponse> invokeConfigCache =
+            new FunctionRevisionCache<>();
     private volatile List<MetricFamilySamples> cache;
 
     public LambdaInvokeConfigExporter(
@@ -133,15 +136,16 @@ public class LambdaInvokeConfigExporter extends Collector implements MetricProvi
                                 .functionName(fnConfig.getName())
                                 .build();
                 String listInvokeConfigs = "LambdaClient/listFunctionEventInvokeConfigs";
-                ListFunctionEventInvokeConfigsResponse resp = rateLimiter.doWithRateLimit(
-                        listInvokeConfigs,
-                        ImmutableSortedMap.of(
-                                SCRAPE_ACCOUNT_ID_LABEL, account,
-                                SCRAPE_REGION_LABEL, region,
-                                SCRAPE_OPERATION_LABEL, listInvokeConfigs,
-                                SCRAPE_NAMESPACE_LABEL, "AWS/Lambda"
-                        ),
-                        () -> client.listFunctionEventInvokeConfigs(request));
+                ListFunctionEventInvokeConfigsResponse resp = invokeConfigCache.get(fnConfig, () ->
+                        rateLimiter.doWithRateLimit(
+                                listInvokeConfigs,
+                                ImmutableSortedMap.of(
+                                        SCRAPE_ACCOUNT_ID_LABEL, account,
+                                        SCRAPE_REGION_LABEL, region,
+                                        SCRAPE_OPERATION_LABEL, listInvokeConfigs,
+                                        SCRAPE_NAMESPACE_LABEL, "AWS/Lambda"
+                                ),
+                                () -> client.listFunctionEventInvokeConfigs(request)));
                 if (resp.hasFunctionEventInvokeConfigs() && resp.functionEventInvokeConfigs()
                         .size() > 0) {
                     log.info("Function {} has invoke configs", fnConfig.getName());
@@ -160,7 +164,7 @@ public class LambdaInvokeConfigExporter extends Collector implements MetricProvi
                         if (destConfig.onSuccess() != null && destConfig.onSuccess()
                                 .destination() != null) {
                             String urn = destConfig.onSuccess().destination();
-                            resourceMapper.map(urn).ifPresent(targetResource -> {
+                            resourceMapper.map(accountRegion, urn).ifPresent(targetResource -> {
                                 labels.put("on", "success");
                                 targetResource.addLabels(labels, "destination");
                                 metricSampleBuilder.buildSingleSample(metricName, labels,
@@ -173,7 +177,7 @@ public class LambdaInvokeConfigExporter extends Collector implements MetricProvi
                         if (destConfig.onFailure() != null && destConfig.onFailure()
                                 .destination() != null) {
                             String urn = destConfig.onFailure().destination();
-                            resourceMapper.map(urn).ifPresent(targetResource -> {
+                            resourceMapper.map(accountRegion, urn).ifPresent(targetResource -> {
                                 labels.put("on", "failure");
                                 targetResource.addLabels(labels, "destination");
                                 metricSampleBuilder.buildSingleSample(metricName, labels,
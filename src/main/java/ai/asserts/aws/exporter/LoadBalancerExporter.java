@@ -234,7 +234,7 @@ public class LoadBalancerExporter extends Collector implements MetricProvider {
                 Map<String, List<Tag>> tagsByIdOrName = new TreeMap<>();
 
                 tagsResponse.tagDescriptions()
-                        .forEach(td -> resourceMapper.map(td.resourceArn())
+                        .forEach(td -> resourceMapper.map(awsAccount, td.resourceArn())
                                 .ifPresent(res -> {
                                     List<Tag> tags =
                                             tagsByIdOrName.computeIfAbsent(
@@ -248,7 +248,7 @@ public class LoadBalancerExporter extends Collector implements MetricProvider {
                                 }));
 
                 resp.loadBalancers().stream()
-                        .map(loadBalancer -> resourceMapper.map(
+                        .map(loadBalancer -> resourceMapper.map(awsAccount,
                                 loadBalancer.loadBalancerArn()))
                         .filter(Optional::isPresent)
                         .map(Optional::get)
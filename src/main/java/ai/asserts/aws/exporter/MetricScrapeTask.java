@@ -3,14 +3,20 @@ package ai.asserts.aws.exporter;
 
 import ai.asserts.aws.AWSClientProvider;
 import ai.asserts.aws.AWSApiCallRateLimiter;
+import ai.asserts.aws.AWSApiCostTracker;
+import ai.asserts.aws.Deadline;
+import ai.asserts.aws.Deadline.DeadlineExceededException;
 import ai.asserts.aws.SimpleTenantTask;
 import ai.asserts.aws.TaskExecutorUtil;
+import ai.asserts.aws.TaskPriority;
 import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.cloudwatch.IngestionDelayEstimator;
 import ai.asserts.aws.cloudwatch.TimeWindowBuilder;
 import ai.asserts.aws.cloudwatch.query.MetricQuery;
 import ai.asserts.aws.cloudwatch.query.MetricQueryProvider;
 import ai.asserts.aws.cloudwatch.query.QueryBatcher;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
 import io.prometheus.client.Collector;
@@ -21,22 +27,33 @@ import lombok.Setter;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
 import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
 import software.amazon.awssdk.services.cloudwatch.model.Metric;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.MetricStat;
 
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import static ai.asserts.aws.Deadline.CANCELLED_WORK_METRIC;
+import static ai.asserts.aws.Deadline.PARTIAL_RESULTS_METRIC;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_INTERVAL_LABEL;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
@@ -51,6 +68,10 @@ import static software.amazon.awssdk.services.cloudwatch.model.StatusCode.COMPLE
  *     <li>A maximum of 100800 data points returned in each call</li>
  * </ol>
  * <p>
+ * The namespaces of the task are scraped one at a time through {@link #update(String)}, for the latest interval that
+ * CloudWatch is expected to have published completely, as estimated by the {@link IngestionDelayEstimator}. The
+ * batches are built per namespace, so a task with several namespaces makes more <code>GetMetricData</code> calls than
+ * a single scrape of all its queries would. The number of metrics requested, which is what is billed, is the same.
  */
 @Slf4j
 @Setter
@@ -58,7 +79,22 @@ import static software.amazon.awssdk.services.cloudwatch.model.StatusCode.COMPLE
 @EqualsAndHashCode(callSuper = false,
         of = {"account", "region", "intervalSeconds", "delaySeconds"})
 @ToString(of = {"account", "region", "intervalSeconds", "delaySeconds"})
-public class MetricScrapeTask extends Collector implements MetricProvider {
+public class MetricScrapeTask extends Collector {
+    public static final String GET_METRIC_DATA_OPERATION = "CloudWatchClient/getMetricData";
+    /**
+     * Time allowed for a scrape, including the time spent waiting for a thread and for the rate limiter
+     */
+    private static final int SCRAPE_TIMEOUT_SECONDS = 15;
+    /**
+     * Additional time to wait for a scrape to return what it gathered after its deadline has expired
+     */
+    private static final int SCRAPE_GRACE_MILLIS = 2000;
+    /**
+     * Number of intervals queried up to the end of the exported one. Only the datapoints of the exported interval are
+     * exported, the older ones tell how far behind the published data is when the exported interval is missing
+     */
+    @VisibleForTesting
+    static final int LOOKBACK_INTERVALS = 3;
     @Autowired
     private AWSClientProvider awsClientProvider;
     @Autowired
@@ -75,51 +111,82 @@ public class MetricScrapeTask extends Collector implements MetricProvider {
     private AWSApiCallRateLimiter rateLimiter;
     @Autowired
     private TaskExecutorUtil taskExecutorUtil;
+    @Autowired
+    private AWSApiCostTracker costTracker;
+    @Autowired
+    private BasicMetricCollector metricCollector;
+    @Autowired
+    private IngestionDelayEstimator ingestionDelayEstimator;
 
     private final AWSAccount account;
     private final String region;
     private final int intervalSeconds;
     private final int delaySeconds;
-    private long lastRunTime = -1;
-    private volatile List<MetricFamilySamples> cache;
+    /**
+     * The namespaces that have metrics with the interval of this task
+     */
+    private volatile Set<String> namespaces = Collections.emptySet();
+    private final Map<String, List<MetricFamilySamples>> cacheByNamespace = new ConcurrentHashMap<>();
 
     public MetricScrapeTask(AWSAccount account, String region, int intervalSeconds, int delay) {
         this.account = account;
         this.region = region;
         this.intervalSeconds = intervalSeconds;
         this.delaySeconds = delay;
-        this.cache = new ArrayList<>();
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
-        return cache;
+        List<MetricFamilySamples> all = new ArrayList<>();
+        cacheByNamespace.values().forEach(all::addAll);
+        return all;
     }
 
-    @Override
-    public void update() {
-        if (intervalSeconds <= 60 || System.currentTimeMillis() - lastRunTime > intervalSeconds * 1000L) {
-            lastRunTime = System.currentTimeMillis();
-            try {
-                cache = taskExecutorUtil.executeAccountTask(account,
-                        new SimpleTenantTask<List<MetricFamilySamples>>() {
-                            @Override
-                            public List<MetricFamilySamples> call() {
-                                try {
-                                    return fetchMetricsFromCW();
-                                } catch (Exception e) {
-                                    log.error("Failed to update", e);
-                                }
-                                return Collections.emptyList();
+    public void setNamespaces(Set<String> namespaces) {
+        this.namespaces = namespaces;
+        cacheByNamespace.keySet().retainAll(namespaces);
+    }
+
+    /**
+     * Scrapes the metrics of one namespace
+     */
+    public void update(String namespace) {
+        scrape(namespace).ifPresent(samples -> cacheByNamespace.put(namespace, samples));
+    }
+
+    private Optional<List<MetricFamilySamples>> scrape(String namespace) {
+        Deadline deadline = Deadline.after(SCRAPE_TIMEOUT_SECONDS, TimeUnit.SECONDS).min(Deadline.current());
+        try {
+            // The task returns null when its deadline expired before it could run, or when it was rejected
+            return Optional.ofNullable(taskExecutorUtil.executeAccountTask(account,
+                    new SimpleTenantTask<List<MetricFamilySamples>>() {
+                        @Override
+                        public TaskPriority getPriority() {
+                            return TaskPriority.HIGH;
+                        }
+
+                        @Override
+                        public List<MetricFamilySamples> call() {
+                            try {
+                                return fetchMetricsFromCW(namespace);
+                            } catch (Exception e) {
+                                log.error("Failed to update", e);
                             }
-                        }).get(15, TimeUnit.SECONDS);
-            } catch (InterruptedException | ExecutionException | TimeoutException e) {
-                log.error("Failed to fetch metrics", e);
-            }
+                            return Collections.emptyList();
+                        }
+                    }, deadline).get(deadline.remaining(TimeUnit.MILLISECONDS) + SCRAPE_GRACE_MILLIS,
+                    TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while fetching metrics", e);
+            return Optional.empty();
+        } catch (Exception e) {
+            log.error("Failed to fetch metrics", e);
+            return Optional.empty();
         }
     }
 
-    private List<MetricFamilySamples> fetchMetricsFromCW() {
+    private List<MetricFamilySamples> fetchMetricsFromCW(String namespace) {
         List<MetricFamilySamples> familySamples = new ArrayList<>();
         log.debug("BEGIN Scrape for account={} region={} and interval={}", account, region, intervalSeconds);
         Map<String, Map<Integer, List<MetricQuery>>> byRegion = metricQueryProvider.getMetricQueries()
@@ -135,6 +202,13 @@ public class MetricScrapeTask extends Collector implements MetricProvider {
             log.error("No queries found for region {} and interval {}", region, intervalSeconds);
             return Collections.emptyList();
         }
+        queries = queries.stream()
+                .filter(query -> namespace.equals(query.getMetricConfig().getNamespace().getName()))
+                .collect(Collectors.toList());
+        queries = costTracker.withinBudget(account.getAccountId(), queries);
+        if (queries.isEmpty()) {
+            return Collections.emptyList();
+        }
         boolean s3DailyMetric = queries.stream().anyMatch(this::isS3DailyMetric);
 
         // The result only has the query id. We will need the metric while processing the result
@@ -145,78 +219,241 @@ public class MetricScrapeTask extends Collector implements MetricProvider {
         log.debug("Split metric queries into {} batches", batches.size());
 
         Map<String, List<MetricFamilySamples.Sample>> samplesByMetric = new TreeMap<>();
+        AtomicReference<Instant> newestDataEnd = new AtomicReference<>();
+
+        // For now, S3 is the only one which has some metrics with a period of 1 day.
+        // These metrics should be configured with a different interval
+        Supplier<Instant[]> timePeriodSupplier;
+        Instant[] completedTimePeriod = null;
+        if (s3DailyMetric) {
+            timePeriodSupplier = () -> withDelay(timeWindowBuilder.getDailyMetricTimeWindow(region));
+        } else {
+            // The window already ends the learned delay before now
+            completedTimePeriod = timeWindowBuilder.getCompletedTimePeriod(intervalSeconds,
+                    ingestionDelayEstimator.getDelaySeconds(account.getAccountId(), region, namespace,
+                            delaySeconds));
+            Instant[] timePeriod = new Instant[]{
+                    completedTimePeriod[1].minusSeconds((long) LOOKBACK_INTERVALS * intervalSeconds),
+                    completedTimePeriod[1]};
+            timePeriodSupplier = () -> timePeriod;
+        }
+        // The earlier intervals of the window are only queried to learn the ingestion delay
+        Instant exportFrom = completedTimePeriod != null ? completedTimePeriod[0] : null;
 
         try {
-            CloudWatchClient cloudWatchClient = awsClientProvider.getCloudWatchClient(region, account);
-            batches.forEach(batch -> {
-                String nextToken = null;
-                // For now, S3 is the only one which has some metrics with a period of 1 day.
-                // These metrics should be configured with a different interval
-                Instant[] timePeriod = s3DailyMetric ? timeWindowBuilder.getDailyMetricTimeWindow(region) :
-                        timeWindowBuilder.getTimePeriod(region, intervalSeconds);
-                log.debug("Scraping metrics for time period {} - {}", timePeriod[0], timePeriod[1]);
-                do {
-                    GetMetricDataRequest.Builder requestBuilder = GetMetricDataRequest.builder()
-                            .startTime(timePeriod[0].minusSeconds(delaySeconds))
-                            .endTime(timePeriod[1].minusSeconds(delaySeconds))
-                            .nextToken(nextToken)
-                            .metricDataQueries(batch.stream()
-                                    .map(MetricQuery::getMetricDataQuery)
-                                    .collect(Collectors.toList()));
-
-                    GetMetricDataRequest req = requestBuilder.build();
-                    String operationName = "CloudWatchClient/getMetricData";
-                    GetMetricDataResponse metricData = rateLimiter.doWithRateLimit(
-                            operationName,
-                            ImmutableSortedMap.of(
-                                    SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId(),
-                                    SCRAPE_REGION_LABEL, region,
-                                    SCRAPE_OPERATION_LABEL, operationName,
-                                    SCRAPE_INTERVAL_LABEL, intervalSeconds + ""
-                            ),
-                            () -> cloudWatchClient.getMetricData(req));
-
-                    if (metricData.hasMetricDataResults()) {
-                        metricData.metricDataResults()
-                                .stream().filter(metricDataResult -> !metricDataResult.statusCode().equals(COMPLETE))
-                                .forEach(metricDataResult -> {
-                                    Metric metric = queriesById.get(metricDataResult.id()).getMetric();
-                                    log.error("Metric not available for {}::{}::{}",
-                                            metric.namespace(), metric.metricName(), metric.dimensions().stream()
-                                                    .map(d -> String.format("%s=\"%s\"", d.name(), d.value()))
-                                                    .collect(Collectors.joining(", ")));
-                                });
-                        metricData.metricDataResults()
-                                .stream().filter(metricDataResult -> metricDataResult.statusCode().equals(COMPLETE))
-                                .forEach(metricDataResult -> {
-                                    MetricQuery metricQuery = queriesById.remove(metricDataResult.id());
-                                    List<MetricFamilySamples.Sample> samples = sampleBuilder.buildSamples(
-                                            account.getAccountId(), region, metricQuery, metricDataResult);
-
-                                    samples.forEach(sample ->
-                                            samplesByMetric.computeIfAbsent(sample.name, k -> new ArrayList<>())
-                                                    .add(sample));
-                                });
+            Deadline deadline = Deadline.current();
+            if (awsClientProvider.isAsyncEnabled()) {
+                CloudWatchAsyncClient cloudWatchClient = awsClientProvider.getCloudWatchAsyncClient(region, account);
+                List<CompletableFuture<Void>> fetches = batches.stream()
+                        .map(batch -> fetchBatchAsync(cloudWatchClient, batch, timePeriodSupplier.get(), null,
+                                queriesById, samplesByMetric, newestDataEnd, exportFrom, deadline))
+                        .collect(Collectors.toList());
+                CompletableFuture<?> all = CompletableFuture.allOf(fetches.toArray(new CompletableFuture[0]));
+                if (deadline != null) {
+                    try {
+                        all.get(deadline.remaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        recordPartialResult((int) fetches.stream().filter(fetch -> fetch.cancel(true)).count());
+                    }
+                } else {
+                    all.join();
+                }
+            } else {
+                CloudWatchClient cloudWatchClient = awsClientProvider.getCloudWatchClient(region, account);
+                for (int i = 0; i < batches.size(); i++) {
+                    if (deadline != null && deadline.isExpired()) {
+                        // Export what has been gathered so far instead of nothing
+                        recordPartialResult(batches.size() - i);
+                        break;
+                    }
+                    List<MetricQuery> batch = batches.get(i);
+                    String nextToken = null;
+                    Instant[] timePeriod = timePeriodSupplier.get();
+                    log.debug("Scraping metrics for time period {} - {}", timePeriod[0], timePeriod[1]);
+                    try {
+                        do {
+                            GetMetricDataRequest req = buildRequest(batch, timePeriod, nextToken, deadline);
+                            costTracker.recordMetricsRequested(account.getAccountId(), batch);
+                            GetMetricDataResponse metricData = rateLimiter.doWithRateLimit(
+                                    GET_METRIC_DATA_OPERATION, operationLabels(),
+                                    () -> cloudWatchClient.getMetricData(req));
+                            processResponse(metricData, queriesById, samplesByMetric, newestDataEnd, exportFrom);
+                            nextToken = metricData.nextToken();
+                        } while (nextToken != null);
+                    } catch (RuntimeException e) {
+                        if (deadline == null || !isDeadlineExceeded(e)) {
+                            throw e;
+                        }
+                        // The call, or the wait for its permit, was cut by the deadline
+                        recordPartialResult(batches.size() - i);
+                        break;
                     }
-                    nextToken = metricData.nextToken();
-                } while (nextToken != null);
-            });
+                }
+            }
         } catch (Exception e) {
             log.error("Failed to scrape metrics", e);
         }
+        if (completedTimePeriod != null && newestDataEnd.get() != null) {
+            ingestionDelayEstimator.record(account.getAccountId(), region, namespace, completedTimePeriod[1],
+                    newestDataEnd.get(), Instant.now());
+        }
 
         if (samplesByMetric.size() > 0) {
             log.debug("Got samples for {}", samplesByMetric.keySet());
         } else {
             log.debug("Didn't find any samples for region {} and interval {}", region, intervalSeconds);
         }
-        samplesByMetric.forEach((metricName, samples) ->
-                sampleBuilder.buildFamily(samples).ifPresent(familySamples::add));
+        synchronized (samplesByMetric) {
+            // Responses of the async calls may still arrive after the deadline
+            samplesByMetric.forEach((metricName, samples) ->
+                    sampleBuilder.buildFamily(samples).ifPresent(familySamples::add));
+        }
 
         log.debug("END Scrape for region {} and interval {}", region, intervalSeconds);
         return familySamples;
     }
 
+    /**
+     * Fetches all the pages of a batch as a chain of futures on the async client, so that the batches of a scrape
+     * are in flight concurrently without holding a thread each.
+     */
+    private CompletableFuture<Void> fetchBatchAsync(CloudWatchAsyncClient cloudWatchClient, List<MetricQuery> batch,
+                                                    Instant[] timePeriod, String nextToken,
+                                                    Map<String, MetricQuery> queriesById,
+                                                    Map<String, List<MetricFamilySamples.Sample>> samplesByMetric,
+                                                    AtomicReference<Instant> newestDataEnd, Instant exportFrom,
+                                                    Deadline deadline) {
+        GetMetricDataRequest req = buildRequest(batch, timePeriod, nextToken, deadline);
+        costTracker.recordMetricsRequested(account.getAccountId(), batch);
+        return rateLimiter.doWithRateLimitAsync(GET_METRIC_DATA_OPERATION, operationLabels(),
+                        () -> cloudWatchClient.getMetricData(req))
+                .thenCompose(metricData -> {
+                    processResponse(metricData, queriesById, samplesByMetric, newestDataEnd, exportFrom);
+                    if (metricData.nextToken() != null && (deadline == null || !deadline.isExpired())) {
+                        return fetchBatchAsync(cloudWatchClient, batch, timePeriod, metricData.nextToken(),
+                                queriesById, samplesByMetric, newestDataEnd, exportFrom, deadline);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    private GetMetricDataRequest buildRequest(List<MetricQuery> batch, Instant[] timePeriod, String nextToken,
+                                              Deadline deadline) {
+        GetMetricDataRequest.Builder builder = GetMetricDataRequest.builder()
+                .startTime(timePeriod[0])
+                .endTime(timePeriod[1])
+                .nextToken(nextToken)
+                .metricDataQueries(batch.stream()
+                        .map(MetricQuery::getMetricDataQuery)
+                        .collect(Collectors.toList()));
+        if (deadline != null) {
+            builder.overrideConfiguration(deadline.apiCallTimeout());
+        }
+        return builder.build();
+    }
+
+    private Instant[] withDelay(Instant[] timePeriod) {
+        return new Instant[]{timePeriod[0].minusSeconds(delaySeconds), timePeriod[1].minusSeconds(delaySeconds)};
+    }
+
+    private boolean isDeadlineExceeded(Throwable e) {
+        return Throwables.getCausalChain(e).stream().anyMatch(cause ->
+                cause instanceof ApiCallTimeoutException || cause instanceof DeadlineExceededException);
+    }
+
+    private void recordPartialResult(int cancelledBatches) {
+        log.warn("Deadline expired for scrape of account {}, region {} and interval {}. Exporting partial results",
+                account.getAccountId(), region, intervalSeconds);
+        metricCollector.recordCounterValue(PARTIAL_RESULTS_METRIC, operationLabels(), 1);
+        metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, operationLabels(), cancelledBatches);
+    }
+
+    private ImmutableSortedMap<String, String> operationLabels() {
+        return ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId(),
+                SCRAPE_REGION_LABEL, region,
+                SCRAPE_OPERATION_LABEL, GET_METRIC_DATA_OPERATION,
+                SCRAPE_INTERVAL_LABEL, intervalSeconds + ""
+        );
+    }
+
+    /**
+     * @param exportFrom The datapoints before this time were only queried to learn the ingestion delay and are not
+     *                   exported. <code>null</code> to export all the datapoints
+     */
+    private void processResponse(GetMetricDataResponse metricData, Map<String, MetricQuery> queriesById,
+                                 Map<String, List<MetricFamilySamples.Sample>> samplesByMetric,
+                                 AtomicReference<Instant> newestDataEnd, Instant exportFrom) {
+        if (!metricData.hasMetricDataResults()) {
+            return;
+        }
+        // Responses of different batches may be processed concurrently when using the async client
+        synchronized (samplesByMetric) {
+            metricData.metricDataResults()
+                    .stream().filter(metricDataResult -> !metricDataResult.statusCode().equals(COMPLETE))
+                    .forEach(metricDataResult -> {
+                        Metric metric = queriesById.get(metricDataResult.id()).getMetric();
+                        log.error("Metric not available for {}::{}::{}",
+                                metric.namespace(), metric.metricName(), metric.dimensions().stream()
+                                        .map(d -> String.format("%s=\"%s\"", d.name(), d.value()))
+                                        .collect(Collectors.joining(", ")));
+                    });
+            metricData.metricDataResults()
+                    .stream().filter(metricDataResult -> metricDataResult.statusCode().equals(COMPLETE))
+                    .forEach(metricDataResult -> {
+                        MetricQuery metricQuery = queriesById.remove(metricDataResult.id());
+                        recordNewestData(metricQuery, metricDataResult, newestDataEnd);
+                        MetricDataResult exported = since(metricDataResult, exportFrom);
+                        if (!exported.hasTimestamps() || exported.timestamps().isEmpty()) {
+                            return;
+                        }
+                        List<MetricFamilySamples.Sample> samples = sampleBuilder.buildSamples(
+                                account.getAccountId(), region, metricQuery, exported);
+
+                        samples.forEach(sample ->
+                                samplesByMetric.computeIfAbsent(sample.name, k -> new ArrayList<>())
+                                        .add(sample));
+                    });
+        }
+    }
+
+    private MetricDataResult since(MetricDataResult metricDataResult, Instant exportFrom) {
+        if (exportFrom == null || !metricDataResult.hasTimestamps()) {
+            return metricDataResult;
+        }
+        List<Instant> timestamps = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < metricDataResult.timestamps().size(); i++) {
+            if (!metricDataResult.timestamps().get(i).isBefore(exportFrom)) {
+                timestamps.add(metricDataResult.timestamps().get(i));
+                values.add(metricDataResult.values().get(i));
+            }
+        }
+        if (timestamps.size() == metricDataResult.timestamps().size()) {
+            return metricDataResult;
+        }
+        return metricDataResult.toBuilder()
+                .timestamps(timestamps)
+                .values(values)
+                .build();
+    }
+
+    /**
+     * Keeps track of the end of the period of the newest datapoint returned, to learn the ingestion delay from
+     */
+    private void recordNewestData(MetricQuery metricQuery, MetricDataResult metricDataResult,
+                                  AtomicReference<Instant> newestDataEnd) {
+        MetricStat metricStat = metricQuery.getMetricDataQuery().metricStat();
+        if (metricStat == null || metricStat.period() == null || !metricDataResult.hasTimestamps()) {
+            return;
+        }
+        metricDataResult.timestamps().stream()
+                .max(Instant::compareTo)
+                .map(timestamp -> timestamp.plusSeconds(metricStat.period()))
+                .ifPresent(end -> newestDataEnd.accumulateAndGet(end,
+                        (current, update) -> current == null || update.isAfter(current) ? update : current));
+    }
+
     @VisibleForTesting
     boolean isS3DailyMetric(MetricQuery metricQuery) {
         String metricName = metricQuery.getMetric().metricName();
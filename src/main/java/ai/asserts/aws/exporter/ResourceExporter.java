@@ -0,0 +1,330 @@
+/*
+ *  Copyright © 2022.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.exporter;
+
+import ai.asserts.aws.AWSApiCallRateLimiter;
+import ai.asserts.aws.AWSApiCallRateLimiter.AWSAPICall;
+import ai.asserts.aws.AWSClientProvider;
+import ai.asserts.aws.CollectionBuilderTask;
+import ai.asserts.aws.Deadline;
+import ai.asserts.aws.Deadline.DeadlineExceededException;
+import ai.asserts.aws.ScrapeConfigProvider;
+import ai.asserts.aws.TagUtil;
+import ai.asserts.aws.TaskExecutorUtil;
+import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.account.AccountProvider;
+import ai.asserts.aws.config.ScrapeConfig;
+import ai.asserts.aws.resource.ResourceTagHelper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.Futures;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+
+/**
+ * Exports the resources of a service as <code>aws_resource</code> samples. An exporter only declares how the
+ * resources of a region are listed and labelled. The regions are listed in parallel as account tasks, the pages of a
+ * list call are followed with a {@link Paginator}, the calls go through the rate limiter and the tags are joined from
+ * the resource inventory.
+ * <p>
+ * The samples of a region are diffed against those of the previous update. The sample of a resource whose labels
+ * didn't change is reused, and a region that can't be listed, or isn't listed by the deadline of the update, keeps
+ * the samples of the previous update, so that a transient error doesn't make its resources disappear.
+ * <p>
+ * Some APIs, like <code>S3 ListBuckets</code>, aren't regional and return the same resources in every region. Such a
+ * call is made through {@link #callOnce}, which runs it once per account in an update, and the regions share the
+ * result. The regions of an update share the deadline of {@link TaskExecutorUtil#awaitAll}, so that a region waiting
+ * for such a call gives up when the update does.
+ *
+ * @param <T> The type of the listed resources
+ */
+@Slf4j
+public abstract class ResourceExporter<T> extends Collector implements InitializingBean {
+    public static final String RESOURCE_METRIC = "aws_resource";
+    protected final AccountProvider accountProvider;
+    protected final AWSClientProvider awsClientProvider;
+    public final CollectorRegistry collectorRegistry;
+    protected final AWSApiCallRateLimiter rateLimiter;
+    protected final MetricSampleBuilder sampleBuilder;
+    private final ResourceTagHelper resourceTagHelper;
+    private final TagUtil tagUtil;
+    protected final TaskExecutorUtil taskExecutorUtil;
+    private final ScrapeConfigProvider scrapeConfigProvider;
+    private final String description;
+    private final Map<String, Map<String, ResourceSample>> samplesByRegion = new ConcurrentHashMap<>();
+    private final Map<String, FutureTask<?>> accountCalls = new ConcurrentHashMap<>();
+    private volatile List<MetricFamilySamples> metricFamilySamples = new ArrayList<>();
+
+    /**
+     * @param description What is exported, like <code>SQS Queue Resources</code>, for the logs
+     */
+    protected ResourceExporter(String description, AccountProvider accountProvider,
+                               AWSClientProvider awsClientProvider, CollectorRegistry collectorRegistry,
+                               AWSApiCallRateLimiter rateLimiter, MetricSampleBuilder sampleBuilder,
+                               ResourceTagHelper resourceTagHelper, TagUtil tagUtil,
+                               TaskExecutorUtil taskExecutorUtil, ScrapeConfigProvider scrapeConfigProvider) {
+        this.description = description;
+        this.accountProvider = accountProvider;
+        this.awsClientProvider = awsClientProvider;
+        this.collectorRegistry = collectorRegistry;
+        this.rateLimiter = rateLimiter;
+        this.sampleBuilder = sampleBuilder;
+        this.resourceTagHelper = resourceTagHelper;
+        this.tagUtil = tagUtil;
+        this.taskExecutorUtil = taskExecutorUtil;
+        this.scrapeConfigProvider = scrapeConfigProvider;
+    }
+
+    /**
+     * @return All the resources of the region
+     */
+    protected abstract List<T> listResources(AWSAccount account, String region);
+
+    /**
+     * @return The name of the resource, by which its tags are looked up
+     */
+    protected abstract String getName(T resource);
+
+    /**
+     * @return The labels of the sample of the resource, without the tags
+     */
+    protected abstract Map<String, String> buildLabels(AWSAccount account, String region, T resource);
+
+    /**
+     * @return The type of the resource in the resource inventory, like <code>sqs:queue</code>, or <code>null</code>
+     * if the resources aren't tagged
+     */
+    protected String getTagResourceType(T resource) {
+        return null;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        register(collectorRegistry);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        return metricFamilySamples;
+    }
+
+    public void update() {
+        log.info("Exporting {}", description);
+        accountCalls.clear();
+        Map<String, Future<List<Sample>>> futures = new LinkedHashMap<>();
+        Deadline deadline = taskExecutorUtil.awaitDeadline();
+        accountProvider.getAccounts().forEach(account -> account.getRegions().forEach(region ->
+                futures.put(regionKey(account, region), taskExecutorUtil.executeAccountTask(account,
+                        new CollectionBuilderTask<Sample>() {
+                            @Override
+                            public List<Sample> call() {
+                                return buildSamples(account, region);
+                            }
+
+                            @Override
+                            public List<Sample> getReturnValueWhenError() {
+                                // Not an empty list, so that the region keeps its previous samples
+                                return null;
+                            }
+                        }, deadline))));
+        taskExecutorUtil.awaitAll(new ArrayList<>(futures.values()), samples -> {
+        });
+        List<Sample> allSamples = new ArrayList<>();
+        futures.forEach((regionKey, future) -> allSamples.addAll(getSamples(regionKey, future)));
+        samplesByRegion.keySet().retainAll(futures.keySet());
+        List<MetricFamilySamples> newFamily = new ArrayList<>();
+        sampleBuilder.buildFamily(allSamples).ifPresent(newFamily::add);
+        metricFamilySamples = newFamily;
+    }
+
+    @VisibleForTesting
+    List<Sample> buildSamples(AWSAccount account, String region) {
+        String regionKey = regionKey(account, region);
+        Map<String, ResourceSample> previous = samplesByRegion.getOrDefault(regionKey, Collections.emptyMap());
+        List<T> resources;
+        try {
+            resources = listResources(account, region);
+        } catch (Exception e) {
+            log.error("Failed to export " + description + " of " + account + " in " + region, e);
+            return getSamples(previous);
+        }
+
+        Map<String, Map<String, String>> tagLabels = getTagLabels(account, region, resources);
+        Map<String, ResourceSample> current = new LinkedHashMap<>();
+        for (T resource : resources) {
+            String key = resourceKey(resource);
+            Map<String, String> labels = buildLabels(account, region, resource);
+            labels.putAll(tagLabels.getOrDefault(key, Collections.emptyMap()));
+            ResourceSample resourceSample = previous.get(key);
+            if (resourceSample != null && resourceSample.getLabels().equals(labels)) {
+                current.put(key, resourceSample);
+            } else {
+                sampleBuilder.buildSingleSample(RESOURCE_METRIC, labels, 1.0D)
+                        .ifPresent(sample -> current.put(key, new ResourceSample(labels, sample)));
+            }
+        }
+        if (log.isDebugEnabled()) {
+            long added = current.keySet().stream().filter(key -> !previous.containsKey(key)).count();
+            long removed = previous.keySet().stream().filter(key -> !current.containsKey(key)).count();
+            log.debug("{} of {} in {}: {} added, {} removed", description, account.getAccountId(), region,
+                    added, removed);
+        }
+        samplesByRegion.put(regionKey, current);
+        return getSamples(current);
+    }
+
+    /**
+     * Makes a call through the rate limiter
+     */
+    protected <V> V call(String api, AWSAccount account, String region, AWSAPICall<V> call) {
+        return rateLimiter.doWithRateLimit(api, ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId(),
+                SCRAPE_REGION_LABEL, region,
+                SCRAPE_OPERATION_LABEL, api
+        ), call);
+    }
+
+    /**
+     * Runs a call of account scoped APIs once per account in an update. The regions of the account that make the
+     * same call wait for the first one, up to the {@link Deadline#current()} deadline, and share its result or its
+     * error. The API calls made by the call are still expected to go through {@link #call}.
+     *
+     * @param key Identifies the call within the account, like the name of the API
+     */
+    @SuppressWarnings("unchecked")
+    protected <V> V callOnce(String key, AWSAccount account, Supplier<V> call) {
+        String accountKey = account.getTenant() + "/" + account.getAccountId() + "/" + key;
+        FutureTask<V> task = new FutureTask<>(call::get);
+        FutureTask<V> existing = (FutureTask<V>) accountCalls.putIfAbsent(accountKey, task);
+        if (existing == null) {
+            existing = task;
+            task.run();
+        }
+        Deadline deadline = Deadline.current();
+        try {
+            if (deadline == null) {
+                return existing.get();
+            }
+            return existing.get(deadline.remaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("Deadline expired waiting for " + accountKey);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Follows the pages of a list call through the rate limiter, until there is no next token or the same token is
+     * returned again.
+     *
+     * @param page      Builds the call for a page given the token of the previous page, <code>null</code> for the
+     *                  first page
+     * @param items     Gets the resources of a page
+     * @param nextToken Gets the token of the next page
+     */
+    protected <P, R> List<R> listPages(String api, AWSAccount account, String region,
+                                       Function<String, AWSAPICall<P>> page,
+                                       Function<P, List<R>> items, Function<P, String> nextToken) {
+        List<R> all = new ArrayList<>();
+        Paginator paginator = new Paginator();
+        do {
+            P response = call(api, account, region, page.apply(paginator.getNextToken()));
+            all.addAll(items.apply(response));
+            paginator.nextToken(nextToken.apply(response));
+        } while (paginator.hasNext());
+        return all;
+    }
+
+    /**
+     * @return The tag labels of the resources by their key, with a lookup in the resource inventory per type
+     */
+    private Map<String, Map<String, String>> getTagLabels(AWSAccount account, String region, List<T> resources) {
+        Map<String, List<String>> namesByType = new LinkedHashMap<>();
+        resources.forEach(resource -> {
+            String type = getTagResourceType(resource);
+            if (type != null) {
+                namesByType.computeIfAbsent(type, k -> new ArrayList<>()).add(getName(resource));
+            }
+        });
+        if (namesByType.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        ScrapeConfig scrapeConfig = scrapeConfigProvider.getScrapeConfig(account.getTenant());
+        Map<String, Map<String, String>> tagLabels = new HashMap<>();
+        namesByType.forEach((type, names) ->
+                resourceTagHelper.getResourcesWithTag(account, region, type, names).forEach((name, resource) ->
+                        tagLabels.put(type + "/" + name, tagUtil.tagLabels(scrapeConfig, resource.getTags()))));
+        return tagLabels;
+    }
+
+    private String resourceKey(T resource) {
+        return getTagResourceType(resource) + "/" + getName(resource);
+    }
+
+    private String regionKey(AWSAccount account, String region) {
+        return account.getTenant() + "/" + account.getAccountId() + "/" + region;
+    }
+
+    /**
+     * @return The samples built by the task of the region, or the samples of the previous update if the task failed,
+     * didn't run before the deadline or was cancelled at the deadline, like when the region can't be listed
+     */
+    private List<Sample> getSamples(String regionKey, Future<List<Sample>> future) {
+        List<Sample> samples = null;
+        if (future.isDone() && !future.isCancelled()) {
+            try {
+                samples = Futures.getDone(future);
+            } catch (ExecutionException e) {
+                log.error("Failed to export " + description + " of " + regionKey, e.getCause());
+            }
+        }
+        if (samples == null) {
+            log.warn("{} of {} not exported by the deadline, keeping the previous samples", description, regionKey);
+            return getSamples(samplesByRegion.getOrDefault(regionKey, Collections.emptyMap()));
+        }
+        return samples;
+    }
+
+    private List<Sample> getSamples(Map<String, ResourceSample> resourceSamples) {
+        return resourceSamples.values().stream()
+                .map(ResourceSample::getSample)
+                .collect(Collectors.toList());
+    }
+
+    @Value
+    private static class ResourceSample {
+        Map<String, String> labels;
+        Sample sample;
+    }
+}
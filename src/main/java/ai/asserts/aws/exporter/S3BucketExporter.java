@@ -5,136 +5,153 @@
 package ai.asserts.aws.exporter;
 
 import ai.asserts.aws.AWSClientProvider;
-import ai.asserts.aws.CollectionBuilderTask;
 import ai.asserts.aws.AWSApiCallRateLimiter;
 import ai.asserts.aws.ScrapeConfigProvider;
+import ai.asserts.aws.SimpleTenantTask;
 import ai.asserts.aws.TagUtil;
 import ai.asserts.aws.TaskExecutorUtil;
 import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.account.AccountProvider;
-import ai.asserts.aws.config.ScrapeConfig;
-import ai.asserts.aws.resource.Resource;
 import ai.asserts.aws.resource.ResourceTagHelper;
-import com.google.common.collect.ImmutableSortedMap;
-import io.prometheus.client.Collector;
-import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
 import io.prometheus.client.CollectorRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.Bucket;
+import software.amazon.awssdk.services.s3.model.GetBucketLocationRequest;
 import software.amazon.awssdk.services.s3.model.ListBucketsResponse;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
 
+/**
+ * Exports the S3 buckets. <code>ListBuckets</code> isn't regional, it returns all the buckets of the account, so it
+ * is called once per account in an update and each bucket is exported in the region where it is located. The
+ * location of a bucket doesn't change, so it is only looked up once, and the locations of new buckets are looked up
+ * in parallel.
+ */
 @Component
 @Slf4j
-public class S3BucketExporter extends Collector implements InitializingBean {
-    public final CollectorRegistry collectorRegistry;
-    private final AccountProvider accountProvider;
-    private final AWSClientProvider awsClientProvider;
-    private final AWSApiCallRateLimiter rateLimiter;
-    private final MetricSampleBuilder sampleBuilder;
-    private final ResourceTagHelper resourceTagHelper;
-    private final TagUtil tagUtil;
-    private final TaskExecutorUtil taskExecutorUtil;
-    private final ScrapeConfigProvider scrapeConfigProvider;
-    private volatile List<MetricFamilySamples> metricFamilySamples = new ArrayList<>();
+public class S3BucketExporter extends ResourceExporter<Bucket> {
+    private static final String LIST_BUCKETS = "S3Client/listBuckets";
+    private final Map<String, String> bucketRegions = new ConcurrentHashMap<>();
 
     public S3BucketExporter(
             AccountProvider accountProvider, AWSClientProvider awsClientProvider, CollectorRegistry collectorRegistry,
             AWSApiCallRateLimiter rateLimiter, MetricSampleBuilder sampleBuilder, ResourceTagHelper resourceTagHelper,
             TagUtil tagUtil, TaskExecutorUtil taskExecutorUtil, ScrapeConfigProvider scrapeConfigProvider) {
-        this.accountProvider = accountProvider;
-        this.awsClientProvider = awsClientProvider;
-        this.collectorRegistry = collectorRegistry;
-        this.rateLimiter = rateLimiter;
-        this.sampleBuilder = sampleBuilder;
-        this.resourceTagHelper = resourceTagHelper;
-        this.tagUtil = tagUtil;
-        this.taskExecutorUtil = taskExecutorUtil;
-        this.scrapeConfigProvider = scrapeConfigProvider;
+        super("S3 Bucket Resources", accountProvider, awsClientProvider, collectorRegistry, rateLimiter,
+                sampleBuilder, resourceTagHelper, tagUtil, taskExecutorUtil, scrapeConfigProvider);
     }
 
     @Override
-    public void afterPropertiesSet() throws Exception {
-        register(collectorRegistry);
+    protected List<Bucket> listResources(AWSAccount account, String region) {
+        return callOnce(LIST_BUCKETS, account, () -> listBucketsByRegion(account, region))
+                .getOrDefault(region, Collections.emptyList());
+    }
+
+    /**
+     * @param region The region of the client, any region of the account can list the buckets
+     * @return The buckets of the account by the region where they are located
+     */
+    @VisibleForTesting
+    Map<String, List<Bucket>> listBucketsByRegion(AWSAccount account, String region) {
+        S3Client client = awsClientProvider.getS3Client(region, account);
+        ListBucketsResponse resp = call(LIST_BUCKETS, account, region, client::listBuckets);
+        String accountKey = account.getTenant() + "/" + account.getAccountId() + "/";
+        Set<String> listed = new HashSet<>();
+        List<Future<String>> lookups = new ArrayList<>();
+        resp.buckets().forEach(bucket -> {
+            String key = accountKey + bucket.name();
+            listed.add(key);
+            if (!bucketRegions.containsKey(key)) {
+                lookups.add(taskExecutorUtil.executeAccountTask(account, new SimpleTenantTask<String>() {
+                    @Override
+                    public String call() {
+                        try {
+                            String bucketRegion = getBucketRegion(client, account, region, bucket.name());
+                            bucketRegions.put(key, bucketRegion);
+                            return bucketRegion;
+                        } catch (Exception e) {
+                            log.error("Failed to get the location of S3 bucket " + bucket.name() + " of " + account,
+                                    e);
+                            return null;
+                        }
+                    }
+                }));
+            }
+        });
+        // The locations are looked up in parallel, as many at a time as the tasks of the account can run, and the
+        // buckets whose location isn't known by the deadline are left out of this update
+        taskExecutorUtil.awaitAll(lookups, bucketRegion -> {
+        });
+        Map<String, List<Bucket>> byRegion = new HashMap<>();
+        resp.buckets().forEach(bucket -> {
+            String bucketRegion = bucketRegions.get(accountKey + bucket.name());
+            if (bucketRegion != null) {
+                byRegion.computeIfAbsent(bucketRegion, k -> new ArrayList<>()).add(bucket);
+            }
+        });
+        // Forget the locations of the deleted buckets, a bucket of the same name can be created in another region
+        bucketRegions.keySet().removeIf(key -> key.startsWith(accountKey) && !listed.contains(key));
+        if (log.isDebugEnabled()) {
+            log.debug("S3 buckets of {} by region: {}", account.getAccountId(), byRegion.entrySet().stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().size())));
+        }
+        return byRegion;
+    }
+
+    /**
+     * The location constraint is empty for the buckets in <code>us-east-1</code>, and is <code>EU</code> for the
+     * older buckets in <code>eu-west-1</code>
+     */
+    private String getBucketRegion(S3Client client, AWSAccount account, String region, String bucket) {
+        String location = call("S3Client/getBucketLocation", account, region, () -> client.getBucketLocation(
+                GetBucketLocationRequest.builder()
+                        .bucket(bucket)
+                        .build())).locationConstraintAsString();
+        if (Strings.isNullOrEmpty(location)) {
+            return "us-east-1";
+        } else if ("EU".equals(location)) {
+            return "eu-west-1";
+        }
+        return location;
     }
 
     @Override
-    public List<MetricFamilySamples> collect() {
-        return metricFamilySamples;
+    protected String getTagResourceType(Bucket bucket) {
+        return "s3:bucket";
     }
 
-    public void update() {
-        log.info("Exporting S3 Bucket Resources");
-        List<MetricFamilySamples> newFamily = new ArrayList<>();
-        List<Sample> allSamples = new ArrayList<>();
-        List<Future<List<Sample>>> futures = new ArrayList<>();
-        accountProvider.getAccounts().forEach(account -> account.getRegions().forEach(region ->
-                futures.add(
-                        taskExecutorUtil.executeAccountTask(account, new CollectionBuilderTask<Sample>() {
-                            @Override
-                            public List<Sample> call() {
-                                return buildSamples(region, account);
-                            }
-                        }))));
-        taskExecutorUtil.awaitAll(futures, allSamples::addAll);
-        sampleBuilder.buildFamily(allSamples).ifPresent(newFamily::add);
-        metricFamilySamples = newFamily;
+    @Override
+    protected String getName(Bucket bucket) {
+        return bucket.name();
     }
 
-    private List<Sample> buildSamples(String region, AWSAccount account) {
-        ScrapeConfig scrapeConfig = scrapeConfigProvider.getScrapeConfig(account.getTenant());
-        List<Sample> samples = new ArrayList<>();
-        try {
-            S3Client client = awsClientProvider.getS3Client(region, account);
-            String api = "S3Client/listBuckets";
-            ListBucketsResponse resp = rateLimiter.doWithRateLimit(
-                    api, ImmutableSortedMap.of(
-                            SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId(),
-                            SCRAPE_REGION_LABEL, region,
-                            SCRAPE_OPERATION_LABEL, api
-                    ), client::listBuckets);
-            if (resp.hasBuckets()) {
-                Map<String, Resource> byName =
-                        resourceTagHelper.getResourcesWithTag(account, region, "s3:bucket",
-                                resp.buckets().stream().map(Bucket::name).collect(Collectors.toList()));
-                List<Sample> regionSamples = resp.buckets().stream()
-                        .map(bucket -> {
-                            Map<String, String> labels = new TreeMap<>();
-                            labels.put(SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId());
-                            labels.put(SCRAPE_REGION_LABEL, region);
-                            labels.put("aws_resource_type", "AWS::S3::Bucket");
-                            labels.put("job", bucket.name());
-                            labels.put("name", bucket.name());
-                            labels.put("id", bucket.name());
-                            labels.put("namespace", "AWS/S3");
-                            if (byName.containsKey(bucket.name())) {
-                                labels.putAll(tagUtil.tagLabels(
-                                        scrapeConfig, byName.get(bucket.name()).getTags()));
-                            }
-                            return sampleBuilder.buildSingleSample("aws_resource", labels, 1.0D);
-                        })
-                        .filter(Optional::isPresent)
-                        .map(Optional::get)
-                        .collect(Collectors.toList());
-                samples.addAll(regionSamples);
-            }
-        } catch (Throwable e) {
-            log.error("Error " + account, e);
-        }
-        return samples;
+    @Override
+    protected Map<String, String> buildLabels(AWSAccount account, String region, Bucket bucket) {
+        Map<String, String> labels = new TreeMap<>();
+        labels.put(SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId());
+        labels.put(SCRAPE_REGION_LABEL, region);
+        labels.put("aws_resource_type", "AWS::S3::Bucket");
+        labels.put("job", bucket.name());
+        labels.put("name", bucket.name());
+        labels.put("id", bucket.name());
+        labels.put("namespace", "AWS/S3");
+        return labels;
     }
 }
@@ -19,35 +19,33 @@ import com.google.common.collect.ImmutableSortedMap;
 import io.prometheus.client.Collector;
 import io.prometheus.client.Collector.MetricFamilySamples.Sample;
 import io.prometheus.client.CollectorRegistry;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.elasticloadbalancingv2.ElasticLoadBalancingV2Client;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeListenersRequest;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeListenersResponse;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeLoadBalancersResponse;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeRulesRequest;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeRulesResponse;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeTargetGroupsRequest;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeTargetGroupsResponse;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeTargetHealthRequest;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeTargetHealthResponse;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.Listener;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.LoadBalancer;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.TargetDescription;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.TargetGroup;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
@@ -59,6 +57,17 @@ import static software.amazon.awssdk.services.elasticloadbalancingv2.model.Targe
 import static software.amazon.awssdk.services.elasticloadbalancingv2.model.TargetTypeEnum.INSTANCE;
 import static software.amazon.awssdk.services.elasticloadbalancingv2.model.TargetTypeEnum.IP;
 
+/**
+ * Maps the target groups to the load balancers that route to them, and exports the EC2 instances and IPs that are
+ * registered directly into the target groups.
+ * <p>
+ * A target group lists the load balancers that route to it, so the routing of a region is read with a paginated
+ * <code>DescribeTargetGroups</code> call, a page holds 400 target groups, instead of walking the listeners and rules
+ * of every load balancer. The target health is fetched every cycle, once per target group, in parallel.
+ * <p>
+ * The routing is published as an immutable map that is replaced as a whole, so that it can be read without locks. A
+ * region whose routing can't be read keeps the routing of the previous cycle.
+ */
 @Component
 @Slf4j
 public class TargetGroupLBMapProvider extends Collector implements InitializingBean {
@@ -71,10 +80,12 @@ public class TargetGroupLBMapProvider extends Collector implements InitializingB
     private final CollectorRegistry collectorRegistry;
     private final TaskExecutorUtil taskExecutorUtil;
     @Getter
-    private final Map<Resource, Resource> tgToLB = new ConcurrentHashMap<>();
+    private volatile Map<Resource, Resource> tgToLB = ImmutableMap.of();
 
     private final Map<Resource, Resource> missingTgMap = new ConcurrentHashMap<>();
 
+    private final Map<String, List<TargetGroupRoute>> routesByRegion = new ConcurrentHashMap<>();
+
     @Getter
     private volatile MetricFamilySamples metricFamilySamples = null;
 
@@ -106,170 +117,187 @@ public class TargetGroupLBMapProvider extends Collector implements InitializingB
 
     public void update() {
         log.info("Updating TargetGroup to LoadBalancer map");
-        List<Sample> newSamples = new ArrayList<>();
-        List<Future<List<Sample>>> futures = new ArrayList<>();
+        Set<String> regionKeys = new HashSet<>();
+        List<Future<List<TargetGroupRoute>>> futures = new ArrayList<>();
         for (AWSAccount accountRegion : accountProvider.getAccounts()) {
-            accountRegion.getRegions()
-                    .forEach(region -> futures.add(taskExecutorUtil.executeAccountTask(accountRegion,
-                            new CollectionBuilderTask<Sample>() {
-                                @Override
-                                public List<Sample> call() {
-                                    return buildSamples(region, accountRegion);
-                                }
-                            })));
+            accountRegion.getRegions().forEach(region -> {
+                regionKeys.add(regionKey(accountRegion, region));
+                futures.add(taskExecutorUtil.executeAccountTask(accountRegion,
+                        new CollectionBuilderTask<TargetGroupRoute>() {
+                            @Override
+                            public List<TargetGroupRoute> call() {
+                                return refreshRoutes(accountRegion, region);
+                            }
+                        }));
+            });
         }
-        taskExecutorUtil.awaitAll(futures, newSamples::addAll);
+        List<TargetGroupRoute> routes = new ArrayList<>();
+        taskExecutorUtil.awaitAll(futures, routes::addAll);
+        routesByRegion.keySet().retainAll(regionKeys);
+        publishRoutes();
+
+        List<Future<List<Sample>>> sampleFutures = new ArrayList<>();
+        routes.stream()
+                .filter(TargetGroupRoute::isDirectTargets)
+                .forEach(route -> sampleFutures.add(taskExecutorUtil.executeAccountTask(route.getAccount(),
+                        new CollectionBuilderTask<Sample>() {
+                            @Override
+                            public List<Sample> call() {
+                                return buildSamples(route);
+                            }
+                        })));
+        List<Sample> newSamples = new ArrayList<>();
+        taskExecutorUtil.awaitAll(sampleFutures, newSamples::addAll);
         sampleBuilder.buildFamily(newSamples).ifPresent(familySamples -> metricFamilySamples = familySamples);
     }
 
-    private List<Sample> buildSamples(String region, AWSAccount accountRegion) {
-        List<Sample> newSamples = new ArrayList<>();
+    public synchronized void handleMissingTgs(Set<Resource> missingTgs) {
+        missingTgs.forEach(tg -> missingTgMap.put(tg, tg));
+        publishRoutes();
+    }
+
+    @VisibleForTesting
+    public Map<Resource, Resource> getMissingTgMap() {
+        return missingTgMap;
+    }
+
+    private List<TargetGroupRoute> refreshRoutes(AWSAccount account, String region) {
+        String key = regionKey(account, region);
         try {
-            ElasticLoadBalancingV2Client lbClient = awsClientProvider.getELBV2Client(region, accountRegion);
-            String api = "ElasticLoadBalancingV2Client/describeLoadBalancers";
-            ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of(
-                    SCRAPE_ACCOUNT_ID_LABEL, accountRegion.getAccountId(),
-                    SCRAPE_REGION_LABEL, region, SCRAPE_OPERATION_LABEL, api);
-            DescribeLoadBalancersResponse resp = rateLimiter.doWithRateLimit(api, labels,
-                    lbClient::describeLoadBalancers);
-            if (resp.hasLoadBalancers()) {
-                resp.loadBalancers().forEach(lb -> newSamples.addAll(mapLB(lbClient, labels, lb)));
-            }
+            List<TargetGroupRoute> routes = buildRoutes(account, region);
+            routesByRegion.put(key, routes);
+            return routes;
         } catch (Exception e) {
             log.error("Failed to build LB Target Group map", e);
+            return routesByRegion.getOrDefault(key, Collections.emptyList());
         }
-        return newSamples;
-    }
-
-    public void handleMissingTgs(Set<Resource> missingTgs) {
-        missingTgs.forEach(tg -> {
-            missingTgMap.put(tg, tg);
-            tgToLB.remove(tg);
-        });
     }
 
-    @VisibleForTesting
-    List<Sample> mapLB(ElasticLoadBalancingV2Client lbClient,
-                       SortedMap<String, String> labels, LoadBalancer lb) {
-        List<Sample> lbEC2RelationSamples = new ArrayList<>();
-        String lbArn = lb.loadBalancerArn();
-        resourceMapper.map(lbArn).ifPresent(lbResource -> {
-            String api = "ElasticLoadBalancingV2Client/describeListeners";
-            SortedMap<String, String> telemetryLabels = new TreeMap<>(labels);
-            telemetryLabels.put(SCRAPE_OPERATION_LABEL, api);
-            rateLimiter.doWithRateLimit(api, telemetryLabels, () -> {
-                DescribeListenersRequest listenersRequest = DescribeListenersRequest.builder()
-                        .loadBalancerArn(lbArn)
-                        .build();
-                DescribeListenersResponse listenersResponse = lbClient.describeListeners(listenersRequest);
-                if (!isEmpty(listenersResponse.listeners())) {
-                    listenersResponse.listeners()
-                            .forEach(listener -> lbEC2RelationSamples.addAll(mapListener(
-                                    lbClient, labels, lbResource, listener)));
-                }
-                return null;
-            });
-        });
-        return lbEC2RelationSamples;
+    private synchronized void publishRoutes() {
+        Map<Resource, Resource> newTgToLB = new HashMap<>();
+        routesByRegion.values().forEach(routes -> routes.stream()
+                .filter(route -> !missingTgMap.containsKey(route.getTargetGroup()))
+                .forEach(route -> newTgToLB.put(route.getTargetGroup(), route.getLoadBalancers().get(0))));
+        tgToLB = ImmutableMap.copyOf(newTgToLB);
     }
 
+    /**
+     * @return The target groups of the region that a load balancer routes to
+     */
     @VisibleForTesting
-    public Map<Resource, Resource> getMissingTgMap() {
-        return missingTgMap;
+    List<TargetGroupRoute> buildRoutes(AWSAccount account, String region) {
+        ElasticLoadBalancingV2Client lbClient = awsClientProvider.getELBV2Client(region, account);
+        String api = "ElasticLoadBalancingV2Client/describeTargetGroups";
+        SortedMap<String, String> labels = ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId(),
+                SCRAPE_REGION_LABEL, region, SCRAPE_OPERATION_LABEL, api);
+        List<TargetGroupRoute> routes = new ArrayList<>();
+        String nextMarker = null;
+        do {
+            DescribeTargetGroupsRequest request = DescribeTargetGroupsRequest.builder()
+                    .marker(nextMarker)
+                    .build();
+            DescribeTargetGroupsResponse response = rateLimiter.doWithRateLimit(api, labels,
+                    () -> lbClient.describeTargetGroups(request));
+            if (response.hasTargetGroups()) {
+                response.targetGroups().stream()
+                        .filter(targetGroup -> !isEmpty(targetGroup.loadBalancerArns()))
+                        .forEach(targetGroup -> resourceMapper.map(account, targetGroup.targetGroupArn())
+                                .ifPresent(tg -> {
+                                    List<Resource> lbs = targetGroup.loadBalancerArns().stream()
+                                            .map(arn -> resourceMapper.map(account, arn))
+                                            .filter(Optional::isPresent)
+                                            .map(Optional::get)
+                                            .collect(Collectors.toList());
+                                    if (!lbs.isEmpty()) {
+                                        routes.add(TargetGroupRoute.builder()
+                                                .account(account)
+                                                .region(region)
+                                                .targetGroupArn(targetGroup.targetGroupArn())
+                                                .targetGroup(tg)
+                                                .loadBalancers(lbs)
+                                                .directTargets(filterTGs(targetGroup))
+                                                .build());
+                                    }
+                                }));
+            }
+            nextMarker = response.nextMarker();
+        } while (nextMarker != null);
+        return routes;
     }
 
+    /**
+     * If the TG has EC2 instances directly registered into it instead of through an ASG, builds the LB-EC2
+     * relationship
+     */
     @VisibleForTesting
-    List<Sample> mapListener(ElasticLoadBalancingV2Client lbClient,
-                             SortedMap<String, String> labels,
-                             Resource lbResource,
-                             Listener listener) {
+    List<Sample> buildSamples(TargetGroupRoute route) {
         List<Sample> lbEC2RelationSamples = new ArrayList<>();
-        SortedMap<String, String> telemetryLabels = new TreeMap<>(labels);
-        telemetryLabels.put(SCRAPE_OPERATION_LABEL, "ElasticLoadBalancingClientV2/describeRules");
-        DescribeRulesResponse dLR = rateLimiter.doWithRateLimit("ElasticLoadBalancingClientV2/describeRules",
-                telemetryLabels,
-                () -> lbClient.describeRules(DescribeRulesRequest.builder()
-                        .listenerArn(listener.listenerArn())
+        ElasticLoadBalancingV2Client lbClient = awsClientProvider.getELBV2Client(route.getRegion(),
+                route.getAccount());
+        String api = "ElasticLoadBalancingV2Client/describeTargetHealth";
+        SortedMap<String, String> labels = ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, route.getAccount().getAccountId(),
+                SCRAPE_REGION_LABEL, route.getRegion(), SCRAPE_OPERATION_LABEL, api);
+        DescribeTargetHealthResponse thr = rateLimiter.doWithRateLimit(api, labels,
+                () -> lbClient.describeTargetHealth(DescribeTargetHealthRequest.builder()
+                        .targetGroupArn(route.getTargetGroupArn())
                         .build()));
-        if (dLR.hasRules()) {
-            dLR.rules().stream()
-                    .filter(rule -> !isEmpty(rule.actions()))
-                    .flatMap(rule -> rule.actions().stream())
-                    .filter(action -> action.targetGroupArn() != null)
-                    .forEach(action -> {
-                        resourceMapper.map(action.targetGroupArn()).ifPresent(tg -> {
-                            if (!missingTgMap.containsKey(tg)) {
-                                tgToLB.put(tg, lbResource);
+        if (!isEmpty(thr.targetHealthDescriptions())) {
+            thr.targetHealthDescriptions()
+                    .stream()
+                    .filter(thD -> thD.targetHealth().state().equals(HEALTHY))
+                    .forEach(targetHealthDescription -> route.getLoadBalancers().forEach(lbResource -> {
+                        TargetDescription target = targetHealthDescription.target();
+                        String id = target.id();
+                        Map<String, String> relLabels = new HashMap<>(ImmutableMap.<String, String>builder()
+                                .put(SCRAPE_ACCOUNT_ID_LABEL, lbResource.getAccount())
+                                .put(SCRAPE_REGION_LABEL, lbResource.getRegion())
+                                .put("lb_id", lbResource.getId())
+                                .put("lb_name", lbResource.getName())
+                                .put("lb_type", hasLength(lbResource.getSubType()) ?
+                                        lbResource.getSubType() : "classic")
+                                .build());
+                        // If it is an IP
+                        if (id.split("\\.").length == 4) {
+                            relLabels.put("instance", format("%s:%d", target.id(), target.port()));
+                        } else {
+                            relLabels.put("ec2_instance_id", target.id());
+                            if (target.port() != null) {
+                                relLabels.put("port", target.port().toString());
                             }
-                        });
-                        // If the TG has EC2 instances directly registered into it instead of through an ASG
-                        // Build the LB-EC2 Relationship
-                        String describeGroups = "ElasticLoadBalancingV2Client/describeTargetGroups";
-                        telemetryLabels.put(SCRAPE_OPERATION_LABEL,
-                                describeGroups);
-                        DescribeTargetGroupsResponse tgr =
-                                rateLimiter.doWithRateLimit(describeGroups, telemetryLabels,
-                                        () -> lbClient.describeTargetGroups(DescribeTargetGroupsRequest.builder()
-                                                .targetGroupArns(action.targetGroupArn())
-                                                .build()));
-                        if (!isEmpty(tgr.targetGroups())) {
-                            tgr.targetGroups()
-                                    .stream()
-                                    .filter(this::filterTGs)
-                                    .forEach(targetGroup -> {
-                                        String api_describeHealth = "ElasticLoadBalancingV2Client/describeTargetHealth";
-                                        telemetryLabels.put(SCRAPE_OPERATION_LABEL, api_describeHealth);
-                                        DescribeTargetHealthResponse thr =
-                                                rateLimiter.doWithRateLimit(
-                                                        api_describeHealth,
-                                                        telemetryLabels,
-                                                        () -> lbClient.describeTargetHealth(
-                                                                DescribeTargetHealthRequest.builder()
-                                                                        .targetGroupArn(action.targetGroupArn())
-                                                                        .build()));
-                                        if (!isEmpty(thr.targetHealthDescriptions())) {
-                                            thr.targetHealthDescriptions()
-                                                    .stream()
-                                                    .filter(thD -> thD.targetHealth().state().equals(HEALTHY))
-                                                    .forEach(targetHealthDescription -> {
-                                                        TargetDescription target = targetHealthDescription.target();
-                                                        String id = target.id();
-                                                        Map<String, String> relLabels =
-                                                                new HashMap<>(ImmutableMap.<String, String>builder()
-                                                                        .put(SCRAPE_ACCOUNT_ID_LABEL,
-                                                                                lbResource.getAccount())
-                                                                        .put(SCRAPE_REGION_LABEL,
-                                                                                lbResource.getRegion())
-                                                                        .put("lb_id", lbResource.getId())
-                                                                        .put("lb_name", lbResource.getName())
-                                                                        .put("lb_type",
-                                                                                hasLength(lbResource.getSubType()) ?
-                                                                                        lbResource.getSubType() :
-                                                                                        "classic")
-                                                                        .build());
-                                                        // If it is an IP
-                                                        if (id.split("\\.").length == 4) {
-                                                            relLabels.put("instance", format("%s:%d", target.id(),
-                                                                    target.port()));
-                                                        } else {
-                                                            relLabels.put("ec2_instance_id", target.id());
-                                                            if (target.port() != null) {
-                                                                relLabels.put("port", target.port().toString());
-                                                            }
-                                                        }
-                                                        sampleBuilder.buildSingleSample(
-                                                                        LB_EC2_INSTANCE_METRIC, relLabels, 1.0D)
-                                                                .ifPresent(lbEC2RelationSamples::add);
-                                                    });
-                                        }
-                                    });
                         }
-                    });
+                        sampleBuilder.buildSingleSample(LB_EC2_INSTANCE_METRIC, relLabels, 1.0D)
+                                .ifPresent(lbEC2RelationSamples::add);
+                    }));
         }
         return lbEC2RelationSamples;
     }
 
     private boolean filterTGs(TargetGroup targetGroup) {
-        return targetGroup.targetType().equals(INSTANCE) || targetGroup.targetType().equals(IP);
+        return INSTANCE.equals(targetGroup.targetType()) || IP.equals(targetGroup.targetType());
+    }
+
+    private String regionKey(AWSAccount account, String region) {
+        return account.getTenant() + "/" + account.getAccountId() + "/" + region;
+    }
+
+    /**
+     * A target group and the load balancers that route to it
+     */
+    @Builder
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    static class TargetGroupRoute {
+        private final AWSAccount account;
+        private final String region;
+        private final String targetGroupArn;
+        private final Resource targetGroup;
+        private final List<Resource> loadBalancers;
+        /**
+         * Whether EC2 instances or IPs are registered directly into the target group
+         */
+        private final boolean directTargets;
     }
 }
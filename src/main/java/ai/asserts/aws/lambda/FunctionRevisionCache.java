@@ -0,0 +1,51 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.lambda;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Caches the details of a Lambda function by the <code>RevisionId</code> of the function, so that they are only
+ * fetched again when the function changes. Some settings, like the event invoke config, can change without a new
+ * revision, so the details are also fetched again once they are older than the maximum age.
+ */
+public class FunctionRevisionCache<V> {
+    private static final int MAX_CACHED_FUNCTIONS = 50000;
+    private static final int DEFAULT_MAX_AGE_MINUTES = 60;
+    private final Cache<String, V> cache;
+
+    public FunctionRevisionCache() {
+        this(DEFAULT_MAX_AGE_MINUTES);
+    }
+
+    public FunctionRevisionCache(int maxAgeMinutes) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CACHED_FUNCTIONS)
+                .expireAfterWrite(maxAgeMinutes, MINUTES)
+                .build();
+    }
+
+    /**
+     * @return The cached details of the revision of the function, or the details fetched by the loader. The details of
+     * a function without a revision id aren't cached
+     */
+    public V get(LambdaFunction function, Supplier<V> loader) {
+        if (function.getRevisionId() == null) {
+            return loader.get();
+        }
+        String key = function.getArn() + "@" + function.getRevisionId();
+        V value = cache.getIfPresent(key);
+        if (value == null) {
+            value = loader.get();
+            cache.put(key, value);
+        }
+        return value;
+    }
+}
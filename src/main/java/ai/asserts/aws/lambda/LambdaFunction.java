@@ -23,4 +23,8 @@ public class LambdaFunction {
     private final Resource resource;
     private final Integer memoryMB;
     private final Integer timeoutSeconds;
+    /**
+     * Changes with each update of the code or the configuration of the function
+     */
+    private final String revisionId;
 }
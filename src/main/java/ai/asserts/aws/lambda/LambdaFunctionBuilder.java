@@ -4,7 +4,7 @@
  */
 package ai.asserts.aws.lambda;
 
-import ai.asserts.aws.TaskExecutorUtil;
+import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.resource.Resource;
 import ai.asserts.aws.resource.ResourceMapper;
 import lombok.AllArgsConstructor;
@@ -23,21 +23,21 @@ import java.util.Optional;
 @Slf4j
 public class LambdaFunctionBuilder {
     private final ResourceMapper resourceMapper;
-    private final TaskExecutorUtil taskExecutorUtil;
 
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-    public LambdaFunction buildFunction(String region, FunctionConfiguration functionConfiguration,
+    public LambdaFunction buildFunction(AWSAccount account, String region, FunctionConfiguration functionConfiguration,
                                         Optional<Resource> resourceWithTags) {
 
-        Optional<Resource> resourceFromARN = resourceMapper.map(functionConfiguration.functionArn());
+        Optional<Resource> resourceFromARN = resourceMapper.map(account, functionConfiguration.functionArn());
         LambdaFunction.LambdaFunctionBuilder<?, ?> builder = LambdaFunction.builder()
-                .tenant(taskExecutorUtil.getAccountDetails().getTenant())
+                .tenant(account.getTenant())
                 .region(region)
                 .name(functionConfiguration.functionName())
                 .arn(functionConfiguration.functionArn())
                 .resource(resourceWithTags.orElse(null))
                 .memoryMB(functionConfiguration.memorySize())
-                .timeoutSeconds(functionConfiguration.timeout());
+                .timeoutSeconds(functionConfiguration.timeout())
+                .revisionId(functionConfiguration.revisionId());
         if (resourceFromARN.isPresent()) {
             builder = builder.account(resourceFromARN.get().getAccount());
         }
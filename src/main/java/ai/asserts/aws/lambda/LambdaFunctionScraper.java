@@ -25,6 +25,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.FunctionConfiguration;
+import software.amazon.awssdk.services.lambda.model.ListFunctionsRequest;
 import software.amazon.awssdk.services.lambda.model.ListFunctionsResponse;
 import software.amazon.awssdk.services.lambda.model.VpcConfigResponse;
 
@@ -33,10 +34,10 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.Future;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_NAMESPACE_LABEL;
@@ -62,7 +63,7 @@ public class LambdaFunctionScraper extends Collector implements MetricProvider {
     private final TaskExecutorUtil taskExecutorUtil;
     private final Supplier<Map<String, Map<String, Map<String, LambdaFunction>>>> functionsByRegion;
     private final boolean filterLambdaByEnvironment;
-    private List<MetricFamilySamples> cache;
+    private volatile List<MetricFamilySamples> cache;
 
     public LambdaFunctionScraper(
             AccountProvider accountProvider,
@@ -171,28 +172,42 @@ public class LambdaFunctionScraper extends Collector implements MetricProvider {
         Map<String, Map<String, Map<String, LambdaFunction>>> functionsByRegion = new TreeMap<>();
         try {
             LambdaClient lambdaClient = awsClientProvider.getLambdaClient(region, accountRegion);
-            // Get all the functions
-            ListFunctionsResponse response = rateLimiter.doWithRateLimit(
-                    "LambdaClient/listFunctions",
-                    ImmutableSortedMap.of(
-                            SCRAPE_ACCOUNT_ID_LABEL, accountRegion.getAccountId(),
-                            SCRAPE_REGION_LABEL, region,
-                            SCRAPE_NAMESPACE_LABEL, "AWS/Lambda",
-                            SCRAPE_OPERATION_LABEL, "listFunctions"
-                    ),
-                    lambdaClient::listFunctions);
-            if (response.hasFunctions()) {
-                Set<Resource> resources =
-                        resourceTagHelper.getFilteredResources(accountRegion, region, lambdaNS);
-                response.functions().stream()
+            // Get all the functions, a page holds at most 50 of them
+            List<FunctionConfiguration> functions = new ArrayList<>();
+            String nextMarker = null;
+            do {
+                ListFunctionsRequest request = ListFunctionsRequest.builder()
+                        .marker(nextMarker)
+                        .build();
+                ListFunctionsResponse response = rateLimiter.doWithRateLimit(
+                        "LambdaClient/listFunctions",
+                        ImmutableSortedMap.of(
+                                SCRAPE_ACCOUNT_ID_LABEL, accountRegion.getAccountId(),
+                                SCRAPE_REGION_LABEL, region,
+                                SCRAPE_NAMESPACE_LABEL, "AWS/Lambda",
+                                SCRAPE_OPERATION_LABEL, "listFunctions"
+                        ),
+                        () -> lambdaClient.listFunctions(request));
+                if (response.hasFunctions()) {
+                    functions.addAll(response.functions());
+                }
+                nextMarker = response.nextMarker();
+            } while (nextMarker != null);
+            if (!functions.isEmpty()) {
+                Map<String, Resource> resourcesByArn = resourceTagHelper.getFilteredResources(accountRegion, region,
+                                lambdaNS).stream()
+                        .collect(Collectors.toMap(Resource::getArn, resource -> resource, (a, b) -> a));
+                functions.stream()
                         .filter(scraper::isLambdaInSameEnvironment)
                         .forEach(fnConfig -> {
-                            Optional<Resource> fnResourceOpt = findFnResource(resources, fnConfig);
+                            Optional<Resource> fnResourceOpt =
+                                    Optional.ofNullable(resourcesByArn.get(fnConfig.functionArn()));
                             functionsByRegion
                                     .computeIfAbsent(accountRegion.getAccountId(), k -> new TreeMap<>())
                                     .computeIfAbsent(region, k -> new TreeMap<>())
                                     .computeIfAbsent(fnConfig.functionArn(), k ->
-                                            fnBuilder.buildFunction(region, fnConfig, fnResourceOpt));
+                                            fnBuilder.buildFunction(accountRegion, region, fnConfig,
+                                                    fnResourceOpt));
                         });
             }
         } catch (Exception e) {
@@ -208,11 +223,4 @@ public class LambdaFunctionScraper extends Collector implements MetricProvider {
                 (ecsSDExporter.runningInVPC(vpcConfigResponse.vpcId()) &&
                         vpcConfigResponse.subnetIds().stream().anyMatch(ecsSDExporter::runningInSubnet));
     }
-
-    private Optional<Resource> findFnResource(Set<Resource> resources,
-                                              FunctionConfiguration functionConfiguration) {
-        return resources.stream()
-                .filter(resource -> resource.getArn().equals(functionConfiguration.functionArn()))
-                .findFirst();
-    }
 }
@@ -0,0 +1,55 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Optional;
+
+/**
+ * The parts of an ARN, <code>arn:partition:service:region:account:resource</code>, split in a single pass. The
+ * resource type is the part of the resource before the first <code>/</code> or <code>:</code>, e.g.
+ * <code>function</code> in <code>function:name</code> or <code>restapis</code> in <code>/restapis/id</code>. It is
+ * <code>null</code> for the services whose ARNs only have the name of the resource, like SQS and SNS.
+ */
+@AllArgsConstructor
+@Getter
+@EqualsAndHashCode
+@ToString
+public class Arn {
+    private final String partition;
+    private final String service;
+    private final String region;
+    private final String account;
+    private final String resource;
+    private final String resourceType;
+
+    public static Optional<Arn> parse(String arn) {
+        if (arn == null || !arn.startsWith("arn:")) {
+            return Optional.empty();
+        }
+        String[] parts = new String[4];
+        int start = 4;
+        for (int i = 0; i < parts.length; i++) {
+            int end = arn.indexOf(':', start);
+            if (end < 0) {
+                return Optional.empty();
+            }
+            parts[i] = arn.substring(start, end);
+            start = end + 1;
+        }
+        String resource = arn.substring(start);
+        int typeStart = resource.startsWith("/") ? 1 : 0;
+        int typeEnd = typeStart;
+        while (typeEnd < resource.length() && resource.charAt(typeEnd) != '/' && resource.charAt(typeEnd) != ':') {
+            typeEnd++;
+        }
+        String resourceType = typeEnd < resource.length() ? resource.substring(typeStart, typeEnd) : null;
+        return Optional.of(new Arn(parts[0], parts[1], parts[2], parts[3], resource, resourceType));
+    }
+}
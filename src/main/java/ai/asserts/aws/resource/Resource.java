@@ -24,7 +24,7 @@ import static java.lang.String.format;
 
 @Getter
 @EqualsAndHashCode()
-@Builder
+@Builder(toBuilder = true)
 @ToString
 public class Resource {
     private final ResourceType type;
@@ -70,7 +70,7 @@ public class Resource {
     }
 
     public boolean matches(Metric metric) {
-        List<List<Dimension>> toBeMatched = metricDimensions();
+        List<List<Dimension>> toBeMatched = getMetricDimensions();
         return metric.hasDimensions() && toBeMatched.stream().anyMatch(list -> metric.dimensions().containsAll(list));
     }
 
@@ -106,7 +106,10 @@ public class Resource {
         }
     }
 
-    private List<List<Dimension>> metricDimensions() {
+    /**
+     * @return The sets of dimensions, any of which identifies a metric of this resource
+     */
+    List<List<Dimension>> getMetricDimensions() {
         switch (type) {
             case LambdaFunction:
                 return ImmutableList.of(
@@ -0,0 +1,193 @@
+/*
+ *  Copyright © 2022.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import ai.asserts.aws.ApiAuthenticator;
+import ai.asserts.aws.ObjectMapperFactory;
+import ai.asserts.aws.account.AccountTenantMapper;
+import ai.asserts.aws.cloudwatch.alarms.FirehoseEventRequest;
+import ai.asserts.aws.cloudwatch.alarms.RecordData;
+import ai.asserts.aws.cloudwatch.metrics.MetricResponse;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Base64;
+import java.util.Optional;
+
+import static org.springframework.http.HttpStatus.FORBIDDEN;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+/**
+ * Receives the resource change events of AWS Config and EventBridge, either from a Firehose delivery stream or from an
+ * SNS topic, and hands them to the {@link ResourceChangeProcessor}. The Config notifications sent to SNS directly
+ * aren't wrapped in an EventBridge event, so they are wrapped here. The SNS messages are only accepted if they are
+ * signed by SNS. The events are applied to the resources of the tenant that the account of the resource belongs to.
+ */
+@AllArgsConstructor
+@RestController
+@Slf4j
+@Component
+@SuppressWarnings("unused")
+public class ResourceChangeController {
+    public static final String CHANGES = "/receive-resource-changes";
+    public static final String CHANGES_TOKEN = "/receive-resource-changes/{token}";
+    public static final String CHANGES_SNS = "/receive-resource-changes/sns";
+    public static final String CHANGES_SNS_TOKEN = "/receive-resource-changes/sns/{token}";
+
+    private final ObjectMapperFactory objectMapperFactory;
+    private final ApiAuthenticator apiAuthenticator;
+    private final ResourceChangeProcessor resourceChangeProcessor;
+    private final SNSMessageVerifier snsMessageVerifier;
+    private final AccountTenantMapper accountTenantMapper;
+
+    @PostMapping(
+            path = CHANGES,
+            produces = APPLICATION_JSON_VALUE,
+            consumes = APPLICATION_JSON_VALUE)
+    public ResponseEntity<MetricResponse> receiveChangesPost(@RequestBody FirehoseEventRequest request) {
+        apiAuthenticator.authenticate(Optional.empty());
+        return processRequest(request);
+    }
+
+    @PutMapping(
+            path = CHANGES,
+            produces = APPLICATION_JSON_VALUE,
+            consumes = APPLICATION_JSON_VALUE)
+    public ResponseEntity<MetricResponse> receiveChangesPut(@RequestBody FirehoseEventRequest request) {
+        apiAuthenticator.authenticate(Optional.empty());
+        return processRequest(request);
+    }
+
+    @PostMapping(
+            path = CHANGES_TOKEN,
+            produces = APPLICATION_JSON_VALUE,
+            consumes = APPLICATION_JSON_VALUE)
+    public ResponseEntity<MetricResponse> receiveChangesPostSecure(
+            @PathVariable("token") String apiToken,
+            @RequestBody FirehoseEventRequest request) {
+        apiAuthenticator.authenticate(Optional.of(apiToken));
+        return processRequest(request);
+    }
+
+    @PutMapping(
+            path = CHANGES_TOKEN,
+            produces = APPLICATION_JSON_VALUE,
+            consumes = APPLICATION_JSON_VALUE)
+    public ResponseEntity<MetricResponse> receiveChangesPutSecure(
+            @PathVariable("token") String apiToken,
+            @RequestBody FirehoseEventRequest request) {
+        apiAuthenticator.authenticate(Optional.of(apiToken));
+        return processRequest(request);
+    }
+
+    /**
+     * SNS posts its messages as <code>text/plain</code>, so the body is taken as is.
+     */
+    @PostMapping(
+            path = CHANGES_SNS,
+            produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<MetricResponse> receiveChangesSNSPost(@RequestBody String message) {
+        apiAuthenticator.authenticate(Optional.empty());
+        return processSNSMessage(message);
+    }
+
+    @PostMapping(
+            path = CHANGES_SNS_TOKEN,
+            produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<MetricResponse> receiveChangesSNSPostSecure(
+            @PathVariable("token") String apiToken,
+            @RequestBody String message) {
+        apiAuthenticator.authenticate(Optional.of(apiToken));
+        return processSNSMessage(message);
+    }
+
+    private ResponseEntity<MetricResponse> processRequest(FirehoseEventRequest request) {
+        try {
+            if (!CollectionUtils.isEmpty(request.getRecords())) {
+                for (RecordData recordData : request.getRecords()) {
+                    accept(new String(Base64.getDecoder().decode(recordData.getData())));
+                }
+            }
+            return ResponseEntity.ok(MetricResponse.builder()
+                    .requestId(request.getRequestId())
+                    .timestamp(System.currentTimeMillis())
+                    .build());
+        } catch (Exception e) {
+            log.error("Failed to process resource changes", e);
+            return ResponseEntity.status(INTERNAL_SERVER_ERROR)
+                    .body(MetricResponse.builder()
+                            .requestId(request.getRequestId())
+                            .timestamp(System.currentTimeMillis())
+                            .errorMessage(e.getMessage())
+                            .build());
+        }
+    }
+
+    private ResponseEntity<MetricResponse> processSNSMessage(String body) {
+        try {
+            JsonNode envelope = objectMapperFactory.getObjectMapper().readTree(body);
+            if (!snsMessageVerifier.verify(envelope)) {
+                return ResponseEntity.status(FORBIDDEN)
+                        .body(MetricResponse.builder()
+                                .requestId(envelope.path("MessageId").asText(null))
+                                .timestamp(System.currentTimeMillis())
+                                .errorMessage("Invalid SNS message signature")
+                                .build());
+            }
+            String type = envelope.path("Type").asText();
+            if ("SubscriptionConfirmation".equals(type)) {
+                log.info("Confirm the subscription to the resource changes at {}",
+                        envelope.path("SubscribeURL").asText());
+            } else if ("Notification".equals(type)) {
+                accept(envelope.path("Message").asText());
+            }
+            return ResponseEntity.ok(MetricResponse.builder()
+                    .requestId(envelope.path("MessageId").asText(null))
+                    .timestamp(System.currentTimeMillis())
+                    .build());
+        } catch (Exception e) {
+            log.error("Failed to process resource changes", e);
+            return ResponseEntity.status(INTERNAL_SERVER_ERROR)
+                    .body(MetricResponse.builder()
+                            .timestamp(System.currentTimeMillis())
+                            .errorMessage(e.getMessage())
+                            .build());
+        }
+    }
+
+    /**
+     * @param message An EventBridge event or, from an SNS topic of AWS Config, a configuration item change
+     *                notification
+     */
+    @VisibleForTesting
+    void accept(String message) throws Exception {
+        ObjectMapper objectMapper = objectMapperFactory.getObjectMapper();
+        JsonNode event = objectMapper.readTree(message);
+        if (!event.has("detail") && event.has("configurationItem")) {
+            ObjectNode wrapped = objectMapper.createObjectNode();
+            wrapped.put("source", ResourceChangeProcessor.CONFIG_SOURCE);
+            wrapped.set("detail", event);
+            event = wrapped;
+        }
+        ResourceConfigChange change = objectMapper.treeToValue(event, ResourceConfigChange.class);
+        ResourceConfigItem item = change.getDetail() != null ? change.getDetail().getConfigurationItem() : null;
+        String accountId = item != null && item.getAwsAccountId() != null ? item.getAwsAccountId() :
+                change.getAccount();
+        resourceChangeProcessor.process(accountTenantMapper.getTenantName(accountId), change);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright © 2022.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import ai.asserts.aws.MetadataTaskManager;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Applies the resource changes published by AWS Config and EventBridge to the {@link ResourceInventory}, so that
+ * created, retagged and deleted resources are picked up without waiting for the next sweep.
+ * <ul>
+ *     <li><code>aws.config</code> events carry the configuration item of the resource with its tags</li>
+ *     <li><code>aws.tag</code> events, <code>Tag Change on Resource</code>, carry the new tags of the resources</li>
+ * </ul>
+ * The relationships between the resources are built by the metadata update, so a change that may affect them
+ * requests an early run of the update instead.
+ */
+@Component
+@Slf4j
+@AllArgsConstructor
+public class ResourceChangeProcessor {
+    public static final String CONFIG_SOURCE = "aws.config";
+    public static final String TAG_SOURCE = "aws.tag";
+    private static final Set<String> DELETED_STATUSES = ImmutableSet.of(
+            "ResourceDeleted", "ResourceDeletedNotRecorded");
+    private static final Set<String> CREATE_OR_DELETE = ImmutableSet.of("CREATE", "DELETE");
+    private static final String RELATIONSHIPS = "Relationships";
+
+    private final ResourceInventory resourceInventory;
+    private final MetadataTaskManager metadataTaskManager;
+
+    /**
+     * @param tenant The tenant of the account the changed resources belong to
+     */
+    public void process(String tenant, ResourceConfigChange change) {
+        ResourceConfigChangeDetail detail = change.getDetail();
+        if (detail == null) {
+            return;
+        }
+        if (CONFIG_SOURCE.equals(change.getSource())) {
+            processConfigChange(tenant, change, detail);
+        } else if (TAG_SOURCE.equals(change.getSource())) {
+            processTagChange(tenant, change, detail);
+        } else {
+            log.debug("Ignoring change event {} from {}", change.getId(), change.getSource());
+        }
+    }
+
+    private void processConfigChange(String tenant, ResourceConfigChange change, ResourceConfigChangeDetail detail) {
+        ResourceConfigItem item = detail.getConfigurationItem();
+        if (item == null || item.getARN() == null) {
+            log.debug("Ignoring {} without a configuration item", detail.getMessageType());
+            return;
+        }
+        String accountId = item.getAwsAccountId() != null ? item.getAwsAccountId() : change.getAccount();
+        String region = item.getAwsRegion() != null ? item.getAwsRegion() : change.getRegion();
+        ResourceConfigDiff diff = detail.getConfigurationItemDiff();
+        if (DELETED_STATUSES.contains(item.getConfigurationItemStatus()) ||
+                (diff != null && "DELETE".equals(diff.getChangeType()))) {
+            resourceInventory.applyChanges(tenant, accountId, region, ImmutableList.of(), ImmutableList.of(item.getARN()));
+        } else {
+            resourceInventory.applyChanges(tenant, accountId, region,
+                    ImmutableList.of(new ResourceInventory.Item(item.getARN(), toTags(item.getTags()))),
+                    ImmutableList.of());
+        }
+        if (diff != null && (CREATE_OR_DELETE.contains(diff.getChangeType()) ||
+                (diff.getChangedProperties() != null && diff.getChangedProperties().keySet().stream()
+                        .anyMatch(property -> property.startsWith(RELATIONSHIPS))))) {
+            metadataTaskManager.requestUpdate();
+        }
+    }
+
+    private void processTagChange(String tenant, ResourceConfigChange change, ResourceConfigChangeDetail detail) {
+        if (change.getResources() == null) {
+            return;
+        }
+        List<Tag> tags = toTags(detail.getTags());
+        resourceInventory.applyChanges(tenant, change.getAccount(), change.getRegion(),
+                change.getResources().stream()
+                        .map(arn -> new ResourceInventory.Item(arn, tags))
+                        .collect(Collectors.toList()),
+                ImmutableList.of());
+    }
+
+    private List<Tag> toTags(Map<String, String> tags) {
+        if (tags == null) {
+            return ImmutableList.of();
+        }
+        return new TreeMap<>(tags).entrySet().stream()
+                .map(entry -> Tag.builder().key(entry.getKey()).value(entry.getValue()).build())
+                .collect(Collectors.toList());
+    }
+}
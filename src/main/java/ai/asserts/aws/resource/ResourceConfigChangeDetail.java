@@ -12,6 +12,8 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
 
+import java.util.Map;
+
 @AllArgsConstructor
 @NoArgsConstructor
 @Getter
@@ -23,4 +25,8 @@ public class ResourceConfigChangeDetail {
     private String messageType;
     private ResourceConfigItem configurationItem;
     private ResourceConfigDiff configurationItemDiff;
+    /**
+     * The tags of the resource after a <code>Tag Change on Resource</code> event
+     */
+    private Map<String, String> tags;
 }
@@ -5,6 +5,7 @@
 package ai.asserts.aws.resource;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
@@ -12,6 +13,8 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
 
+import java.util.Map;
+
 @AllArgsConstructor
 @NoArgsConstructor
 @Getter
@@ -21,8 +24,11 @@ import lombok.ToString;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class ResourceConfigItem {
     private String awsAccountId;
+    private String awsRegion;
     private String configurationItemStatus;
     private String resourceType;
     private String resourceId;
+    @JsonProperty("ARN")
     private String ARN;
+    private Map<String, String> tags;
 }
@@ -0,0 +1,71 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import com.google.common.collect.ImmutableSet;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Resolves the resource of a metric by looking up its dimensions, instead of calling {@link Resource#matches(Metric)}
+ * on each resource of the namespace for each metric that is discovered. Each resource is indexed under the first
+ * dimension of each of its sets of metric dimensions, e.g. <code>FunctionName=fn</code>, so a lookup only checks the
+ * few resources that share a dimension with the metric.
+ * <p>
+ * The resources are those of a single namespace, so the dimensions don't need to be qualified by the namespace.
+ */
+public class ResourceIndex {
+    @Getter
+    private final Set<Resource> resources;
+    private final Map<Dimension, List<Entry>> byDimension = new HashMap<>();
+
+    public ResourceIndex(Collection<Resource> resources) {
+        this.resources = ImmutableSet.copyOf(resources);
+        this.resources.forEach(resource -> resource.getMetricDimensions().stream()
+                .filter(dimensions -> !dimensions.isEmpty())
+                .forEach(dimensions -> byDimension.computeIfAbsent(dimensions.get(0), k -> new ArrayList<>())
+                        .add(new Entry(resource, dimensions))));
+    }
+
+    public boolean isEmpty() {
+        return resources.isEmpty();
+    }
+
+    /**
+     * @return The resource whose dimensions are all on the metric, if any
+     */
+    public Optional<Resource> find(Metric metric) {
+        if (!metric.hasDimensions()) {
+            return Optional.empty();
+        }
+        for (Dimension dimension : metric.dimensions()) {
+            List<Entry> entries = byDimension.get(dimension);
+            if (entries != null) {
+                for (Entry entry : entries) {
+                    if (metric.dimensions().containsAll(entry.dimensions)) {
+                        return Optional.of(entry.resource);
+                    }
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    @AllArgsConstructor
+    private static class Entry {
+        private final Resource resource;
+        private final List<Dimension> dimensions;
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import ai.asserts.aws.AWSApiCallRateLimiter;
+import ai.asserts.aws.AWSClientProvider;
+import ai.asserts.aws.TaskThreadPool;
+import ai.asserts.aws.account.AWSAccount;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import io.micrometer.core.instrument.util.StringUtils;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiAsyncClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesRequest;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesResponse;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * The tagged resources of an account in a region, discovered with a single paginated <code>GetResources</code> sweep
+ * without any filters. The namespaces and exporters each used to make their own <code>GetResources</code> calls with
+ * their own resource type and tag filters, scanning the same resources many times over. They are now all served from
+ * the same snapshot, which also gives them a consistent view of the resources.
+ * <p>
+ * A snapshot is indexed by resource type, ARN and tag. It is swept again once it is older than the refresh interval.
+ * In between, the resource changes received by the {@link ResourceChangeProcessor} are applied to it, so when the
+ * change events of AWS Config or EventBridge are delivered to the exporter, the sweep only needs to reconcile, e.g.
+ * once an hour.
+ * <p>
+ * A sweep that fails leaves the previous snapshot in place, rather than replacing it with part of the resources, and
+ * is only retried after a while, so that a denied or throttled <code>GetResources</code> isn't called again by every
+ * lookup. The callers that need a sweep of the same account and region at the same time share one.
+ * <p>
+ * If a snapshot file is configured, the snapshots are saved to it periodically and on shutdown, and restored from it
+ * at startup. A restored snapshot is served right away and swept again in the background on first use, so a restart
+ * doesn't rediscover all the resources before the exporter can serve them.
+ */
+@Component
+@Slf4j
+public class ResourceInventory implements InitializingBean, DisposableBean {
+    public static final String GET_RESOURCES_OPERATION = "ResourceGroupsTaggingApiClient/getResources";
+    private final AWSClientProvider awsClientProvider;
+    private final AWSApiCallRateLimiter rateLimiter;
+    private final TaskThreadPool taskThreadPool;
+    private final long refreshMillis;
+    private final long retryAfterFailureMillis;
+    private final String snapshotFile;
+    private final Map<Key, Snapshot> snapshots = new ConcurrentHashMap<>();
+    /**
+     * The sweeps in flight
+     */
+    private final Map<Key, CompletableFuture<Snapshot>> sweeps = new ConcurrentHashMap<>();
+    private final Map<String, Snapshot> restored = new ConcurrentHashMap<>();
+    private final Set<Key> reconciling = ConcurrentHashMap.newKeySet();
+    /**
+     * When the failed sweeps may be retried
+     */
+    private final Map<Key, Long> retryAt = new ConcurrentHashMap<>();
+
+    public ResourceInventory(AWSClientProvider awsClientProvider, AWSApiCallRateLimiter rateLimiter,
+                             @Qualifier("aws-api-calls-thread-pool") TaskThreadPool taskThreadPool,
+                             @Value("${aws_exporter.inventory.refresh_minutes:5}") int refreshMinutes,
+                             @Value("${aws_exporter.inventory.retry_after_failure_seconds:30}")
+                                     int retryAfterFailureSeconds,
+                             @Value("${aws_exporter.inventory.snapshot_file:}") String snapshotFile) {
+        this.awsClientProvider = awsClientProvider;
+        this.rateLimiter = rateLimiter;
+        this.taskThreadPool = taskThreadPool;
+        this.refreshMillis = MINUTES.toMillis(refreshMinutes);
+        this.retryAfterFailureMillis = SECONDS.toMillis(retryAfterFailureSeconds);
+        this.snapshotFile = snapshotFile;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (StringUtils.isEmpty(snapshotFile) || !Files.exists(Paths.get(snapshotFile))) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(Paths.get(snapshotFile))) {
+            restored.putAll(ResourceInventoryFile.read(in));
+            log.info("Restored the resources of {} account regions from {}", restored.size(), snapshotFile);
+        } catch (Exception e) {
+            log.error("Failed to restore the resources from " + snapshotFile, e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        save();
+    }
+
+    /**
+     * Saves the snapshots to the snapshot file, through a temporary file so that a restart never sees a partial file
+     */
+    @Scheduled(fixedDelayString = "${aws_exporter.inventory.snapshot_interval:300000}",
+            initialDelayString = "${aws_exporter.inventory.snapshot_interval:300000}")
+    public void save() {
+        if (StringUtils.isEmpty(snapshotFile)) {
+            return;
+        }
+        Map<String, Snapshot> toSave = new LinkedHashMap<>(restored);
+        snapshots.forEach((key, snapshot) -> toSave.put(key.getName(), snapshot));
+        Path path = Paths.get(snapshotFile);
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tempPath)) {
+                ResourceInventoryFile.write(toSave, out);
+            }
+            Files.move(tempPath, path, REPLACE_EXISTING, ATOMIC_MOVE);
+            log.info("Saved the resources of {} account regions to {}", toSave.size(), snapshotFile);
+        } catch (Exception e) {
+            log.error("Failed to save the resources to " + snapshotFile, e);
+        }
+    }
+
+    public Snapshot getSnapshot(AWSAccount account, String region) {
+        Key key = new Key(account, region);
+        Snapshot snapshot = getRestored(key);
+        if (snapshot != null) {
+            reconcile(key);
+            return snapshot;
+        }
+        snapshot = getCurrent(key);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        return refresh(key, false).join();
+    }
+
+    /**
+     * Async variant of {@link #getSnapshot(AWSAccount, String)}. Serves from the cache if present, otherwise runs the
+     * sweep on the async client and caches the result.
+     */
+    public CompletableFuture<Snapshot> getSnapshotAsync(AWSAccount account, String region) {
+        Key key = new Key(account, region);
+        Snapshot restoredSnapshot = getRestored(key);
+        if (restoredSnapshot != null) {
+            reconcile(key);
+            return CompletableFuture.completedFuture(restoredSnapshot);
+        }
+        Snapshot cached = getCurrent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return refresh(key, true);
+    }
+
+    /**
+     * Drops the snapshots of the accounts and regions that are no longer configured
+     */
+    public void retainAccounts(Set<AWSAccount> accounts) {
+        Map<String, AWSAccount> byId = accounts.stream()
+                .collect(Collectors.toMap(AWSAccount::getAccountId, account -> account, (a, b) -> a));
+        Set<String> names = new HashSet<>();
+        accounts.forEach(account -> account.getRegions().forEach(region ->
+                names.add(new Key(account, region).getName())));
+        // An account whose credentials or regions changed is a different key
+        Predicate<Key> removed = key -> !key.account.equals(byId.get(key.account.getAccountId())) ||
+                !key.account.getRegions().contains(key.region);
+        snapshots.keySet().removeIf(key -> {
+            if (removed.test(key)) {
+                log.info("Dropping the resources of {}/{}", key.account.getAccountId(), key.region);
+                return true;
+            }
+            return false;
+        });
+        retryAt.keySet().removeIf(removed);
+        restored.keySet().retainAll(names);
+    }
+
+    /**
+     * Applies resource changes to the snapshots of the account and region of the tenant, if they have been swept. The
+     * new snapshot keeps the time of the sweep, so the changes don't hold off the reconciling sweep.
+     *
+     * @param tenant  The tenant the account belongs to. The same account may be scraped for more than one tenant
+     * @param upserts The resources that were created or whose tags changed
+     * @param deletes The ARNs of the resources that were deleted
+     * @return Whether a snapshot was updated
+     */
+    public boolean applyChanges(String tenant, String accountId, String region, Collection<Item> upserts,
+                                Collection<String> deletes) {
+        boolean applied = false;
+        for (Key key : snapshots.keySet()) {
+            if (Objects.equals(key.account.getTenant(), tenant) && key.account.getAccountId().equals(accountId) &&
+                    key.region.equals(region)) {
+                applied |= snapshots.computeIfPresent(key,
+                        (k, snapshot) -> snapshot.apply(upserts, deletes)) != null;
+            }
+        }
+        return applied;
+    }
+
+    @VisibleForTesting
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private boolean isStale(Snapshot snapshot) {
+        return now() - snapshot.sweptAt >= refreshMillis;
+    }
+
+    /**
+     * @return Whether the last sweep of the key failed and it is too early to retry it
+     */
+    private boolean isRetryPending(Key key) {
+        Long at = retryAt.get(key);
+        return at != null && now() < at;
+    }
+
+    /**
+     * @return The snapshot to serve without a sweep, <code>null</code> if the resources have to be swept. After a
+     * failed sweep that is the previous snapshot, or no resources, until the sweep is retried
+     */
+    private Snapshot getCurrent(Key key) {
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot != null && !isStale(snapshot)) {
+            return snapshot;
+        }
+        if (isRetryPending(key)) {
+            return snapshot != null ? snapshot : new Snapshot(ImmutableList.of(), 0);
+        }
+        return null;
+    }
+
+    /**
+     * @return The restored snapshot of the key, if it hasn't been swept again yet
+     */
+    private Snapshot getRestored(Key key) {
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot == null) {
+            Snapshot restoredSnapshot = restored.remove(key.getName());
+            if (restoredSnapshot != null) {
+                snapshot = snapshots.putIfAbsent(key, restoredSnapshot);
+                snapshot = snapshot != null ? snapshot : restoredSnapshot;
+            }
+        }
+        return snapshot != null && snapshot.restored ? snapshot : null;
+    }
+
+    private void reconcile(Key key) {
+        if (isRetryPending(key) || !reconciling.add(key)) {
+            return;
+        }
+        if (awsClientProvider.isAsyncEnabled()) {
+            refresh(key, true).whenComplete((snapshot, e) -> reconciling.remove(key));
+            return;
+        }
+        try {
+            // The sync client blocks, so the restored snapshot is swept again in the background
+            taskThreadPool.getExecutorService().submit(() -> {
+                try {
+                    refresh(key, false).join();
+                } finally {
+                    reconciling.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error("Failed to sweep the restored resources of " + key.getName(), e);
+            reconciling.remove(key);
+        }
+    }
+
+    /**
+     * Sweeps the resources again, unless a sweep of the key is already in flight
+     *
+     * @return The new snapshot. If the sweep fails, the previous one, and the sweep isn't retried until later
+     */
+    private CompletableFuture<Snapshot> refresh(Key key, boolean async) {
+        CompletableFuture<Snapshot> refreshed = new CompletableFuture<>();
+        CompletableFuture<Snapshot> inFlight = sweeps.putIfAbsent(key, refreshed);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        CompletableFuture<List<Item>> items = new CompletableFuture<>();
+        try {
+            if (async) {
+                List<Item> swept = new ArrayList<>();
+                sweepAsync(awsClientProvider.getResourceTagAsyncClient(key.region, key.account), key.account,
+                        key.region, null, swept)
+                        .whenComplete((result, e) -> {
+                            if (e != null) {
+                                items.completeExceptionally(e);
+                            } else {
+                                items.complete(swept);
+                            }
+                        });
+            } else {
+                items.complete(sweep(key.account, key.region));
+            }
+        } catch (Exception e) {
+            items.completeExceptionally(e);
+        }
+        items.whenComplete((swept, e) -> {
+            Snapshot snapshot;
+            if (e != null) {
+                log.error("Failed to get resources using resource tag api, retrying in " +
+                        retryAfterFailureMillis + "ms", e);
+                // Better the previous resources than part of them
+                retryAt.put(key, now() + retryAfterFailureMillis);
+                Snapshot previous = snapshots.get(key);
+                snapshot = previous != null ? previous : new Snapshot(ImmutableList.of(), 0);
+            } else {
+                log.info("Found {} tagged resources in {}/{}", swept.size(), key.account.getAccountId(),
+                        key.region);
+                snapshot = new Snapshot(swept, now());
+                snapshots.put(key, snapshot);
+                retryAt.remove(key);
+            }
+            sweeps.remove(key, refreshed);
+            refreshed.complete(snapshot);
+        });
+        return refreshed;
+    }
+
+    @VisibleForTesting
+    List<Item> sweep(AWSAccount account, String region) {
+        List<Item> items = new ArrayList<>();
+        String nextToken = null;
+        ResourceGroupsTaggingApiClient client = awsClientProvider.getResourceTagClient(region, account);
+        do {
+            GetResourcesRequest req = GetResourcesRequest.builder()
+                    .paginationToken(nextToken)
+                    .build();
+            GetResourcesResponse response = rateLimiter.doWithRateLimit(GET_RESOURCES_OPERATION,
+                    getLabels(account, region), () -> client.getResources(req));
+            addItems(response, items);
+            nextToken = response.paginationToken();
+        } while (!StringUtils.isEmpty(nextToken));
+        return items;
+    }
+
+    private CompletableFuture<Void> sweepAsync(ResourceGroupsTaggingApiAsyncClient client, AWSAccount account,
+                                               String region, String nextToken, List<Item> items) {
+        GetResourcesRequest req = GetResourcesRequest.builder()
+                .paginationToken(nextToken)
+                .build();
+        return rateLimiter.doWithRateLimitAsync(GET_RESOURCES_OPERATION, getLabels(account, region),
+                        () -> client.getResources(req))
+                .thenCompose(response -> {
+                    addItems(response, items);
+                    if (!StringUtils.isEmpty(response.paginationToken())) {
+                        return sweepAsync(client, account, region, response.paginationToken(), items);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    private SortedMap<String, String> getLabels(AWSAccount account, String region) {
+        return ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, account.getAccountId(),
+                SCRAPE_REGION_LABEL, region,
+                SCRAPE_OPERATION_LABEL, GET_RESOURCES_OPERATION
+        );
+    }
+
+    private void addItems(GetResourcesResponse response, List<Item> items) {
+        if (response.hasResourceTagMappingList()) {
+            response.resourceTagMappingList().forEach(mapping ->
+                    items.add(new Item(mapping.resourceARN(), ImmutableList.copyOf(mapping.tags()))));
+        }
+    }
+
+    /**
+     * A resource as returned by the tag API, with all its tags
+     */
+    @AllArgsConstructor
+    @Getter
+    @EqualsAndHashCode
+    @ToString
+    public static class Item {
+        private final String arn;
+        private final List<Tag> tags;
+    }
+
+    /**
+     * An immutable snapshot of the resources, indexed by the <code>service</code> and <code>service:type</code>
+     * resource type filters of the tag API, by ARN and by tag
+     */
+    public static class Snapshot {
+        @Getter
+        private final List<Item> items;
+        private final Map<String, List<Item>> byResourceType;
+        private final Map<String, Item> byArn;
+        private final Map<String, Map<String, List<Item>>> byTag;
+        @Getter
+        private final long sweptAt;
+        /**
+         * Whether the snapshot was restored from the snapshot file, and has yet to be swept again
+         */
+        private final boolean restored;
+
+        @VisibleForTesting
+        Snapshot(List<Item> items) {
+            this(items, System.currentTimeMillis());
+        }
+
+        @VisibleForTesting
+        Snapshot(List<Item> items, long sweptAt) {
+            this(items, sweptAt, false);
+        }
+
+        Snapshot(List<Item> items, long sweptAt, boolean restored) {
+            this.sweptAt = sweptAt;
+            this.restored = restored;
+            Map<String, List<Item>> byResourceType = new HashMap<>();
+            Map<String, Item> byArn = new HashMap<>();
+            Map<String, Map<String, List<Item>>> byTag = new HashMap<>();
+            items.forEach(item -> {
+                byArn.put(item.arn, item);
+                resourceTypes(item.arn).forEach(type ->
+                        byResourceType.computeIfAbsent(type, k -> new ArrayList<>()).add(item));
+                item.tags.forEach(tag -> byTag.computeIfAbsent(tag.key(), k -> new HashMap<>())
+                        .computeIfAbsent(tag.value(), k -> new ArrayList<>()).add(item));
+            });
+            this.items = ImmutableList.copyOf(items);
+            this.byResourceType = ImmutableMap.copyOf(byResourceType);
+            this.byArn = ImmutableMap.copyOf(byArn);
+            this.byTag = ImmutableMap.copyOf(byTag);
+        }
+
+        public Item getByArn(String arn) {
+            return byArn.get(arn);
+        }
+
+        /**
+         * @return A snapshot of the same sweep, with the resources added or replaced and the deleted ones removed. As
+         * the sweep only finds the resources that are or were tagged, an untagged resource is only replaced, not added
+         */
+        public Snapshot apply(Collection<Item> upserts, Collection<String> deletes) {
+            Map<String, Item> updated = new LinkedHashMap<>();
+            items.forEach(item -> updated.put(item.arn, item));
+            upserts.stream()
+                    .filter(item -> !item.tags.isEmpty() || updated.containsKey(item.arn))
+                    .forEach(item -> updated.put(item.arn, item));
+            deletes.forEach(updated::remove);
+            return new Snapshot(new ArrayList<>(updated.values()), sweptAt, restored);
+        }
+
+        /**
+         * @param resourceTypeFilters The resource type filters as the tag API takes them, <code>service</code> or
+         *                            <code>service:type</code>. Any resource matches if there are none
+         * @param tagFilters          The resource has to have each tag with one of the values. Any value matches if
+         *                            a tag has none
+         * @return The matching resources
+         */
+        public Set<Item> find(Collection<String> resourceTypeFilters,
+                              Map<String, ? extends Collection<String>> tagFilters) {
+            Set<Item> matches = new LinkedHashSet<>();
+            if (resourceTypeFilters == null || resourceTypeFilters.isEmpty()) {
+                matches.addAll(items);
+            } else {
+                resourceTypeFilters.forEach(filter -> {
+                    matches.addAll(byResourceType.getOrDefault(filter, ImmutableList.of()));
+                    int colon = filter.indexOf(':');
+                    if (colon > 0) {
+                        matches.addAll(byResourceType.getOrDefault(filter.substring(0, colon) + ":*",
+                                ImmutableList.of()));
+                    }
+                });
+            }
+            if (tagFilters != null) {
+                tagFilters.forEach((key, values) -> {
+                    Map<String, List<Item>> byValue = byTag.getOrDefault(key, ImmutableMap.of());
+                    Set<Item> tagged = new LinkedHashSet<>();
+                    if (values == null || values.isEmpty()) {
+                        byValue.values().forEach(tagged::addAll);
+                    } else {
+                        values.forEach(value -> tagged.addAll(byValue.getOrDefault(value, ImmutableList.of())));
+                    }
+                    matches.retainAll(tagged);
+                });
+            }
+            return matches;
+        }
+
+        /**
+         * @return The resource type filters that match the ARN: the service and, if the resource part of the ARN
+         * starts with a type, e.g. <code>function:</code> or <code>table/</code>, the service with the type. The
+         * services that have a single resource type, like SQS and SNS, leave the type out of the ARN, so they also
+         * match the service with any type.
+         */
+        @VisibleForTesting
+        static List<String> resourceTypes(String arn) {
+            return Arn.parse(arn)
+                    .map(parsed -> ImmutableList.of(parsed.getService(), parsed.getService() + ":" +
+                            (parsed.getResourceType() != null ? parsed.getResourceType() : "*")))
+                    .orElse(ImmutableList.of());
+        }
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class Key {
+        private final AWSAccount account;
+        private final String region;
+
+        /**
+         * @return The name of the key in the snapshot file
+         */
+        private String getName() {
+            return Strings.nullToEmpty(account.getTenant()) + "/" + account.getAccountId() + "/" + region;
+        }
+    }
+}
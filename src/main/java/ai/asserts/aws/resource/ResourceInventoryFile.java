@@ -0,0 +1,96 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import com.google.common.base.Strings;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes the snapshots of the {@link ResourceInventory} in a compact binary format, so that a restarted
+ * exporter can serve the resources right away. The file starts with a magic number and the version of the format.
+ * A file of another version is rejected, and the inventory is swept from scratch.
+ * <pre>
+ * magic version count
+ * (key sweptAt itemCount (arn tagCount (tagKey tagValue)*)*)*
+ * </pre>
+ */
+final class ResourceInventoryFile {
+    static final int MAGIC = 0x41575249;
+    static final int VERSION = 1;
+
+    private ResourceInventoryFile() {
+    }
+
+    static void write(Map<String, ResourceInventory.Snapshot> snapshots, OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(out));
+        DataOutputStream data = new DataOutputStream(gzip);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(snapshots.size());
+        for (Map.Entry<String, ResourceInventory.Snapshot> entry : snapshots.entrySet()) {
+            data.writeUTF(entry.getKey());
+            data.writeLong(entry.getValue().getSweptAt());
+            List<ResourceInventory.Item> items = entry.getValue().getItems();
+            data.writeInt(items.size());
+            for (ResourceInventory.Item item : items) {
+                data.writeUTF(item.getArn());
+                data.writeInt(item.getTags().size());
+                for (Tag tag : item.getTags()) {
+                    data.writeUTF(tag.key());
+                    data.writeUTF(Strings.nullToEmpty(tag.value()));
+                }
+            }
+        }
+        gzip.finish();
+        data.flush();
+    }
+
+    /**
+     * @return The snapshots by key, marked as restored
+     */
+    static Map<String, ResourceInventory.Snapshot> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new GZIPInputStream(new BufferedInputStream(in)));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a resource inventory file");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported resource inventory file version " + version);
+        }
+        Map<String, ResourceInventory.Snapshot> snapshots = new LinkedHashMap<>();
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = data.readUTF();
+            long sweptAt = data.readLong();
+            int itemCount = data.readInt();
+            List<ResourceInventory.Item> items = new ArrayList<>(itemCount);
+            for (int j = 0; j < itemCount; j++) {
+                String arn = data.readUTF();
+                int tagCount = data.readInt();
+                List<Tag> tags = new ArrayList<>(tagCount);
+                for (int k = 0; k < tagCount; k++) {
+                    tags.add(Tag.builder().key(data.readUTF()).value(data.readUTF()).build());
+                }
+                items.add(new ResourceInventory.Item(arn, tags));
+            }
+            snapshots.put(key, new ResourceInventory.Snapshot(items, sweptAt, true));
+        }
+        return snapshots;
+    }
+}
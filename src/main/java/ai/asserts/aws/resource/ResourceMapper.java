@@ -1,11 +1,17 @@
 
 package ai.asserts.aws.resource;
 
-import ai.asserts.aws.TaskExecutorUtil;
-import com.google.common.collect.ImmutableList;
+import ai.asserts.aws.account.AWSAccount;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+import lombok.NonNull;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
+import java.util.ArrayList;
 import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -77,16 +83,30 @@ public class ResourceMapper {
             Pattern.compile("arn:aws:firehose:(.+?):(.+?):deliverystream/(.+)");
     public static final Pattern REDSHIFT_PATTERN = Pattern.compile("arn:aws:redshift:(.+?):(.+?):cluster/(.+)");
 
-    private final List<Mapper> mappers;
+    /**
+     * The key of the mappers of the identifiers that are not ARNs, like the SQS queue URLs
+     */
+    private static final String NOT_AN_ARN = "";
+    private static final int MAX_CACHED_ARNS = 100000;
+
+    private final ListMultimap<String, Mapper> mappers;
+    private final LoadingCache<String, Optional<Resource>> resourceCache;
 
-    public ResourceMapper(TaskExecutorUtil taskExecutorUtil) {
-        this.mappers = new ImmutableList.Builder<Mapper>()
-                .add(arn -> {
+    public ResourceMapper() {
+        this.resourceCache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CACHED_ARNS)
+                .build(new CacheLoader<String, Optional<Resource>>() {
+                    @Override
+                    public Optional<Resource> load(@NonNull String arn) {
+                        return parse(arn);
+                    }
+                });
+        this.mappers = new ImmutableListMultimap.Builder<String, Mapper>()
+                .put("redshift", arn -> {
                     if (arn.contains(":redshift:") && arn.contains(":cluster/")) {
                         Matcher matcher = REDSHIFT_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(Redshift)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -97,12 +117,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("firehose", arn -> {
                     if (arn.contains(":firehose:") && arn.contains(":deliverystream/")) {
                         Matcher matcher = KINESIS_FIREHOSE_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(KinesisDataFirehose)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -113,12 +132,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("kinesisanalytics", arn -> {
                     if (arn.contains(":kinesisanalytics:") && arn.contains(":application/")) {
                         Matcher matcher = KINESIS_ANALYTICS_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(KinesisAnalytics)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -129,12 +147,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("kinesis", arn -> {
                     if (arn.contains(":kinesis:") && arn.contains(":stream/")) {
                         Matcher matcher = KINESIS_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(Kinesis)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -145,12 +162,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("ec2", arn -> {
                     if (arn.contains(":ec2:") && arn.contains(":instance")) {
                         Matcher matcher = EC2_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(EC2Instance)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -161,12 +177,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("cloudwatch", arn -> {
                     if (arn.contains(":alarm:")) {
                         Matcher matcher = ALARM_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(Alarm)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -177,12 +192,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("sqs", arn -> {
                     if (arn.contains(":sqs")) {
                         Matcher matcher = SQS_QUEUE_ARN_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(SQSQueue)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -193,12 +207,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("dynamodb", arn -> {
                     if (arn.contains(":dynamodb") && arn.contains(":table/")) {
                         Matcher matcher = DYNAMODB_TABLE_ARN_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(DynamoDBTable)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -209,12 +222,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("lambda", arn -> {
                     if (arn.contains(":lambda") && arn.contains(":function:")) {
                         Matcher matcher = LAMBDA_ARN_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(LambdaFunction)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -225,12 +237,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("s3", arn -> {
                     if (arn.contains(":s3")) {
                         Matcher matcher = S3_ARN_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(S3Bucket)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -241,12 +252,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("sns", arn -> {
                     if (arn.contains(":sns")) {
                         Matcher matcher = SNS_ARN_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(SNSTopic)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -257,12 +267,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("events", arn -> {
                     if (arn.contains(":events") && arn.contains(":event-bus/")) {
                         Matcher matcher = EVENTBUS_ARN_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(EventBus)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -273,12 +282,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("ecs", arn -> {
                     if (arn.contains(":ecs") && arn.contains(":cluster/")) {
                         Matcher matcher = ECS_CLUSTER_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(ECSCluster)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -289,12 +297,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("ecs", arn -> {
                     if (arn.contains(":ecs") && arn.contains(":service/")) {
                         Matcher matcher = ECS_SERVICE_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(ECSService)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -311,14 +318,13 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("ecs", arn -> {
                     if (arn.contains(":ecs") && arn.contains(":task-definition/")) {
                         Matcher matcher = ECS_TASK_DEFINITION_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             Resource.ResourceBuilder builder = Resource.builder();
                             String[] nameAndVersion = matcher.group(3).split(":");
                             return Optional.of(builder
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(ECSTaskDef)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -330,12 +336,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("ecs", arn -> {
                     if (arn.contains(":ecs") && arn.contains(":task/")) {
                         Matcher matcher = ECS_TASK_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(ECSTask)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -352,12 +357,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("elasticloadbalancing", arn -> {
                     if (arn.contains("arn:aws:elasticloadbalancing") && arn.contains("loadbalancer")) {
                         Matcher matcher = LB_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(LoadBalancer)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -370,12 +374,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("elasticloadbalancing", arn -> {
                     if (arn.contains("arn:aws:elasticloadbalancing") && arn.contains("targetgroup")) {
                         Matcher matcher = TARGET_GROUP_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(TargetGroup)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -387,12 +390,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put(NOT_AN_ARN, arn -> {
                     if (arn.contains("https://sqs")) {
                         Matcher matcher = SQS_URL.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(SQSQueue)
                                     .arn(String.format("arn:aws:sqs:%s:%s:%s", matcher.group(1), matcher.group(2),
                                             matcher.group(3)))
@@ -404,12 +406,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("autoscaling", arn -> {
                     if (arn.contains("arn:aws:autoscaling:")) {
                         Matcher matcher = ASG_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(AutoScalingGroup)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -421,12 +422,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("apigateway", arn -> {
                     if (arn.contains(":apigateway:") && arn.contains("/methods/")) {
                         Matcher matcher = APIGATEWAY_METHOD_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(APIGatewayMethod)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -444,12 +444,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("apigateway", arn -> {
                     if (arn.contains(":apigateway:") && arn.contains("/stages/")) {
                         Matcher matcher = APIGATEWAY_STAGE_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(APIGatewayStage)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -467,12 +466,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("apigateway", arn -> {
                     if (arn.contains(":apigateway:") && arn.contains("/resources/")) {
                         Matcher matcher = APIGATEWAY_RESOURCE_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(APIGatewayResource)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -490,12 +488,11 @@ public class ResourceMapper {
                     }
                     return Optional.empty();
                 })
-                .add(arn -> {
+                .put("apigateway", arn -> {
                     if (arn.contains(":apigateway:")) {
                         Matcher matcher = APIGATEWAY_PATTERN.matcher(arn);
                         if (matcher.matches()) {
                             return Optional.of(Resource.builder()
-                                    .tenant(taskExecutorUtil.getAccountDetails().getTenant())
                                     .type(ApiGateway)
                                     .arn(arn)
                                     .region(matcher.group(1))
@@ -510,11 +507,33 @@ public class ResourceMapper {
                 .build();
     }
 
-    public Optional<Resource> map(String arn) {
-        return mappers.stream()
-                .map(mapper -> mapper.get(arn))
-                .filter(Optional::isPresent)
-                .findFirst().orElse(Optional.empty());
+    /**
+     * The same ARNs are mapped every cycle, so the parsed resources are cached. The cache holds the resources that
+     * are not mapped too, as most of the ARNs in an inventory are of services that are not mapped. The cached
+     * resources don't depend on the account, so each caller gets its own copy with the tenant of the given account,
+     * as the tags of a resource are set by the caller.
+     */
+    public Optional<Resource> map(AWSAccount account, String arn) {
+        return resourceCache.getUnchecked(arn)
+                .map(resource -> resource.toBuilder()
+                        .tenant(account != null ? account.getTenant() : null)
+                        .tags(new ArrayList<>())
+                        .build());
+    }
+
+    /**
+     * Tokenizes the ARN once and only tries the mappers of its service, in order
+     */
+    @VisibleForTesting
+    Optional<Resource> parse(String arn) {
+        String key = Arn.parse(arn).map(Arn::getService).orElse(NOT_AN_ARN);
+        for (Mapper mapper : mappers.get(key)) {
+            Optional<Resource> resource = mapper.get(arn);
+            if (resource.isPresent()) {
+                return resource;
+            }
+        }
+        return Optional.empty();
     }
 
     public interface Mapper {
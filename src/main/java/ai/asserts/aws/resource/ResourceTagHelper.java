@@ -5,47 +5,41 @@
 package ai.asserts.aws.resource;
 
 import ai.asserts.aws.AWSClientProvider;
-import ai.asserts.aws.AWSApiCallRateLimiter;
 import ai.asserts.aws.ScrapeConfigProvider;
+import ai.asserts.aws.TaskThreadPool;
 import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.account.AccountTenantMapper;
 import ai.asserts.aws.config.NamespaceConfig;
 import ai.asserts.aws.config.ScrapeConfig;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSet;
 import io.micrometer.core.instrument.util.StringUtils;
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
-import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 import software.amazon.awssdk.services.autoscaling.AutoScalingClient;
 import software.amazon.awssdk.services.elasticloadbalancing.ElasticLoadBalancingClient;
 import software.amazon.awssdk.services.elasticloadbalancing.model.DescribeTagsRequest;
 import software.amazon.awssdk.services.elasticloadbalancing.model.DescribeTagsResponse;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesRequest;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesResponse;
 import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.TagFilter;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_NAMESPACE_LABEL;
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
 import static ai.asserts.aws.resource.ResourceType.AutoScalingGroup;
 import static ai.asserts.aws.resource.ResourceType.LoadBalancer;
 import static java.lang.String.format;
@@ -53,120 +47,136 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.joining;
 
+/**
+ * Finds the resources of a namespace or of a resource type, with the tags to export. The resources are taken from the
+ * {@link ResourceInventory} snapshot of the account and region, instead of a <code>GetResources</code> call per
+ * namespace and exporter.
+ */
 @Component
 @Slf4j
 public class ResourceTagHelper {
     private final AWSClientProvider awsClientProvider;
     private final ResourceMapper resourceMapper;
-    private final LoadingCache<Key, Set<Resource>> resourceCache;
+    private final ResourceInventory resourceInventory;
+    private final Cache<Key, FilteredResources> resourceCache;
     private final ScrapeConfigProvider scrapeConfigProvider;
-    private final AWSApiCallRateLimiter rateLimiter;
     private final AccountTenantMapper accountTenantMapper;
+    private final TaskThreadPool taskThreadPool;
 
     public ResourceTagHelper(ScrapeConfigProvider scrapeConfigProvider,
                              AWSClientProvider awsClientProvider, ResourceMapper resourceMapper,
-                             AWSApiCallRateLimiter rateLimiter,
-                             AccountTenantMapper accountTenantMapper) {
+                             ResourceInventory resourceInventory,
+                             AccountTenantMapper accountTenantMapper,
+                             @Qualifier("aws-api-calls-thread-pool") TaskThreadPool taskThreadPool) {
         this.scrapeConfigProvider = scrapeConfigProvider;
+        this.taskThreadPool = taskThreadPool;
         this.awsClientProvider = awsClientProvider;
         this.resourceMapper = resourceMapper;
-        this.rateLimiter = rateLimiter;
+        this.resourceInventory = resourceInventory;
         this.accountTenantMapper = accountTenantMapper;
-
-        resourceCache = CacheBuilder.newBuilder()
+        this.resourceCache = CacheBuilder.newBuilder()
                 .expireAfterWrite(5, MINUTES)
-                .build(new CacheLoader<Key, Set<Resource>>() {
-                    @Override
-                    public Set<Resource> load(@NonNull Key key) {
-                        return getResourcesInternal(key);
-                    }
-                });
+                .build();
     }
 
     public Set<Resource> getFilteredResources(AWSAccount accountRegion, String region,
                                               NamespaceConfig namespaceConfig) {
-        return resourceCache.getUnchecked(Key.builder()
+        return getResourceIndex(accountRegion, region, namespaceConfig).getResources();
+    }
+
+    /**
+     * @return The resources of {@link #getFilteredResources(AWSAccount, String, NamespaceConfig)}, indexed by their
+     * metric dimensions. The index is built once per inventory snapshot
+     */
+    public ResourceIndex getResourceIndex(AWSAccount accountRegion, String region,
+                                          NamespaceConfig namespaceConfig) {
+        return filterResources(Key.builder()
+                .accountRegion(accountRegion)
+                .region(region)
+                .namespace(namespaceConfig)
+                .build(), resourceInventory.getSnapshot(accountRegion, region));
+    }
+
+    /**
+     * Async variant of {@link #getResourceIndex(AWSAccount, String, NamespaceConfig)}, which waits for the inventory
+     * snapshot without blocking if it is not in the cache. A snapshot that is swept for this call completes on a
+     * thread of the async client, so the resources are then mapped on the AWS API calls pool instead.
+     */
+    public CompletableFuture<ResourceIndex> getResourceIndexAsync(AWSAccount accountRegion, String region,
+                                                                  NamespaceConfig namespaceConfig) {
+        Key key = Key.builder()
                 .accountRegion(accountRegion)
                 .region(region)
                 .namespace(namespaceConfig)
-                .build());
+                .build();
+        CompletableFuture<ResourceInventory.Snapshot> snapshot =
+                resourceInventory.getSnapshotAsync(accountRegion, region);
+        if (snapshot.isDone()) {
+            return snapshot.thenApply(done -> filterResources(key, done));
+        }
+        return snapshot.thenApplyAsync(swept -> filterResources(key, swept), taskThreadPool.getExecutorService());
     }
 
-    private Set<Resource> getResourcesInternal(Key key) {
+    /**
+     * The resources of a namespace are mapped and indexed once per inventory snapshot
+     */
+    private ResourceIndex filterResources(Key key, ResourceInventory.Snapshot snapshot) {
+        FilteredResources cached = resourceCache.getIfPresent(key);
+        if (cached != null && cached.snapshot == snapshot) {
+            return cached.index;
+        }
         Set<Resource> resources = new HashSet<>();
         scrapeConfigProvider.getStandardNamespace(key.namespace.getName()).ifPresent(cwNamespace -> {
-            GetResourcesRequest.Builder builder = GetResourcesRequest.builder();
+            Set<String> resourceTypeFilters;
             if (cwNamespace.getResourceTypes().size() > 0) {
-                Set<String> resourceTypeFilters = cwNamespace.getResourceTypes().stream()
+                resourceTypeFilters = cwNamespace.getResourceTypes().stream()
                         .map(type -> format("%s:%s", cwNamespace.getServiceNameForTagApi(), type))
                         .collect(Collectors.toSet());
-                builder = builder.resourceTypeFilters(resourceTypeFilters);
-                log.debug("Applying resource type filters {}", resourceTypeFilters);
             } else {
-                builder = builder.resourceTypeFilters(cwNamespace.getServiceNameForTagApi());
-                log.debug("Applying resource type filters {}", cwNamespace.getServiceNameForTagApi());
+                resourceTypeFilters = ImmutableSet.of(cwNamespace.getServiceNameForTagApi());
             }
+            log.debug("Applying resource type filters {}", resourceTypeFilters);
+            resources.addAll(mapResources(key.accountRegion, snapshot.find(resourceTypeFilters,
+                    key.namespace.hasTagFilters() ? key.namespace.getTagFilters() : null)));
+            logResources(resources);
+        });
+        ResourceIndex index = new ResourceIndex(resources);
+        resourceCache.put(key, new FilteredResources(snapshot, index));
+        return index;
+    }
 
-            if (key.getNamespace().hasTagFilters()) {
-                builder = builder.tagFilters(key.getNamespace().getTagFilters().entrySet().stream()
-                        .map(entry -> TagFilter.builder()
-                                .key(entry.getKey())
-                                .values(entry.getValue())
-                                .build())
-                        .collect(Collectors.toSet()));
-            }
+    private void logResources(Set<Resource> resources) {
+        if (resources.size() > 0) {
+            log.info("Found {}", resources.stream()
+                    .collect(groupingBy(Resource::getType))
+                    .entrySet()
+                    .stream()
+                    .map(entry -> format("%d %s(s)", entry.getValue().size(), entry.getKey().name()))
+                    .collect(joining(", ")));
+        }
+    }
 
-            ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of(
-                    SCRAPE_REGION_LABEL, key.region,
-                    SCRAPE_NAMESPACE_LABEL, key.namespace.getName(),
-                    SCRAPE_OPERATION_LABEL, "ResourceGroupsTaggingApiClient/getResources"
-            );
-            resources.addAll(getResourcesWithTag(key.accountRegion, key.region, labels, builder));
-            if (resources.size() > 0) {
-                log.info("Found {}", resources.stream()
-                        .collect(groupingBy(Resource::getType))
-                        .entrySet()
-                        .stream()
-                        .map(entry -> format("%d %s(s)", entry.getValue().size(), entry.getKey().name()))
-                        .collect(joining(", ")));
-            }
-        });
-        return resources;
+    /**
+     * @param resourceType The resource type filter as the tag API takes it, e.g. <code>sqs:queue</code>
+     * @return The resources of the type in the inventory snapshot
+     */
+    @VisibleForTesting
+    Set<Resource> getResources(AWSAccount accountRegion, String region, String resourceType) {
+        return mapResources(accountRegion, resourceInventory.getSnapshot(accountRegion, region)
+                .find(ImmutableSet.of(resourceType), null));
     }
 
-    public Set<Resource> getResourcesWithTag(AWSAccount accountRegion, String region, SortedMap<String, String> labels,
-                                             GetResourcesRequest.Builder builder) {
+    private Set<Resource> mapResources(AWSAccount accountRegion, Collection<ResourceInventory.Item> items) {
         ScrapeConfig scrapeConfig = scrapeConfigProvider.getScrapeConfig(
                 accountTenantMapper.getTenantName(accountRegion.getAccountId())
         );
         Set<Resource> resources = new HashSet<>();
-        String nextToken = null;
-        try {
-            ResourceGroupsTaggingApiClient client = awsClientProvider.getResourceTagClient(region, accountRegion);
-            do {
-                GetResourcesRequest req = builder
-                        .paginationToken(nextToken)
-                        .build();
-                SortedMap<String, String> telemetryLabels = new TreeMap<>(labels);
-                telemetryLabels.put(SCRAPE_ACCOUNT_ID_LABEL, accountRegion.getAccountId());
-                telemetryLabels.put(SCRAPE_OPERATION_LABEL, "ResourceGroupsTaggingApiClient/getResources");
-                GetResourcesResponse response = rateLimiter.doWithRateLimit(
-                        "ResourceGroupsTaggingApiClient/getResources", telemetryLabels, () -> client.getResources(req));
-
-                if (response.hasResourceTagMappingList()) {
-                    response.resourceTagMappingList().forEach(resourceTagMapping ->
-                            resourceMapper.map(resourceTagMapping.resourceARN()).ifPresent(resource -> {
-                                resource.setTags(resourceTagMapping.tags().stream()
-                                        .filter(t -> scrapeConfig.shouldExportTag(t.key(), t.value()))
-                                        .collect(Collectors.toList()));
-                                resources.add(resource);
-                            }));
-                }
-                nextToken = response.paginationToken();
-            } while (!StringUtils.isEmpty(nextToken));
-        } catch (Exception e) {
-            log.error("Failed to get resources using resource tag api", e);
-        }
+        items.forEach(item -> resourceMapper.map(accountRegion, item.getArn()).ifPresent(resource -> {
+            resource.setTags(item.getTags().stream()
+                    .filter(t -> scrapeConfig.shouldExportTag(t.key(), t.value()))
+                    .collect(Collectors.toList()));
+            resources.add(resource);
+        }));
         return resources;
     }
 
@@ -181,12 +191,7 @@ public class ResourceTagHelper {
         }
         resourceNames = resourceNames.stream().filter(StringUtils::isNotEmpty).collect(Collectors.toList());
         Map<String, List<Tag>> classLBTagsByName = new TreeMap<>();
-        Set<Resource> resources = new HashSet<>(getResourcesWithTag(accountRegion, region,
-                ImmutableSortedMap.of(
-                        SCRAPE_ACCOUNT_ID_LABEL, accountRegion.getAccountId(),
-                        SCRAPE_REGION_LABEL, region,
-                        SCRAPE_OPERATION_LABEL, "ConfigClient/listDiscoveredResources"
-                ), GetResourcesRequest.builder().resourceTypeFilters(resourceType)));
+        Set<Resource> resources = new HashSet<>(getResources(accountRegion, region, resourceType));
         if (resourceType.equals("AWS::ElasticLoadBalancing::LoadBalancer")) {
             try {
                 ElasticLoadBalancingClient elbClient = awsClientProvider.getELBClient(region, accountRegion);
@@ -257,4 +262,10 @@ public class ResourceTagHelper {
         private final String region;
         private final NamespaceConfig namespace;
     }
+
+    @AllArgsConstructor
+    private static class FilteredResources {
+        private final ResourceInventory.Snapshot snapshot;
+        private final ResourceIndex index;
+    }
 }
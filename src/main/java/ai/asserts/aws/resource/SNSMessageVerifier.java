@@ -0,0 +1,118 @@
+/*
+ *  Copyright © 2022.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+/**
+ * Verifies the signature of the messages that SNS posts to an HTTP subscription, so that the resource changes can't
+ * be forged by anyone who can reach the endpoint. See
+ * https://docs.aws.amazon.com/sns/latest/dg/sns-verify-signature-of-message.html
+ */
+@Component
+@Slf4j
+public class SNSMessageVerifier {
+    private static final Pattern SIGNING_CERT_HOST = Pattern.compile("sns\\.[a-z0-9-]+\\.amazonaws\\.com(\\.cn)?");
+    private static final List<String> NOTIFICATION_FIELDS = ImmutableList.of(
+            "Message", "MessageId", "Subject", "Timestamp", "TopicArn", "Type");
+    private static final List<String> CONFIRMATION_FIELDS = ImmutableList.of(
+            "Message", "MessageId", "SubscribeURL", "Timestamp", "Token", "TopicArn", "Type");
+
+    private final LoadingCache<String, PublicKey> publicKeys = CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .expireAfterWrite(24, HOURS)
+            .build(new CacheLoader<String, PublicKey>() {
+                @Override
+                public PublicKey load(@NonNull String certURL) throws Exception {
+                    return getPublicKey(certURL);
+                }
+            });
+
+    /**
+     * @param envelope The message as SNS posts it
+     * @return Whether the message is signed by SNS
+     */
+    public boolean verify(JsonNode envelope) {
+        String certURL = envelope.path("SigningCertURL").asText();
+        if (!isSNSCertificate(certURL)) {
+            log.warn("SNS message signed with a certificate from an unexpected location {}", certURL);
+            return false;
+        }
+        String algorithm;
+        String version = envelope.path("SignatureVersion").asText();
+        if ("1".equals(version)) {
+            algorithm = "SHA1withRSA";
+        } else if ("2".equals(version)) {
+            algorithm = "SHA256withRSA";
+        } else {
+            log.warn("SNS message with unknown signature version {}", version);
+            return false;
+        }
+        try {
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initVerify(publicKeys.get(certURL));
+            signature.update(stringToSign(envelope).getBytes(StandardCharsets.UTF_8));
+            return signature.verify(Base64.getDecoder().decode(envelope.path("Signature").asText()));
+        } catch (Exception e) {
+            log.warn("Failed to verify the signature of SNS message " + envelope.path("MessageId").asText(), e);
+            return false;
+        }
+    }
+
+    @VisibleForTesting
+    PublicKey getPublicKey(String certURL) throws Exception {
+        try (InputStream in = URI.create(certURL).toURL().openStream()) {
+            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(in);
+            certificate.checkValidity();
+            return certificate.getPublicKey();
+        }
+    }
+
+    @VisibleForTesting
+    static String stringToSign(JsonNode envelope) {
+        List<String> fields = "Notification".equals(envelope.path("Type").asText()) ?
+                NOTIFICATION_FIELDS : CONFIRMATION_FIELDS;
+        StringBuilder builder = new StringBuilder();
+        for (String field : fields) {
+            // Only the subject of a notification is optional
+            if (envelope.has(field)) {
+                builder.append(field).append("\n").append(envelope.get(field).asText()).append("\n");
+            }
+        }
+        return builder.toString();
+    }
+
+    private boolean isSNSCertificate(String certURL) {
+        try {
+            URI uri = URI.create(certURL);
+            return "https".equals(uri.getScheme()) && uri.getHost() != null &&
+                    SIGNING_CERT_HOST.matcher(uri.getHost()).matches() && uri.getPath().endsWith(".pem");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
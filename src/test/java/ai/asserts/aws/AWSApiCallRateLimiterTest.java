@@ -4,6 +4,7 @@
  */
 package ai.asserts.aws;
 
+import ai.asserts.aws.Deadline.DeadlineExceededException;
 import ai.asserts.aws.exporter.BasicMetricCollector;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
@@ -11,16 +12,27 @@ import org.junit.jupiter.api.Test;
 
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static ai.asserts.aws.MetricNameUtil.ASSERTS_ERROR_TYPE;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_ERROR_COUNT_METRIC;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_LATENCY_METRIC;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("unused")
@@ -68,6 +80,73 @@ public class AWSApiCallRateLimiterTest extends EasyMockSupport {
         verifyAll();
     }
 
+    @Test
+    public void doWithRateLimitAsync() {
+        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), eq(labels), anyLong());
+        SortedMap<String, String> errorLabels = new TreeMap<>(labels);
+        errorLabels.put(ASSERTS_ERROR_TYPE, "IllegalStateException");
+        metricCollector.recordCounterValue(SCRAPE_ERROR_COUNT_METRIC, errorLabels, 1);
+        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), eq(labels), anyLong());
+        replayAll();
+
+        assertEquals("result", rateLimiter.doWithRateLimitAsync("Client/API", labels,
+                () -> CompletableFuture.completedFuture("result")).join());
+
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException());
+        assertThrows(CompletionException.class, () -> rateLimiter.doWithRateLimitAsync("Client/API", labels,
+                () -> failed).join());
+        verifyAll();
+    }
+
+    @Test
+    public void doWithRateLimitAsync_waitsForPermitOffCallingThread() {
+        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), eq(labels), anyLong());
+        expectLastCall().times(2);
+        replayAll();
+
+        AtomicReference<Thread> first = new AtomicReference<>();
+        AtomicReference<Thread> second = new AtomicReference<>();
+        rateLimiter.doWithRateLimitAsync("Client/API", labels, () -> {
+            first.set(Thread.currentThread());
+            return CompletableFuture.completedFuture("result");
+        }).join();
+        CompletableFuture<String> throttled = rateLimiter.doWithRateLimitAsync("Client/API", labels, () -> {
+            second.set(Thread.currentThread());
+            return CompletableFuture.completedFuture("result");
+        });
+        // The second call has to wait for its permit, which doesn't block the calling thread
+        assertNull(second.get());
+        assertEquals("result", throttled.join());
+        assertSame(Thread.currentThread(), first.get());
+        assertNotSame(Thread.currentThread(), second.get());
+        assertTrue(second.get().getName().startsWith("aws-api-permits"));
+        verifyAll();
+    }
+
+    @Test
+    public void doWithRateLimitAsync_deadlineExpiresWaitingForPermit() throws Exception {
+        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), eq(labels), anyLong());
+        expectLastCall().times(2);
+        SortedMap<String, String> errorLabels = new TreeMap<>(labels);
+        errorLabels.put(ASSERTS_ERROR_TYPE, "DeadlineExceededException");
+        metricCollector.recordCounterValue(SCRAPE_ERROR_COUNT_METRIC, errorLabels, 1);
+        replayAll();
+
+        rateLimiter.doWithRateLimitAsync("Client/API", labels,
+                () -> CompletableFuture.completedFuture("result")).join();
+        AtomicBoolean called = new AtomicBoolean();
+        CompletableFuture<String> throttled = Deadline.after(100, MILLISECONDS).call(() ->
+                rateLimiter.doWithRateLimitAsync("Client/API", labels, () -> {
+                    called.set(true);
+                    return CompletableFuture.completedFuture("result");
+                }));
+        CompletionException e = assertThrows(CompletionException.class, throttled::join);
+        assertTrue(e.getCause() instanceof DeadlineExceededException);
+        assertFalse(called.get());
+        verifyAll();
+    }
+
     private void sleep() {
         try {
             Thread.sleep(2000);
@@ -0,0 +1,121 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.cloudwatch.query.MetricQuery;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Metric;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static ai.asserts.aws.AWSApiCostTracker.API_COST_METRIC;
+import static ai.asserts.aws.AWSApiCostTracker.BUDGET_EXHAUSTED_METRIC;
+import static ai.asserts.aws.AWSApiCostTracker.METRICS_REQUESTED_METRIC;
+import static ai.asserts.aws.AWSApiCostTracker.SHED_QUERIES_METRIC;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+import static ai.asserts.aws.exporter.MetricScrapeTask.GET_METRIC_DATA_OPERATION;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class AWSApiCostTrackerTest {
+    private LocalDate today;
+    private AWSApiCostTracker testClass;
+
+    @BeforeEach
+    public void setup() {
+        today = LocalDate.of(2021, 6, 1);
+        testClass = new AWSApiCostTracker(null, 10.0, "cloudwatchclient/listmetrics=5", 0.5, 0.3, "AWS/S3") {
+            @Override
+            LocalDate today() {
+                return today;
+            }
+        };
+    }
+
+    @Test
+    public void recordApiCall() {
+        testClass.recordApiCall("CloudWatchClient/ListMetrics", ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, "account",
+                SCRAPE_REGION_LABEL, "us-west-2",
+                SCRAPE_OPERATION_LABEL, "CloudWatchClient/ListMetrics"));
+        // Not priced
+        testClass.recordApiCall("LambdaClient/listFunctions", ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, "account",
+                SCRAPE_REGION_LABEL, "us-west-2",
+                SCRAPE_OPERATION_LABEL, "LambdaClient/listFunctions"));
+
+        Map<String, Sample> samples = samples(API_COST_METRIC);
+        assertEquals(1, samples.size());
+        assertEquals(0.005, samples.get("account/CloudWatchClient/ListMetrics").value, 0.000001);
+    }
+
+    @Test
+    public void recordMetricsRequested() {
+        testClass.recordMetricsRequested("account", ImmutableList.of(
+                query("AWS/SQS"), query("AWS/SQS"), query("AWS/S3")));
+
+        Map<String, Sample> metricsRequested = samples(METRICS_REQUESTED_METRIC);
+        assertEquals(2.0D, metricsRequested.get("account/AWS/SQS").value);
+        assertEquals(1.0D, metricsRequested.get("account/AWS/S3").value);
+        assertEquals(0.03, samples(API_COST_METRIC).get("account/" + GET_METRIC_DATA_OPERATION).value, 0.000001);
+    }
+
+    @Test
+    public void withinBudget_namespaceBudgetExhausted() {
+        List<MetricQuery> queries = ImmutableList.of(query("AWS/SQS"), query("AWS/Lambda"));
+        assertSame(queries, testClass.withinBudget("account", queries));
+
+        // 30 SQS metrics exhaust the namespace budget of 0.3
+        testClass.recordMetricsRequested("account", Collections.nCopies(30, query("AWS/SQS")));
+        assertEquals(ImmutableList.of(queries.get(1)), testClass.withinBudget("account", queries));
+        assertSame(queries, testClass.withinBudget("account2", queries));
+        assertEquals(1.0D, samples(SHED_QUERIES_METRIC).get("account/AWS/SQS").value);
+
+        // Budgets are reset the next day
+        today = today.plusDays(1);
+        assertSame(queries, testClass.withinBudget("account", queries));
+    }
+
+    @Test
+    public void withinBudget_accountBudgetExhausted() {
+        List<MetricQuery> queries = ImmutableList.of(query("AWS/SQS"), query("AWS/S3"), query("AWS/Lambda"));
+        testClass.recordMetricsRequested("account", Collections.nCopies(25, query("AWS/SQS")));
+        testClass.recordMetricsRequested("account", Collections.nCopies(25, query("AWS/Lambda")));
+        assertEquals(1.0D, samples(BUDGET_EXHAUSTED_METRIC).get("account").value);
+
+        // Only the low priority namespaces are skipped
+        assertEquals(ImmutableList.of(queries.get(0), queries.get(2)), testClass.withinBudget("account", queries));
+        assertEquals(Boolean.TRUE, account(testClass.getReport()).get("budgetExhausted"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> account(Map<String, Object> report) {
+        return (Map<String, Object>) ((Map<String, Object>) report.get("accounts")).get("account");
+    }
+
+    private MetricQuery query(String namespace) {
+        return MetricQuery.builder()
+                .metric(Metric.builder().namespace(namespace).build())
+                .build();
+    }
+
+    private Map<String, Sample> samples(String metricName) {
+        return testClass.collect().stream()
+                .filter(family -> family.name.equals(metricName))
+                .map(family -> family.samples)
+                .flatMap(List::stream)
+                .collect(Collectors.toMap(sample -> String.join("/", sample.labelValues), sample -> sample));
+    }
+}
@@ -6,6 +6,9 @@ package ai.asserts.aws;
 
 import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.exporter.AccountIDProvider;
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.easymock.Capture;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
@@ -13,6 +16,7 @@ import org.junit.jupiter.api.Test;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClientBuilder;
@@ -23,9 +27,19 @@ import software.amazon.awssdk.services.sts.model.AssumeRoleResponse;
 import software.amazon.awssdk.services.sts.model.Credentials;
 
 import java.time.Instant;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import static ai.asserts.aws.AWSClientProvider.SDK_CLIENT_COUNT_METRIC;
+import static ai.asserts.aws.AWSClientProvider.SERVICE_LABEL;
+import static ai.asserts.aws.AWSSessionProvider.CREDENTIAL_REFRESH_COUNT_METRIC;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_LATENCY_METRIC;
+import static org.easymock.EasyMock.anyDouble;
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static software.amazon.awssdk.auth.credentials.AwsBasicCredentials.create;
@@ -33,6 +47,7 @@ import static software.amazon.awssdk.auth.credentials.AwsSessionCredentials.crea
 
 public class AWSClientProviderTest extends EasyMockSupport {
     AccountIDProvider accountIDProvider;
+    BasicMetricCollector metricCollector;
 
     StsClient stsClient;
     StsClientBuilder stsClientBuilder;
@@ -43,19 +58,26 @@ public class AWSClientProviderTest extends EasyMockSupport {
     @BeforeEach
     void setup() {
         accountIDProvider = mock(AccountIDProvider.class);
+        metricCollector = mock(BasicMetricCollector.class);
         stsClient = mock(StsClient.class);
         stsClientBuilder = mock(StsClientBuilder.class);
         cloudWatchClient = mock(CloudWatchClient.class);
         cloudWatchClientBuilder = mock(CloudWatchClientBuilder.class);
-        awsClientProvider = new AWSClientProvider(accountIDProvider) {
+        AWSSessionProvider sessionProvider = new AWSSessionProvider(
+                new AWSApiCallRateLimiter(metricCollector, (account) -> "tenant"), metricCollector) {
             @Override
-            CloudWatchClientBuilder cloudWatchClientBuilder() {
-                return cloudWatchClientBuilder;
+            StsClientBuilder stsBuilder() {
+                return stsClientBuilder;
             }
 
             @Override
-            StsClientBuilder stsBuilder() {
-                return stsClientBuilder;
+            void scheduleRefresh(Runnable refresh, long delaySeconds) {
+            }
+        };
+        awsClientProvider = new AWSClientProvider(accountIDProvider, sessionProvider, metricCollector) {
+            @Override
+            CloudWatchClientBuilder cloudWatchClientBuilder() {
+                return cloudWatchClientBuilder;
             }
         };
     }
@@ -66,6 +88,8 @@ public class AWSClientProviderTest extends EasyMockSupport {
         Capture<AwsCredentialsProvider> staticCredentialsProviderCapture = Capture.newInstance();
         Region us_west_2 = Region.of("us-west-2");
         expect(cloudWatchClientBuilder.region(us_west_2)).andReturn(cloudWatchClientBuilder);
+        expect(cloudWatchClientBuilder.overrideConfiguration(anyObject(ClientOverrideConfiguration.class)))
+                .andReturn(cloudWatchClientBuilder);
         expect(cloudWatchClientBuilder.credentialsProvider(capture(assumeRoleCredentialsProviderCapture)))
                 .andReturn(cloudWatchClientBuilder);
         expect(cloudWatchClientBuilder.build()).andReturn(cloudWatchClient);
@@ -87,6 +111,9 @@ public class AWSClientProviderTest extends EasyMockSupport {
                         .build())
                 .build());
         stsClient.close();
+        metricCollector.recordCounterValue(eq(CREDENTIAL_REFRESH_COUNT_METRIC), anyObject(), eq(1));
+        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(), anyDouble());
+        metricCollector.recordGaugeValue(SDK_CLIENT_COUNT_METRIC, serviceLabels("CloudWatchClient"), 1.0D);
         replayAll();
 
         // First time not cached
@@ -113,4 +140,54 @@ public class AWSClientProviderTest extends EasyMockSupport {
         // Next request is served from cache
         assertEquals(cloudWatchClient, awsClientProvider.getCloudWatchClient("us-west-2", account1));
     }
+
+    @Test
+    void retainAccounts_closesClientsOfRemovedAndRotatedAccounts() {
+        Region us_west_2 = Region.of("us-west-2");
+        CloudWatchClient rotatedClient = mock(CloudWatchClient.class);
+        expect(cloudWatchClient.serviceName()).andReturn("cloudwatch").anyTimes();
+        expect(rotatedClient.serviceName()).andReturn("cloudwatch").anyTimes();
+        expect(cloudWatchClientBuilder.region(us_west_2)).andReturn(cloudWatchClientBuilder).times(2);
+        expect(cloudWatchClientBuilder.overrideConfiguration(anyObject(ClientOverrideConfiguration.class)))
+                .andReturn(cloudWatchClientBuilder).times(2);
+        expect(cloudWatchClientBuilder.credentialsProvider(anyObject(AwsCredentialsProvider.class)))
+                .andReturn(cloudWatchClientBuilder).times(2);
+        expect(cloudWatchClientBuilder.build()).andReturn(cloudWatchClient);
+        expect(cloudWatchClientBuilder.build()).andReturn(rotatedClient);
+        metricCollector.recordGaugeValue(SDK_CLIENT_COUNT_METRIC, serviceLabels("CloudWatchClient"), 1.0D);
+        expectLastCall().times(2);
+        metricCollector.recordGaugeValue(SDK_CLIENT_COUNT_METRIC, serviceLabels("CloudWatchClient"), 0.0D);
+        expectLastCall().times(2);
+        cloudWatchClient.close();
+        rotatedClient.close();
+        replayAll();
+
+        AWSAccount account = AWSAccount.builder()
+                .accountId("account-1")
+                .accessId("accessId")
+                .secretKey("secretKey")
+                .build();
+        assertEquals(cloudWatchClient, awsClientProvider.getCloudWatchClient("us-west-2", account));
+
+        awsClientProvider.retainAccounts(ImmutableSet.of(account));
+        assertEquals(cloudWatchClient, awsClientProvider.getCloudWatchClient("us-west-2", account));
+
+        // Rotated credentials close the old client, and a new one is built
+        AWSAccount rotated = AWSAccount.builder()
+                .accountId("account-1")
+                .accessId("accessId")
+                .secretKey("newSecretKey")
+                .build();
+        awsClientProvider.retainAccounts(ImmutableSet.of(rotated));
+        assertEquals(rotatedClient, awsClientProvider.getCloudWatchClient("us-west-2", rotated));
+        awsClientProvider.retainAccounts(ImmutableSet.of(rotated));
+
+        // Account no longer handled by this exporter
+        awsClientProvider.retainAccounts(ImmutableSet.of());
+        verifyAll();
+    }
+
+    private SortedMap<String, String> serviceLabels(String service) {
+        return new TreeMap<>(ImmutableMap.of(SERVICE_LABEL, service));
+    }
 }
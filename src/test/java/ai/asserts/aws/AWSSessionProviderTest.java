@@ -0,0 +1,145 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.collect.ImmutableSortedMap;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static ai.asserts.aws.AWSSessionProvider.ASSUME_ROLE_OPERATION;
+import static ai.asserts.aws.AWSSessionProvider.CREDENTIAL_REFRESH_COUNT_METRIC;
+import static ai.asserts.aws.AWSSessionProvider.REFRESH_TYPE_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AWSSessionProviderTest extends EasyMockSupport {
+    private AWSApiCallRateLimiter rateLimiter;
+    private BasicMetricCollector metricCollector;
+    private Instant now;
+    private List<Runnable> backgroundRefreshes;
+    private List<Long> scheduledDelays;
+    private AWSAccount account;
+    private AWSSessionProvider testClass;
+
+    @BeforeEach
+    public void setup() {
+        rateLimiter = mock(AWSApiCallRateLimiter.class);
+        metricCollector = mock(BasicMetricCollector.class);
+        now = Instant.now();
+        backgroundRefreshes = new ArrayList<>();
+        scheduledDelays = new ArrayList<>();
+        account = AWSAccount.builder()
+                .accountId("account")
+                .assumeRole("role")
+                .externalId("externalId")
+                .build();
+        testClass = new AWSSessionProvider(rateLimiter, metricCollector) {
+            @Override
+            Instant now() {
+                return now;
+            }
+
+            @Override
+            void scheduleRefresh(Runnable refresh, long delaySeconds) {
+                scheduledDelays.add(delaySeconds);
+            }
+
+            @Override
+            void refreshInBackground(Runnable refresh) {
+                backgroundRefreshes.add(refresh);
+            }
+        };
+    }
+
+    @Test
+    public void getSessionCredentials_sharedAcrossRegions() {
+        metricCollector.recordCounterValue(CREDENTIAL_REFRESH_COUNT_METRIC, ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, "account",
+                REFRESH_TYPE_LABEL, "blocking"), 1);
+        expect(rateLimiter.doWithRateLimit(eq(ASSUME_ROLE_OPERATION), eq(ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, "account",
+                SCRAPE_REGION_LABEL, "us-west-2",
+                SCRAPE_OPERATION_LABEL, ASSUME_ROLE_OPERATION)), anyObject()))
+                .andReturn(session("key1", now.plusSeconds(3600)));
+        replayAll();
+
+        AwsSessionCredentials expected = AwsSessionCredentials.create("key1", "secret", "token");
+        assertEquals(expected, testClass.getSessionCredentials("us-west-2", account, Optional.empty()));
+        assertEquals(expected, testClass.getSessionCredentials("us-east-1", account, Optional.empty()));
+        assertEquals(expected, testClass.getSessionCredentials("us-east-2", account, Optional.empty()));
+        assertEquals(1, scheduledDelays.size());
+        assertEquals(3300L, scheduledDelays.get(0));
+        assertTrue(backgroundRefreshes.isEmpty());
+        verifyAll();
+    }
+
+    @Test
+    public void getSessionCredentials_refreshAheadOfExpiry() {
+        metricCollector.recordCounterValue(eq(CREDENTIAL_REFRESH_COUNT_METRIC), anyObject(), eq(1));
+        expectLastCall().times(2);
+        expect(rateLimiter.doWithRateLimit(eq(ASSUME_ROLE_OPERATION), anyObject(), anyObject()))
+                .andReturn(session("key1", now.plusSeconds(3600)));
+        expect(rateLimiter.doWithRateLimit(eq(ASSUME_ROLE_OPERATION), anyObject(), anyObject()))
+                .andReturn(session("key2", now.plusSeconds(7200)));
+        replayAll();
+
+        AwsSessionCredentials first = AwsSessionCredentials.create("key1", "secret", "token");
+        assertEquals(first, testClass.getSessionCredentials("us-west-2", account, Optional.empty()));
+
+        // Within the refresh window, the current session is returned while a refresh happens in the background
+        now = now.plusSeconds(3400);
+        assertEquals(first, testClass.getSessionCredentials("us-west-2", account, Optional.empty()));
+        assertEquals(first, testClass.getSessionCredentials("us-east-1", account, Optional.empty()));
+        assertEquals(1, backgroundRefreshes.size());
+
+        backgroundRefreshes.get(0).run();
+        assertEquals(AwsSessionCredentials.create("key2", "secret", "token"),
+                testClass.getSessionCredentials("us-west-2", account, Optional.empty()));
+        verifyAll();
+    }
+
+    @Test
+    public void getSessionCredentials_failure() {
+        metricCollector.recordCounterValue(eq(CREDENTIAL_REFRESH_COUNT_METRIC), anyObject(), eq(1));
+        expectLastCall().times(2);
+        expect(rateLimiter.doWithRateLimit(eq(ASSUME_ROLE_OPERATION), anyObject(), anyObject()))
+                .andThrow(new RuntimeException("denied"));
+        expect(rateLimiter.doWithRateLimit(eq(ASSUME_ROLE_OPERATION), anyObject(), anyObject()))
+                .andReturn(session("key1", now.plusSeconds(3600)));
+        replayAll();
+
+        assertThrows(RuntimeException.class,
+                () -> testClass.getSessionCredentials("us-west-2", account, Optional.empty()));
+        assertEquals(AwsSessionCredentials.create("key1", "secret", "token"),
+                testClass.getSessionCredentials("us-west-2", account, Optional.empty()));
+        verifyAll();
+    }
+
+    private AWSSessionConfig session(String accessKeyId, Instant expiring) {
+        return AWSSessionConfig.builder()
+                .accessKeyId(accessKeyId)
+                .secretAccessKey("secret")
+                .sessionToken("token")
+                .expiring(expiring)
+                .build();
+    }
+}
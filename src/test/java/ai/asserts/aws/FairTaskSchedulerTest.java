@@ -0,0 +1,221 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FairTaskSchedulerTest {
+    private List<Runnable> submitted;
+    private List<String> executed;
+    private TestTaskThreadPool.SimpleExecutorService executorService;
+
+    @BeforeEach
+    public void setup() {
+        submitted = new ArrayList<>();
+        executed = new ArrayList<>();
+        executorService = new TestTaskThreadPool.SimpleExecutorService() {
+            @Override
+            public Future<?> submit(Runnable task) {
+                submitted.add(task);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void submit_roundRobinAcrossAccounts() {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 1, 1, 10, null);
+        testClass.submit("a", () -> executed.add("a1"));
+        testClass.submit("a", () -> executed.add("a2"));
+        testClass.submit("a", () -> executed.add("a3"));
+        testClass.submit("b", () -> executed.add("b1"));
+        assertEquals(1, submitted.size());
+
+        runAll();
+        assertEquals(ImmutableList.of("a1", "b1", "a2", "a3"), executed);
+    }
+
+    @Test
+    public void submit_perAccountConcurrencyCap() {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 3, 2, 10, null);
+        testClass.submit("a", () -> executed.add("a1"));
+        testClass.submit("a", () -> executed.add("a2"));
+        testClass.submit("a", () -> executed.add("a3"));
+        testClass.submit("b", () -> executed.add("b1"));
+
+        // The third task of account "a" waits even though a thread is available
+        assertEquals(3, submitted.size());
+        submitted.remove(0).run();
+        assertEquals(3, submitted.size());
+        runAll();
+        assertEquals(ImmutableList.of("a1", "a2", "b1", "a3"), executed);
+    }
+
+    @Test
+    public void submit_noPerAccountConcurrencyCap() {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 3, 0, 10, null);
+        testClass.submit("a", () -> executed.add("a1"));
+        testClass.submit("a", () -> executed.add("a2"));
+        testClass.submit("a", () -> executed.add("a3"));
+        testClass.submit("a", () -> executed.add("a4"));
+
+        // A single account uses all the threads of the pool
+        assertEquals(3, submitted.size());
+        runAll();
+        assertEquals(ImmutableList.of("a1", "a2", "a3", "a4"), executed);
+    }
+
+    @Test
+    public void submit_perAccountConcurrencyCapAcrossLanes() {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 1, 1, 10, null);
+        testClass.submit("b", () -> executed.add("b1"));
+        testClass.submit("a", TaskPriority.LOW, () -> executed.add("a1"));
+        testClass.submit("a", TaskPriority.HIGH, () -> executed.add("a2"));
+        assertEquals(1, submitted.size());
+
+        // Both lanes of account "a" are ready, but only one of its tasks can run at a time
+        testClass.setMaxRunning(3);
+        assertEquals(2, submitted.size());
+        submitted.remove(1).run();
+        assertEquals(2, submitted.size());
+        runAll();
+        assertEquals(ImmutableList.of("a2", "b1", "a1"), executed);
+    }
+
+    @Test
+    public void submit_highPriorityFirst() {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 1, 1, 10, null);
+        testClass.submit("a", TaskPriority.LOW, () -> executed.add("a1"));
+        testClass.submit("a", TaskPriority.LOW, () -> executed.add("a2"));
+        testClass.submit("a", TaskPriority.LOW, () -> executed.add("a3"));
+        testClass.submit("b", TaskPriority.HIGH, () -> executed.add("b1"));
+        testClass.submit("b", TaskPriority.HIGH, () -> executed.add("b2"));
+
+        runAll();
+        assertEquals(ImmutableList.of("a1", "b1", "b2", "a2", "a3"), executed);
+    }
+
+    @Test
+    public void submit_lowPriorityMinShare() {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 1, 1, 10, 0.5, null);
+        testClass.submit("a", TaskPriority.LOW, () -> executed.add("a1"));
+        testClass.submit("b", TaskPriority.HIGH, () -> executed.add("b1"));
+        testClass.submit("b", TaskPriority.HIGH, () -> executed.add("b2"));
+        testClass.submit("b", TaskPriority.HIGH, () -> executed.add("b3"));
+        testClass.submit("a", TaskPriority.LOW, () -> executed.add("a2"));
+        testClass.submit("a", TaskPriority.LOW, () -> executed.add("a3"));
+
+        // The low priority lane gets every other thread while high priority tasks are pending
+        runAll();
+        assertEquals(ImmutableList.of("a1", "b1", "a2", "b2", "a3", "b3"), executed);
+    }
+
+    @Test
+    public void submit_queueFull() {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 1, 1, 1, null);
+        testClass.submit("a", () -> executed.add("a1"));
+        testClass.submit("a", () -> executed.add("a2"));
+        assertThrows(RejectedExecutionException.class, () -> testClass.submit("a", () -> executed.add("a3")));
+
+        // Other accounts have their own queue
+        testClass.submit("b", () -> executed.add("b1"));
+        runAll();
+        assertEquals(ImmutableList.of("a1", "b1", "a2"), executed);
+    }
+
+    @Test
+    public void submit_nestedTasksRunInParallel() throws Exception {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 3, 1, 10, null);
+        Future<Integer> outer = testClass.submit("a", () -> {
+            testClass.submit("b", () -> executed.add("b1"));
+            testClass.submit("c", () -> executed.add("c1"));
+            return submitted.size();
+        });
+        runAll();
+        assertEquals(2, outer.get());
+        assertEquals(ImmutableList.of("b1", "c1"), executed);
+    }
+
+    @Test
+    public void submit_nestedTaskWaitedOnRunsOnWaitingThread() throws Exception {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 1, 1, 10, null);
+        Future<Boolean> outer = testClass.submit("a", () -> {
+            Future<Boolean> inner = testClass.submit("a", () -> executed.add("inner"));
+            // The account is at its cap
+            assertTrue(submitted.isEmpty());
+            return inner.get();
+        });
+        runAll();
+        assertTrue(outer.get());
+        assertEquals(ImmutableList.of("inner"), executed);
+    }
+
+    @Test
+    public void submit_nestedTaskQueueFull() throws Exception {
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 1, 1, 1, null);
+        Future<Boolean> outer = testClass.submit("a", () -> {
+            testClass.submit("a", () -> executed.add("a2"));
+            // Run on the thread of the outer task instead of rejected
+            testClass.submit("a", () -> executed.add("a3"));
+            return executed.add("a1");
+        });
+        runAll();
+        assertTrue(outer.get());
+        assertEquals(ImmutableList.of("a3", "a1", "a2"), executed);
+    }
+
+    @Test
+    public void retainAccounts() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FairTaskScheduler testClass = new FairTaskScheduler("test", () -> executorService, 1, 1, 10, meterRegistry);
+        testClass.submit("a", () -> executed.add("a1"));
+        testClass.submit("b", () -> executed.add("b1"));
+        testClass.submit("c", () -> executed.add("c1"));
+        submitted.remove(0).run();
+        assertEquals(3, meterRegistry.find(FairTaskScheduler.QUEUED_TASKS_METRIC).gauges().size());
+
+        // Account "c" still has a queued task
+        testClass.retainAccounts(ImmutableSet.of("b"));
+        assertEquals(ImmutableSet.of("b", "c"), meterRegistry.find(FairTaskScheduler.QUEUED_TASKS_METRIC).gauges()
+                .stream()
+                .map(gauge -> gauge.getId().getTag(SCRAPE_ACCOUNT_ID_LABEL))
+                .collect(Collectors.toSet()));
+
+        runAll();
+        testClass.retainAccounts(ImmutableSet.of("b"));
+        assertEquals(ImmutableSet.of("b"), meterRegistry.find(FairTaskScheduler.QUEUED_TASKS_METRIC).gauges()
+                .stream()
+                .map(gauge -> gauge.getId().getTag(SCRAPE_ACCOUNT_ID_LABEL))
+                .collect(Collectors.toSet()));
+        assertTrue(meterRegistry.find(FairTaskScheduler.QUEUE_WAIT_METRIC).tag(SCRAPE_ACCOUNT_ID_LABEL, "a").timers()
+                .isEmpty());
+
+        // A removed account that comes back gets a new queue
+        testClass.submit("a", () -> executed.add("a2"));
+        runAll();
+        assertEquals(ImmutableList.of("a1", "b1", "c1", "a2"), executed);
+    }
+
+    private void runAll() {
+        while (!submitted.isEmpty()) {
+            submitted.remove(0).run();
+        }
+    }
+}
@@ -29,17 +29,34 @@ import ai.asserts.aws.exporter.SNSTopicExporter;
 import ai.asserts.aws.exporter.SQSQueueExporter;
 import ai.asserts.aws.exporter.TargetGroupLBMapProvider;
 import ai.asserts.aws.lambda.LambdaFunctionScraper;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import io.prometheus.client.CollectorRegistry;
 import org.easymock.Capture;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import static ai.asserts.aws.TaskGraph.GRAPH_LABEL;
+import static org.easymock.EasyMock.anyDouble;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyString;
 import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.captureLong;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.newCapture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MetadataTaskManagerTest extends EasyMockSupport {
     private CollectorRegistry collectorRegistry;
@@ -72,6 +89,7 @@ public class MetadataTaskManagerTest extends EasyMockSupport {
     private SNSTopicExporter snsTopicExporter;
     private EMRExporter emrExporter;
     private EnvironmentConfig environmentConfig;
+    private SpreadScheduler spreadScheduler;
     private MetadataTaskManager testClass;
 
     @BeforeEach
@@ -106,6 +124,7 @@ public class MetadataTaskManagerTest extends EasyMockSupport {
         snsTopicExporter = mock(SNSTopicExporter.class);
         emrExporter = mock(EMRExporter.class);
         environmentConfig = mock(EnvironmentConfig.class);
+        spreadScheduler = mock(SpreadScheduler.class);
 
         testClass = new MetadataTaskManager(
                 environmentConfig, collectorRegistry, lambdaFunctionScraper, lambdaCapacityExporter,
@@ -114,7 +133,7 @@ public class MetadataTaskManagerTest extends EasyMockSupport {
                 ec2ToEBSVolumeExporter, apiGatewayToLambdaBuilder, kinesisAnalyticsExporter, kinesisFirehoseExporter,
                 s3BucketExporter, taskThreadPool, scrapeConfigProvider, ecsTaskProvider, ecsServiceDiscoveryExporter,
                 redshiftExporter, sqsQueueExporter, kinesisStreamExporter, loadBalancerExporter, rdsExporter,
-                dynamoDBExporter, snsTopicExporter, emrExporter);
+                dynamoDBExporter, snsTopicExporter, emrExporter, spreadScheduler, 300000L, 60000L);
         expect(environmentConfig.isEnabled()).andReturn(true).anyTimes();
         expect(environmentConfig.isDisabled()).andReturn(false).anyTimes();
     }
@@ -148,54 +167,14 @@ public class MetadataTaskManagerTest extends EasyMockSupport {
 
     @Test
     public void updateMetadata_primaryExporter() {
-        expect(environmentConfig.isSingleTenant()).andReturn(true);
-        expect(environmentConfig.isSingleInstance()).andReturn(true);
-        expect(ecsServiceDiscoveryExporter.isPrimaryExporter()).andReturn(true);
+        expect(environmentConfig.isSingleTenant()).andReturn(true).times(2);
+        expect(environmentConfig.isSingleInstance()).andReturn(true).times(2);
+        expect(ecsServiceDiscoveryExporter.isPrimaryExporter()).andReturn(true).times(2);
         expect(scrapeConfigProvider.getScrapeConfig("")).andReturn(scrapeConfig).anyTimes();
-        expect(taskThreadPool.getExecutorService()).andReturn(executorService).anyTimes();
-        Capture<Runnable> capture0 = newCapture();
-        Capture<Runnable> capture1 = newCapture();
-        Capture<Runnable> capture2 = newCapture();
-        Capture<Runnable> capture3 = newCapture();
-        Capture<Runnable> capture4 = newCapture();
-        Capture<Runnable> capture5 = newCapture();
-        Capture<Runnable> capture6 = newCapture();
-        Capture<Runnable> capture7 = newCapture();
-        Capture<Runnable> capture8 = newCapture();
-        Capture<Runnable> capture9 = newCapture();
-        Capture<Runnable> capture10 = newCapture();
-        Capture<Runnable> capture11 = newCapture();
-        Capture<Runnable> capture12 = newCapture();
-        Capture<Runnable> capture13 = newCapture();
-        Capture<Runnable> capture14 = newCapture();
-        Capture<Runnable> capture15 = newCapture();
-        Capture<Runnable> capture16 = newCapture();
-        Capture<Runnable> capture17 = newCapture();
-        Capture<Runnable> capture18 = newCapture();
-        Capture<Runnable> capture19 = newCapture();
-        Capture<Runnable> capture20 = newCapture();
-
-        expect(executorService.submit(capture(capture0))).andReturn(null);
-        expect(executorService.submit(capture(capture1))).andReturn(null);
-        expect(executorService.submit(capture(capture2))).andReturn(null);
-        expect(executorService.submit(capture(capture3))).andReturn(null);
-        expect(executorService.submit(capture(capture4))).andReturn(null);
-        expect(executorService.submit(capture(capture5))).andReturn(null);
-        expect(executorService.submit(capture(capture6))).andReturn(null);
-        expect(executorService.submit(capture(capture7))).andReturn(null);
-        expect(executorService.submit(capture(capture8))).andReturn(null);
-        expect(executorService.submit(capture(capture9))).andReturn(null);
-        expect(executorService.submit(capture(capture10))).andReturn(null);
-        expect(executorService.submit(capture(capture11))).andReturn(null);
-        expect(executorService.submit(capture(capture12))).andReturn(null);
-        expect(executorService.submit(capture(capture13))).andReturn(null);
-        expect(executorService.submit(capture(capture14))).andReturn(null);
-        expect(executorService.submit(capture(capture15))).andReturn(null);
-        expect(executorService.submit(capture(capture16))).andReturn(null);
-        expect(executorService.submit(capture(capture17))).andReturn(null);
-        expect(executorService.submit(capture(capture18))).andReturn(null);
-        expect(executorService.submit(capture(capture19))).andReturn(null);
-        expect(executorService.submit(capture(capture20))).andReturn(null);
+        expect(taskThreadPool.getExecutorService()).andReturn(new TestTaskThreadPool.SimpleExecutorService())
+                .anyTimes();
+        metricCollector.recordLatency(anyString(), anyObject(), anyDouble());
+        expectLastCall().anyTimes();
 
         lambdaFunctionScraper.update();
         lambdaCapacityExporter.update();
@@ -218,33 +197,18 @@ public class MetadataTaskManagerTest extends EasyMockSupport {
         snsTopicExporter.update();
         emrExporter.update();
         lbToECSRoutingBuilder.run();
+        Capture<Map<SortedMap<String, String>, Runnable>> scheduled = newCapture();
+        spreadScheduler.scheduleAll(eq("metadata"), capture(scheduled), eq(300000L));
+        expectLastCall().times(2);
 
         replayAll();
+        // The first update runs right away, the later ones only in the slot of the update
+        testClass.updateMetadata();
         testClass.updateMetadata();
-
-        capture0.getValue().run();
-        capture1.getValue().run();
-        capture2.getValue().run();
-        capture3.getValue().run();
-        capture4.getValue().run();
-        capture5.getValue().run();
-        capture6.getValue().run();
-        capture7.getValue().run();
-        capture8.getValue().run();
-        capture9.getValue().run();
-        capture10.getValue().run();
-        capture11.getValue().run();
-        capture12.getValue().run();
-        capture13.getValue().run();
-        capture14.getValue().run();
-        capture15.getValue().run();
-        capture16.getValue().run();
-        capture17.getValue().run();
-        capture18.getValue().run();
-        capture19.getValue().run();
-        capture20.getValue().run();
 
         verifyAll();
+        assertEquals(ImmutableSet.of(ImmutableSortedMap.of(GRAPH_LABEL, "metadata")),
+                scheduled.getValue().keySet());
     }
 
     @Test
@@ -253,6 +217,7 @@ public class MetadataTaskManagerTest extends EasyMockSupport {
         expect(environmentConfig.isSingleTenant()).andReturn(true);
         expect(environmentConfig.isSingleInstance()).andReturn(true);
         expect(ecsServiceDiscoveryExporter.isPrimaryExporter()).andReturn(false);
+        spreadScheduler.scheduleAll("metadata", Collections.emptyMap(), 300000L);
 
         replayAll();
         testClass.updateMetadata();
@@ -261,6 +226,88 @@ public class MetadataTaskManagerTest extends EasyMockSupport {
         verifyAll();
     }
 
+    @Test
+    public void requestUpdate_coalesced() {
+        expect(environmentConfig.isSingleTenant()).andReturn(false).times(2);
+        expect(spreadScheduler.schedule(anyObject(Runnable.class), eq(0L))).andReturn(null);
+        replayAll();
+
+        // The second request is served by the update that is yet to start
+        testClass.requestUpdate();
+        testClass.requestUpdate();
+
+        verifyAll();
+    }
+
+    @Test
+    public void requestUpdate_requestedDuringUpdate() {
+        List<Runnable> submitted = new ArrayList<>();
+        expect(environmentConfig.isSingleTenant()).andReturn(false).anyTimes();
+        expect(taskThreadPool.getExecutorService()).andReturn(new TestTaskThreadPool.SimpleExecutorService() {
+            @Override
+            public Future<?> submit(Runnable task) {
+                submitted.add(task);
+                return null;
+            }
+        }).anyTimes();
+        metricCollector.recordLatency(anyString(), anyObject(), anyDouble());
+        expectLastCall().anyTimes();
+        expectMetadataUpdate();
+        Capture<Runnable> update = newCapture();
+        expect(spreadScheduler.schedule(capture(update), eq(0L))).andReturn(null);
+        Capture<Long> delay = newCapture();
+        expect(spreadScheduler.schedule(anyObject(Runnable.class), captureLong(delay))).andReturn(null);
+        replayAll();
+
+        testClass.requestUpdate();
+        update.getValue().run();
+        testClass.requestUpdate();
+        testClass.requestUpdate();
+        while (!submitted.isEmpty()) {
+            submitted.remove(0).run();
+        }
+
+        verifyAll();
+        // The requests made during the update get one more update, once the minimum interval has passed
+        assertTrue(delay.getValue() > 0 && delay.getValue() <= 60000L);
+    }
+
+    @Test
+    public void requestUpdate_notPrimaryExporter() {
+        expect(environmentConfig.isSingleTenant()).andReturn(true);
+        expect(environmentConfig.isSingleInstance()).andReturn(true);
+        expect(ecsServiceDiscoveryExporter.isPrimaryExporter()).andReturn(false);
+        replayAll();
+
+        testClass.requestUpdate();
+
+        verifyAll();
+    }
+
+    private void expectMetadataUpdate() {
+        lambdaFunctionScraper.update();
+        lambdaCapacityExporter.update();
+        lambdaEventSourceExporter.update();
+        lambdaInvokeConfigExporter.update();
+        targetGroupLBMapProvider.update();
+        lbToASGRelationBuilder.updateRouting();
+        relationExporter.update();
+        ec2ToEBSVolumeExporter.update();
+        apiGatewayToLambdaBuilder.update();
+        kinesisFirehoseExporter.update();
+        kinesisAnalyticsExporter.update();
+        s3BucketExporter.update();
+        redshiftExporter.update();
+        sqsQueueExporter.update();
+        kinesisStreamExporter.update();
+        loadBalancerExporter.update();
+        rdsExporter.update();
+        dynamoDBExporter.update();
+        snsTopicExporter.update();
+        emrExporter.update();
+        lbToECSRoutingBuilder.run();
+    }
+
     @Test
     public void perMinuteTasks_singleInstancePrimaryMode() {
         Capture<Runnable> capture0 = newCapture();
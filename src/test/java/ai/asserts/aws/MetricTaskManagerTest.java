@@ -3,9 +3,13 @@ package ai.asserts.aws;
 import ai.asserts.aws.account.AccountProvider;
 import ai.asserts.aws.cloudwatch.alarms.AlarmFetcher;
 import ai.asserts.aws.config.ScrapeConfig;
+import ai.asserts.aws.exporter.BasicMetricCollector;
 import ai.asserts.aws.exporter.ECSServiceDiscoveryExporter;
 import ai.asserts.aws.exporter.MetricScrapeTask;
+import ai.asserts.aws.resource.ResourceInventory;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import io.prometheus.client.CollectorRegistry;
 import org.easymock.Capture;
 import org.easymock.EasyMockSupport;
@@ -13,12 +17,26 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.concurrent.ExecutorService;
 
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_INTERVAL_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_NAMESPACE_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+import static ai.asserts.aws.SingleFlightTask.TASK_LABEL;
+import static ai.asserts.aws.SingleFlightTask.TASK_OVERLAP_COUNT_METRIC;
+import static org.easymock.EasyMock.anyDouble;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyString;
 import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.newCapture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class MetricTaskManagerTest extends EasyMockSupport {
     private EnvironmentConfig environmentConfig;
@@ -33,6 +51,14 @@ public class MetricTaskManagerTest extends EasyMockSupport {
     private ExecutorService executorService;
     private AlarmFetcher alarmFetcher;
     private ECSServiceDiscoveryExporter ecsServiceDiscoveryExporter;
+    private AWSClientProvider awsClientProvider;
+    private TaskExecutorUtil taskExecutorUtil;
+    private ResourceInventory resourceInventory;
+    private BasicMetricCollector metricCollector;
+    private SpreadScheduler spreadScheduler;
+    private Capture<Map<SortedMap<String, String>, Runnable>> scheduled;
+    private PublicationScheduler publicationScheduler;
+    private Capture<Map<SortedMap<String, String>, PublicationScheduler.Scrape>> scrapes;
 
     @BeforeEach
     public void setup() {
@@ -47,11 +73,20 @@ public class MetricTaskManagerTest extends EasyMockSupport {
         executorService = mock(ExecutorService.class);
         alarmFetcher = mock(AlarmFetcher.class);
         ecsServiceDiscoveryExporter = mock(ECSServiceDiscoveryExporter.class);
+        awsClientProvider = mock(AWSClientProvider.class);
+        taskExecutorUtil = mock(TaskExecutorUtil.class);
+        resourceInventory = mock(ResourceInventory.class);
+        metricCollector = mock(BasicMetricCollector.class);
         environmentConfig = mock(EnvironmentConfig.class);
+        spreadScheduler = mock(SpreadScheduler.class);
+        scheduled = newCapture();
+        publicationScheduler = mock(PublicationScheduler.class);
+        scrapes = newCapture();
         replayAll();
         testClass = new MetricTaskManager(environmentConfig, accountProvider, scrapeConfigProvider, collectorRegistry,
                 beanFactory,
-                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter);
+                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter, awsClientProvider, taskExecutorUtil,
+                resourceInventory, metricCollector, spreadScheduler, publicationScheduler, 60000L);
         verifyAll();
         resetAll();
     }
@@ -60,7 +95,8 @@ public class MetricTaskManagerTest extends EasyMockSupport {
     void triggerScrapes_fetchMetricsTrue() {
         testClass = new MetricTaskManager(environmentConfig, accountProvider, scrapeConfigProvider, collectorRegistry,
                 beanFactory,
-                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter) {
+                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter, awsClientProvider, taskExecutorUtil,
+                resourceInventory, metricCollector, spreadScheduler, publicationScheduler, 60000L) {
             @Override
             void updateScrapeTasks() {
             }
@@ -80,17 +116,32 @@ public class MetricTaskManagerTest extends EasyMockSupport {
         expect(scrapeConfig.isFetchCWMetrics()).andReturn(true).anyTimes();
         expect(taskThreadPool.getExecutorService()).andReturn(executorService).anyTimes();
 
+        expect(metricScrapeTask.getNamespaces()).andReturn(ImmutableSet.of("AWS/Lambda")).anyTimes();
+        expect(metricScrapeTask.getDelaySeconds()).andReturn(0).anyTimes();
         expect(executorService.submit(capture(capture1))).andReturn(null);
         expect(executorService.submit(capture(capture2))).andReturn(null);
         expect(executorService.submit(capture(capture3))).andReturn(null);
 
-        metricScrapeTask.update();
+        metricScrapeTask.update("AWS/Lambda");
         expectLastCall().times(2);
 
         alarmFetcher.update();
         expect(environmentConfig.isDisabled()).andReturn(false);
+        metricCollector.recordLatency(anyString(), anyObject(), anyDouble());
+        expectLastCall().anyTimes();
+        publicationScheduler.scheduleAll(capture(scrapes));
+        spreadScheduler.scheduleAll(eq("metric-task-manager"), capture(scheduled), eq(60000L));
         replayAll();
         testClass.triggerCWPullOperations();
+        assertEquals(1, scheduled.getValue().size());
+        assertEquals(2, scrapes.getValue().size());
+        scrapes.getValue().forEach((labels, scrape) -> {
+            assertEquals("AWS/Lambda", labels.get(SCRAPE_NAMESPACE_LABEL));
+            assertEquals(new PublicationScheduler.Scrape("account", labels.get(SCRAPE_REGION_LABEL), "AWS/Lambda",
+                    300, 0, null), scrape);
+            scrape.getTask().run();
+        });
+        scheduled.getValue().values().forEach(Runnable::run);
 
         capture1.getValue().run();
         capture2.getValue().run();
@@ -103,7 +154,8 @@ public class MetricTaskManagerTest extends EasyMockSupport {
     void triggerScrapes_fetchMetricsFalse() {
         testClass = new MetricTaskManager(environmentConfig, accountProvider, scrapeConfigProvider, collectorRegistry,
                 beanFactory,
-                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter) {
+                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter, awsClientProvider, taskExecutorUtil,
+                resourceInventory, metricCollector, spreadScheduler, publicationScheduler, 60000L) {
             @Override
             void updateScrapeTasks() {
             }
@@ -120,23 +172,89 @@ public class MetricTaskManagerTest extends EasyMockSupport {
         expect(scrapeConfigProvider.getScrapeConfig("")).andReturn(scrapeConfig).anyTimes();
         expect(taskThreadPool.getExecutorService()).andReturn(executorService).anyTimes();
 
+        expect(metricScrapeTask.getNamespaces()).andReturn(ImmutableSet.of("AWS/Lambda")).anyTimes();
+        expect(metricScrapeTask.getDelaySeconds()).andReturn(0).anyTimes();
         expect(executorService.submit(capture(capture1))).andReturn(null).times(3);
         expect(environmentConfig.isDisabled()).andReturn(false);
         alarmFetcher.update();
+        metricCollector.recordLatency(anyString(), anyObject(), anyDouble());
+        expectLastCall().anyTimes();
+        publicationScheduler.scheduleAll(capture(scrapes));
+        spreadScheduler.scheduleAll(eq("metric-task-manager"), capture(scheduled), eq(60000L));
         replayAll();
 
         testClass.triggerCWPullOperations();
+        scrapes.getValue().values().forEach(scrape -> scrape.getTask().run());
+        scheduled.getValue().values().forEach(Runnable::run);
 
         capture1.getValue().run();
 
         verifyAll();
     }
 
+    @Test
+    void triggerScrapes_previousRunInProgress() {
+        testClass = new MetricTaskManager(environmentConfig, accountProvider, scrapeConfigProvider, collectorRegistry,
+                beanFactory,
+                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter, awsClientProvider, taskExecutorUtil,
+                resourceInventory, metricCollector, spreadScheduler, publicationScheduler, 60000L) {
+            @Override
+            void updateScrapeTasks() {
+            }
+        };
+        testClass.getMetricScrapeTasks().put("account", ImmutableMap.of(
+                "region1", ImmutableMap.of(300, metricScrapeTask)
+        ));
+
+        Capture<Runnable> scrapeRun = newCapture();
+        Capture<Runnable> alarmRun = newCapture();
+        expect(environmentConfig.isDisabled()).andReturn(false).times(3);
+        expect(environmentConfig.isMultiTenant()).andReturn(true).times(3);
+        expect(taskThreadPool.getExecutorService()).andReturn(executorService).anyTimes();
+        expect(executorService.submit(capture(scrapeRun))).andReturn(null);
+        expect(executorService.submit(capture(alarmRun))).andReturn(null);
+        metricCollector.recordCounterValue(TASK_OVERLAP_COUNT_METRIC, ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, "account",
+                SCRAPE_REGION_LABEL, "region1",
+                SCRAPE_INTERVAL_LABEL, "300",
+                SCRAPE_NAMESPACE_LABEL, "AWS/Lambda",
+                TASK_LABEL, "metric-scrape"), 1);
+        metricCollector.recordCounterValue(TASK_OVERLAP_COUNT_METRIC, ImmutableSortedMap.of(
+                TASK_LABEL, "alarm-fetch"), 1);
+        metricCollector.recordLatency(anyString(), anyObject(), anyDouble());
+        expectLastCall().anyTimes();
+        expect(metricScrapeTask.getNamespaces()).andReturn(ImmutableSet.of("AWS/Lambda")).anyTimes();
+        expect(metricScrapeTask.getDelaySeconds()).andReturn(0).anyTimes();
+        metricScrapeTask.update("AWS/Lambda");
+        alarmFetcher.update();
+        expect(executorService.submit(anyObject(Runnable.class))).andReturn(null).times(2);
+        publicationScheduler.scheduleAll(capture(scrapes));
+        expectLastCall().times(3);
+        spreadScheduler.scheduleAll(eq("metric-task-manager"), capture(scheduled), eq(60000L));
+        expectLastCall().andAnswer(() -> {
+            // Triggered at the slot of each task, which happens to be now
+            scrapes.getValue().values().forEach(scrape -> scrape.getTask().run());
+            scheduled.getValue().values().forEach(Runnable::run);
+            return null;
+        }).times(3);
+        replayAll();
+
+        testClass.triggerCWPullOperations();
+        // Runs have not completed yet
+        testClass.triggerCWPullOperations();
+
+        scrapeRun.getValue().run();
+        alarmRun.getValue().run();
+        testClass.triggerCWPullOperations();
+        verifyAll();
+    }
+
     @Test
     void triggerScrapes_notPrimaryExporter() {
         testClass = new MetricTaskManager(environmentConfig, accountProvider, scrapeConfigProvider, collectorRegistry,
                 beanFactory,
-                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter) {
+                taskThreadPool, alarmFetcher, ecsServiceDiscoveryExporter, awsClientProvider, taskExecutorUtil,
+                resourceInventory, metricCollector, spreadScheduler, publicationScheduler, 60000L) {
             @Override
             void updateScrapeTasks() {
             }
@@ -150,6 +268,9 @@ public class MetricTaskManagerTest extends EasyMockSupport {
         expect(environmentConfig.isDistributed()).andReturn(false);
         expect(ecsServiceDiscoveryExporter.isPrimaryExporter()).andReturn(false);
         expect(environmentConfig.isDisabled()).andReturn(false);
+        // Tasks scheduled while this was the primary exporter are cancelled
+        publicationScheduler.scheduleAll(Collections.emptyMap());
+        spreadScheduler.scheduleAll("metric-task-manager", Collections.emptyMap(), 60000L);
         replayAll();
         testClass.triggerCWPullOperations();
         verifyAll();
@@ -0,0 +1,84 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.cloudwatch.IngestionDelayEstimator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.SortedMap;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_NAMESPACE_LABEL;
+import static org.easymock.EasyMock.expect;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PublicationSchedulerTest extends EasyMockSupport {
+    private final SortedMap<String, String> labels = ImmutableSortedMap.of(
+            SCRAPE_ACCOUNT_ID_LABEL, "account",
+            SCRAPE_NAMESPACE_LABEL, "AWS/EC2");
+    private IngestionDelayEstimator ingestionDelayEstimator;
+    private SpreadScheduler spreadScheduler;
+    private Runnable task;
+    private TimingWheel timingWheel;
+    private long now;
+    private PublicationScheduler testClass;
+
+    @BeforeEach
+    public void setup() {
+        ingestionDelayEstimator = mock(IngestionDelayEstimator.class);
+        spreadScheduler = mock(SpreadScheduler.class);
+        task = mock(Runnable.class);
+        now = 3_600_000L;
+        timingWheel = new TimingWheel(1000, 64, 4, now);
+        testClass = new PublicationScheduler(ingestionDelayEstimator, spreadScheduler, timingWheel, 15000) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void nextRun() {
+        expect(ingestionDelayEstimator.getDelaySeconds("account", "region", "AWS/EC2", 0)).andReturn(120).times(2);
+        expect(spreadScheduler.offset(labels, 15000)).andReturn(5000L).times(2);
+        replayAll();
+        PublicationScheduler.Scrape scrape = new PublicationScheduler.Scrape("account", "region", "AWS/EC2", 300, 0,
+                task);
+        // The data of the interval that ended at 3_600_000 is published by 3_720_000
+        assertEquals(3_725_000L, testClass.nextRun(labels, scrape, now));
+        // Once that has run, the next interval
+        assertEquals(4_025_000L, testClass.nextRun(labels, scrape, 3_725_000L));
+        verifyAll();
+    }
+
+    @Test
+    public void scheduleAll() {
+        expect(ingestionDelayEstimator.getDelaySeconds("account", "region", "AWS/EC2", 0)).andReturn(120).times(2);
+        expect(spreadScheduler.offset(labels, 15000)).andReturn(5000L).times(2);
+        task.run();
+        replayAll();
+
+        PublicationScheduler.Scrape scrape = new PublicationScheduler.Scrape("account", "region", "AWS/EC2", 300, 0,
+                task);
+        testClass.scheduleAll(ImmutableMap.of(labels, scrape));
+        // An update of the tasks keeps the schedule
+        testClass.scheduleAll(ImmutableMap.of(labels, scrape));
+
+        timingWheel.advanceTo(3_724_999L);
+        now = 3_725_000L;
+        timingWheel.advanceTo(now);
+
+        // Cancelled before its next run
+        testClass.scheduleAll(Collections.emptyMap());
+        timingWheel.advanceTo(4_025_000L);
+        verifyAll();
+    }
+}
@@ -28,12 +28,17 @@ import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static ai.asserts.aws.ApiServerConstants.ASSERTS_TENANT_HEADER;
 import static org.easymock.EasyMock.expect;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SingleTenantScrapeConfigProviderTest extends EasyMockSupport {
@@ -258,4 +263,56 @@ public class SingleTenantScrapeConfigProviderTest extends EasyMockSupport {
                 writer.writeValueAsString(testClass.getScrapeConfig("null")));
         verifyAll();
     }
+
+    @Test
+    void update_readersDoNotWaitForLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch loaded = new CountDownLatch(1);
+        expect(s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket("bucket")
+                .key("key")
+                .build())).andAnswer(() -> {
+            loading.countDown();
+            assertTrue(loaded.await(10, TimeUnit.SECONDS));
+            return ResponseBytes.fromInputStream(GetObjectResponse.builder().build(),
+                    new FileInputStream("src/test/resources/cloudwatch_scrape_config.yml"));
+        });
+        expect(environmentConfig.isEnabled()).andReturn(true);
+        expect(environmentConfig.isDisabled()).andReturn(false).times(2);
+        replayAll();
+
+        AtomicBoolean fromS3 = new AtomicBoolean();
+        SingleTenantScrapeConfigProvider testClass = new SingleTenantScrapeConfigProvider(
+                environmentConfig,
+                new ObjectMapperFactory(),
+                "src/test/resources/cloudwatch_scrape_config.yml",
+                restTemplate, snakeCaseUtil, assertsServerUtil) {
+            @Override
+            Map<String, String> getGetenv() {
+                return fromS3.get() ? ImmutableMap.of("CONFIG_S3_BUCKET", "bucket", "CONFIG_S3_KEY", "key") :
+                        ImmutableMap.of();
+            }
+
+            @Override
+            S3Client getS3Client() {
+                return s3Client;
+            }
+        };
+        ScrapeConfig previous = testClass.getScrapeConfig("null");
+        assertNotNull(previous);
+
+        fromS3.set(true);
+        Thread updater = new Thread(testClass::update);
+        updater.start();
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+        // The previous config is served while the new one is loading
+        assertSame(previous, testClass.getScrapeConfig("null"));
+        loaded.countDown();
+        updater.join(10000);
+
+        ScrapeConfig current = testClass.getScrapeConfig("null");
+        assertNotSame(previous, current);
+        assertEquals(17, current.getMetricsToCapture().size());
+        verifyAll();
+    }
 }
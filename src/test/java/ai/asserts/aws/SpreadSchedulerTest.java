@@ -0,0 +1,119 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import org.easymock.Capture;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+import static ai.asserts.aws.SpreadScheduler.SCHEDULE_SKEW_METRIC;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.newCapture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SpreadSchedulerTest extends EasyMockSupport {
+    private final SortedMap<String, String> account1 = ImmutableSortedMap.of(
+            SCRAPE_ACCOUNT_ID_LABEL, "account1",
+            SCRAPE_REGION_LABEL, "us-west-2");
+    private final SortedMap<String, String> account2 = ImmutableSortedMap.of(
+            SCRAPE_ACCOUNT_ID_LABEL, "account2",
+            SCRAPE_REGION_LABEL, "us-west-2");
+    private BasicMetricCollector metricCollector;
+    private ScheduledExecutorService scheduler;
+    @SuppressWarnings("rawtypes")
+    private ScheduledFuture future1;
+    @SuppressWarnings("rawtypes")
+    private ScheduledFuture future2;
+    private Runnable task1;
+    private Runnable task2;
+    private long now;
+    private SpreadScheduler testClass;
+
+    @BeforeEach
+    public void setup() {
+        metricCollector = mock(BasicMetricCollector.class);
+        scheduler = mock(ScheduledExecutorService.class);
+        future1 = mock(ScheduledFuture.class);
+        future2 = mock(ScheduledFuture.class);
+        task1 = mock(Runnable.class);
+        task2 = mock(Runnable.class);
+        now = 1_000_000L;
+        testClass = new SpreadScheduler(metricCollector, scheduler, true) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void offset() {
+        long offset = testClass.offset(account1, 60000L);
+        assertTrue(offset >= 0 && offset < 60000L);
+        assertEquals(offset, testClass.offset(account1, 60000L));
+        assertNotEquals(offset, testClass.offset(account2, 60000L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void scheduleAll() {
+        long offset1 = testClass.offset(account1, 60000L);
+        long offset2 = testClass.offset(account2, 60000L);
+        Capture<Runnable> run1 = newCapture();
+        expect(scheduler.scheduleAtFixedRate(capture(run1), eq(Math.floorMod(offset1 - now, 60000L)), eq(60000L),
+                eq(TimeUnit.MILLISECONDS))).andReturn(future1);
+        expect(scheduler.scheduleAtFixedRate(anyObject(Runnable.class), eq(Math.floorMod(offset2 - now, 60000L)),
+                eq(60000L), eq(TimeUnit.MILLISECONDS))).andReturn(future2);
+        task1.run();
+        metricCollector.recordLatency(SCHEDULE_SKEW_METRIC, account1, 250);
+        expect(future2.cancel(false)).andReturn(true);
+        replayAll();
+
+        testClass.scheduleAll("group", ImmutableMap.of(account1, task1, account2, task2), 60000L);
+
+        // Run 250ms into the slot of the task
+        now = now - Math.floorMod(now, 60000L) + offset1 + 250;
+        run1.getValue().run();
+
+        // The remaining task keeps its schedule
+        testClass.scheduleAll("group", ImmutableMap.of(account1, task1), 60000L);
+        verifyAll();
+    }
+
+    @Test
+    public void scheduleAll_spreadOff() {
+        testClass = new SpreadScheduler(metricCollector, scheduler, false);
+        task1.run();
+        task2.run();
+        replayAll();
+        testClass.scheduleAll("group", ImmutableMap.of(account1, task1, account2, task2), 60000L);
+        verifyAll();
+    }
+
+    @Test
+    public void destroy() {
+        expect(scheduler.shutdownNow()).andReturn(Collections.emptyList());
+        replayAll();
+        testClass.destroy();
+        verifyAll();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static ai.asserts.aws.Deadline.CANCELLED_WORK_METRIC;
+import static ai.asserts.aws.Deadline.PARTIAL_RESULTS_METRIC;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TaskExecutorUtilTest extends EasyMockSupport {
+    private BasicMetricCollector metricCollector;
+    private AWSAccount account;
+    private TaskExecutorUtil testClass;
+
+    @BeforeEach
+    public void setup() {
+        metricCollector = mock(BasicMetricCollector.class);
+        account = new AWSAccount("tenant", "account", "", "", "role", ImmutableSet.of("region"));
+        testClass = new TaskExecutorUtil(new TestTaskThreadPool(),
+                new AWSApiCallRateLimiter(metricCollector, (accountId) -> "tenant"), metricCollector, 1);
+    }
+
+    @Test
+    public void executeAccountTask_deadlinePropagated() throws Exception {
+        Deadline deadline = Deadline.after(1, TimeUnit.MINUTES);
+        replayAll();
+        Future<Deadline> future = testClass.executeAccountTask(account, new SimpleTenantTask<Deadline>() {
+            @Override
+            public Deadline call() {
+                return Deadline.current();
+            }
+        }, deadline);
+        assertSame(deadline, future.get());
+        assertNull(Deadline.current());
+        verifyAll();
+    }
+
+    @Test
+    public void executeAccountTask_deadlineExpired() throws Exception {
+        metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, "account"), 1);
+        replayAll();
+        Future<List<String>> future = testClass.executeAccountTask(account, new CollectionBuilderTask<String>() {
+            @Override
+            public List<String> call() {
+                return ImmutableList.of("not expected");
+            }
+        }, Deadline.after(0, TimeUnit.MILLISECONDS));
+        assertEquals(ImmutableList.of(), future.get());
+        verifyAll();
+    }
+
+    @Test
+    public void awaitAll_partialResults() throws Exception {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, ImmutableSortedMap.of(), 1);
+        metricCollector.recordCounterValue(PARTIAL_RESULTS_METRIC, ImmutableSortedMap.of(), 1);
+        replayAll();
+
+        List<String> results = new ArrayList<>();
+        Deadline.after(100, TimeUnit.MILLISECONDS).call(() -> {
+            testClass.awaitAll(ImmutableList.of(
+                    CompletableFuture.completedFuture("first"),
+                    pending,
+                    CompletableFuture.completedFuture("third")), results::add);
+            return null;
+        });
+
+        // The results that had arrived are kept even though the deadline expired while waiting for the second one
+        assertEquals(ImmutableList.of("first", "third"), results);
+        assertTrue(pending.isCancelled());
+        verifyAll();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import static ai.asserts.aws.Deadline.CANCELLED_WORK_METRIC;
+import static ai.asserts.aws.SingleFlightTask.TASK_LABEL;
+import static ai.asserts.aws.TaskGraph.GRAPH_CRITICAL_PATH_METRIC;
+import static ai.asserts.aws.TaskGraph.GRAPH_LABEL;
+import static ai.asserts.aws.TaskGraph.GRAPH_RUN_LATENCY_METRIC;
+import static ai.asserts.aws.TaskGraph.GRAPH_TASK_LATENCY_METRIC;
+import static org.easymock.EasyMock.anyDouble;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TaskGraphTest extends EasyMockSupport {
+    private BasicMetricCollector metricCollector;
+    private List<Runnable> submitted;
+    private List<String> executed;
+    private TestTaskThreadPool.SimpleExecutorService executorService;
+    private TaskGraph testClass;
+
+    @BeforeEach
+    public void setup() {
+        metricCollector = mock(BasicMetricCollector.class);
+        submitted = new ArrayList<>();
+        executed = new ArrayList<>();
+        executorService = new TestTaskThreadPool.SimpleExecutorService() {
+            @Override
+            public Future<?> submit(Runnable task) {
+                submitted.add(task);
+                return null;
+            }
+        };
+        testClass = new TaskGraph("test", metricCollector, 60_000) {
+            private long now;
+
+            @Override
+            long now() {
+                return now += 10;
+            }
+        }
+                .add("a", () -> executed.add("a"))
+                .add("b", () -> executed.add("b"))
+                .add("c", () -> executed.add("c"), "a", "b")
+                .add("d", () -> {
+                    executed.add("d");
+                    throw new RuntimeException();
+                }, "a")
+                .add("e", () -> executed.add("e"), "d");
+    }
+
+    @Test
+    public void run() {
+        ImmutableList.of("a", "b", "c", "d", "e").forEach(task -> {
+            metricCollector.recordLatency(eq(GRAPH_TASK_LATENCY_METRIC), eq(ImmutableSortedMap.of(
+                    GRAPH_LABEL, "test",
+                    TASK_LABEL, task)), anyDouble());
+        });
+        metricCollector.recordLatency(eq(GRAPH_CRITICAL_PATH_METRIC), eq(ImmutableSortedMap.of(
+                GRAPH_LABEL, "test")), anyDouble());
+        metricCollector.recordLatency(eq(GRAPH_RUN_LATENCY_METRIC), eq(ImmutableSortedMap.of(
+                GRAPH_LABEL, "test")), anyDouble());
+        replayAll();
+
+        CompletableFuture<TaskGraph.TaskPath> result = testClass.run(executorService);
+
+        // Independent tasks are submitted together
+        assertEquals(2, submitted.size());
+        submitted.remove(0).run();
+        // "d" only depends on "a"
+        assertEquals(2, submitted.size());
+        submitted.remove(0).run();
+        // "c" is submitted once both "a" and "b" are done
+        assertEquals(2, submitted.size());
+        submitted.remove(0).run();
+        // Failure of "d" does not hold up "e"
+        assertEquals(2, submitted.size());
+        while (!submitted.isEmpty()) {
+            submitted.remove(0).run();
+        }
+
+        assertEquals(ImmutableList.of("a", "b", "d", "c", "e"), executed);
+        assertTrue(result.isDone());
+        assertEquals(ImmutableList.of("a", "d", "e"), result.join().getTasks());
+        assertEquals(30, result.join().getMillis());
+        verifyAll();
+    }
+
+    @Test
+    public void run_previousRunInProgress() {
+        metricCollector.recordLatency(eq(GRAPH_TASK_LATENCY_METRIC), eq(ImmutableSortedMap.of(
+                GRAPH_LABEL, "test",
+                TASK_LABEL, "a")), anyDouble());
+        replayAll();
+
+        CompletableFuture<TaskGraph.TaskPath> first = testClass.run(executorService);
+        submitted.remove(0).run();
+        assertNull(testClass.run(executorService).join());
+        assertFalse(first.isDone());
+        // "b" and "d" of the first run
+        assertEquals(2, submitted.size());
+        verifyAll();
+    }
+
+    @Test
+    public void run_previousRunPastDeadline() {
+        metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, ImmutableSortedMap.of(GRAPH_LABEL, "test"), 0);
+        metricCollector.recordLatency(eq(GRAPH_TASK_LATENCY_METRIC), eq(ImmutableSortedMap.of(
+                GRAPH_LABEL, "test",
+                TASK_LABEL, "a")), anyDouble());
+        replayAll();
+
+        TaskGraph graph = new TaskGraph("test", metricCollector, 0)
+                .add("a", () -> executed.add("a"))
+                .add("b", () -> executed.add("b"), "a");
+        CompletableFuture<TaskGraph.TaskPath> first = graph.run(executorService);
+        // The first run is past its deadline, so it doesn't hold off the second one
+        CompletableFuture<TaskGraph.TaskPath> second = graph.run(executorService);
+        assertEquals(2, submitted.size());
+
+        // The abandoned run neither runs its task nor submits the downstream ones
+        submitted.remove(0).run();
+        assertTrue(executed.isEmpty());
+        assertEquals(1, submitted.size());
+        assertNull(first.join());
+
+        submitted.remove(0).run();
+        assertEquals(ImmutableList.of("a"), executed);
+        assertEquals(1, submitted.size());
+        assertFalse(second.isDone());
+        verifyAll();
+    }
+
+    @Test
+    public void add_upstreamMissing() {
+        assertThrows(IllegalArgumentException.class, () -> testClass.add("f", () -> {
+        }, "g"));
+        assertThrows(IllegalArgumentException.class, () -> testClass.add("a", () -> {
+        }));
+    }
+}
@@ -5,12 +5,17 @@
 package ai.asserts.aws;
 
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.Test;
 
 import java.util.concurrent.ExecutorService;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TaskThreadPoolTest extends EasyMockSupport {
     @Test
@@ -28,4 +33,57 @@ public class TaskThreadPoolTest extends EasyMockSupport {
         };
         verifyAll();
     }
+
+    @Test
+    public void lightweightMode() throws Exception {
+        TaskThreadPool taskThreadPool = new TaskThreadPool("lightweight", 100, 2, 10, 0.2,
+                TaskThreadPool.Mode.LIGHTWEIGHT, new SimpleMeterRegistry());
+        // A virtual thread where the runtime supports them, else a thread of the elastic pool
+        String threadName = taskThreadPool.submit("account", TaskPriority.HIGH,
+                () -> Thread.currentThread().getName()).get();
+        assertTrue(threadName.startsWith("lightweight"), threadName);
+        taskThreadPool.getExecutorService().shutdown();
+    }
+
+    @Test
+    public void resize() throws Exception {
+        TaskThreadPool taskThreadPool = new TaskThreadPool("resize", 2, new SimpleMeterRegistry());
+        assertFalse(taskThreadPool.isResizable());
+        assertEquals(2, taskThreadPool.resize(4));
+
+        taskThreadPool.setSizeBounds(1, 3);
+        assertTrue(taskThreadPool.isResizable());
+        assertEquals(3, taskThreadPool.resize(4));
+        assertEquals(1, taskThreadPool.resize(0));
+        assertEquals(1, taskThreadPool.getPoolSize());
+
+        // The shrunk pool still runs the tasks
+        assertEquals("done", taskThreadPool.submit("account", TaskPriority.LOW, () -> "done").get());
+        assertEquals("done", taskThreadPool.getExecutorService().submit(() -> "done").get());
+        assertTrue(taskThreadPool.sampleQueueWaitMillis() >= 0);
+        taskThreadPool.getExecutorService().shutdown();
+    }
+
+    @Test
+    public void current() throws Exception {
+        TaskThreadPool taskThreadPool = new TaskThreadPool("current", 1, new SimpleMeterRegistry());
+        assertNull(TaskThreadPool.current());
+        assertSame(taskThreadPool, taskThreadPool.getExecutorService().submit(TaskThreadPool::current).get());
+        assertSame(taskThreadPool, TaskThreadPool.callAs(taskThreadPool, TaskThreadPool::current));
+        assertNull(TaskThreadPool.current());
+        taskThreadPool.getExecutorService().shutdown();
+    }
+
+    @Test
+    public void sampleThrottleRate() {
+        TaskThreadPool taskThreadPool = new TestTaskThreadPool();
+        assertEquals(0, taskThreadPool.sampleThrottleRate());
+        taskThreadPool.recordApiCallAttempt();
+        taskThreadPool.recordApiCallAttempt();
+        taskThreadPool.recordApiCallAttempt();
+        taskThreadPool.recordApiCallAttempt();
+        taskThreadPool.recordThrottledApiCallAttempt();
+        assertEquals(0.25, taskThreadPool.sampleThrottleRate());
+        assertEquals(0, taskThreadPool.sampleThrottleRate());
+    }
 }
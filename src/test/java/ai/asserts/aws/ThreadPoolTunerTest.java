@@ -0,0 +1,81 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import com.google.common.collect.ImmutableList;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.easymock.EasyMock.expect;
+
+public class ThreadPoolTunerTest extends EasyMockSupport {
+    private TaskThreadPool pool;
+    private double cpuLoad;
+
+    @BeforeEach
+    public void setup() {
+        pool = mock(TaskThreadPool.class);
+        cpuLoad = 0.1;
+        expect(pool.getName()).andReturn("pool").anyTimes();
+    }
+
+    @Test
+    public void tune_throttled() {
+        expect(pool.sampleThrottleRate()).andReturn(0.05);
+        expect(pool.sampleQueueWaitMillis()).andReturn(5000L);
+        expect(pool.isResizable()).andReturn(true);
+        expect(pool.getPoolSize()).andReturn(20);
+        expect(pool.resize(15)).andReturn(15);
+        replayAll();
+        newTuner().tune();
+        verifyAll();
+    }
+
+    @Test
+    public void tune_queueBuildsUp() {
+        expect(pool.sampleThrottleRate()).andReturn(0.0);
+        expect(pool.sampleQueueWaitMillis()).andReturn(5000L);
+        expect(pool.isResizable()).andReturn(true);
+        expect(pool.getPoolSize()).andReturn(5);
+        expect(pool.resize(6)).andReturn(6);
+        replayAll();
+        newTuner().tune();
+        verifyAll();
+    }
+
+    @Test
+    public void tune_cpuBusy() {
+        cpuLoad = 0.95;
+        expect(pool.sampleThrottleRate()).andReturn(0.0);
+        expect(pool.sampleQueueWaitMillis()).andReturn(5000L);
+        expect(pool.isResizable()).andReturn(true);
+        expect(pool.getPoolSize()).andReturn(5);
+        replayAll();
+        newTuner().tune();
+        verifyAll();
+    }
+
+    @Test
+    public void tune_fixedSize() {
+        expect(pool.sampleThrottleRate()).andReturn(0.05);
+        expect(pool.sampleQueueWaitMillis()).andReturn(5000L);
+        expect(pool.isResizable()).andReturn(false);
+        replayAll();
+        newTuner().tune();
+        verifyAll();
+    }
+
+    private ThreadPoolTuner newTuner() {
+        return new ThreadPoolTuner(ImmutableList.of(pool), new SimpleMeterRegistry(),
+                true, 0.01, 1000, 0.8) {
+            @Override
+            double cpuLoad() {
+                return cpuLoad;
+            }
+        };
+    }
+}
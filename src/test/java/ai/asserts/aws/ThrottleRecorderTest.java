@@ -0,0 +1,107 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.RetryPolicyContext;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ThrottleRecorderTest {
+    private TaskThreadPool pool;
+    private ExecutionAttributes executionAttributes;
+    private ThrottleRecorder testClass;
+
+    @BeforeEach
+    public void setup() {
+        pool = new TestTaskThreadPool();
+        executionAttributes = new ExecutionAttributes();
+        testClass = new ThrottleRecorder();
+    }
+
+    @Test
+    public void recordsRetriedAttempts() {
+        RetryCondition retryCondition = testClass.retryCondition(context -> true);
+        TaskThreadPool.callAs(pool, () -> {
+            testClass.beforeExecution(null, executionAttributes);
+            return null;
+        });
+
+        // Throttled twice, then a server error on the last attempt
+        testClass.beforeTransmission(null, executionAttributes);
+        assertTrue(retryCondition.shouldRetry(context(0, throttled())));
+        testClass.beforeTransmission(null, executionAttributes);
+        assertTrue(retryCondition.shouldRetry(context(1, throttled())));
+        testClass.beforeTransmission(null, executionAttributes);
+        assertTrue(retryCondition.shouldRetry(context(2, SdkServiceException.builder().statusCode(500).build())));
+        testClass.beforeTransmission(null, executionAttributes);
+        assertEquals(0.5, pool.sampleThrottleRate());
+    }
+
+    @Test
+    public void recordsLastAttemptOnce() {
+        RetryCondition retryCondition = testClass.retryCondition(context -> false);
+        TaskThreadPool.callAs(pool, () -> {
+            testClass.beforeExecution(null, executionAttributes);
+            return null;
+        });
+
+        testClass.beforeTransmission(null, executionAttributes);
+        RetryPolicyContext context = context(0, throttled());
+        retryCondition.shouldRetry(context);
+        retryCondition.requestWillNotBeRetried(context);
+        assertEquals(1.0, pool.sampleThrottleRate());
+    }
+
+    @Test
+    public void notMadeByAPool() {
+        RetryCondition retryCondition = testClass.retryCondition(context -> true);
+        testClass.beforeExecution(null, executionAttributes);
+        testClass.beforeTransmission(null, executionAttributes);
+        assertTrue(retryCondition.shouldRetry(context(0, throttled())));
+        assertEquals(0, pool.sampleThrottleRate());
+    }
+
+    @Test
+    public void overrideConfiguration_keepsRetryPolicy() {
+        RetryPolicy retryPolicy = RetryPolicy.builder()
+                .numRetries(8)
+                .backoffStrategy(FullJitterBackoffStrategy.builder()
+                        .baseDelay(Duration.ofMillis(25))
+                        .maxBackoffTime(Duration.ofSeconds(20))
+                        .build())
+                .build();
+        RetryPolicy installed = testClass.overrideConfiguration(retryPolicy).retryPolicy().orElse(null);
+        assertNotNull(installed);
+        assertEquals(8, installed.numRetries());
+        assertSame(retryPolicy.backoffStrategy(), installed.backoffStrategy());
+        assertSame(retryPolicy.throttlingBackoffStrategy(), installed.throttlingBackoffStrategy());
+        assertEquals(retryPolicy.retryMode(), installed.retryMode());
+    }
+
+    private RetryPolicyContext context(int retriesAttempted, SdkException exception) {
+        return RetryPolicyContext.builder()
+                .executionAttributes(executionAttributes)
+                .retriesAttempted(retriesAttempted)
+                .exception(exception)
+                .build();
+    }
+
+    private SdkException throttled() {
+        return SdkServiceException.builder().statusCode(429).build();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimingWheelTest {
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void advanceTo() {
+        TimingWheel testClass = new TimingWheel(1000, 8, 3, 0);
+        testClass.schedule(() -> fired.add("soon"), 3000);
+        testClass.schedule(() -> fired.add("later"), 30_500);
+        // Beyond the 8 * 8 * 8 ticks the wheel covers
+        testClass.schedule(() -> fired.add("much later"), 1_000_000);
+
+        testClass.advanceTo(2999);
+        assertTrue(fired.isEmpty());
+        testClass.advanceTo(3000);
+        assertEquals(ImmutableList.of("soon"), fired);
+
+        // Rounded up to the next tick, after having cascaded down from the second level
+        testClass.advanceTo(30_999);
+        assertEquals(ImmutableList.of("soon"), fired);
+        testClass.advanceTo(31_000);
+        assertEquals(ImmutableList.of("soon", "later"), fired);
+
+        testClass.advanceTo(999_999);
+        assertEquals(ImmutableList.of("soon", "later"), fired);
+        testClass.advanceTo(1_000_000);
+        assertEquals(ImmutableList.of("soon", "later", "much later"), fired);
+    }
+
+    @Test
+    public void cancel() {
+        TimingWheel testClass = new TimingWheel(1000, 8, 3, 0);
+        TimingWheel.Timeout timeout = testClass.schedule(() -> fired.add("cancelled"), 100_000);
+        testClass.schedule(() -> fired.add("kept"), 100_000);
+        timeout.cancel();
+        testClass.advanceTo(100_000);
+        assertEquals(ImmutableList.of("kept"), fired);
+    }
+
+    @Test
+    public void schedule_pastTime() {
+        TimingWheel testClass = new TimingWheel(1000, 8, 3, 10_000);
+        testClass.schedule(() -> fired.add("late"), 5000);
+        assertTrue(fired.isEmpty());
+        testClass.advanceTo(11_000);
+        assertEquals(ImmutableList.of("late"), fired);
+    }
+}
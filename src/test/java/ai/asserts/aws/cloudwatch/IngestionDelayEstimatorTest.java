@@ -0,0 +1,62 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.cloudwatch;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class IngestionDelayEstimatorTest {
+    private final Instant windowEnd = Instant.parse("2022-03-13T10:00:00Z");
+
+    @Test
+    public void record() {
+        IngestionDelayEstimator testClass = new IngestionDelayEstimator(new SimpleMeterRegistry(), 60, 600);
+        assertEquals(60, testClass.getDelaySeconds("account", "region", "AWS/EC2", 0));
+        assertEquals(90, testClass.getDelaySeconds("account", "region", "AWS/EC2", 90));
+
+        // The last period of the window is missing. Its data is published later than estimated
+        testClass.record("account", "region", "AWS/EC2", windowEnd, windowEnd.minusSeconds(60),
+                windowEnd.plusSeconds(60));
+        assertEquals(60, testClass.getDelaySeconds("account", "region", "AWS/EC2", 0));
+        testClass.record("account", "region", "AWS/EC2", windowEnd.plusSeconds(60), windowEnd,
+                windowEnd.plusSeconds(150));
+        assertEquals(150, testClass.getDelaySeconds("account", "region", "AWS/EC2", 0));
+
+        // The last period is there. Try a shorter delay
+        testClass.record("account", "region", "AWS/EC2", windowEnd.plusSeconds(120), windowEnd.plusSeconds(120),
+                windowEnd.plusSeconds(270));
+        assertEquals(135, testClass.getDelaySeconds("account", "region", "AWS/EC2", 0));
+
+        // Other namespaces, regions and accounts have their own estimate
+        assertEquals(60, testClass.getDelaySeconds("account", "region", "AWS/Lambda", 0));
+        assertEquals(60, testClass.getDelaySeconds("account", "region2", "AWS/EC2", 0));
+        assertEquals(60, testClass.getDelaySeconds("account2", "region", "AWS/EC2", 0));
+    }
+
+    @Test
+    public void record_gap() {
+        IngestionDelayEstimator testClass = new IngestionDelayEstimator(new SimpleMeterRegistry(), 60, 600);
+        // A quiet namespace, whose periods stay empty, is not taken for a slow one
+        for (int i = 0; i < 10; i++) {
+            testClass.record("account", "region", "AWS/Lambda", windowEnd.plusSeconds(60L * i),
+                    windowEnd.minusSeconds(3600), windowEnd.plusSeconds(60L * i + 60));
+        }
+        assertEquals(26, testClass.getDelaySeconds("account", "region", "AWS/Lambda", 0));
+    }
+
+    @Test
+    public void record_capped() {
+        IngestionDelayEstimator testClass = new IngestionDelayEstimator(new SimpleMeterRegistry(), 60, 600);
+        testClass.record("account", "region", "AWS/EC2", windowEnd.minusSeconds(3600),
+                windowEnd.minusSeconds(7200), windowEnd.minusSeconds(3600));
+        testClass.record("account", "region", "AWS/EC2", windowEnd, windowEnd.minusSeconds(3600),
+                windowEnd);
+        assertEquals(600, testClass.getDelaySeconds("account", "region", "AWS/EC2", 0));
+    }
+}
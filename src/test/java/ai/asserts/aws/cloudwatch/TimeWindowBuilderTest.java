@@ -22,6 +22,22 @@ public class TimeWindowBuilderTest {
         assertEquals(60_000, timePeriod[1].toEpochMilli() - timePeriod[0].toEpochMilli());
     }
 
+    @Test
+    void getCompletedTimePeriod() {
+        TimeWindowBuilder testClass = new TimeWindowBuilder() {
+            @Override
+            Instant now() {
+                return Instant.parse("2022-03-13T10:07:30Z");
+            }
+        };
+        Instant[] timePeriod = testClass.getCompletedTimePeriod(300, 180);
+        assertEquals(Instant.parse("2022-03-13T09:55:00Z"), timePeriod[0]);
+        assertEquals(Instant.parse("2022-03-13T10:00:00Z"), timePeriod[1]);
+
+        timePeriod = testClass.getCompletedTimePeriod(300, 60);
+        assertEquals(Instant.parse("2022-03-13T10:05:00Z"), timePeriod[1]);
+    }
+
     @Test
     void getDailyTimePeriod_us_west_2() {
         TimeWindowBuilder testClass = new TimeWindowBuilder();
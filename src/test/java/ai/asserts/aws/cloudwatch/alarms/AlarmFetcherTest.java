@@ -25,6 +25,7 @@ import org.easymock.Capture;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.ComparisonOperator;
 import software.amazon.awssdk.services.cloudwatch.model.DescribeAlarmsResponse;
@@ -35,11 +36,13 @@ import java.time.Instant;
 import java.util.Optional;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class AlarmFetcherTest extends EasyMockSupport {
@@ -51,6 +54,7 @@ public class AlarmFetcherTest extends EasyMockSupport {
     private ScrapeConfigProvider scrapeConfigProvider;
     private ScrapeConfig scrapeConfig;
     private CloudWatchClient cloudWatchClient;
+    private CloudWatchAsyncClient cloudWatchAsyncClient;
     private AccountIDProvider accountIDProvider;
     private AlarmMetricConverter alarmMetricConverter;
     private MetricSampleBuilder sampleBuilder;
@@ -73,6 +77,7 @@ public class AlarmFetcherTest extends EasyMockSupport {
         sampleBuilder = mock(MetricSampleBuilder.class);
         collectorRegistry = mock(CollectorRegistry.class);
         cloudWatchClient = mock(CloudWatchClient.class);
+        cloudWatchAsyncClient = mock(CloudWatchAsyncClient.class);
         accountIDProvider = mock(AccountIDProvider.class);
         alarmMetricConverter = mock(AlarmMetricConverter.class);
         sample = mock(Collector.MetricFamilySamples.Sample.class);
@@ -96,6 +101,7 @@ public class AlarmFetcherTest extends EasyMockSupport {
         expect(scrapeConfig.isCwAlarmAsMetric()).andReturn(true).anyTimes();
         expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(awsAccount));
         expect(accountIDProvider.getAccountId()).andReturn("123456789").anyTimes();
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
         expect(awsClientProvider.getCloudWatchClient("region", awsAccount))
                 .andReturn(cloudWatchClient).anyTimes();
 
@@ -148,6 +154,50 @@ public class AlarmFetcherTest extends EasyMockSupport {
         verifyAll();
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendAlarmsForRegions_async() {
+        expect(environmentConfig.isSingleTenant()).andReturn(true);
+        expect(environmentConfig.isSingleInstance()).andReturn(true);
+        expect(ecsServiceDiscoveryExporter.isPrimaryExporter()).andReturn(true);
+        expect(scrapeConfigProvider.getScrapeConfig("tenant")).andReturn(scrapeConfig).anyTimes();
+        expect(scrapeConfig.isPullCWAlarms()).andReturn(true);
+        expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(awsAccount));
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(true);
+        expect(awsClientProvider.getCloudWatchAsyncClient("region", awsAccount)).andReturn(cloudWatchAsyncClient);
+
+        MetricAlarm alarm = MetricAlarm.builder()
+                .alarmName("alarm1")
+                .stateValue("ALARM")
+                .stateUpdatedTimestamp(now)
+                .threshold(10.0)
+                .comparisonOperator(ComparisonOperator.GREATER_THAN_THRESHOLD)
+                .namespace("AWS/Lambda")
+                .build();
+        expect(rateLimiter.doWithRateLimitAsync(eq("CloudWatchClient/describeAlarms"),
+                anyObject(SortedMap.class), anyObject())).andReturn(CompletableFuture.completedFuture(
+                DescribeAlarmsResponse.builder()
+                        .metricAlarms(ImmutableList.of(alarm))
+                        .nextToken("token1")
+                        .build()));
+        expect(rateLimiter.doWithRateLimitAsync(eq("CloudWatchClient/describeAlarms"),
+                anyObject(SortedMap.class), anyObject())).andReturn(CompletableFuture.completedFuture(
+                DescribeAlarmsResponse.builder()
+                        .metricAlarms(ImmutableList.of(alarm))
+                        .build()));
+        expect(alarmMetricConverter.extractMetricAndEntityLabels(alarm)).andReturn(ImmutableMap.of()).times(2);
+        alarmMetricConverter.simplifyAlarmName(anyObject());
+        expectLastCall().times(2);
+        expect(sampleBuilder.buildSingleSample(eq("aws_cloudwatch_alarm"), anyObject(), eq(1.0D)))
+                .andReturn(Optional.of(sample)).times(2);
+        expect(sampleBuilder.buildFamily(ImmutableList.of(sample, sample))).andReturn(Optional.of(familySamples));
+        replayAll();
+        testClass.update();
+        assertEquals(ImmutableList.of(familySamples), testClass.collect());
+
+        verifyAll();
+    }
+
     @Test
     public void pullAlarm_disabled() {
         expect(environmentConfig.isSingleTenant()).andReturn(true);
@@ -159,6 +209,7 @@ public class AlarmFetcherTest extends EasyMockSupport {
                 .build()));
         expect(scrapeConfigProvider.getScrapeConfig("tenant")).andReturn(scrapeConfig);
         expect(scrapeConfig.isPullCWAlarms()).andReturn(false);
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
         replayAll();
         testClass.update();
         assertEquals(ImmutableList.of(), testClass.collect());
@@ -7,9 +7,11 @@ package ai.asserts.aws.cloudwatch.query;
 import ai.asserts.aws.config.MetricConfig;
 import ai.asserts.aws.config.NamespaceConfig;
 import ai.asserts.aws.resource.Resource;
+import ai.asserts.aws.resource.ResourceIndex;
 import com.google.common.collect.ImmutableSet;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
 import software.amazon.awssdk.services.cloudwatch.model.Metric;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
 import software.amazon.awssdk.services.cloudwatch.model.MetricStat;
@@ -20,6 +22,7 @@ import java.util.List;
 
 import static ai.asserts.aws.model.MetricStat.Average;
 import static ai.asserts.aws.model.MetricStat.Maximum;
+import static ai.asserts.aws.resource.ResourceType.LambdaFunction;
 import static org.easymock.EasyMock.expect;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -28,7 +31,6 @@ public class MetricQueryBuilderTest extends EasyMockSupport {
     void buildQueries() {
         QueryIdGenerator queryIdGenerator = mock(QueryIdGenerator.class);
         NamespaceConfig namespaceConfig = mock(NamespaceConfig.class);
-        Resource resource = mock(Resource.class);
 
         MetricQueryBuilder metricQueryBuilder = new MetricQueryBuilder();
 
@@ -45,11 +47,17 @@ public class MetricQueryBuilderTest extends EasyMockSupport {
 
         Metric metric = Metric.builder()
                 .metricName("metric")
+                .dimensions(Dimension.builder().name("FunctionName").value("fn1").build())
                 .build();
 
-        ImmutableSet<Resource> tagFilteredResources = ImmutableSet.of(resource);
-
-        expect(resource.matches(metric)).andReturn(true);
+        Resource resource = Resource.builder()
+                .type(LambdaFunction)
+                .name("fn1")
+                .build();
+        ResourceIndex tagFilteredResources = new ResourceIndex(ImmutableSet.of(resource, Resource.builder()
+                .type(LambdaFunction)
+                .name("fn2")
+                .build()));
 
         replayAll();
         List<MetricQuery> metricQueries = metricQueryBuilder.buildQueries(queryIdGenerator, tagFilteredResources,
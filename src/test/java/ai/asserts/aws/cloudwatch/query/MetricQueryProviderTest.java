@@ -17,6 +17,7 @@ import ai.asserts.aws.exporter.BasicMetricCollector;
 import ai.asserts.aws.model.CWNamespace;
 import ai.asserts.aws.model.MetricStat;
 import ai.asserts.aws.resource.Resource;
+import ai.asserts.aws.resource.ResourceIndex;
 import ai.asserts.aws.resource.ResourceTagHelper;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -49,6 +50,7 @@ public class MetricQueryProviderTest extends EasyMockSupport {
     private ResourceTagHelper resourceTagHelper;
     private MetricQueryBuilder metricQueryBuilder;
     private Resource resource;
+    private ResourceIndex resourceIndex;
     private Metric metric;
     private NamespaceConfig namespaceConfig;
     private MetricConfig metricConfig;
@@ -71,6 +73,7 @@ public class MetricQueryProviderTest extends EasyMockSupport {
         metricQueryBuilder = mock(MetricQueryBuilder.class);
         metricQuery = mock(MetricQuery.class);
         resource = mock(Resource.class);
+        resourceIndex = mock(ResourceIndex.class);
         metricConfig = mock(MetricConfig.class);
         namespaceConfig = mock(NamespaceConfig.class);
         metricQuery = mock(MetricQuery.class);
@@ -110,13 +113,15 @@ public class MetricQueryProviderTest extends EasyMockSupport {
         expect(scrapeConfigProvider.getScrapeConfig("tenant")).andReturn(scrapeConfig);
         expect(scrapeConfigProvider.getStandardNamespace(_CW_namespace.name()))
                 .andReturn(Optional.of(lambda)).anyTimes();
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
         expect(awsClientProvider.getCloudWatchClient("region1", accountRegion)).andReturn(cloudWatchClient);
 
         expect(namespaceConfig.hasTagFilters()).andReturn(true).anyTimes();
 
-        expect(resourceTagHelper.getFilteredResources(accountRegion, "region1", namespaceConfig))
-                .andReturn(ImmutableSet.of(resource));
-        expect(resource.matches(metric)).andReturn(true).anyTimes();
+        expect(resourceTagHelper.getResourceIndex(accountRegion, "region1", namespaceConfig))
+                .andReturn(resourceIndex);
+        expect(resourceIndex.isEmpty()).andReturn(false);
+        expect(resourceIndex.find(metric)).andReturn(Optional.of(resource)).anyTimes();
 
         expect(namespaceConfig.getName()).andReturn(_CW_namespace.name()).anyTimes();
         expect(namespaceConfig.getMetrics()).andReturn(ImmutableList.of(metricConfig));
@@ -166,11 +171,12 @@ public class MetricQueryProviderTest extends EasyMockSupport {
                 .build();
         expect(namespaceConfig.isEnabled()).andReturn(true).anyTimes();
         expect(scrapeConfigProvider.getScrapeConfig("tenant")).andReturn(scrapeConfig);
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
         expect(awsClientProvider.getCloudWatchClient("region1", accountRegion)).andReturn(cloudWatchClient);
 
         expect(namespaceConfig.hasTagFilters()).andReturn(true).anyTimes();
 
-        expect(resourceTagHelper.getFilteredResources(accountRegion, "region1", namespaceConfig))
+        expect(resourceTagHelper.getResourceIndex(accountRegion, "region1", namespaceConfig))
                 .andThrow(new RuntimeException());
 
         replayAll();
@@ -196,7 +202,7 @@ public class MetricQueryProviderTest extends EasyMockSupport {
     }
 
     private void expectMetricQuery(MetricStat stat, String metricName) {
-        expect(metricQueryBuilder.buildQueries(queryIdGenerator, ImmutableSet.of(resource), metricConfig, metric))
+        expect(metricQueryBuilder.buildQueries(queryIdGenerator, resourceIndex, metricConfig, metric))
                 .andReturn(ImmutableList.of(metricQuery));
 
         expect(metricNameUtil.exportedMetricName(metric, stat)).andReturn(metricName);
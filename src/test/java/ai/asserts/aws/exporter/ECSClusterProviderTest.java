@@ -79,8 +79,8 @@ public class ECSClusterProviderTest extends EasyMockSupport {
                         .build()
         );
         metricCollector.recordLatency(eq("aws_exporter_milliseconds"), anyObject(SortedMap.class), anyLong());
-        expect(resourceMapper.map("cluster-arn1")).andReturn(Optional.of(clusterResource1));
-        expect(resourceMapper.map("cluster-arn2")).andReturn(Optional.of(clusterResource2));
+        expect(resourceMapper.map(awsAccount, "cluster-arn1")).andReturn(Optional.of(clusterResource1));
+        expect(resourceMapper.map(awsAccount, "cluster-arn2")).andReturn(Optional.of(clusterResource2));
         replayAll();
         assertEquals(ImmutableSet.of(clusterResource1, clusterResource2), testClass.getClusters(awsAccount, "region"));
         verifyAll();
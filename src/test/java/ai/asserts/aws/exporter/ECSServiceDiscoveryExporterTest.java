@@ -83,7 +83,7 @@ public class ECSServiceDiscoveryExporterTest extends EasyMockSupport {
         expect(restTemplate.getForObject(anyObject(), anyObject())).andReturn(TaskMetaData.builder()
                 .taskARN("self-task-arn")
                 .build());
-        expect(resourceMapper.map("self-task-arn")).andReturn(Optional.of(resource));
+        expect(resourceMapper.map(null, "self-task-arn")).andReturn(Optional.of(resource));
         expect(ecsTaskUtil.getSubnetDetails(resource)).andReturn(SubnetDetails.builder()
                 .subnetId("subnet-id")
                 .vpcId("vpc-id")
@@ -256,8 +256,8 @@ public class ECSTaskProviderTest extends EasyMockSupport {
                 ecsTaskUtil, sampleBuilder,
                 collectorRegistry, taskExecutorUtil, snakeCaseUtil, 2) {
             @Override
-            void discoverNewTasks(Map<Resource, List<Resource>> clusterWiseNewTasks, EcsClient ecsClient,
-                                  Resource cluster) {
+            void discoverNewTasks(AWSAccount _account, Map<Resource, List<Resource>> clusterWiseNewTasks,
+                                  EcsClient ecsClient, Resource cluster) {
                 assertEquals(cluster1, cluster);
                 clusterWiseNewTasks.put(cluster1, ImmutableList.of(task1));
             }
@@ -328,13 +328,13 @@ public class ECSTaskProviderTest extends EasyMockSupport {
                                 .build());
         basicMetricCollector.recordLatency(eq("aws_exporter_milliseconds"), anyObject(SortedMap.class), anyLong());
 
-        expect(resourceMapper.map("task2-arn")).andReturn(Optional.of(task2Resource));
-        expect(resourceMapper.map("task3-arn")).andReturn(Optional.of(task3Resource));
+        expect(resourceMapper.map(account, "task2-arn")).andReturn(Optional.of(task2Resource));
+        expect(resourceMapper.map(account, "task3-arn")).andReturn(Optional.of(task3Resource));
 
         replayAll();
 
         HashMap<Resource, List<Resource>> clusterWiseNewTasks = new HashMap<>();
-        testClass.discoverNewTasks(clusterWiseNewTasks, ecsClient, cluster1);
+        testClass.discoverNewTasks(account, clusterWiseNewTasks, ecsClient, cluster1);
         assertFalse(clusterWiseNewTasks.isEmpty());
         assertTrue(clusterWiseNewTasks.containsKey(cluster1));
         assertEquals(ImmutableList.of(task3Resource), clusterWiseNewTasks.get(cluster1));
@@ -400,8 +400,8 @@ public class ECSTaskProviderTest extends EasyMockSupport {
 
         Resource task1Resource = Resource.builder().name("task1").build();
         Resource task2Resource = Resource.builder().name("task2").build();
-        expect(resourceMapper.map("service1-task1-arn")).andReturn(Optional.of(task1Resource));
-        expect(resourceMapper.map("service2-task2-arn")).andReturn(Optional.of(task2Resource));
+        expect(resourceMapper.map(account, "service1-task1-arn")).andReturn(Optional.of(task1Resource));
+        expect(resourceMapper.map(account, "service2-task2-arn")).andReturn(Optional.of(task2Resource));
 
         expect(ecsTaskUtil.buildScrapeTargets(account, scrapeConfig, ecsClient, cluster1, Optional.of("service1"),
                 task1))
@@ -439,8 +439,8 @@ public class ECSTaskProviderTest extends EasyMockSupport {
 
         Resource task3Resource = Resource.builder().name("task3").build();
         Resource task4Resource = Resource.builder().name("task4").build();
-        expect(resourceMapper.map("service3-task3-arn")).andReturn(Optional.of(task3Resource));
-        expect(resourceMapper.map("service4-task4-arn")).andReturn(Optional.of(task4Resource));
+        expect(resourceMapper.map(account, "service3-task3-arn")).andReturn(Optional.of(task3Resource));
+        expect(resourceMapper.map(account, "service4-task4-arn")).andReturn(Optional.of(task4Resource));
 
         expect(ecsTaskUtil.buildScrapeTargets(account, scrapeConfig, ecsClient, cluster2, Optional.of("service3"),
                 task3))
@@ -181,8 +181,8 @@ public class ECSTaskUtilTest extends EasyMockSupport {
         expect(scrapeConfigProvider.getScrapeConfig("acme")).andReturn(scrapeConfig);
         expect(scrapeConfig.isFetchEC2Metadata()).andReturn(true);
 
-        expect(resourceMapper.map("task-def-arn")).andReturn(Optional.of(taskDef));
-        expect(resourceMapper.map("task-arn")).andReturn(Optional.of(task));
+        expect(resourceMapper.map(account, "task-def-arn")).andReturn(Optional.of(taskDef));
+        expect(resourceMapper.map(account, "task-arn")).andReturn(Optional.of(task));
 
         ImmutableMap<String, String> logDriverOptions = ImmutableMap.of(
                 "awslogs-group", "asserts-aws-integration-Dev",
@@ -262,8 +262,8 @@ public class ECSTaskUtilTest extends EasyMockSupport {
         expect(scrapeConfigProvider.getScrapeConfig("acme")).andReturn(scrapeConfig);
         expect(scrapeConfig.isFetchEC2Metadata()).andReturn(false);
 
-        expect(resourceMapper.map("task-def-arn")).andReturn(Optional.of(taskDef));
-        expect(resourceMapper.map("task-arn")).andReturn(Optional.of(task));
+        expect(resourceMapper.map(account, "task-def-arn")).andReturn(Optional.of(taskDef));
+        expect(resourceMapper.map(account, "task-arn")).andReturn(Optional.of(task));
 
         ImmutableMap<String, String> logDriverOptions = ImmutableMap.of(
                 "awslogs-group", "asserts-aws-integration-Dev",
@@ -349,8 +349,8 @@ public class ECSTaskUtilTest extends EasyMockSupport {
         expect(scrapeConfigProvider.getScrapeConfig("acme")).andReturn(scrapeConfig);
         expect(scrapeConfig.isFetchEC2Metadata()).andReturn(true);
 
-        expect(resourceMapper.map("task-def-arn")).andReturn(Optional.of(taskDef));
-        expect(resourceMapper.map("task-arn")).andReturn(Optional.of(task));
+        expect(resourceMapper.map(account, "task-def-arn")).andReturn(Optional.of(taskDef));
+        expect(resourceMapper.map(account, "task-arn")).andReturn(Optional.of(task));
 
         TaskDefinition taskDefinition = TaskDefinition.builder()
                 .containerDefinitions(ContainerDefinition.builder()
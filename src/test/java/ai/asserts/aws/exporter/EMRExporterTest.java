@@ -22,6 +22,7 @@ import software.amazon.awssdk.services.emr.EmrClient;
 import software.amazon.awssdk.services.emr.model.ClusterState;
 import software.amazon.awssdk.services.emr.model.ClusterStatus;
 import software.amazon.awssdk.services.emr.model.ClusterSummary;
+import software.amazon.awssdk.services.emr.model.ListClustersRequest;
 import software.amazon.awssdk.services.emr.model.ListClustersResponse;
 
 import java.util.Map;
@@ -95,13 +96,12 @@ public class EMRExporterTest extends EasyMockSupport {
 
         expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(account)).anyTimes();
         expect(awsClientProvider.getEmrClient("region", account)).andReturn(emrClient);
-        expect(emrClient.listClusters()).andReturn(ListClustersResponse.builder()
+        expect(emrClient.listClusters(ListClustersRequest.builder()
+                .clusterStates(ClusterState.RUNNING)
+                .build())).andReturn(ListClustersResponse.builder()
                 .clusters(
                         ClusterSummary.builder().id("id1").name("name1").status(ClusterStatus.builder()
                                 .state(ClusterState.RUNNING)
-                                .build()).build(),
-                        ClusterSummary.builder().id("id2").name("name2").status(ClusterStatus.builder()
-                                .state(ClusterState.TERMINATED)
                                 .build()).build())
                 .build());
         basicMetricCollector.recordLatency(eq("aws_exporter_milliseconds"), anyObject(SortedMap.class), anyDouble());
@@ -135,8 +135,8 @@ public class LBToASGRelationBuilderTest extends EasyMockSupport {
 
         expect(metricSampleBuilder.buildFamily(ImmutableList.of(sample))).andReturn(Optional.of(metricFamilySamples));
 
-        expect(resourceMapper.map("tg-arn")).andReturn(Optional.of(tgResource));
-        expect(resourceMapper.map("asg-arn")).andReturn(Optional.of(asgResource));
+        expect(resourceMapper.map(awsAccount, "tg-arn")).andReturn(Optional.of(tgResource));
+        expect(resourceMapper.map(awsAccount, "asg-arn")).andReturn(Optional.of(asgResource));
         expect(targetGroupLBMapProvider.getTgToLB()).andReturn(ImmutableMap.of(tgResource, lbResource)).anyTimes();
 
 
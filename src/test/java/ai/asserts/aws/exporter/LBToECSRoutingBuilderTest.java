@@ -158,8 +158,8 @@ public class LBToECSRoutingBuilderTest extends EasyMockSupport {
         metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(SortedMap.class), anyLong());
 
 
-        expect(resourceMapper.map("service-arn")).andReturn(Optional.of(service)).times(2);
-        expect(resourceMapper.map("tg-arn")).andReturn(Optional.of(tg));
+        expect(resourceMapper.map(awsAccount, "service-arn")).andReturn(Optional.of(service)).times(2);
+        expect(resourceMapper.map(awsAccount, "tg-arn")).andReturn(Optional.of(tg));
 
         expect(targetGroupLBMapProvider.getTgToLB()).andReturn(tgToLb);
 
@@ -46,6 +46,7 @@ public class LBToLambdaRoutingBuilderTest extends EasyMockSupport {
     private Resource lbResource;
     private Resource lambdaResource;
     TargetGroupLBMapProvider targetGroupLBMapProvider;
+    private AWSAccount awsAccount;
     private LBToLambdaRoutingBuilder testClass;
 
     @BeforeEach
@@ -70,7 +71,7 @@ public class LBToLambdaRoutingBuilderTest extends EasyMockSupport {
                 new TaskExecutorUtil(new TestTaskThreadPool(),
                         new AWSApiCallRateLimiter(metricCollector, (account) -> "acme")));
 
-        AWSAccount awsAccount = new AWSAccount("acme", "account", "accessId", "secretKey", "role",
+        awsAccount = new AWSAccount("acme", "account", "accessId", "secretKey", "role",
                 ImmutableSet.of("region"));
         expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(awsAccount)).anyTimes();
         expect(awsClientProvider.getELBV2Client("region", awsAccount)).andReturn(elbV2Client).anyTimes();
@@ -98,7 +99,7 @@ public class LBToLambdaRoutingBuilderTest extends EasyMockSupport {
         expect(elbV2Client.describeTargetHealth(DescribeTargetHealthRequest.builder()
                 .targetGroupArn("tg-arn2")
                 .build())).andThrow(TargetGroupNotFoundException.builder().build());
-        expect(resourceMapper.map("lambda-arn")).andReturn(Optional.of(lambdaResource));
+        expect(resourceMapper.map(awsAccount, "lambda-arn")).andReturn(Optional.of(lambdaResource));
         expect(lambdaResource.getType()).andReturn(ResourceType.LambdaFunction).anyTimes();
 
         metricCollector.recordLatency(anyString(), anyObject(SortedMap.class), anyLong());
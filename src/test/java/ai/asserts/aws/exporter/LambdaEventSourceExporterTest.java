@@ -122,8 +122,8 @@ public class LambdaEventSourceExporterTest extends EasyMockSupport {
         );
         metricCollector.recordLatency(anyString(), anyObject(), anyLong());
 
-        expect(resourceMapper.map("fn1_arn")).andReturn(Optional.of(fnResource)).times(2);
-        expect(resourceMapper.map("queue_arn")).andReturn(Optional.of(sourceResource));
+        expect(resourceMapper.map(accountRegion, "fn1_arn")).andReturn(Optional.of(fnResource)).times(2);
+        expect(resourceMapper.map(accountRegion, "queue_arn")).andReturn(Optional.of(sourceResource));
         expect(metricNameUtil.getMetricPrefix("AWS/Lambda")).andReturn("aws_lambda").anyTimes();
 
         expect(resourceTagHelper.getFilteredResources(accountRegion, "region1", namespaceConfig))
@@ -141,8 +141,8 @@ public class LambdaEventSourceExporterTest extends EasyMockSupport {
         expect(fnResource.getName()).andReturn("fn2");
         expect(fnResource.getArn()).andReturn("fn2_arn");
         expect(fnResource.getAccount()).andReturn("account2");
-        expect(resourceMapper.map("fn2_arn")).andReturn(Optional.of(fnResource)).times(2);
-        expect(resourceMapper.map("table_arn")).andReturn(Optional.of(sourceResource));
+        expect(resourceMapper.map(accountRegion, "fn2_arn")).andReturn(Optional.of(fnResource)).times(2);
+        expect(resourceMapper.map(accountRegion, "table_arn")).andReturn(Optional.of(sourceResource));
         fnResource.addEnvLabel(fn2Labels, metricNameUtil);
         sourceResource.addLabels(fn2Labels, "event_source");
         expect(sampleBuilder.buildSingleSample("aws_lambda_event_source",
@@ -134,11 +134,11 @@ public class LambdaInvokeConfigExporterTest extends EasyMockSupport {
         failure.put("on", "failure");
 
         resource.addEnvLabel(baseLabels, metricNameUtil);
-        expect(resourceMapper.map("dst1:arn")).andReturn(Optional.of(resource));
+        expect(resourceMapper.map(accountRegion, "dst1:arn")).andReturn(Optional.of(resource));
         resource.addLabels(success, "destination");
 
         resource.addEnvLabel(baseLabels, metricNameUtil);
-        expect(resourceMapper.map("dst2:arn")).andReturn(Optional.of(resource));
+        expect(resourceMapper.map(accountRegion, "dst2:arn")).andReturn(Optional.of(resource));
         resource.addLabels(failure, "destination");
 
         expect(metricSampleBuilder.buildSingleSample("prefix_invoke_config", success, 1.0D))
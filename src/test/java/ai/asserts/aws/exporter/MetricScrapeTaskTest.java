@@ -3,39 +3,63 @@ package ai.asserts.aws.exporter;
 
 import ai.asserts.aws.AWSClientProvider;
 import ai.asserts.aws.AWSApiCallRateLimiter;
+import ai.asserts.aws.AWSApiCostTracker;
+import ai.asserts.aws.Deadline;
 import ai.asserts.aws.TaskExecutorUtil;
 import ai.asserts.aws.TestTaskThreadPool;
 import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.cloudwatch.IngestionDelayEstimator;
 import ai.asserts.aws.cloudwatch.TimeWindowBuilder;
 import ai.asserts.aws.cloudwatch.query.MetricQuery;
 import ai.asserts.aws.cloudwatch.query.MetricQueryProvider;
 import ai.asserts.aws.cloudwatch.query.QueryBatcher;
 import ai.asserts.aws.config.MetricConfig;
+import ai.asserts.aws.config.NamespaceConfig;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import io.prometheus.client.Collector;
 import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
 import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
 import software.amazon.awssdk.services.cloudwatch.model.Metric;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
 import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.MetricStat;
 import software.amazon.awssdk.services.cloudwatch.model.StatusCode;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static ai.asserts.aws.Deadline.CANCELLED_WORK_METRIC;
+import static ai.asserts.aws.Deadline.PARTIAL_RESULTS_METRIC;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_ERROR_COUNT_METRIC;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_INTERVAL_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
+import static ai.asserts.aws.exporter.MetricScrapeTask.GET_METRIC_DATA_OPERATION;
+import static ai.asserts.aws.exporter.MetricScrapeTask.LOOKBACK_INTERVALS;
 import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.newCapture;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -56,7 +80,9 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
     private Sample sample;
     private Collector.MetricFamilySamples familySamples;
     private TimeWindowBuilder timeWindowBuilder;
+    private IngestionDelayEstimator ingestionDelayEstimator;
     private AWSAccount account;
+    private MetricConfig metricConfig;
     private MetricScrapeTask testClass;
 
     @BeforeEach
@@ -78,6 +104,11 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
                 1.0D, now.toEpochMilli());
         familySamples = mock(Collector.MetricFamilySamples.class);
         timeWindowBuilder = mock(TimeWindowBuilder.class);
+        ingestionDelayEstimator = mock(IngestionDelayEstimator.class);
+        metricConfig = MetricConfig.builder()
+                .namespace(NamespaceConfig.builder().name("ns").build())
+                .scrapeInterval(interval)
+                .build();
 
         testClass = new MetricScrapeTask(account, region, interval, delay);
         testClass.setMetricQueryProvider(metricQueryProvider);
@@ -85,7 +116,10 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
         testClass.setAwsClientProvider(awsClientProvider);
         testClass.setSampleBuilder(sampleBuilder);
         testClass.setTimeWindowBuilder(timeWindowBuilder);
+        testClass.setIngestionDelayEstimator(ingestionDelayEstimator);
         testClass.setRateLimiter(new AWSApiCallRateLimiter(metricCollector, (account) -> "tenant"));
+        testClass.setCostTracker(new AWSApiCostTracker());
+        testClass.setMetricCollector(metricCollector);
         testClass.setTaskExecutorUtil(
                 new TaskExecutorUtil(new TestTaskThreadPool(), new AWSApiCallRateLimiter(metricCollector,
                         (account) -> "tenant")));
@@ -95,22 +129,22 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
     public void run() {
         List<MetricQuery> queries = ImmutableList.of(
                 MetricQuery.builder()
-                        .metric(Metric.builder().namespace("ns1").build())
-                        .metricConfig(MetricConfig.builder().scrapeInterval(interval).build())
+                        .metric(Metric.builder().namespace("ns").build())
+                        .metricConfig(metricConfig)
                         .metricDataQuery(MetricDataQuery.builder()
                                 .id("id1")
                                 .build())
                         .build(),
                 MetricQuery.builder()
-                        .metric(Metric.builder().namespace("ns2").build())
-                        .metricConfig(MetricConfig.builder().scrapeInterval(interval).build())
+                        .metric(Metric.builder().namespace("ns").build())
+                        .metricConfig(metricConfig)
                         .metricDataQuery(MetricDataQuery.builder()
                                 .id("id2")
                                 .build())
                         .build(),
                 MetricQuery.builder()
-                        .metric(Metric.builder().namespace("ns3").build())
-                        .metricConfig(MetricConfig.builder().scrapeInterval(interval).build())
+                        .metric(Metric.builder().namespace("ns").build())
+                        .metricConfig(metricConfig)
                         .metricDataQuery(MetricDataQuery.builder()
                                 .id("id3")
                                 .build())
@@ -119,14 +153,18 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
         expect(metricQueryProvider.getMetricQueries())
                 .andReturn(ImmutableMap.of(accountId, ImmutableMap.of(region, ImmutableMap.of(interval, queries))));
 
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
         expect(awsClientProvider.getCloudWatchClient(region, account)).andReturn(cloudWatchClient);
 
-        expect(timeWindowBuilder.getTimePeriod(region, interval)).andReturn(new Instant[]{now.minusSeconds(60), now});
+        expect(ingestionDelayEstimator.getDelaySeconds(accountId, region, "ns", delay)).andReturn(60);
+        expect(timeWindowBuilder.getCompletedTimePeriod(interval, 60))
+                .andReturn(new Instant[]{now.minusSeconds(60), now});
 
         expect(queryBatcher.splitIntoBatches(queries)).andReturn(ImmutableList.of(queries));
 
-        Instant endTime = now.minusSeconds(delay);
-        Instant startTime = now.minusSeconds(60 + delay);
+        // The intervals before the exported one are queried too
+        Instant endTime = now;
+        Instant startTime = now.minusSeconds(LOOKBACK_INTERVALS * 60);
         GetMetricDataRequest request = GetMetricDataRequest.builder()
                 .metricDataQueries(queries.stream()
                         .map(MetricQuery::getMetricDataQuery)
@@ -142,7 +180,10 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
                 .id("id1")
                 .build();
 
-        expect(cloudWatchClient.getMetricData(request)).andReturn(
+        Capture<GetMetricDataRequest> requests = newCapture(CaptureType.ALL);
+        List<GetMetricDataRequest> expectedRequests = new ArrayList<>();
+        expectedRequests.add(request);
+        expect(cloudWatchClient.getMetricData(capture(requests))).andReturn(
                 GetMetricDataResponse.builder()
                         .metricDataResults(ImmutableList.of(mdr1))
                         .nextToken("token1")
@@ -169,7 +210,8 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
                 .id("id2")
                 .build();
 
-        expect(cloudWatchClient.getMetricData(request)).andReturn(
+        expectedRequests.add(request);
+        expect(cloudWatchClient.getMetricData(capture(requests))).andReturn(
                 GetMetricDataResponse.builder()
                         .metricDataResults(ImmutableList.of(mdr2))
                         .build()
@@ -183,9 +225,262 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
         expect(sampleBuilder.buildFamily(ImmutableList.of(sample, sample))).andReturn(Optional.of(familySamples));
 
         replayAll();
-        testClass.update();
+        testClass.update("ns");
         assertEquals(ImmutableList.of(familySamples), testClass.collect());
         verifyAll();
+        // The calls give up at the deadline of the scrape
+        requests.getValues().forEach(req -> assertTrue(req.overrideConfiguration()
+                .flatMap(AwsRequestOverrideConfiguration::apiCallTimeout)
+                .isPresent()));
+        assertEquals(expectedRequests, requests.getValues().stream()
+                .map(this::withoutOverride)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void run_deadlineExpires() throws Exception {
+        MetricQuery query1 = MetricQuery.builder()
+                .metric(Metric.builder().namespace("ns").build())
+                .metricConfig(metricConfig)
+                .metricDataQuery(MetricDataQuery.builder()
+                        .id("id1")
+                        .build())
+                .build();
+        MetricQuery query2 = MetricQuery.builder()
+                .metric(Metric.builder().namespace("ns").build())
+                .metricConfig(metricConfig)
+                .metricDataQuery(MetricDataQuery.builder()
+                        .id("id2")
+                        .build())
+                .build();
+        List<MetricQuery> queries = ImmutableList.of(query1, query2);
+
+        expect(metricQueryProvider.getMetricQueries())
+                .andReturn(ImmutableMap.of(accountId, ImmutableMap.of(region, ImmutableMap.of(interval, queries))));
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
+        expect(awsClientProvider.getCloudWatchClient(region, account)).andReturn(cloudWatchClient);
+        expect(ingestionDelayEstimator.getDelaySeconds(accountId, region, "ns", delay)).andReturn(60);
+        expect(timeWindowBuilder.getCompletedTimePeriod(interval, 60))
+                .andReturn(new Instant[]{now.minusSeconds(60), now});
+        expect(queryBatcher.splitIntoBatches(queries)).andReturn(ImmutableList.of(
+                ImmutableList.of(query1), ImmutableList.of(query2)));
+
+        MetricDataResult mdr1 = MetricDataResult.builder()
+                .timestamps(ImmutableList.of(now))
+                .values(ImmutableList.of(1.0D))
+                .statusCode(StatusCode.COMPLETE)
+                .id("id1")
+                .build();
+        // The first batch takes longer than the deadline
+        expect(cloudWatchClient.getMetricData(anyObject(GetMetricDataRequest.class))).andAnswer(() -> {
+            Thread.sleep(300);
+            return GetMetricDataResponse.builder()
+                    .metricDataResults(ImmutableList.of(mdr1))
+                    .build();
+        });
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        expect(sampleBuilder.buildSamples(accountId, region, query1, mdr1)).andReturn(ImmutableList.of(sample));
+
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, accountId,
+                SCRAPE_REGION_LABEL, region,
+                SCRAPE_OPERATION_LABEL, GET_METRIC_DATA_OPERATION,
+                SCRAPE_INTERVAL_LABEL, interval + "");
+        metricCollector.recordCounterValue(PARTIAL_RESULTS_METRIC, labels, 1);
+        metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, labels, 1);
+
+        // The samples of the first batch are kept
+        expect(sampleBuilder.buildFamily(ImmutableList.of(sample))).andReturn(Optional.of(familySamples));
+
+        replayAll();
+        Deadline.after(200, TimeUnit.MILLISECONDS).call(() -> {
+            testClass.update("ns");
+            return null;
+        });
+        assertEquals(ImmutableList.of(familySamples), testClass.collect());
+        verifyAll();
+    }
+
+    @Test
+    public void run_apiCallTimesOut() throws Exception {
+        MetricQuery query1 = MetricQuery.builder()
+                .metric(Metric.builder().namespace("ns").build())
+                .metricConfig(metricConfig)
+                .metricDataQuery(MetricDataQuery.builder()
+                        .id("id1")
+                        .build())
+                .build();
+        MetricQuery query2 = MetricQuery.builder()
+                .metric(Metric.builder().namespace("ns").build())
+                .metricConfig(metricConfig)
+                .metricDataQuery(MetricDataQuery.builder()
+                        .id("id2")
+                        .build())
+                .build();
+        List<MetricQuery> queries = ImmutableList.of(query1, query2);
+
+        expect(metricQueryProvider.getMetricQueries())
+                .andReturn(ImmutableMap.of(accountId, ImmutableMap.of(region, ImmutableMap.of(interval, queries))));
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
+        expect(awsClientProvider.getCloudWatchClient(region, account)).andReturn(cloudWatchClient);
+        expect(ingestionDelayEstimator.getDelaySeconds(accountId, region, "ns", delay)).andReturn(60);
+        expect(timeWindowBuilder.getCompletedTimePeriod(interval, 60))
+                .andReturn(new Instant[]{now.minusSeconds(60), now});
+        expect(queryBatcher.splitIntoBatches(queries)).andReturn(ImmutableList.of(
+                ImmutableList.of(query1), ImmutableList.of(query2)));
+
+        // The SDK gives up on the call of the first batch at the deadline
+        expect(cloudWatchClient.getMetricData(anyObject(GetMetricDataRequest.class)))
+                .andThrow(ApiCallTimeoutException.create(200));
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        metricCollector.recordCounterValue(eq(SCRAPE_ERROR_COUNT_METRIC), anyObject(), eq(1));
+
+        ImmutableSortedMap<String, String> labels = ImmutableSortedMap.of(
+                SCRAPE_ACCOUNT_ID_LABEL, accountId,
+                SCRAPE_REGION_LABEL, region,
+                SCRAPE_OPERATION_LABEL, GET_METRIC_DATA_OPERATION,
+                SCRAPE_INTERVAL_LABEL, interval + "");
+        metricCollector.recordCounterValue(PARTIAL_RESULTS_METRIC, labels, 1);
+        metricCollector.recordCounterValue(CANCELLED_WORK_METRIC, labels, 2);
+
+        replayAll();
+        Deadline.after(1, TimeUnit.MINUTES).call(() -> {
+            testClass.update("ns");
+            return null;
+        });
+        assertEquals(Collections.emptyList(), testClass.collect());
+        verifyAll();
+    }
+
+    @Test
+    public void run_deadlineExpiredBeforeStart() throws Exception {
+        replayAll();
+        Deadline deadline = Deadline.after(10, TimeUnit.MILLISECONDS);
+        Thread.sleep(20);
+        // The task isn't run and the previous samples are kept
+        deadline.call(() -> {
+            testClass.update("ns");
+            return null;
+        });
+        assertEquals(Collections.emptyList(), testClass.collect());
+        verifyAll();
+    }
+
+    @Test
+    public void run_namespace() {
+        MetricQuery query1 = MetricQuery.builder()
+                .metric(Metric.builder().namespace("AWS/Lambda").build())
+                .metricConfig(MetricConfig.builder()
+                        .namespace(NamespaceConfig.builder().name("AWS/Lambda").build())
+                        .scrapeInterval(interval).build())
+                .metricDataQuery(MetricDataQuery.builder()
+                        .id("id1")
+                        .metricStat(MetricStat.builder().period(60).build())
+                        .build())
+                .build();
+        MetricQuery query2 = MetricQuery.builder()
+                .metric(Metric.builder().namespace("AWS/EC2").build())
+                .metricConfig(MetricConfig.builder()
+                        .namespace(NamespaceConfig.builder().name("AWS/EC2").build())
+                        .scrapeInterval(interval).build())
+                .metricDataQuery(MetricDataQuery.builder()
+                        .id("id2")
+                        .metricStat(MetricStat.builder().period(60).build())
+                        .build())
+                .build();
+        Instant end = Instant.ofEpochSecond(now.getEpochSecond() / 60 * 60 - 120);
+
+        expect(metricQueryProvider.getMetricQueries()).andReturn(ImmutableMap.of(accountId,
+                ImmutableMap.of(region, ImmutableMap.of(interval, ImmutableList.of(query1, query2)))));
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
+        expect(awsClientProvider.getCloudWatchClient(region, account)).andReturn(cloudWatchClient);
+        // The window ends the learned delay of the namespace before now
+        expect(ingestionDelayEstimator.getDelaySeconds(accountId, region, "AWS/Lambda", delay)).andReturn(120);
+        expect(timeWindowBuilder.getCompletedTimePeriod(interval, 120))
+                .andReturn(new Instant[]{end.minusSeconds(60), end});
+        expect(queryBatcher.splitIntoBatches(ImmutableList.of(query1))).andReturn(
+                ImmutableList.of(ImmutableList.of(query1)));
+
+        MetricDataResult mdr1 = MetricDataResult.builder()
+                .timestamps(ImmutableList.of(end.minusSeconds(60)))
+                .values(ImmutableList.of(1.0D))
+                .statusCode(StatusCode.COMPLETE)
+                .id("id1")
+                .build();
+        Capture<GetMetricDataRequest> request = newCapture();
+        expect(cloudWatchClient.getMetricData(capture(request))).andReturn(GetMetricDataResponse.builder()
+                .metricDataResults(ImmutableList.of(mdr1))
+                .build());
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        expect(sampleBuilder.buildSamples(accountId, region, query1, mdr1)).andReturn(ImmutableList.of(sample));
+        expect(sampleBuilder.buildFamily(ImmutableList.of(sample))).andReturn(Optional.of(familySamples));
+        // The data of the last period of the window was published
+        ingestionDelayEstimator.record(eq(accountId), eq(region), eq("AWS/Lambda"), eq(end), eq(end),
+                anyObject(Instant.class));
+
+        replayAll();
+        testClass.update("AWS/Lambda");
+        assertEquals(ImmutableList.of(familySamples), testClass.collect());
+        assertEquals(end.minusSeconds(LOOKBACK_INTERVALS * 60), request.getValue().startTime());
+        assertEquals(end, request.getValue().endTime());
+
+        // The cache of a namespace that is not scraped anymore is dropped
+        testClass.setNamespaces(ImmutableSet.of("AWS/EC2"));
+        assertEquals(ImmutableList.of(), testClass.collect());
+        verifyAll();
+    }
+
+    @Test
+    public void run_namespace_newestIntervalMissing() {
+        IngestionDelayEstimator estimator = new IngestionDelayEstimator(null, 60, 600);
+        testClass.setIngestionDelayEstimator(estimator);
+        MetricQuery query = MetricQuery.builder()
+                .metric(Metric.builder().namespace("ns").build())
+                .metricConfig(metricConfig)
+                .metricDataQuery(MetricDataQuery.builder()
+                        .id("id1")
+                        .metricStat(MetricStat.builder().period(60).build())
+                        .build())
+                .build();
+        Instant end = Instant.ofEpochSecond(now.getEpochSecond() / 60 * 60 - 60);
+
+        expect(metricQueryProvider.getMetricQueries()).andReturn(ImmutableMap.of(accountId,
+                ImmutableMap.of(region, ImmutableMap.of(interval, ImmutableList.of(query)))));
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
+        expect(awsClientProvider.getCloudWatchClient(region, account)).andReturn(cloudWatchClient);
+        expect(timeWindowBuilder.getCompletedTimePeriod(interval, 60))
+                .andReturn(new Instant[]{end.minusSeconds(60), end});
+        expect(queryBatcher.splitIntoBatches(ImmutableList.of(query))).andReturn(
+                ImmutableList.of(ImmutableList.of(query)));
+        // Only the interval before the exported one has been published
+        expect(cloudWatchClient.getMetricData(anyObject(GetMetricDataRequest.class))).andReturn(
+                GetMetricDataResponse.builder()
+                        .metricDataResults(MetricDataResult.builder()
+                                .timestamps(ImmutableList.of(end.minusSeconds(120)))
+                                .values(ImmutableList.of(1.0D))
+                                .statusCode(StatusCode.COMPLETE)
+                                .id("id1")
+                                .build())
+                        .build());
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+
+        replayAll();
+        testClass.update("ns");
+        // The older interval is not exported
+        assertEquals(ImmutableList.of(), testClass.collect());
+        // The delay only goes up once the missing interval is published, it may have no data
+        assertEquals(60, estimator.getDelaySeconds(accountId, region, "ns", 0));
+        estimator.record(accountId, region, "ns", end.plusSeconds(60), end, now.plusSeconds(60));
+        assertTrue(estimator.getDelaySeconds(accountId, region, "ns", 0) >= 120);
+        // Only for this account and region
+        assertEquals(60, estimator.getDelaySeconds(accountId, "region2", "ns", 0));
+        verifyAll();
+    }
+
+    private GetMetricDataRequest withoutOverride(GetMetricDataRequest request) {
+        return request.toBuilder()
+                .overrideConfiguration((AwsRequestOverrideConfiguration) null)
+                .build();
     }
 
     @Test
@@ -194,7 +489,7 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
                 .andReturn(ImmutableMap.of());
 
         replayAll();
-        testClass.update();
+        testClass.update("ns");
         assertEquals(ImmutableList.of(), testClass.collect());
         verifyAll();
     }
@@ -205,7 +500,7 @@ public class MetricScrapeTaskTest extends EasyMockSupport {
                 .andReturn(ImmutableMap.of(accountId, ImmutableMap.of(region, ImmutableMap.of())));
 
         replayAll();
-        testClass.update();
+        testClass.update("ns");
         assertEquals(ImmutableList.of(), testClass.collect());
         verifyAll();
     }
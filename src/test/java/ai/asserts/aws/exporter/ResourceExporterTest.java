@@ -0,0 +1,266 @@
+/*
+ *  Copyright © 2022.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.exporter;
+
+import ai.asserts.aws.AWSApiCallRateLimiter;
+import ai.asserts.aws.AWSClientProvider;
+import ai.asserts.aws.Deadline;
+import ai.asserts.aws.Deadline.DeadlineExceededException;
+import ai.asserts.aws.ScrapeConfigProvider;
+import ai.asserts.aws.TagUtil;
+import ai.asserts.aws.TaskExecutorUtil;
+import ai.asserts.aws.TestTaskThreadPool;
+import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.account.AccountProvider;
+import ai.asserts.aws.config.ScrapeConfig;
+import ai.asserts.aws.resource.Resource;
+import ai.asserts.aws.resource.ResourceTagHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_LATENCY_METRIC;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SuppressWarnings("unchecked")
+public class ResourceExporterTest extends EasyMockSupport {
+    private AWSAccount account;
+    private BasicMetricCollector metricCollector;
+    private MetricSampleBuilder sampleBuilder;
+    private ResourceTagHelper resourceTagHelper;
+    private TagUtil tagUtil;
+    private ScrapeConfigProvider scrapeConfigProvider;
+    private ScrapeConfig scrapeConfig;
+    private Sample sample1;
+    private Sample sample2;
+    private Sample sample3;
+    private MetricFamilySamples familySamples;
+    private Supplier<List<String>> lister;
+    private boolean expired;
+    private TestExporter testClass;
+
+    @BeforeEach
+    public void setup() {
+        account = new AWSAccount("tenant", "account", "", "", "role", ImmutableSet.of("region"));
+        AccountProvider accountProvider = mock(AccountProvider.class);
+        metricCollector = mock(BasicMetricCollector.class);
+        sampleBuilder = mock(MetricSampleBuilder.class);
+        resourceTagHelper = mock(ResourceTagHelper.class);
+        tagUtil = mock(TagUtil.class);
+        scrapeConfigProvider = mock(ScrapeConfigProvider.class);
+        scrapeConfig = mock(ScrapeConfig.class);
+        sample1 = mock(Sample.class);
+        sample2 = mock(Sample.class);
+        sample3 = mock(Sample.class);
+        familySamples = mock(MetricFamilySamples.class);
+        expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(account)).anyTimes();
+        AWSApiCallRateLimiter rateLimiter = new AWSApiCallRateLimiter(metricCollector, (account) -> "tenant");
+        testClass = new TestExporter(accountProvider, mock(AWSClientProvider.class), mock(CollectorRegistry.class),
+                rateLimiter, new TaskExecutorUtil(new TestTaskThreadPool(), rateLimiter) {
+                    @Override
+                    public Deadline awaitDeadline() {
+                        return expired ? Deadline.after(0, TimeUnit.MILLISECONDS) : super.awaitDeadline();
+                    }
+                });
+    }
+
+    @Test
+    public void update_diffsWithPreviousSamples() {
+        Tag tag = Tag.builder().key("k").value("v").build();
+        expect(scrapeConfigProvider.getScrapeConfig("tenant")).andReturn(scrapeConfig).times(2);
+        expect(resourceTagHelper.getResourcesWithTag(account, "region", "test:resource", ImmutableList.of("r1", "r2")))
+                .andReturn(ImmutableMap.of("r1", Resource.builder().tags(ImmutableList.of(tag)).build()));
+        expect(resourceTagHelper.getResourcesWithTag(account, "region", "test:resource", ImmutableList.of("r1", "r3")))
+                .andReturn(ImmutableMap.of("r1", Resource.builder().tags(ImmutableList.of(tag)).build()));
+        expect(tagUtil.tagLabels(scrapeConfig, ImmutableList.of(tag))).andReturn(ImmutableMap.of("tag_k", "v"))
+                .times(2);
+        expect(sampleBuilder.buildSingleSample("aws_resource", ImmutableMap.of("name", "r1", "tag_k", "v"), 1.0D))
+                .andReturn(Optional.of(sample1));
+        expect(sampleBuilder.buildSingleSample("aws_resource", ImmutableMap.of("name", "r2"), 1.0D))
+                .andReturn(Optional.of(sample2));
+        expect(sampleBuilder.buildFamily(ImmutableList.of(sample1, sample2))).andReturn(Optional.of(familySamples));
+        // The sample of r1 is reused
+        expect(sampleBuilder.buildSingleSample("aws_resource", ImmutableMap.of("name", "r3"), 1.0D))
+                .andReturn(Optional.of(sample3));
+        expect(sampleBuilder.buildFamily(ImmutableList.of(sample1, sample3))).andReturn(Optional.of(familySamples));
+        replayAll();
+
+        lister = () -> ImmutableList.of("r1", "r2");
+        testClass.update();
+        assertEquals(ImmutableList.of(familySamples), testClass.collect());
+
+        lister = () -> ImmutableList.of("r1", "r3");
+        testClass.update();
+        assertEquals(ImmutableList.of(familySamples), testClass.collect());
+        verifyAll();
+    }
+
+    @Test
+    public void update_listingFails() {
+        expect(scrapeConfigProvider.getScrapeConfig("tenant")).andReturn(scrapeConfig);
+        expect(resourceTagHelper.getResourcesWithTag(account, "region", "test:resource", ImmutableList.of("r1")))
+                .andReturn(ImmutableMap.of());
+        expect(sampleBuilder.buildSingleSample("aws_resource", ImmutableMap.of("name", "r1"), 1.0D))
+                .andReturn(Optional.of(sample1));
+        expect(sampleBuilder.buildFamily(ImmutableList.of(sample1))).andReturn(Optional.of(familySamples)).times(2);
+        replayAll();
+
+        lister = () -> ImmutableList.of("r1");
+        testClass.update();
+
+        // The samples of the previous update are kept
+        lister = () -> {
+            throw new RuntimeException();
+        };
+        testClass.update();
+        assertEquals(ImmutableList.of(familySamples), testClass.collect());
+        verifyAll();
+    }
+
+    @Test
+    public void update_deadlineExpired() {
+        expect(scrapeConfigProvider.getScrapeConfig("tenant")).andReturn(scrapeConfig);
+        expect(resourceTagHelper.getResourcesWithTag(account, "region", "test:resource", ImmutableList.of("r1")))
+                .andReturn(ImmutableMap.of());
+        expect(sampleBuilder.buildSingleSample("aws_resource", ImmutableMap.of("name", "r1"), 1.0D))
+                .andReturn(Optional.of(sample1));
+        expect(sampleBuilder.buildFamily(ImmutableList.of(sample1))).andReturn(Optional.of(familySamples)).times(2);
+        replayAll();
+
+        lister = () -> ImmutableList.of("r1");
+        testClass.update();
+
+        // The region isn't listed before the deadline and keeps the samples of the previous update
+        expired = true;
+        lister = () -> ImmutableList.of("r2");
+        testClass.update();
+        assertEquals(ImmutableList.of(familySamples), testClass.collect());
+        verifyAll();
+    }
+
+    @Test
+    public void listPages() {
+        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(SortedMap.class), anyLong());
+        expectLastCall().times(3);
+        replayAll();
+
+        List<String> tokens = new ArrayList<>();
+        Map<String, String> nextTokens = new TreeMap<>();
+        nextTokens.put("first", "t1");
+        nextTokens.put("t1", "t2");
+        // The same token again ends the listing
+        nextTokens.put("t2", "t2");
+        assertEquals(ImmutableList.of("first", "t1", "t2"), testClass.listPages("api", account, "region",
+                token -> () -> {
+                    tokens.add(token);
+                    return token == null ? "first" : token;
+                },
+                page -> ImmutableList.of(page), nextTokens::get));
+        assertEquals(Arrays.asList(null, "t1", "t2"), tokens);
+        verifyAll();
+    }
+
+    @Test
+    public void callOnce() {
+        replayAll();
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals(1, testClass.callOnce("api", account, calls::incrementAndGet));
+        assertEquals(1, testClass.callOnce("api", account, calls::incrementAndGet));
+        assertEquals(2, testClass.callOnce("other-api", account, calls::incrementAndGet));
+
+        // The error is shared too
+        Supplier<Integer> failing = () -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException();
+        };
+        assertThrows(IllegalStateException.class, () -> testClass.callOnce("failing-api", account, failing));
+        assertThrows(IllegalStateException.class, () -> testClass.callOnce("failing-api", account, failing));
+        assertEquals(3, calls.get());
+        verifyAll();
+    }
+
+    @Test
+    public void callOnce_waitsUpToDeadline() throws Exception {
+        replayAll();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread first = new Thread(() -> testClass.callOnce("api", account, () -> {
+            started.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        }));
+        first.start();
+        started.await();
+
+        // Another region gives up waiting for the call at its deadline
+        Deadline deadline = Deadline.after(50, TimeUnit.MILLISECONDS);
+        assertThrows(DeadlineExceededException.class, () -> deadline.call(() ->
+                testClass.callOnce("api", account, () -> 2)));
+        done.countDown();
+        first.join();
+        assertEquals(1, testClass.callOnce("api", account, () -> 2));
+        verifyAll();
+    }
+
+    private class TestExporter extends ResourceExporter<String> {
+        private TestExporter(AccountProvider accountProvider, AWSClientProvider awsClientProvider,
+                             CollectorRegistry collectorRegistry, AWSApiCallRateLimiter rateLimiter,
+                             TaskExecutorUtil taskExecutorUtil) {
+            super("Test Resources", accountProvider, awsClientProvider, collectorRegistry, rateLimiter,
+                    ResourceExporterTest.this.sampleBuilder, resourceTagHelper, tagUtil, taskExecutorUtil, scrapeConfigProvider);
+        }
+
+        @Override
+        protected List<String> listResources(AWSAccount account, String region) {
+            return lister.get();
+        }
+
+        @Override
+        protected String getTagResourceType(String resource) {
+            return "test:resource";
+        }
+
+        @Override
+        protected String getName(String resource) {
+            return resource;
+        }
+
+        @Override
+        protected Map<String, String> buildLabels(AWSAccount account, String region, String resource) {
+            Map<String, String> labels = new TreeMap<>();
+            labels.put("name", resource);
+            return labels;
+        }
+    }
+}
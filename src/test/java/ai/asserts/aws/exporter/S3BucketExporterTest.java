@@ -20,13 +20,14 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
-import org.easymock.Capture;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.Bucket;
+import software.amazon.awssdk.services.s3.model.GetBucketLocationRequest;
+import software.amazon.awssdk.services.s3.model.GetBucketLocationResponse;
 import software.amazon.awssdk.services.s3.model.ListBucketsResponse;
 
 import java.util.Optional;
@@ -34,8 +35,9 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
+import static ai.asserts.aws.MetricNameUtil.SCRAPE_LATENCY_METRIC;
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
-import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
@@ -47,9 +49,9 @@ public class S3BucketExporterTest extends EasyMockSupport {
     public CollectorRegistry collectorRegistry;
     private AWSAccount accountRegion;
     private AWSClientProvider awsClientProvider;
-    private AWSApiCallRateLimiter rateLimiter;
     private MetricSampleBuilder sampleBuilder;
-    private Collector.MetricFamilySamples.Sample sample;
+    private Collector.MetricFamilySamples.Sample sample1;
+    private Collector.MetricFamilySamples.Sample sample2;
     private Collector.MetricFamilySamples familySamples;
     private S3Client s3Client;
     private ResourceTagHelper resourceTagHelper;
@@ -62,28 +64,31 @@ public class S3BucketExporterTest extends EasyMockSupport {
     @BeforeEach
     public void setup() {
         accountRegion = new AWSAccount("acme", "account1", "", "",
-                "role", ImmutableSet.of("region1"));
+                "role", ImmutableSet.of("region1", "region2"));
         AccountProvider accountProvider = mock(AccountProvider.class);
         sampleBuilder = mock(MetricSampleBuilder.class);
-        sample = mock(Collector.MetricFamilySamples.Sample.class);
+        sample1 = mock(Collector.MetricFamilySamples.Sample.class);
+        sample2 = mock(Collector.MetricFamilySamples.Sample.class);
         familySamples = mock(Collector.MetricFamilySamples.class);
         awsClientProvider = mock(AWSClientProvider.class);
-        rateLimiter = mock(AWSApiCallRateLimiter.class);
+        basicMetricCollector = mock(BasicMetricCollector.class);
         collectorRegistry = mock(CollectorRegistry.class);
         s3Client = mock(S3Client.class);
         resourceTagHelper = mock(ResourceTagHelper.class);
         tagUtil = mock(TagUtil.class);
         scrapeConfigProvider = mock(ScrapeConfigProvider.class);
         scrapeConfig = mock(ScrapeConfig.class);
-        expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(accountRegion));
+        expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(accountRegion)).anyTimes();
+        basicMetricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(SortedMap.class), anyLong());
+        expectLastCall().anyTimes();
+        AWSApiCallRateLimiter rateLimiter = new AWSApiCallRateLimiter(basicMetricCollector, (account) -> "acme");
         testClass = new S3BucketExporter(accountProvider, awsClientProvider, collectorRegistry, rateLimiter,
                 sampleBuilder, resourceTagHelper, tagUtil, new TaskExecutorUtil(new TestTaskThreadPool(),
-                new AWSApiCallRateLimiter(basicMetricCollector, (account) -> "acme")), scrapeConfigProvider);
+                rateLimiter), scrapeConfigProvider);
     }
 
     @Test
     public void exporterBucketTest() {
-
         SortedMap<String, String> labels1 = new TreeMap<>();
         labels1.put("namespace", "AWS/S3");
         labels1.put("region", "region1");
@@ -93,31 +98,69 @@ public class S3BucketExporterTest extends EasyMockSupport {
         labels1.put("tag_k", "v");
         labels1.put(SCRAPE_ACCOUNT_ID_LABEL, "account1");
         labels1.put("aws_resource_type", "AWS::S3::Bucket");
+        SortedMap<String, String> labels2 = new TreeMap<>(labels1);
+        labels2.put("region", "region2");
+        labels2.put("name", "b2");
+        labels2.put("id", "b2");
+        labels2.put("job", "b2");
+        labels2.remove("tag_k");
         ListBucketsResponse response = ListBucketsResponse
                 .builder()
-                .buckets(Bucket.builder().name("b1").build())
+                .buckets(Bucket.builder().name("b1").build(), Bucket.builder().name("b2").build(),
+                        Bucket.builder().name("b3").build())
                 .build();
-        Capture<AWSApiCallRateLimiter.AWSAPICall<ListBucketsResponse>> callbackCapture = Capture.newInstance();
 
-        expect(scrapeConfigProvider.getScrapeConfig("acme")).andReturn(scrapeConfig);
-        expect(rateLimiter.doWithRateLimit(eq("S3Client/listBuckets"),
-                anyObject(SortedMap.class), capture(callbackCapture))).andReturn(response);
-        expect(awsClientProvider.getS3Client("region1", accountRegion)).andReturn(s3Client);
+        // The buckets are listed once for all the regions of the account
+        expect(awsClientProvider.getS3Client("region1", accountRegion)).andReturn(s3Client).times(2);
+        expect(s3Client.listBuckets()).andReturn(response).times(2);
+        // The locations are only looked up in the first update
+        expectLocation("b1", "region1");
+        expectLocation("b2", "region2");
+        expectLocation("b3", "");
+
+        expect(scrapeConfigProvider.getScrapeConfig("acme")).andReturn(scrapeConfig).times(4);
         ImmutableList<Tag> tags = ImmutableList.of(Tag.builder().key("k").value("v").build());
         expect(resourceTagHelper.getResourcesWithTag(accountRegion, "region1", "s3:bucket", ImmutableList.of(
                 "b1")))
                 .andReturn(ImmutableMap.of("b1", Resource.builder()
                         .tags(tags)
-                        .build()));
-        expect(tagUtil.tagLabels(scrapeConfig, tags)).andReturn(ImmutableMap.of("tag_k", "v"));
+                        .build())).times(2);
+        expect(resourceTagHelper.getResourcesWithTag(accountRegion, "region2", "s3:bucket", ImmutableList.of(
+                "b2")))
+                .andReturn(ImmutableMap.of()).times(2);
+        expect(tagUtil.tagLabels(scrapeConfig, tags)).andReturn(ImmutableMap.of("tag_k", "v")).times(2);
         expect(sampleBuilder.buildSingleSample("aws_resource", labels1, 1.0D))
-                .andReturn(Optional.of(sample));
-        expect(sampleBuilder.buildFamily(ImmutableList.of(sample))).andReturn(Optional.of(familySamples));
-        expectLastCall();
+                .andReturn(Optional.of(sample1));
+        expect(sampleBuilder.buildSingleSample("aws_resource", labels2, 1.0D))
+                .andReturn(Optional.of(sample2));
+        expect(sampleBuilder.buildFamily(ImmutableList.of(sample1, sample2))).andReturn(Optional.of(familySamples))
+                .times(2);
         replayAll();
         testClass.update();
-        testClass.collect();
+        assertEquals(ImmutableList.of(familySamples), testClass.collect());
+        testClass.update();
         assertEquals(ImmutableList.of(familySamples), testClass.collect());
         verifyAll();
     }
+
+    @Test
+    public void listBucketsByRegion_locationFails() {
+        expect(awsClientProvider.getS3Client("region1", accountRegion)).andReturn(s3Client);
+        expect(s3Client.listBuckets()).andReturn(ListBucketsResponse.builder()
+                .buckets(Bucket.builder().name("b1").build(), Bucket.builder().name("b2").build())
+                .build());
+        expect(s3Client.getBucketLocation(GetBucketLocationRequest.builder().bucket("b1").build()))
+                .andThrow(new RuntimeException());
+        basicMetricCollector.recordCounterValue(eq("aws_exporter_error_total"), anyObject(SortedMap.class), eq(1));
+        expectLocation("b2", "EU");
+        replayAll();
+        assertEquals(ImmutableMap.of("eu-west-1", ImmutableList.of(Bucket.builder().name("b2").build())),
+                testClass.listBucketsByRegion(accountRegion, "region1"));
+        verifyAll();
+    }
+
+    private void expectLocation(String bucket, String location) {
+        expect(s3Client.getBucketLocation(GetBucketLocationRequest.builder().bucket(bucket).build()))
+                .andReturn(GetBucketLocationResponse.builder().locationConstraint(location).build());
+    }
 }
@@ -106,11 +106,11 @@ public class SNSTopicExporterTest extends EasyMockSupport {
         expect(rateLimiter.doWithRateLimit(eq("SnsClient/listTopics"),
                 anyObject(SortedMap.class), capture(callbackCapture))).andReturn(response);
         expect(awsClientProvider.getSnsClient("region1", accountRegion)).andReturn(snsClient);
-        expect(resourceMapper.map("b1")).andReturn(Optional.of(Resource.builder()
+        expect(resourceMapper.map(accountRegion, "b1")).andReturn(Optional.of(Resource.builder()
                 .account("account1")
                 .region("region1")
                 .name("b1")
-                .build())).times(2);
+                .build()));
         ImmutableList<Tag> tags = ImmutableList.of(Tag.builder().key("k").value("v").build());
         expect(resourceTagHelper.getResourcesWithTag(accountRegion, "region1", "sns:topic", ImmutableList.of("b1")))
                 .andReturn(ImmutableMap.of("b1", Resource.builder()
@@ -15,7 +15,6 @@ import ai.asserts.aws.resource.ResourceMapper;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSortedMap;
 import io.prometheus.client.Collector.MetricFamilySamples;
 import io.prometheus.client.Collector.MetricFamilySamples.Sample;
 import io.prometheus.client.CollectorRegistry;
@@ -23,19 +22,10 @@ import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import software.amazon.awssdk.services.elasticloadbalancingv2.ElasticLoadBalancingV2Client;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.Action;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeListenersRequest;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeListenersResponse;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeLoadBalancersResponse;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeRulesRequest;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeRulesResponse;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeTargetGroupsRequest;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeTargetGroupsResponse;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeTargetHealthRequest;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.DescribeTargetHealthResponse;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.Listener;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.LoadBalancer;
-import software.amazon.awssdk.services.elasticloadbalancingv2.model.Rule;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.TargetDescription;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.TargetGroup;
 import software.amazon.awssdk.services.elasticloadbalancingv2.model.TargetHealth;
@@ -46,19 +36,16 @@ import software.amazon.awssdk.services.elasticloadbalancingv2.model.TargetTypeEn
 import java.util.List;
 import java.util.Optional;
 import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_ACCOUNT_ID_LABEL;
 import static ai.asserts.aws.MetricNameUtil.SCRAPE_LATENCY_METRIC;
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_OPERATION_LABEL;
-import static ai.asserts.aws.MetricNameUtil.SCRAPE_REGION_LABEL;
 import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("unchecked")
@@ -74,8 +61,10 @@ public class TargetGroupLBMapProviderTest extends EasyMockSupport {
     private TaskExecutorUtil taskExecutorUtil;
     private Sample mockSample;
     private MetricFamilySamples mockFamilySamples;
-    private SortedMap<String, String> labels;
     private AWSAccount awsAccount;
+    private Resource lbResource;
+    private Resource tgResource;
+    private Resource tgResource2;
 
     @BeforeEach
     public void setup() {
@@ -90,17 +79,31 @@ public class TargetGroupLBMapProviderTest extends EasyMockSupport {
         mockFamilySamples = mock(MetricFamilySamples.class);
         rateLimiter = new AWSApiCallRateLimiter(metricCollector, (account) -> "tenant");
         taskExecutorUtil = new TaskExecutorUtil(new TestTaskThreadPool(), rateLimiter);
-        labels = ImmutableSortedMap.of(
-                SCRAPE_ACCOUNT_ID_LABEL, "account",
-                SCRAPE_REGION_LABEL, "region",
-                SCRAPE_OPERATION_LABEL, "ElasticLoadBalancingV2Client/describeLoadBalancers"
-        );
 
         awsAccount = new AWSAccount("tenant", "account", "", "", "role",
                 ImmutableSet.of("region"));
         expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(awsAccount)).anyTimes();
-    }
 
+        lbResource = Resource.builder()
+                .name("lb-name")
+                .id("lb-id")
+                .arn("lb-arn")
+                .account("account")
+                .region("us-west-2")
+                .build();
+        tgResource = Resource.builder()
+                .name("tg")
+                .account("account")
+                .region("us-west-2")
+                .arn("tg-arn")
+                .build();
+        tgResource2 = Resource.builder()
+                .name("tg2")
+                .account("account")
+                .region("us-west-2")
+                .arn("tg-arn2")
+                .build();
+    }
 
     @Test
     public void afterPropertiesSet() throws Exception {
@@ -115,28 +118,22 @@ public class TargetGroupLBMapProviderTest extends EasyMockSupport {
 
     @Test
     public void update() {
-        LoadBalancer loadBalancer = LoadBalancer.builder()
-                .loadBalancerArn("lb-arn")
-                .build();
-
-        expect(awsClientProvider.getELBV2Client("region", awsAccount)).andReturn(lbClient);
-
-        expect(lbClient.describeLoadBalancers()).andReturn(DescribeLoadBalancersResponse.builder()
-                .loadBalancers(loadBalancer)
-                .build());
-        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(SortedMap.class), anyLong());
-
+        TargetGroupLBMapProvider.TargetGroupRoute route = route(tgResource, "tg-arn", true);
+        TargetGroupLBMapProvider.TargetGroupRoute route2 = route(tgResource2, "tg-arn2", false);
         AtomicInteger sideEffect = new AtomicInteger();
 
         TargetGroupLBMapProvider testClass = new TargetGroupLBMapProvider(accountProvider, awsClientProvider,
                 resourceMapper, rateLimiter, sampleBuilder, collectorRegistry, taskExecutorUtil) {
             @Override
-            List<Sample> mapLB(ElasticLoadBalancingV2Client client,
-                               SortedMap<String, String> theLabels,
-                               LoadBalancer theLb) {
-                assertEquals(lbClient, client);
-                assertEquals(labels, theLabels);
-                assertEquals(loadBalancer, theLb);
+            List<TargetGroupRoute> buildRoutes(AWSAccount account, String region) {
+                assertEquals(awsAccount, account);
+                assertEquals("region", region);
+                return ImmutableList.of(route, route2);
+            }
+
+            @Override
+            List<Sample> buildSamples(TargetGroupRoute theRoute) {
+                assertEquals(route, theRoute);
                 sideEffect.incrementAndGet();
                 return ImmutableList.of(mockSample);
             }
@@ -146,152 +143,110 @@ public class TargetGroupLBMapProviderTest extends EasyMockSupport {
         testClass.update();
         assertEquals(1, sideEffect.get());
         assertEquals(mockFamilySamples, testClass.getMetricFamilySamples());
+        assertEquals(ImmutableMap.of(tgResource, lbResource, tgResource2, lbResource), testClass.getTgToLB());
         verifyAll();
     }
 
     @Test
-    public void mapLB() {
-        Resource lbResource = Resource.builder()
-                .arn("lb-arn")
-                .build();
-
-        LoadBalancer loadBalancer = LoadBalancer.builder()
-                .loadBalancerArn("lb-arn")
-                .build();
-
-        Listener listener = Listener.builder()
-                .listenerArn("listener-arn")
-                .build();
-
-        DescribeListenersRequest request = DescribeListenersRequest.builder()
-                .loadBalancerArn("lb-arn")
-                .build();
-
-        DescribeListenersResponse response = DescribeListenersResponse.builder()
-                .listeners(listener)
-                .build();
-        expect(resourceMapper.map(loadBalancer.loadBalancerArn())).andReturn(Optional.of(lbResource));
-        expect(lbClient.describeListeners(request)).andReturn(response);
-        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(SortedMap.class), anyLong());
-
-        AtomicInteger sideEffect = new AtomicInteger();
+    public void update_keepsRoutesOfFailedRegion() {
+        TargetGroupLBMapProvider.TargetGroupRoute route = route(tgResource, "tg-arn", false);
+        AtomicInteger calls = new AtomicInteger();
 
         TargetGroupLBMapProvider testClass = new TargetGroupLBMapProvider(accountProvider, awsClientProvider,
                 resourceMapper, rateLimiter, sampleBuilder, collectorRegistry, taskExecutorUtil) {
             @Override
-            List<Sample> mapListener(ElasticLoadBalancingV2Client theClient,
-                                     SortedMap<String, String> labels,
-                                     Resource theResource, Listener theListener) {
-                assertEquals(lbClient, theClient);
-                assertEquals(lbResource, theResource);
-                assertEquals(listener, theListener);
-                sideEffect.incrementAndGet();
-                return ImmutableList.of(mockSample);
+            List<TargetGroupRoute> buildRoutes(AWSAccount account, String region) {
+                if (calls.incrementAndGet() > 1) {
+                    throw new RuntimeException();
+                }
+                return ImmutableList.of(route);
             }
         };
-
+        expect(sampleBuilder.buildFamily(ImmutableList.of())).andReturn(Optional.empty()).times(2);
         replayAll();
-        assertEquals(ImmutableList.of(mockSample), testClass.mapLB(lbClient, labels, loadBalancer));
-        assertEquals(1, sideEffect.get());
+        testClass.update();
+        assertEquals(ImmutableMap.of(tgResource, lbResource), testClass.getTgToLB());
+        testClass.update();
+        assertEquals(2, calls.get());
+        assertEquals(ImmutableMap.of(tgResource, lbResource), testClass.getTgToLB());
         verifyAll();
     }
 
     @Test
-    public void mapListener() {
-        Resource lbResource = Resource.builder()
-                .name("lb-name")
-                .id("lb-id")
-                .arn("lb-arn")
-                .account("account")
-                .region("us-west-2")
-                .build();
-
-        Resource tgResource = Resource.builder()
-                .name("tg")
-                .account("account")
-                .region("us-west-2")
-                .arn("tg-arn")
-                .build();
-
-        Resource tgResource2 = Resource.builder()
-                .name("tg2")
-                .account("account")
-                .region("us-west-2")
-                .arn("tg-arn2")
-                .build();
-
-        Listener listener = Listener.builder()
-                .listenerArn("listener-arn")
-                .build();
-
-        DescribeRulesRequest request = DescribeRulesRequest.builder()
-                .listenerArn("listener-arn")
-                .build();
-
-        DescribeRulesResponse response = DescribeRulesResponse.builder()
-                .rules(Rule.builder()
-                        .actions(Action.builder()
-                                        .targetGroupArn("tg-arn")
-                                        .build(),
-                                Action.builder()
-                                        .targetGroupArn("tg-arn2")
-                                        .build())
-                        .build())
-                .build();
-        expect(lbClient.describeRules(request)).andReturn(response);
-        expect(lbClient.describeTargetGroups(DescribeTargetGroupsRequest.builder()
-                .targetGroupArns("tg-arn")
-                .build())).andReturn(DescribeTargetGroupsResponse.builder()
-                .targetGroups(TargetGroup.builder()
-                        .healthCheckPort("80")
-                        .targetType(TargetTypeEnum.INSTANCE)
-                        .build())
-                .build());
-        expect(lbClient.describeTargetHealth(DescribeTargetHealthRequest.builder().targetGroupArn("tg-arn")
-                .build())).andReturn(DescribeTargetHealthResponse.builder()
-                .targetHealthDescriptions(TargetHealthDescription.builder()
-                        .target(TargetDescription.builder()
-                                .id("instance-id")
-                                .port(80)
+    public void buildRoutes() {
+        expect(awsClientProvider.getELBV2Client("region", awsAccount)).andReturn(lbClient);
+        expect(lbClient.describeTargetGroups(DescribeTargetGroupsRequest.builder().build()))
+                .andReturn(DescribeTargetGroupsResponse.builder()
+                        .targetGroups(TargetGroup.builder()
+                                .targetGroupArn("tg-arn")
+                                .targetType(TargetTypeEnum.INSTANCE)
+                                .loadBalancerArns("lb-arn")
+                                .build(), TargetGroup.builder()
+                                .targetGroupArn("tg-arn3")
+                                .targetType(TargetTypeEnum.INSTANCE)
                                 .build())
-                        .targetHealth(TargetHealth.builder()
-                                .state(TargetHealthStateEnum.HEALTHY)
+                        .nextMarker("marker")
+                        .build());
+        expect(lbClient.describeTargetGroups(DescribeTargetGroupsRequest.builder().marker("marker").build()))
+                .andReturn(DescribeTargetGroupsResponse.builder()
+                        .targetGroups(TargetGroup.builder()
+                                .targetGroupArn("tg-arn2")
+                                .targetType(TargetTypeEnum.LAMBDA)
+                                .loadBalancerArns("lb-arn")
                                 .build())
-                        .build())
-                .build());
+                        .build());
+        metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(SortedMap.class), anyLong());
+        expectLastCall().times(2);
+        expect(resourceMapper.map(awsAccount, "tg-arn")).andReturn(Optional.of(tgResource));
+        expect(resourceMapper.map(awsAccount, "tg-arn2")).andReturn(Optional.of(tgResource2));
+        expect(resourceMapper.map(awsAccount, "lb-arn")).andReturn(Optional.of(lbResource)).times(2);
 
-        expect(lbClient.describeTargetGroups(DescribeTargetGroupsRequest.builder()
-                .targetGroupArns("tg-arn2")
-                .build())).andReturn(DescribeTargetGroupsResponse.builder()
-                .targetGroups(TargetGroup.builder()
-                        .healthCheckPort("80")
-                        .targetType(TargetTypeEnum.INSTANCE)
-                        .build())
-                .build());
-        expect(lbClient.describeTargetHealth(DescribeTargetHealthRequest.builder().targetGroupArn("tg-arn2")
+        TargetGroupLBMapProvider testClass = new TargetGroupLBMapProvider(accountProvider, awsClientProvider,
+                resourceMapper, rateLimiter, sampleBuilder, collectorRegistry, taskExecutorUtil);
+        replayAll();
+        assertEquals(ImmutableList.of(
+                route(tgResource, "tg-arn", true),
+                route(tgResource2, "tg-arn2", false)
+        ), testClass.buildRoutes(awsAccount, "region"));
+        verifyAll();
+    }
+
+    @Test
+    public void buildSamples() {
+        expect(awsClientProvider.getELBV2Client("region", awsAccount)).andReturn(lbClient);
+        expect(lbClient.describeTargetHealth(DescribeTargetHealthRequest.builder().targetGroupArn("tg-arn")
                 .build())).andReturn(DescribeTargetHealthResponse.builder()
                 .targetHealthDescriptions(TargetHealthDescription.builder()
-                        .target(TargetDescription.builder()
-                                .id("instance-id2")
-                                .port(80)
-                                .build())
-                        .targetHealth(TargetHealth.builder()
-                                .state(TargetHealthStateEnum.HEALTHY)
+                                .target(TargetDescription.builder()
+                                        .id("instance-id")
+                                        .port(80)
+                                        .build())
+                                .targetHealth(TargetHealth.builder()
+                                        .state(TargetHealthStateEnum.HEALTHY)
+                                        .build())
+                                .build(),
+                        TargetHealthDescription.builder()
+                                .target(TargetDescription.builder()
+                                        .id("10.0.0.1")
+                                        .port(8080)
+                                        .build())
+                                .targetHealth(TargetHealth.builder()
+                                        .state(TargetHealthStateEnum.HEALTHY)
+                                        .build())
+                                .build(),
+                        TargetHealthDescription.builder()
+                                .target(TargetDescription.builder()
+                                        .id("instance-id2")
+                                        .port(80)
+                                        .build())
+                                .targetHealth(TargetHealth.builder()
+                                        .state(TargetHealthStateEnum.UNHEALTHY)
+                                        .build())
                                 .build())
-                        .build())
                 .build());
         metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(SortedMap.class), anyLong());
-        expectLastCall().anyTimes();
-
-        expect(resourceMapper.map("tg-arn")).andReturn(Optional.of(tgResource));
-        expect(resourceMapper.map("tg-arn2")).andReturn(Optional.of(tgResource2));
-
-        TargetGroupLBMapProvider testClass = new TargetGroupLBMapProvider(accountProvider, awsClientProvider,
-                resourceMapper, rateLimiter, sampleBuilder, collectorRegistry, taskExecutorUtil);
 
-        testClass.getMissingTgMap().put(tgResource2, tgResource2);
-
-        ImmutableMap<String, String> labels = ImmutableMap.<String, String>builder()
+        expect(sampleBuilder.buildSingleSample("aws_lb_to_ec2_instance", ImmutableMap.<String, String>builder()
                 .put("account_id", "account")
                 .put("region", "us-west-2")
                 .put("ec2_instance_id", "instance-id")
@@ -299,45 +254,58 @@ public class TargetGroupLBMapProviderTest extends EasyMockSupport {
                 .put("lb_name", "lb-name")
                 .put("lb_id", "lb-id")
                 .put("lb_type", "classic")
-                .build();
-        expect(sampleBuilder.buildSingleSample("aws_lb_to_ec2_instance", labels, 1.0D))
-                .andReturn(Optional.of(mockSample));
-
-        labels = ImmutableMap.<String, String>builder()
+                .build(), 1.0D)).andReturn(Optional.of(mockSample));
+        expect(sampleBuilder.buildSingleSample("aws_lb_to_ec2_instance", ImmutableMap.<String, String>builder()
                 .put("account_id", "account")
                 .put("region", "us-west-2")
-                .put("ec2_instance_id", "instance-id2")
-                .put("port", "80")
+                .put("instance", "10.0.0.1:8080")
                 .put("lb_name", "lb-name")
                 .put("lb_id", "lb-id")
                 .put("lb_type", "classic")
-                .build();
-        expect(sampleBuilder.buildSingleSample("aws_lb_to_ec2_instance", labels, 1.0D))
-                .andReturn(Optional.of(mockSample));
+                .build(), 1.0D)).andReturn(Optional.of(mockSample));
 
+        TargetGroupLBMapProvider testClass = new TargetGroupLBMapProvider(accountProvider, awsClientProvider,
+                resourceMapper, rateLimiter, sampleBuilder, collectorRegistry, taskExecutorUtil);
         replayAll();
-        assertTrue(testClass.getTgToLB().isEmpty());
-        assertEquals(ImmutableList.of(
-                mockSample, mockSample
-        ), testClass.mapListener(lbClient, new TreeMap<>(), lbResource, listener));
-        assertEquals(ImmutableMap.of(tgResource, lbResource), testClass.getTgToLB());
+        assertEquals(ImmutableList.of(mockSample, mockSample),
+                testClass.buildSamples(route(tgResource, "tg-arn", true)));
         verifyAll();
     }
 
     @Test
     public void handleMissing() {
         TargetGroupLBMapProvider testClass = new TargetGroupLBMapProvider(accountProvider, awsClientProvider,
-                resourceMapper, rateLimiter, sampleBuilder, collectorRegistry, taskExecutorUtil);
-
-        Resource tgResource = Resource.builder()
-                .name("tg")
-                .arn("tg-arn")
-                .build();
+                resourceMapper, rateLimiter, sampleBuilder, collectorRegistry, taskExecutorUtil) {
+            @Override
+            List<TargetGroupRoute> buildRoutes(AWSAccount account, String region) {
+                return ImmutableList.of(route(tgResource, "tg-arn", false), route(tgResource2, "tg-arn2", false));
+            }
+        };
+        expect(sampleBuilder.buildFamily(ImmutableList.of())).andReturn(Optional.empty()).times(2);
+        replayAll();
 
-        testClass.getTgToLB().put(tgResource, tgResource);
+        testClass.update();
         testClass.handleMissingTgs(ImmutableSet.of(tgResource));
-        assertTrue(testClass.getTgToLB().isEmpty());
+        assertEquals(ImmutableMap.of(tgResource2, lbResource), testClass.getTgToLB());
         assertTrue(testClass.getMissingTgMap().containsKey(tgResource));
         assertEquals(tgResource, testClass.getMissingTgMap().get(tgResource));
+        assertThrows(UnsupportedOperationException.class,
+                () -> testClass.getTgToLB().put(tgResource, lbResource));
+
+        // A missing target group stays out of the routing on the next cycle
+        testClass.update();
+        assertEquals(ImmutableMap.of(tgResource2, lbResource), testClass.getTgToLB());
+        verifyAll();
+    }
+
+    private TargetGroupLBMapProvider.TargetGroupRoute route(Resource tg, String tgArn, boolean directTargets) {
+        return TargetGroupLBMapProvider.TargetGroupRoute.builder()
+                .account(awsAccount)
+                .region("region")
+                .targetGroupArn(tgArn)
+                .targetGroup(tg)
+                .loadBalancers(ImmutableList.of(lbResource))
+                .directTargets(directTargets)
+                .build();
     }
 }
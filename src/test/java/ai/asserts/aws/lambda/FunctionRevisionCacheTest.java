@@ -0,0 +1,45 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.lambda;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FunctionRevisionCacheTest {
+    private final FunctionRevisionCache<Integer> testClass = new FunctionRevisionCache<>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    void get_sameRevision() {
+        LambdaFunction function = function("revision1");
+        assertEquals(1, testClass.get(function, calls::incrementAndGet));
+        assertEquals(1, testClass.get(function("revision1"), calls::incrementAndGet));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void get_newRevision() {
+        assertEquals(1, testClass.get(function("revision1"), calls::incrementAndGet));
+        assertEquals(2, testClass.get(function("revision2"), calls::incrementAndGet));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void get_noRevision() {
+        assertEquals(1, testClass.get(function(null), calls::incrementAndGet));
+        assertEquals(2, testClass.get(function(null), calls::incrementAndGet));
+    }
+
+    private LambdaFunction function(String revisionId) {
+        return LambdaFunction.builder()
+                .name("fn1")
+                .arn("arn:aws:lambda:region:account:function:fn1")
+                .revisionId(revisionId)
+                .build();
+    }
+}
@@ -4,7 +4,6 @@
  */
 package ai.asserts.aws.lambda;
 
-import ai.asserts.aws.TaskExecutorUtil;
 import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.resource.Resource;
 import ai.asserts.aws.resource.ResourceMapper;
@@ -22,25 +21,23 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 public class LambdaFunctionBuilderTest extends EasyMockSupport {
     private Resource fnResource;
     private ResourceMapper resourceMapper;
-    private TaskExecutorUtil taskExecutorUtil;
     private LambdaFunctionBuilder testClass;
 
     @BeforeEach
     public void setup() {
         fnResource = mock(Resource.class);
         resourceMapper = mock(ResourceMapper.class);
-        taskExecutorUtil = mock(TaskExecutorUtil.class);
-        testClass = new LambdaFunctionBuilder(resourceMapper, taskExecutorUtil);
+        testClass = new LambdaFunctionBuilder(resourceMapper);
     }
 
     @Test
     public void buildFunction() {
-        expect(resourceMapper.map("fn1:arn")).andReturn(Optional.of(fnResource));
+        AWSAccount account = AWSAccount.builder()
+                .tenant("acme")
+                .accountId(SCRAPE_ACCOUNT_ID_LABEL)
+                .build();
+        expect(resourceMapper.map(account, "fn1:arn")).andReturn(Optional.of(fnResource));
         expect(fnResource.getAccount()).andReturn(SCRAPE_ACCOUNT_ID_LABEL);
-        expect(taskExecutorUtil.getAccountDetails()).andReturn(AWSAccount.builder()
-                        .tenant("acme")
-                        .accountId(SCRAPE_ACCOUNT_ID_LABEL)
-                .build());
         replayAll();
 
         assertEquals(
@@ -55,7 +52,7 @@ public class LambdaFunctionBuilderTest extends EasyMockSupport {
                         .memoryMB(128)
                         .build()
                 ,
-                testClass.buildFunction("region1",
+                testClass.buildFunction(account, "region1",
                         FunctionConfiguration.builder()
                                 .functionName("fn1")
                                 .functionArn("fn1:arn")
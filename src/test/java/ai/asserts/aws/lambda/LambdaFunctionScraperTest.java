@@ -27,6 +27,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.FunctionConfiguration;
+import software.amazon.awssdk.services.lambda.model.ListFunctionsRequest;
 import software.amazon.awssdk.services.lambda.model.ListFunctionsResponse;
 
 import java.util.Map;
@@ -179,26 +180,36 @@ public class LambdaFunctionScraperTest extends EasyMockSupport {
 
         expect(awsClientProvider.getLambdaClient("region1", accountRegion)).andReturn(lambdaClient);
 
-        expect(lambdaClient.listFunctions()).andReturn(ListFunctionsResponse.builder()
-                .functions(ImmutableList.of(fn1Config, fn2Config)).build());
+        // The functions of region1 come in two pages
+        expect(lambdaClient.listFunctions(ListFunctionsRequest.builder().build()))
+                .andReturn(ListFunctionsResponse.builder()
+                        .functions(ImmutableList.of(fn1Config))
+                        .nextMarker("marker1")
+                        .build());
+        metricCollector.recordLatency(anyString(), anyObject(), anyLong());
+        expect(lambdaClient.listFunctions(ListFunctionsRequest.builder().marker("marker1").build()))
+                .andReturn(ListFunctionsResponse.builder()
+                        .functions(ImmutableList.of(fn2Config))
+                        .build());
         expect(resourceTagHelper.getFilteredResources(accountRegion, "region1", namespaceConfig))
                 .andReturn(ImmutableSet.of(fnResource));
-        expect(fnResource.getArn()).andReturn("arn1").times(2);
-        expect(lambdaFunctionBuilder.buildFunction("region1", fn1Config, Optional.of(fnResource)))
+        expect(fnResource.getArn()).andReturn("arn1");
+        expect(lambdaFunctionBuilder.buildFunction(accountRegion, "region1", fn1Config, Optional.of(fnResource)))
                 .andReturn(lambdaFunction);
-        expect(lambdaFunctionBuilder.buildFunction("region1", fn2Config, Optional.empty()))
+        expect(lambdaFunctionBuilder.buildFunction(accountRegion, "region1", fn2Config, Optional.empty()))
                 .andReturn(lambdaFunction);
         metricCollector.recordLatency(anyString(), anyObject(), anyLong());
         expect(awsClientProvider.getLambdaClient("region2", accountRegion)).andReturn(lambdaClient);
 
-        expect(lambdaClient.listFunctions()).andReturn(ListFunctionsResponse.builder()
-                .functions(ImmutableList.of(fn3Config, fn4Config)).build());
+        expect(lambdaClient.listFunctions(ListFunctionsRequest.builder().build()))
+                .andReturn(ListFunctionsResponse.builder()
+                        .functions(ImmutableList.of(fn3Config, fn4Config)).build());
         expect(resourceTagHelper.getFilteredResources(accountRegion, "region2", namespaceConfig))
                 .andReturn(ImmutableSet.of(fnResource));
-        expect(fnResource.getArn()).andReturn("arn3").times(2);
-        expect(lambdaFunctionBuilder.buildFunction("region2", fn3Config, Optional.of(fnResource)))
+        expect(fnResource.getArn()).andReturn("arn3");
+        expect(lambdaFunctionBuilder.buildFunction(accountRegion, "region2", fn3Config, Optional.of(fnResource)))
                 .andReturn(lambdaFunction);
-        expect(lambdaFunctionBuilder.buildFunction("region2", fn4Config, Optional.empty()))
+        expect(lambdaFunctionBuilder.buildFunction(accountRegion, "region2", fn4Config, Optional.empty()))
                 .andReturn(lambdaFunction);
         metricCollector.recordLatency(anyString(), anyObject(), anyLong());
         replayAll();
@@ -217,9 +228,9 @@ public class LambdaFunctionScraperTest extends EasyMockSupport {
     public void getFunctions_Exception() {
         expect(accountProvider.getAccounts()).andReturn(ImmutableSet.of(accountRegion));
         expect(awsClientProvider.getLambdaClient("region1", accountRegion)).andReturn(lambdaClient);
-        expect(lambdaClient.listFunctions()).andThrow(new RuntimeException());
+        expect(lambdaClient.listFunctions(ListFunctionsRequest.builder().build())).andThrow(new RuntimeException());
         expect(awsClientProvider.getLambdaClient("region2", accountRegion)).andReturn(lambdaClient);
-        expect(lambdaClient.listFunctions()).andThrow(new RuntimeException());
+        expect(lambdaClient.listFunctions(ListFunctionsRequest.builder().build())).andThrow(new RuntimeException());
         metricCollector.recordCounterValue(eq(SCRAPE_ERROR_COUNT_METRIC), anyObject(SortedMap.class), eq(1));
         expectLastCall().times(2);
         metricCollector.recordLatency(eq(SCRAPE_LATENCY_METRIC), anyObject(SortedMap.class), anyLong());
@@ -0,0 +1,37 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ArnTest {
+    @Test
+    void parse() {
+        assertEquals(Optional.of(new Arn("aws", "lambda", "us-west-2", "342994379019", "function:fn1:1",
+                        "function")),
+                Arn.parse("arn:aws:lambda:us-west-2:342994379019:function:fn1:1"));
+        assertEquals(Optional.of(new Arn("aws", "dynamodb", "us-west-2", "342994379019", "table/table1/index/i1",
+                        "table")),
+                Arn.parse("arn:aws:dynamodb:us-west-2:342994379019:table/table1/index/i1"));
+        assertEquals(Optional.of(new Arn("aws", "sqs", "us-west-2", "342994379019", "queue1", null)),
+                Arn.parse("arn:aws:sqs:us-west-2:342994379019:queue1"));
+        assertEquals(Optional.of(new Arn("aws", "s3", "", "", "bucket", null)),
+                Arn.parse("arn:aws:s3:::bucket"));
+        assertEquals(Optional.of(new Arn("aws-cn", "apigateway", "cn-north-1", "", "/restapis/id/stages/prod",
+                        "restapis")),
+                Arn.parse("arn:aws-cn:apigateway:cn-north-1::/restapis/id/stages/prod"));
+    }
+
+    @Test
+    void parse_invalid() {
+        assertEquals(Optional.empty(), Arn.parse(null));
+        assertEquals(Optional.empty(), Arn.parse("https://sqs.us-west-2.amazonaws.com/342994379019/queue1"));
+        assertEquals(Optional.empty(), Arn.parse("arn:aws:sqs:us-west-2"));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Copyright © 2022.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import ai.asserts.aws.ApiAuthenticator;
+import ai.asserts.aws.ObjectMapperFactory;
+import ai.asserts.aws.account.AccountTenantMapper;
+import ai.asserts.aws.cloudwatch.alarms.FirehoseEventRequest;
+import ai.asserts.aws.cloudwatch.alarms.RecordData;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.easymock.Capture;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.util.Base64;
+import java.util.Optional;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.newCapture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ResourceChangeControllerTest extends EasyMockSupport {
+    private static final String CONFIG_ITEM = "{\"configurationItem\":{" +
+            "\"awsAccountId\":\"account\",\"awsRegion\":\"region\",\"configurationItemStatus\":\"OK\"," +
+            "\"resourceType\":\"AWS::SQS::Queue\",\"ARN\":\"arn:aws:sqs:region:account:queue1\"," +
+            "\"tags\":{\"env\":\"prod\"}}," +
+            "\"configurationItemDiff\":{\"changeType\":\"CREATE\"}," +
+            "\"messageType\":\"ConfigurationItemChangeNotification\"}";
+    private ApiAuthenticator apiAuthenticator;
+    private ResourceChangeProcessor resourceChangeProcessor;
+    private SNSMessageVerifier snsMessageVerifier;
+    private AccountTenantMapper accountTenantMapper;
+    private ResourceChangeController testClass;
+
+    @BeforeEach
+    public void setup() {
+        apiAuthenticator = mock(ApiAuthenticator.class);
+        resourceChangeProcessor = mock(ResourceChangeProcessor.class);
+        snsMessageVerifier = mock(SNSMessageVerifier.class);
+        accountTenantMapper = mock(AccountTenantMapper.class);
+        testClass = new ResourceChangeController(new ObjectMapperFactory(), apiAuthenticator,
+                resourceChangeProcessor, snsMessageVerifier, accountTenantMapper);
+    }
+
+    @Test
+    void receiveChangesPostSecure() {
+        Capture<ResourceConfigChange> change = newCapture();
+        apiAuthenticator.authenticate(Optional.of("token"));
+        expect(accountTenantMapper.getTenantName("account")).andReturn("tenant");
+        resourceChangeProcessor.process(eq("tenant"), capture(change));
+        replayAll();
+
+        String event = "{\"version\":\"0\",\"id\":\"id\",\"source\":\"aws.config\",\"account\":\"account\"," +
+                "\"region\":\"region\",\"resources\":[\"arn:aws:sqs:region:account:queue1\"]," +
+                "\"detail\":" + CONFIG_ITEM + "}";
+        assertEquals(HttpStatus.OK, testClass.receiveChangesPostSecure("token", FirehoseEventRequest.builder()
+                .requestId("request")
+                .records(ImmutableList.of(RecordData.builder()
+                        .data(Base64.getEncoder().encodeToString(event.getBytes()))
+                        .build()))
+                .build()).getStatusCode());
+        verifyAll();
+
+        assertConfigItem(change.getValue());
+        assertEquals("id", change.getValue().getId());
+    }
+
+    @Test
+    void receiveChangesSNSPost_configNotification() {
+        Capture<ResourceConfigChange> change = newCapture();
+        apiAuthenticator.authenticate(Optional.empty());
+        expect(snsMessageVerifier.verify(anyObject(JsonNode.class))).andReturn(true);
+        expect(accountTenantMapper.getTenantName("account")).andReturn("tenant");
+        resourceChangeProcessor.process(eq("tenant"), capture(change));
+        replayAll();
+
+        String message = "{\"Type\":\"Notification\",\"MessageId\":\"message\"," +
+                "\"Message\":\"" + CONFIG_ITEM.replace("\"", "\\\"") + "\"}";
+        assertEquals(HttpStatus.OK, testClass.receiveChangesSNSPost(message).getStatusCode());
+        verifyAll();
+
+        assertConfigItem(change.getValue());
+    }
+
+    @Test
+    void receiveChangesSNSPost_subscriptionConfirmation() {
+        apiAuthenticator.authenticate(Optional.empty());
+        expect(snsMessageVerifier.verify(anyObject(JsonNode.class))).andReturn(true);
+        replayAll();
+
+        assertEquals(HttpStatus.OK, testClass.receiveChangesSNSPost(
+                "{\"Type\":\"SubscriptionConfirmation\",\"SubscribeURL\":\"url\"}").getStatusCode());
+        verifyAll();
+    }
+
+    @Test
+    void receiveChangesSNSPost_invalidSignature() {
+        apiAuthenticator.authenticate(Optional.empty());
+        expect(snsMessageVerifier.verify(anyObject(JsonNode.class))).andReturn(false);
+        replayAll();
+
+        String message = "{\"Type\":\"Notification\",\"MessageId\":\"message\"," +
+                "\"Message\":\"" + CONFIG_ITEM.replace("\"", "\\\"") + "\"}";
+        assertEquals(HttpStatus.FORBIDDEN, testClass.receiveChangesSNSPost(message).getStatusCode());
+        verifyAll();
+    }
+
+    @Test
+    void receiveChangesPost_invalid() {
+        apiAuthenticator.authenticate(Optional.empty());
+        replayAll();
+
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, testClass.receiveChangesPost(FirehoseEventRequest.builder()
+                .records(ImmutableList.of(RecordData.builder()
+                        .data(Base64.getEncoder().encodeToString("{".getBytes()))
+                        .build()))
+                .build()).getStatusCode());
+        verifyAll();
+    }
+
+    private void assertConfigItem(ResourceConfigChange change) {
+        assertEquals("aws.config", change.getSource());
+        ResourceConfigItem item = change.getDetail().getConfigurationItem();
+        assertEquals("arn:aws:sqs:region:account:queue1", item.getARN());
+        assertEquals("region", item.getAwsRegion());
+        assertEquals(ImmutableMap.of("env", "prod"), item.getTags());
+        assertEquals("CREATE", change.getDetail().getConfigurationItemDiff().getChangeType());
+    }
+}
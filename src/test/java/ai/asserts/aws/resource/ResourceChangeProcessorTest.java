@@ -0,0 +1,139 @@
+/*
+ *  Copyright © 2022.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import ai.asserts.aws.MetadataTaskManager;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+import java.util.HashMap;
+
+import static org.easymock.EasyMock.expect;
+
+public class ResourceChangeProcessorTest extends EasyMockSupport {
+    private static final String ARN = "arn:aws:sqs:region:account:queue1";
+    private ResourceInventory resourceInventory;
+    private MetadataTaskManager metadataTaskManager;
+    private ResourceChangeProcessor testClass;
+
+    @BeforeEach
+    public void setup() {
+        resourceInventory = mock(ResourceInventory.class);
+        metadataTaskManager = mock(MetadataTaskManager.class);
+        testClass = new ResourceChangeProcessor(resourceInventory, metadataTaskManager);
+    }
+
+    @Test
+    void process_configCreate() {
+        expect(resourceInventory.applyChanges("tenant", "account", "region",
+                ImmutableList.of(new ResourceInventory.Item(ARN, ImmutableList.of(
+                        Tag.builder().key("env").value("prod").build(),
+                        Tag.builder().key("team").value("a").build()))),
+                ImmutableList.of())).andReturn(true);
+        metadataTaskManager.requestUpdate();
+        replayAll();
+
+        testClass.process("tenant", configChange("OK", "CREATE", ImmutableMap.of("team", "a", "env", "prod")));
+        verifyAll();
+    }
+
+    @Test
+    void process_configUpdate() {
+        expect(resourceInventory.applyChanges("tenant", "account", "region",
+                ImmutableList.of(new ResourceInventory.Item(ARN, ImmutableList.of())),
+                ImmutableList.of())).andReturn(true);
+        replayAll();
+
+        testClass.process("tenant", configChange("OK", "UPDATE", null));
+        verifyAll();
+    }
+
+    @Test
+    void process_configRelationshipUpdate() {
+        expect(resourceInventory.applyChanges("tenant", "account", "region",
+                ImmutableList.of(new ResourceInventory.Item(ARN, ImmutableList.of())),
+                ImmutableList.of())).andReturn(true);
+        metadataTaskManager.requestUpdate();
+        replayAll();
+
+        ResourceConfigChange change = configChange("OK", "UPDATE", null);
+        change.getDetail().getConfigurationItemDiff().getChangedProperties()
+                .put("Relationships.0", new ResourceChangedItem("CREATE"));
+        testClass.process("tenant", change);
+        verifyAll();
+    }
+
+    @Test
+    void process_configDelete() {
+        expect(resourceInventory.applyChanges("tenant", "account", "region", ImmutableList.of(),
+                ImmutableList.of(ARN))).andReturn(true);
+        metadataTaskManager.requestUpdate();
+        replayAll();
+
+        testClass.process("tenant", configChange("ResourceDeleted", "DELETE", null));
+        verifyAll();
+    }
+
+    @Test
+    void process_tagChange() {
+        expect(resourceInventory.applyChanges("tenant", "account", "region",
+                ImmutableList.of(new ResourceInventory.Item(ARN, ImmutableList.of(
+                        Tag.builder().key("env").value("dev").build()))),
+                ImmutableList.of())).andReturn(true);
+        replayAll();
+
+        testClass.process("tenant", ResourceConfigChange.builder()
+                .source("aws.tag")
+                .account("account")
+                .region("region")
+                .resources(ImmutableList.of(ARN))
+                .detail(ResourceConfigChangeDetail.builder()
+                        .tags(ImmutableMap.of("env", "dev"))
+                        .build())
+                .build());
+        verifyAll();
+    }
+
+    @Test
+    void process_otherSource() {
+        replayAll();
+        testClass.process("tenant", ResourceConfigChange.builder()
+                .source("aws.ec2")
+                .detail(new ResourceConfigChangeDetail())
+                .build());
+        testClass.process("tenant", ResourceConfigChange.builder()
+                .source("aws.config")
+                .detail(new ResourceConfigChangeDetail())
+                .build());
+        verifyAll();
+    }
+
+    private ResourceConfigChange configChange(String status, String changeType, ImmutableMap<String, String> tags) {
+        return ResourceConfigChange.builder()
+                .source("aws.config")
+                .account("account")
+                .region("region")
+                .detail(ResourceConfigChangeDetail.builder()
+                        .messageType("ConfigurationItemChangeNotification")
+                        .configurationItem(ResourceConfigItem.builder()
+                                .awsAccountId("account")
+                                .awsRegion("region")
+                                .configurationItemStatus(status)
+                                .resourceType("AWS::SQS::Queue")
+                                .ARN(ARN)
+                                .tags(tags)
+                                .build())
+                        .configurationItemDiff(ResourceConfigDiff.builder()
+                                .changeType(changeType)
+                                .changedProperties(new HashMap<>())
+                                .build())
+                        .build())
+                .build();
+    }
+}
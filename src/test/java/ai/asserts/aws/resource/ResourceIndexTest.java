@@ -0,0 +1,93 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.Metric;
+
+import java.util.Optional;
+
+import static ai.asserts.aws.resource.ResourceType.ECSCluster;
+import static ai.asserts.aws.resource.ResourceType.ECSService;
+import static ai.asserts.aws.resource.ResourceType.LambdaFunction;
+import static ai.asserts.aws.resource.ResourceType.LoadBalancer;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResourceIndexTest {
+    private final Resource function = Resource.builder()
+            .type(LambdaFunction)
+            .name("function")
+            .build();
+    private final Resource cluster1 = Resource.builder()
+            .type(ECSCluster)
+            .name("cluster1")
+            .build();
+    private final Resource cluster2 = Resource.builder()
+            .type(ECSCluster)
+            .name("cluster2")
+            .build();
+    private final Resource service1 = Resource.builder()
+            .type(ECSService)
+            .name("service")
+            .childOf(cluster1)
+            .build();
+    private final Resource service2 = Resource.builder()
+            .type(ECSService)
+            .name("service")
+            .childOf(cluster2)
+            .build();
+    private final Resource loadBalancer = Resource.builder()
+            .type(LoadBalancer)
+            .name("lb")
+            .build();
+
+    @Test
+    void find() {
+        ResourceIndex index = new ResourceIndex(ImmutableList.of(function, service1, service2, loadBalancer));
+        assertFalse(index.isEmpty());
+        assertEquals(Optional.empty(), index.find(Metric.builder().build()));
+        assertEquals(Optional.of(function), index.find(metric(dimension("FunctionName", "function"))));
+        assertEquals(Optional.of(function), index.find(metric(dimension("function_name", "function"),
+                dimension("Resource", "function"))));
+        assertEquals(Optional.empty(), index.find(metric(dimension("FunctionName", "function1"))));
+        assertEquals(Optional.of(service2), index.find(metric(dimension("ClusterName", "cluster2"),
+                dimension("ServiceName", "service"))));
+        assertEquals(Optional.empty(), index.find(metric(dimension("ServiceName", "service"))));
+        assertEquals(Optional.empty(), index.find(metric(dimension("LoadBalancer", "lb"))));
+    }
+
+    @Test
+    void find_sameAsMatches() {
+        ImmutableList<Resource> resources = ImmutableList.of(function, cluster1, service1);
+        ResourceIndex index = new ResourceIndex(resources);
+        ImmutableList.of(
+                metric(dimension("FunctionName", "function")),
+                metric(dimension("ClusterName", "cluster1")),
+                metric(dimension("ClusterName", "cluster1"), dimension("ServiceName", "service")),
+                metric(dimension("ClusterName", "cluster2"))
+        ).forEach(metric -> assertEquals(resources.stream().anyMatch(resource -> resource.matches(metric)),
+                index.find(metric).isPresent()));
+    }
+
+    @Test
+    void isEmpty() {
+        assertTrue(new ResourceIndex(ImmutableList.of()).isEmpty());
+    }
+
+    private Metric metric(Dimension... dimensions) {
+        return Metric.builder()
+                .metricName("metric")
+                .dimensions(dimensions)
+                .build();
+    }
+
+    private Dimension dimension(String name, String value) {
+        return Dimension.builder().name(name).value(value).build();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ResourceInventoryFileTest {
+    @Test
+    void writeAndRead() throws IOException {
+        ResourceInventory.Item function = new ResourceInventory.Item("arn:aws:lambda:region:account:function:fn1",
+                ImmutableList.of(Tag.builder().key("env").value("prod").build(),
+                        Tag.builder().key("team").value("a").build()));
+        ResourceInventory.Item queue = new ResourceInventory.Item("arn:aws:sqs:region:account:queue1",
+                ImmutableList.of());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResourceInventoryFile.write(ImmutableMap.of(
+                "tenant/account/region1", new ResourceInventory.Snapshot(ImmutableList.of(function, queue), 1000L),
+                "tenant/account/region2", new ResourceInventory.Snapshot(ImmutableList.of(), 2000L)), out);
+
+        Map<String, ResourceInventory.Snapshot> snapshots =
+                ResourceInventoryFile.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(ImmutableList.of("tenant/account/region1", "tenant/account/region2"),
+                ImmutableList.copyOf(snapshots.keySet()));
+        assertEquals(ImmutableList.of(function, queue), snapshots.get("tenant/account/region1").getItems());
+        assertEquals(1000L, snapshots.get("tenant/account/region1").getSweptAt());
+        assertEquals(ImmutableList.of(), snapshots.get("tenant/account/region2").getItems());
+    }
+
+    @Test
+    void read_otherVersion() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(new GZIPOutputStream(out))) {
+            data.writeInt(ResourceInventoryFile.MAGIC);
+            data.writeInt(ResourceInventoryFile.VERSION + 1);
+            data.writeInt(0);
+        }
+        assertThrows(IOException.class, () -> ResourceInventoryFile.read(new ByteArrayInputStream(out.toByteArray())));
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import ai.asserts.aws.AWSApiCallRateLimiter;
+import ai.asserts.aws.AWSClientProvider;
+import ai.asserts.aws.TestTaskThreadPool;
+import ai.asserts.aws.account.AWSAccount;
+import ai.asserts.aws.exporter.BasicMetricCollector;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.easymock.EasyMockSupport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiAsyncClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesRequest;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesResponse;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.ResourceTagMapping;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResourceInventoryTest extends EasyMockSupport {
+    private AWSClientProvider awsClientProvider;
+    private ResourceGroupsTaggingApiClient apiClient;
+    private BasicMetricCollector metricCollector;
+    private AWSAccount account;
+    private ResourceInventory testClass;
+    private long now = 0;
+
+    private final Tag tag1 = Tag.builder().key("env").value("prod").build();
+    private final Tag tag2 = Tag.builder().key("env").value("dev").build();
+    private final Tag tag3 = Tag.builder().key("team").value("a").build();
+    private final ResourceInventory.Item function = new ResourceInventory.Item(
+            "arn:aws:lambda:region:account:function:fn1", ImmutableList.of(tag1, tag3));
+    private final ResourceInventory.Item table = new ResourceInventory.Item(
+            "arn:aws:dynamodb:region:account:table/table1", ImmutableList.of(tag2));
+    private final ResourceInventory.Item queue = new ResourceInventory.Item(
+            "arn:aws:sqs:region:account:queue1", ImmutableList.of(tag1));
+
+    @BeforeEach
+    public void setup() {
+        account = new AWSAccount("tenant", "account", "", "", "role", ImmutableSet.of("region"));
+        awsClientProvider = mock(AWSClientProvider.class);
+        apiClient = mock(ResourceGroupsTaggingApiClient.class);
+        metricCollector = mock(BasicMetricCollector.class);
+        testClass = new ResourceInventory(awsClientProvider,
+                new AWSApiCallRateLimiter(metricCollector, (accountId) -> "tenant"), new TestTaskThreadPool(), 5, 30,
+                "") {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    void getSnapshot_singleSweep() {
+        expect(awsClientProvider.getResourceTagClient("region", account)).andReturn(apiClient);
+        expect(apiClient.getResources(GetResourcesRequest.builder().build())).andReturn(
+                GetResourcesResponse.builder()
+                        .resourceTagMappingList(ResourceTagMapping.builder()
+                                .resourceARN(function.getArn())
+                                .tags(function.getTags())
+                                .build())
+                        .paginationToken("token1")
+                        .build());
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        expect(apiClient.getResources(GetResourcesRequest.builder().paginationToken("token1").build())).andReturn(
+                GetResourcesResponse.builder()
+                        .resourceTagMappingList(ResourceTagMapping.builder()
+                                .resourceARN(queue.getArn())
+                                .tags(queue.getTags())
+                                .build())
+                        .build());
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        replayAll();
+
+        ResourceInventory.Snapshot snapshot = testClass.getSnapshot(account, "region");
+        assertEquals(ImmutableList.of(function, queue), snapshot.getItems());
+        assertSame(snapshot, testClass.getSnapshot(account, "region"));
+        verifyAll();
+    }
+
+    @Test
+    void applyChanges() {
+        expect(awsClientProvider.getResourceTagClient("region", account)).andReturn(apiClient).times(2);
+        expect(apiClient.getResources(GetResourcesRequest.builder().build())).andReturn(
+                GetResourcesResponse.builder()
+                        .resourceTagMappingList(ResourceTagMapping.builder()
+                                .resourceARN(function.getArn())
+                                .tags(function.getTags())
+                                .build())
+                        .build()).times(2);
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        expectLastCall().times(2);
+        replayAll();
+
+        assertFalse(testClass.applyChanges("tenant", "account", "region", ImmutableList.of(queue), ImmutableList.of()));
+        testClass.getSnapshot(account, "region");
+        now = MINUTES.toMillis(4);
+        assertTrue(testClass.applyChanges("tenant", "account", "region", ImmutableList.of(queue), ImmutableList.of()));
+        assertFalse(testClass.applyChanges("tenant", "account", "region1", ImmutableList.of(table), ImmutableList.of()));
+        assertEquals(ImmutableList.of(function, queue), testClass.getSnapshot(account, "region").getItems());
+
+        // The same account scraped for another tenant isn't touched
+        assertFalse(testClass.applyChanges("tenant1", "account", "region", ImmutableList.of(table),
+                ImmutableList.of(function.getArn())));
+        assertEquals(ImmutableList.of(function, queue), testClass.getSnapshot(account, "region").getItems());
+
+        // The changes don't postpone the sweep
+        now = MINUTES.toMillis(5);
+        assertEquals(ImmutableList.of(function), testClass.getSnapshot(account, "region").getItems());
+        verifyAll();
+    }
+
+    @Test
+    void getSnapshot_failedSweepKeepsPrevious() {
+        expect(awsClientProvider.getResourceTagClient("region", account)).andReturn(apiClient).times(3);
+        expect(apiClient.getResources(GetResourcesRequest.builder().build())).andReturn(
+                GetResourcesResponse.builder()
+                        .resourceTagMappingList(ResourceTagMapping.builder()
+                                .resourceARN(function.getArn())
+                                .tags(function.getTags())
+                                .build())
+                        .build());
+        expect(apiClient.getResources(GetResourcesRequest.builder().build())).andThrow(new RuntimeException());
+        metricCollector.recordCounterValue(anyObject(), anyObject(), anyInt());
+        expect(apiClient.getResources(GetResourcesRequest.builder().build())).andReturn(
+                GetResourcesResponse.builder()
+                        .resourceTagMappingList(ResourceTagMapping.builder()
+                                .resourceARN(queue.getArn())
+                                .tags(queue.getTags())
+                                .build())
+                        .build());
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        expectLastCall().times(3);
+        replayAll();
+
+        ResourceInventory.Snapshot snapshot = testClass.getSnapshot(account, "region");
+        now = MINUTES.toMillis(5);
+        assertSame(snapshot, testClass.getSnapshot(account, "region"));
+        // The failed sweep isn't retried right away
+        assertSame(snapshot, testClass.getSnapshot(account, "region"));
+        now += SECONDS.toMillis(30);
+        assertEquals(ImmutableList.of(queue), testClass.getSnapshot(account, "region").getItems());
+        verifyAll();
+    }
+
+    @Test
+    void getSnapshot_failedSweepRetriedLater() {
+        expect(awsClientProvider.getResourceTagClient("region", account)).andReturn(apiClient);
+        expect(apiClient.getResources(GetResourcesRequest.builder().build())).andThrow(new RuntimeException());
+        metricCollector.recordCounterValue(anyObject(), anyObject(), anyInt());
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        replayAll();
+
+        // A single sweep, the calls until it is retried get no resources
+        assertEquals(ImmutableList.of(), testClass.getSnapshot(account, "region").getItems());
+        assertEquals(ImmutableList.of(), testClass.getSnapshot(account, "region").getItems());
+        assertEquals(ImmutableList.of(), testClass.getSnapshotAsync(account, "region").join().getItems());
+        verifyAll();
+    }
+
+    @Test
+    void getSnapshotAsync_singleFlight() throws Exception {
+        ResourceGroupsTaggingApiAsyncClient asyncClient = mock(ResourceGroupsTaggingApiAsyncClient.class);
+        CompletableFuture<GetResourcesResponse> response = new CompletableFuture<>();
+        expect(awsClientProvider.getResourceTagAsyncClient("region", account)).andReturn(asyncClient);
+        expect(asyncClient.getResources(GetResourcesRequest.builder().build())).andReturn(response);
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        replayAll();
+
+        CompletableFuture<ResourceInventory.Snapshot> first = testClass.getSnapshotAsync(account, "region");
+        assertSame(first, testClass.getSnapshotAsync(account, "region"));
+        response.complete(GetResourcesResponse.builder()
+                .resourceTagMappingList(ResourceTagMapping.builder()
+                        .resourceARN(function.getArn())
+                        .tags(function.getTags())
+                        .build())
+                .build());
+        assertEquals(ImmutableList.of(function), first.get().getItems());
+        assertSame(first.get(), testClass.getSnapshotAsync(account, "region").get());
+        verifyAll();
+    }
+
+    @Test
+    void retainAccounts() {
+        AWSAccount otherAccount = new AWSAccount("tenant", "account2", "", "", "role", ImmutableSet.of("region"));
+        expect(awsClientProvider.getResourceTagClient("region", account)).andReturn(apiClient).times(2);
+        expect(apiClient.getResources(GetResourcesRequest.builder().build())).andReturn(
+                GetResourcesResponse.builder().build()).times(2);
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        expectLastCall().times(2);
+        replayAll();
+
+        ResourceInventory.Snapshot snapshot = testClass.getSnapshot(account, "region");
+        testClass.retainAccounts(ImmutableSet.of(account, otherAccount));
+        assertSame(snapshot, testClass.getSnapshot(account, "region"));
+
+        testClass.retainAccounts(ImmutableSet.of(otherAccount));
+        assertNotSame(snapshot, testClass.getSnapshot(account, "region"));
+        verifyAll();
+    }
+
+    @Test
+    void restore(@TempDir Path dir) throws Exception {
+        String file = dir.resolve("inventory").toString();
+        try (OutputStream out = Files.newOutputStream(Paths.get(file))) {
+            ResourceInventoryFile.write(ImmutableMap.of("tenant/account/region",
+                    new ResourceInventory.Snapshot(ImmutableList.of(function), 0)), out);
+        }
+        testClass = new ResourceInventory(awsClientProvider,
+                new AWSApiCallRateLimiter(metricCollector, (accountId) -> "tenant"), new TestTaskThreadPool(), 5, 30,
+                file);
+        ResourceGroupsTaggingApiAsyncClient asyncClient = mock(ResourceGroupsTaggingApiAsyncClient.class);
+        CompletableFuture<GetResourcesResponse> response = new CompletableFuture<>();
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(true);
+        expect(awsClientProvider.getResourceTagAsyncClient("region", account)).andReturn(asyncClient);
+        expect(asyncClient.getResources(GetResourcesRequest.builder().build())).andReturn(response);
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        replayAll();
+
+        testClass.afterPropertiesSet();
+        // The restored resources are served while they are swept again, once
+        assertEquals(ImmutableList.of(function), testClass.getSnapshot(account, "region").getItems());
+        assertEquals(ImmutableList.of(function), testClass.getSnapshot(account, "region").getItems());
+        response.complete(GetResourcesResponse.builder()
+                .resourceTagMappingList(ResourceTagMapping.builder()
+                        .resourceARN(queue.getArn())
+                        .tags(queue.getTags())
+                        .build())
+                .build());
+        assertEquals(ImmutableList.of(queue), testClass.getSnapshot(account, "region").getItems());
+
+        testClass.save();
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            assertEquals(ImmutableList.of(queue),
+                    ResourceInventoryFile.read(in).get("tenant/account/region").getItems());
+        }
+        verifyAll();
+    }
+
+    @Test
+    void restore_syncClient(@TempDir Path dir) throws Exception {
+        String file = dir.resolve("inventory").toString();
+        try (OutputStream out = Files.newOutputStream(Paths.get(file))) {
+            ResourceInventoryFile.write(ImmutableMap.of("tenant/account/region",
+                    new ResourceInventory.Snapshot(ImmutableList.of(function), 0)), out);
+        }
+        testClass = new ResourceInventory(awsClientProvider,
+                new AWSApiCallRateLimiter(metricCollector, (accountId) -> "tenant"), new TestTaskThreadPool(), 5, 30,
+                file);
+        expect(awsClientProvider.isAsyncEnabled()).andReturn(false);
+        expect(awsClientProvider.getResourceTagClient("region", account)).andReturn(apiClient);
+        expect(apiClient.getResources(GetResourcesRequest.builder().build())).andReturn(
+                GetResourcesResponse.builder()
+                        .resourceTagMappingList(ResourceTagMapping.builder()
+                                .resourceARN(queue.getArn())
+                                .tags(queue.getTags())
+                                .build())
+                        .build());
+        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
+        replayAll();
+
+        testClass.afterPropertiesSet();
+        // Swept again on the pool with the sync client
+        assertEquals(ImmutableList.of(function), testClass.getSnapshot(account, "region").getItems());
+        assertEquals(ImmutableList.of(queue), testClass.getSnapshot(account, "region").getItems());
+        verifyAll();
+    }
+
+    @Test
+    void apply() {
+        ResourceInventory.Item retagged = new ResourceInventory.Item(function.getArn(), ImmutableList.of(tag2));
+        ResourceInventory.Item untagged = new ResourceInventory.Item(
+                "arn:aws:sqs:region:account:queue2", ImmutableList.of());
+        ResourceInventory.Snapshot snapshot = new ResourceInventory.Snapshot(ImmutableList.of(function, queue))
+                .apply(ImmutableList.of(retagged, table, untagged), ImmutableList.of(queue.getArn()));
+        assertEquals(ImmutableList.of(retagged, table), snapshot.getItems());
+        assertEquals(ImmutableSet.of(retagged, table),
+                snapshot.find(ImmutableList.of(), ImmutableMap.of("env", ImmutableSet.of("dev"))));
+        assertEquals(ImmutableSet.of(), snapshot.find(ImmutableList.of("sqs"), null));
+    }
+
+    @Test
+    void find() {
+        ResourceInventory.Snapshot snapshot = new ResourceInventory.Snapshot(ImmutableList.of(function, table, queue));
+        assertEquals(ImmutableSet.of(function, table, queue), snapshot.find(ImmutableList.of(), null));
+        assertEquals(ImmutableSet.of(function), snapshot.find(ImmutableList.of("lambda:function"), null));
+        assertEquals(ImmutableSet.of(function), snapshot.find(ImmutableList.of("lambda"), null));
+        assertEquals(ImmutableSet.of(queue), snapshot.find(ImmutableList.of("sqs:queue"), null));
+        assertEquals(ImmutableSet.of(), snapshot.find(ImmutableList.of("dynamodb:index"), null));
+        assertEquals(ImmutableSet.of(function, table),
+                snapshot.find(ImmutableList.of("lambda:function", "dynamodb:table"), null));
+        assertEquals(ImmutableSet.of(function, queue),
+                snapshot.find(ImmutableList.of(), ImmutableMap.of("env", ImmutableSet.of("prod"))));
+        assertEquals(ImmutableSet.of(function),
+                snapshot.find(ImmutableList.of(), ImmutableMap.of(
+                        "env", ImmutableSet.of("prod", "dev"),
+                        "team", ImmutableSet.of())));
+        assertSame(queue, snapshot.getByArn(queue.getArn()));
+    }
+
+    @Test
+    void resourceTypes() {
+        assertEquals(ImmutableList.of("lambda", "lambda:function"),
+                ResourceInventory.Snapshot.resourceTypes("arn:aws:lambda:region:account:function:fn1:1"));
+        assertEquals(ImmutableList.of("elasticloadbalancing", "elasticloadbalancing:loadbalancer"),
+                ResourceInventory.Snapshot.resourceTypes(
+                        "arn:aws:elasticloadbalancing:region:account:loadbalancer/app/lb/id"));
+        assertEquals(ImmutableList.of("apigateway", "apigateway:restapis"),
+                ResourceInventory.Snapshot.resourceTypes("arn:aws:apigateway:region::/restapis/id"));
+        assertEquals(ImmutableList.of("s3", "s3:*"),
+                ResourceInventory.Snapshot.resourceTypes("arn:aws:s3:::bucket"));
+        assertEquals(ImmutableList.of(), ResourceInventory.Snapshot.resourceTypes("invalid"));
+    }
+}
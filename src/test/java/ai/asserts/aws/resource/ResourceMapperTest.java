@@ -1,11 +1,12 @@
 
 package ai.asserts.aws.resource;
 
-import ai.asserts.aws.TaskExecutorUtil;
 import ai.asserts.aws.account.AWSAccount;
+import com.google.common.collect.ImmutableList;
 import org.easymock.EasyMockSupport;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
 
 import java.util.Optional;
 
@@ -31,19 +32,20 @@ import static ai.asserts.aws.resource.ResourceType.S3Bucket;
 import static ai.asserts.aws.resource.ResourceType.SNSTopic;
 import static ai.asserts.aws.resource.ResourceType.SQSQueue;
 import static ai.asserts.aws.resource.ResourceType.TargetGroup;
-import static org.easymock.EasyMock.expect;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ResourceMapperTest extends EasyMockSupport {
+    private AWSAccount account;
     private ResourceMapper testClass;
 
     @BeforeEach
     public void setup() {
-        TaskExecutorUtil taskExecutorUtil = mock(TaskExecutorUtil.class);
-        testClass = new ResourceMapper(taskExecutorUtil);
-        expect(taskExecutorUtil.getAccountDetails()).andReturn(AWSAccount.builder()
+        account = AWSAccount.builder()
                 .tenant("acme")
-                .build()).anyTimes();
+                .build();
+        testClass = new ResourceMapper();
     }
 
     @Test
@@ -58,7 +60,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("lamda-sqs-poc-input-queue")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -75,7 +77,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("ErrorDemo-Input")
                         .build()),
-                testClass.map(url)
+                testClass.map(account, url)
         );
         verifyAll();
     }
@@ -93,7 +95,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .region("us-west-2")
                         .name("auction_app_bids")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -110,7 +112,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .arn(arn).name("lambda-poc-dynamodb-updates")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
 
         arn = "arn:aws:lambda:us-west-2:342994379019:function:lambda-poc-dynamodb-updates:version1";
@@ -122,7 +124,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .arn(arn).name("lambda-poc-dynamodb-updates")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -139,7 +141,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("")
                         .name("ai-asserts-dev-custom-rules")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
 
         arn = "arn:aws:s3:us-west-2:342994379019:ai-asserts-dev-custom-rules";
@@ -151,7 +153,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .arn(arn).name("ai-asserts-dev-custom-rules")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -168,7 +170,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("topic-name")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -185,7 +187,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("event-bus-name")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -202,7 +204,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("cluster1")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -224,7 +226,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                                 .name("ecs-cluster")
                                 .region("us-west-2").build())
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -242,7 +244,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .name("item-service-v2")
                         .version("5")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -265,7 +267,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                                 .name("ecs-sample-app")
                                 .build())
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -286,7 +288,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .name("k8s-assertsinternal-dabf78ac56")
                         .id("ffc311c1118b747a")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -303,7 +305,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("k8s-assertsinternal-dabf78ac56")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -323,7 +325,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .name("auction-bid-service-tg")
                         .id("f2f15d26b40e68f2")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -343,7 +345,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .id("ffc311c1118b747a")
                         .name("groupName")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -360,7 +362,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .subType("restapis")
                         .name("nvaaoiotuc")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -383,7 +385,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                                 .name("nvaaoiotuc")
                                 .build())
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -406,7 +408,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                                 .name("nvaaoiotuc")
                                 .build())
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -429,7 +431,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                                 .name("nvaaoiotuc")
                                 .build())
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -448,7 +450,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .name("TargetTracking-table/GameScores/index/GameTitle-TopScore-index-ProvisionedCapacityLow" +
                                 "-fc66d6b6-6a14-4303-9dd5-70a4714d8cd0")
                         .build()),
-                testClass.map(arn)
+                testClass.map(account, arn)
         );
         verifyAll();
     }
@@ -464,7 +466,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("Asserts-CloudWatch-DataStream")
                         .build()),
-                testClass.map(arn));
+                testClass.map(account, arn));
         verifyAll();
     }
 
@@ -479,7 +481,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("Asserts-CloudWatch-DataStream")
                         .build()),
-                testClass.map(arn));
+                testClass.map(account, arn));
         verifyAll();
     }
 
@@ -494,7 +496,7 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("Asserts-CloudWatch-DataStream")
                         .build()),
-                testClass.map(arn));
+                testClass.map(account, arn));
         verifyAll();
     }
 
@@ -509,7 +511,39 @@ public class ResourceMapperTest extends EasyMockSupport {
                         .account("342994379019")
                         .name("Asserts-redshift-cluster1")
                         .build()),
-                testClass.map(arn));
+                testClass.map(account, arn));
+        verifyAll();
+    }
+
+    @Test
+    public void map_cachedAndCopied() {
+        replayAll();
+        String arn = "arn:aws:lambda:us-west-2:342994379019:function:fn1";
+        Resource first = testClass.map(account, arn).get();
+        first.setTags(ImmutableList.of(Tag.builder().key("key").value("value").build()));
+        Resource second = testClass.map(account, arn).get();
+        assertEquals(first, second);
+        assertNotSame(first, second);
+        assertTrue(second.getTags().isEmpty());
+        assertEquals(arn, second.getArn());
+        verifyAll();
+    }
+
+    @Test
+    public void map_tenantOfAccount() {
+        replayAll();
+        String arn = "arn:aws:lambda:us-west-2:342994379019:function:fn1";
+        assertEquals("acme", testClass.map(account, arn).get().getTenant());
+        assertEquals("other", testClass.map(AWSAccount.builder().tenant("other").build(), arn).get().getTenant());
+        verifyAll();
+    }
+
+    @Test
+    public void map_unmapped() {
+        replayAll();
+        assertEquals(Optional.empty(), testClass.map(account, "arn:aws:glue:us-west-2:342994379019:job/job1"));
+        assertEquals(Optional.empty(), testClass.map(account, "arn:aws:lambda:us-west-2:342994379019:layer:layer1"));
+        assertEquals(Optional.empty(), testClass.map(account, "not-an-arn"));
         verifyAll();
     }
 }
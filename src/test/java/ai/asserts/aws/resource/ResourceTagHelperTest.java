@@ -5,13 +5,12 @@
 package ai.asserts.aws.resource;
 
 import ai.asserts.aws.AWSClientProvider;
-import ai.asserts.aws.AWSApiCallRateLimiter;
 import ai.asserts.aws.ScrapeConfigProvider;
+import ai.asserts.aws.TestTaskThreadPool;
 import ai.asserts.aws.account.AWSAccount;
 import ai.asserts.aws.account.AccountTenantMapper;
 import ai.asserts.aws.config.NamespaceConfig;
 import ai.asserts.aws.config.ScrapeConfig;
-import ai.asserts.aws.exporter.BasicMetricCollector;
 import ai.asserts.aws.model.CWNamespace;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -24,22 +23,14 @@ import software.amazon.awssdk.services.elasticloadbalancing.ElasticLoadBalancing
 import software.amazon.awssdk.services.elasticloadbalancing.model.DescribeTagsRequest;
 import software.amazon.awssdk.services.elasticloadbalancing.model.DescribeTagsResponse;
 import software.amazon.awssdk.services.elasticloadbalancing.model.TagDescription;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesRequest;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesResponse;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.ResourceTagMapping;
 import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.TagFilter;
 
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.SortedMap;
 
 import static ai.asserts.aws.model.CWNamespace.kafka;
 import static ai.asserts.aws.model.CWNamespace.lambda;
-import static org.easymock.EasyMock.anyLong;
-import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.expect;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -47,14 +38,12 @@ public class ResourceTagHelperTest extends EasyMockSupport {
     private ScrapeConfigProvider scrapeConfigProvider;
     private ScrapeConfig scrapeConfig;
     private AWSClientProvider awsClientProvider;
-    private ResourceGroupsTaggingApiClient apiClient;
     private ElasticLoadBalancingClient elbClient;
     private ResourceMapper resourceMapper;
     private Resource resource;
     private NamespaceConfig namespaceConfig;
-    private BasicMetricCollector metricCollector;
     private AWSAccount accountRegion;
-    private AWSApiCallRateLimiter rateLimiter;
+    private ResourceInventory resourceInventory;
     private AccountTenantMapper accountTenantMapper;
     private ResourceTagHelper testClass;
 
@@ -67,15 +56,13 @@ public class ResourceTagHelperTest extends EasyMockSupport {
         awsClientProvider = mock(AWSClientProvider.class);
         resourceMapper = mock(ResourceMapper.class);
         namespaceConfig = mock(NamespaceConfig.class);
-        apiClient = mock(ResourceGroupsTaggingApiClient.class);
         resource = mock(Resource.class);
-        metricCollector = mock(BasicMetricCollector.class);
         elbClient = mock(ElasticLoadBalancingClient.class);
         accountTenantMapper = mock(AccountTenantMapper.class);
-        rateLimiter = new AWSApiCallRateLimiter(metricCollector, (account) -> "tenant");
+        resourceInventory = mock(ResourceInventory.class);
         scrapeConfig = mock(ScrapeConfig.class);
-        testClass = new ResourceTagHelper(scrapeConfigProvider, awsClientProvider, resourceMapper, rateLimiter,
-                accountTenantMapper);
+        testClass = new ResourceTagHelper(scrapeConfigProvider, awsClientProvider, resourceMapper, resourceInventory,
+                accountTenantMapper, new TestTaskThreadPool());
     }
 
     @Test
@@ -88,7 +75,6 @@ public class ResourceTagHelperTest extends EasyMockSupport {
         expect(namespaceConfig.getTagFilters()).andReturn(ImmutableMap.of(
                 "tag", ImmutableSortedSet.of("value1", "value2")
         ));
-        expect(awsClientProvider.getResourceTagClient("region", accountRegion)).andReturn(apiClient);
 
         Tag tag1 = Tag.builder()
                 .key("tag").value("value1")
@@ -98,47 +84,27 @@ public class ResourceTagHelperTest extends EasyMockSupport {
                 .key("tag").value("value2")
                 .build();
         expect(scrapeConfig.shouldExportTag("tag", "value2")).andReturn(true);
+        Tag tag3 = Tag.builder()
+                .key("tag").value("value3")
+                .build();
 
-        expect(apiClient.getResources(GetResourcesRequest.builder()
-                .resourceTypeFilters(ImmutableList.of("lambda:function"))
-                .tagFilters(ImmutableList.of(TagFilter.builder()
-                        .key("tag").values(ImmutableSortedSet.of("value1", "value2"))
-                        .build()))
-                .build())).andReturn(
-                GetResourcesResponse.builder()
-                        .resourceTagMappingList(ImmutableList.of(ResourceTagMapping.builder()
-                                .tags(tag1)
-                                .resourceARN("arn1")
-                                .build()))
-                        .paginationToken("token1")
-                        .build()
-        );
-        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
-
-        expect(resourceMapper.map("arn1")).andReturn(Optional.of(resource));
+        String arn1 = "arn:aws:lambda:region:account:function:fn1";
+        String arn2 = "arn:aws:lambda:region:account:function:fn2";
+        expect(resourceInventory.getSnapshot(accountRegion, "region")).andReturn(new ResourceInventory.Snapshot(
+                ImmutableList.of(
+                        new ResourceInventory.Item(arn1, ImmutableList.of(tag1)),
+                        new ResourceInventory.Item(arn2, ImmutableList.of(tag2)),
+                        new ResourceInventory.Item("arn:aws:lambda:region:account:function:fn3",
+                                ImmutableList.of(tag3)),
+                        new ResourceInventory.Item("arn:aws:sqs:region:account:queue", ImmutableList.of(tag1)))));
+
+        expect(resourceMapper.map(accountRegion, arn1)).andReturn(Optional.of(resource));
         resource.setTags(ImmutableList.of(tag1));
-
-        expect(apiClient.getResources(GetResourcesRequest.builder()
-                .paginationToken("token1")
-                .resourceTypeFilters(ImmutableList.of("lambda:function"))
-                .tagFilters(ImmutableList.of(TagFilter.builder()
-                        .key("tag").values(ImmutableSortedSet.of("value1", "value2"))
-                        .build()))
-                .build())).andReturn(
-                GetResourcesResponse.builder()
-                        .resourceTagMappingList(ImmutableList.of(ResourceTagMapping.builder()
-                                .resourceARN("arn2")
-                                .tags(tag2)
-                                .build()))
-                        .paginationToken(null)
-                        .build()
-        );
-        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
-
-        expect(resourceMapper.map("arn2")).andReturn(Optional.of(resource));
+        expect(resourceMapper.map(accountRegion, arn2)).andReturn(Optional.of(resource));
         resource.setTags(ImmutableList.of(tag2));
 
         expect(resource.getType()).andReturn(ResourceType.LambdaFunction).anyTimes();
+        expect(resource.getMetricDimensions()).andReturn(ImmutableList.of()).anyTimes();
         replayAll();
         assertEquals(ImmutableSet.of(resource),
                 testClass.getFilteredResources(accountRegion, "region", namespaceConfig));
@@ -152,7 +118,6 @@ public class ResourceTagHelperTest extends EasyMockSupport {
         expect(namespaceConfig.getName()).andReturn(CWNamespace.kafka.name()).anyTimes();
         expect(scrapeConfigProvider.getStandardNamespace("kafka")).andReturn(Optional.of(kafka));
         expect(namespaceConfig.hasTagFilters()).andReturn(false);
-        expect(awsClientProvider.getResourceTagClient("region", accountRegion)).andReturn(apiClient);
 
         Tag tag1 = Tag.builder()
                 .key("tag").value("value1")
@@ -164,44 +129,51 @@ public class ResourceTagHelperTest extends EasyMockSupport {
                 .build();
         expect(scrapeConfig.shouldExportTag("tag", "value2")).andReturn(true);
 
-        expect(apiClient.getResources(GetResourcesRequest.builder()
-                .resourceTypeFilters(ImmutableList.of("kafka"))
-                .build())).andReturn(
-                GetResourcesResponse.builder()
-                        .resourceTagMappingList(ImmutableList.of(ResourceTagMapping.builder()
-                                .tags(tag1)
-                                .resourceARN("arn1")
-                                .build()))
-                        .paginationToken("token1")
-                        .build()
-        );
-        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
-        expect(resourceMapper.map("arn1")).andReturn(Optional.of(resource));
+        String arn1 = "arn:aws:kafka:region:account:cluster/cluster1/uuid1";
+        String arn2 = "arn:aws:kafka:region:account:cluster/cluster2/uuid2";
+        expect(resourceInventory.getSnapshot(accountRegion, "region")).andReturn(new ResourceInventory.Snapshot(
+                ImmutableList.of(
+                        new ResourceInventory.Item(arn1, ImmutableList.of(tag1)),
+                        new ResourceInventory.Item(arn2, ImmutableList.of(tag2)),
+                        new ResourceInventory.Item("arn:aws:lambda:region:account:function:fn1",
+                                ImmutableList.of(tag1)))));
+        expect(resourceMapper.map(accountRegion, arn1)).andReturn(Optional.of(resource));
         resource.setTags(ImmutableList.of(tag1));
-
-        expect(apiClient.getResources(GetResourcesRequest.builder()
-                .paginationToken("token1")
-                .resourceTypeFilters(ImmutableList.of("kafka"))
-                .build())).andReturn(
-                GetResourcesResponse.builder()
-                        .resourceTagMappingList(ImmutableList.of(ResourceTagMapping.builder()
-                                .resourceARN("arn2")
-                                .tags(tag2)
-                                .build()))
-                        .paginationToken(null)
-                        .build()
-        );
-        metricCollector.recordLatency(anyObject(), anyObject(), anyLong());
-        expect(resourceMapper.map("arn2")).andReturn(Optional.of(resource));
+        expect(resourceMapper.map(accountRegion, arn2)).andReturn(Optional.of(resource));
         resource.setTags(ImmutableList.of(tag2));
 
         expect(resource.getType()).andReturn(ResourceType.LambdaFunction).anyTimes();
+        expect(resource.getMetricDimensions()).andReturn(ImmutableList.of()).anyTimes();
         replayAll();
         assertEquals(ImmutableSet.of(resource),
                 testClass.getFilteredResources(accountRegion, "region", namespaceConfig));
         verifyAll();
     }
 
+    @Test
+    void filterResources_mappedOncePerSnapshot() {
+        expect(accountTenantMapper.getTenantName("account")).andReturn("tenant").anyTimes();
+        expect(scrapeConfigProvider.getScrapeConfig("tenant")).andReturn(scrapeConfig).anyTimes();
+        expect(namespaceConfig.getName()).andReturn(lambda.name()).anyTimes();
+        expect(scrapeConfigProvider.getStandardNamespace("lambda")).andReturn(Optional.of(lambda));
+        expect(namespaceConfig.hasTagFilters()).andReturn(false);
+
+        String arn = "arn:aws:lambda:region:account:function:fn1";
+        ResourceInventory.Snapshot snapshot = new ResourceInventory.Snapshot(ImmutableList.of(
+                new ResourceInventory.Item(arn, ImmutableList.of())));
+        expect(resourceInventory.getSnapshot(accountRegion, "region")).andReturn(snapshot).times(2);
+        expect(resourceMapper.map(accountRegion, arn)).andReturn(Optional.of(resource));
+        resource.setTags(ImmutableList.of());
+        expect(resource.getType()).andReturn(ResourceType.LambdaFunction).anyTimes();
+        expect(resource.getMetricDimensions()).andReturn(ImmutableList.of()).anyTimes();
+        replayAll();
+        assertEquals(ImmutableSet.of(resource),
+                testClass.getFilteredResources(accountRegion, "region", namespaceConfig));
+        assertEquals(ImmutableSet.of(resource),
+                testClass.getFilteredResources(accountRegion, "region", namespaceConfig));
+        verifyAll();
+    }
+
     @Test
     void filterResources_customNamespace() {
         expect(accountTenantMapper.getTenantName("account")).andReturn("tenant").anyTimes();
@@ -226,14 +198,13 @@ public class ResourceTagHelperTest extends EasyMockSupport {
         replayAll();
 
         ImmutableList<String> resourceName = ImmutableList.of("resourceName");
-        testClass = new ResourceTagHelper(scrapeConfigProvider, awsClientProvider, resourceMapper, rateLimiter,
-                accountTenantMapper) {
+        testClass = new ResourceTagHelper(scrapeConfigProvider, awsClientProvider, resourceMapper, resourceInventory,
+                accountTenantMapper, new TestTaskThreadPool()) {
             @Override
-            public Set<Resource> getResourcesWithTag(AWSAccount _passedValue, String region, SortedMap<String,
-                    String> labels,
-                                                     GetResourcesRequest.Builder builder) {
+            Set<Resource> getResources(AWSAccount _passedValue, String region, String resourceType) {
                 assertEquals(accountRegion, _passedValue);
                 assertEquals("region", region);
+                assertEquals("AWS::S3::Bucket", resourceType);
                 return ImmutableSet.of(resource);
             }
         };
@@ -284,12 +255,10 @@ public class ResourceTagHelperTest extends EasyMockSupport {
         replayAll();
 
         ImmutableList<String> resourceName = ImmutableList.of("resourceName");
-        testClass = new ResourceTagHelper(scrapeConfigProvider, awsClientProvider, resourceMapper, rateLimiter,
-                accountTenantMapper) {
+        testClass = new ResourceTagHelper(scrapeConfigProvider, awsClientProvider, resourceMapper, resourceInventory,
+                accountTenantMapper, new TestTaskThreadPool()) {
             @Override
-            public Set<Resource> getResourcesWithTag(AWSAccount _passed, String region,
-                                                     SortedMap<String, String> labels,
-                                                     GetResourcesRequest.Builder builder) {
+            Set<Resource> getResources(AWSAccount _passed, String region, String resourceType) {
                 assertEquals(accountRegion, _passed);
                 assertEquals("region", region);
                 return ImmutableSet.of(resource);
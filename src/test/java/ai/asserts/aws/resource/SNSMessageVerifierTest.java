@@ -0,0 +1,99 @@
+/*
+ *  Copyright © 2022.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.resource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SNSMessageVerifierTest {
+    private static final String CERT_URL = "https://sns.us-west-2.amazonaws.com/SimpleNotificationService-1.pem";
+    private KeyPair keyPair;
+    private ObjectNode envelope;
+    private SNSMessageVerifier testClass;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        testClass = new SNSMessageVerifier() {
+            @Override
+            PublicKey getPublicKey(String certURL) {
+                assertEquals(CERT_URL, certURL);
+                return keyPair.getPublic();
+            }
+        };
+        envelope = new ObjectMapper().createObjectNode()
+                .put("Type", "Notification")
+                .put("MessageId", "message")
+                .put("TopicArn", "arn:aws:sns:us-west-2:account:config")
+                .put("Message", "{\"detail\":{}}")
+                .put("Timestamp", "2022-01-01T00:00:00.000Z")
+                .put("SignatureVersion", "2")
+                .put("SigningCertURL", CERT_URL);
+    }
+
+    @Test
+    public void stringToSign() {
+        assertEquals("Message\n{\"detail\":{}}\nMessageId\nmessage\nTimestamp\n2022-01-01T00:00:00.000Z\n" +
+                "TopicArn\narn:aws:sns:us-west-2:account:config\nType\nNotification\n",
+                SNSMessageVerifier.stringToSign(envelope));
+    }
+
+    @Test
+    public void verify() throws Exception {
+        sign("SHA256withRSA");
+        assertTrue(testClass.verify(envelope));
+    }
+
+    @Test
+    public void verify_version1() throws Exception {
+        envelope.put("SignatureVersion", "1");
+        sign("SHA1withRSA");
+        assertTrue(testClass.verify(envelope));
+    }
+
+    @Test
+    public void verify_tampered() throws Exception {
+        sign("SHA256withRSA");
+        envelope.put("Message", "{\"detail\":{\"forged\":true}}");
+        assertFalse(testClass.verify(envelope));
+    }
+
+    @Test
+    public void verify_certificateNotFromSNS() throws Exception {
+        envelope.put("SigningCertURL", "https://example.com/SimpleNotificationService-1.pem");
+        sign("SHA256withRSA");
+        assertFalse(testClass.verify(envelope));
+
+        envelope.put("SigningCertURL", "http://sns.us-west-2.amazonaws.com/SimpleNotificationService-1.pem");
+        assertFalse(testClass.verify(envelope));
+    }
+
+    @Test
+    public void verify_notSigned() {
+        assertFalse(testClass.verify(envelope));
+    }
+
+    private void sign(String algorithm) throws Exception {
+        Signature signature = Signature.getInstance(algorithm);
+        signature.initSign(keyPair.getPrivate());
+        signature.update(SNSMessageVerifier.stringToSign(envelope).getBytes(StandardCharsets.UTF_8));
+        envelope.put("Signature", Base64.getEncoder().encodeToString(signature.sign()));
+    }
+}
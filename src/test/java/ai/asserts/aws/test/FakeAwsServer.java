@@ -0,0 +1,459 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * An in-process stub of the AWS APIs used by the exporter, for benchmarks and integration tests that cannot use real
+ * AWS accounts. The exporter is pointed at it through the <code>AWS_ENDPOINT_OVERRIDE</code> environment variable.
+ * <p>
+ * The stub serves a synthetic inventory of resources through ListMetrics, GetMetricData, DescribeAlarms,
+ * GetResources, Lambda ListFunctions, STS AssumeRole and GetCallerIdentity. Any other Query or JSON protocol
+ * operation succeeds with an empty result, so that the describe/list calls of the exporters see an empty account.
+ * Every response can be delayed and a fraction of the requests throttled, to reproduce slow or throttled accounts.
+ * <p>
+ * Run {@link #main(String[])} to start it on port 4566 with a default inventory.
+ */
+@Slf4j
+public class FakeAwsServer implements AutoCloseable {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final int LIST_METRICS_PAGE_SIZE = 500;
+    private static final int GET_RESOURCES_PAGE_SIZE = 100;
+
+    private final Inventory inventory;
+    private final Profile profile;
+    private final HttpServer server;
+    private final ExecutorService executorService;
+    @Getter
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    @Getter
+    private final Map<String, AtomicInteger> throttledCounts = new ConcurrentHashMap<>();
+
+    public FakeAwsServer(Inventory inventory, Profile profile, int port) throws IOException {
+        this.inventory = inventory;
+        this.profile = profile;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executorService = Executors.newFixedThreadPool(profile.getServerThreads());
+        server.setExecutor(executorService);
+        server.createContext("/", this::handle);
+    }
+
+    public static void main(String[] args) throws IOException {
+        FakeAwsServer server = new FakeAwsServer(Inventory.builder().build(), Profile.builder().build(), 4566);
+        server.start();
+        log.info("Fake AWS endpoint listening on {}", server.getEndpoint());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public URI getEndpoint() {
+        return URI.create(format("http://localhost:%d", server.getAddress().getPort()));
+    }
+
+    public int getRequestCount(String operation) {
+        return requestCounts.getOrDefault(operation, new AtomicInteger()).get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executorService.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String body = readBody(exchange.getRequestBody());
+            String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+            if (target != null) {
+                handleJson(exchange, target.substring(target.indexOf('.') + 1), body);
+            } else if (exchange.getRequestURI().getPath().matches("/2015-03-31/functions/?")) {
+                handleLambda(exchange);
+            } else if ("POST".equals(exchange.getRequestMethod()) && body.contains("Action=")) {
+                handleQuery(exchange, parseForm(body));
+            } else {
+                // Other REST JSON operations
+                send(exchange, 200, "application/json", "{}");
+            }
+        } catch (Exception e) {
+            log.error("Failed to handle " + exchange.getRequestURI(), e);
+            send(exchange, 500, "text/plain", "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleQuery(HttpExchange exchange, Map<String, String> params) throws Exception {
+        String action = params.getOrDefault("Action", "Unknown");
+        if (delayAndThrottle(action)) {
+            send(exchange, 400, "text/xml", format(
+                    "<ErrorResponse><Error><Type>Sender</Type><Code>Throttling</Code>" +
+                            "<Message>Rate exceeded</Message></Error><RequestId>%s</RequestId></ErrorResponse>",
+                    requestId()));
+            return;
+        }
+        String result;
+        switch (action) {
+            case "ListMetrics":
+                result = listMetrics(params);
+                break;
+            case "GetMetricData":
+                result = getMetricData(params);
+                break;
+            case "DescribeAlarms":
+                result = describeAlarms();
+                break;
+            case "AssumeRole":
+                result = assumeRole(params);
+                break;
+            case "GetCallerIdentity":
+                result = format("<Arn>arn:aws:iam::%s:user/fake</Arn><UserId>FAKE</UserId><Account>%s</Account>",
+                        inventory.getAccountId(), inventory.getAccountId());
+                break;
+            default:
+                result = "";
+        }
+        send(exchange, 200, "text/xml", format(
+                "<%sResponse><%sResult>%s</%sResult><ResponseMetadata><RequestId>%s</RequestId>" +
+                        "</ResponseMetadata></%sResponse>",
+                action, action, result, action, requestId(), action));
+    }
+
+    private void handleJson(HttpExchange exchange, String operation, String body) throws Exception {
+        if (delayAndThrottle(operation)) {
+            send(exchange, 400, "application/x-amz-json-1.1",
+                    "{\"__type\":\"ThrottlingException\",\"message\":\"Rate exceeded\"}");
+            return;
+        }
+        JsonNode request = body.isEmpty() ? objectMapper.createObjectNode() : objectMapper.readTree(body);
+        ObjectNode response = objectMapper.createObjectNode();
+        if ("GetResources".equals(operation)) {
+            getResources(request, response);
+        }
+        send(exchange, 200, "application/x-amz-json-1.1", objectMapper.writeValueAsString(response));
+    }
+
+    private void handleLambda(HttpExchange exchange) throws Exception {
+        if (delayAndThrottle("ListFunctions")) {
+            exchange.getResponseHeaders().add("x-amzn-ErrorType", "TooManyRequestsException");
+            send(exchange, 429, "application/json", "{\"message\":\"Rate exceeded\"}");
+            return;
+        }
+        ObjectNode response = objectMapper.createObjectNode();
+        ArrayNode functions = response.putArray("Functions");
+        inventory.resources("lambda").forEach(resource -> functions.addObject()
+                .put("FunctionName", resource.getName())
+                .put("FunctionArn", resource.getArn())
+                .put("Runtime", "java11")
+                .put("MemorySize", 512)
+                .put("Timeout", 30));
+        send(exchange, 200, "application/json", objectMapper.writeValueAsString(response));
+    }
+
+    private String listMetrics(Map<String, String> params) {
+        String namespace = params.get("Namespace");
+        String metricName = params.get("MetricName");
+        List<String> metrics = new ArrayList<>();
+        inventory.getResourceTypes().stream()
+                .filter(type -> namespace == null || type.getNamespace().equals(namespace))
+                .forEach(type -> inventory.resources(type.getService()).forEach(resource ->
+                        type.getMetrics().stream()
+                                .filter(name -> metricName == null || name.equals(metricName))
+                                .forEach(name -> metrics.add(format(
+                                        "<member><Namespace>%s</Namespace><MetricName>%s</MetricName>" +
+                                                "<Dimensions><member><Name>%s</Name><Value>%s</Value></member>" +
+                                                "</Dimensions></member>",
+                                        type.getNamespace(), name, type.getDimension(), resource.getName())))));
+        int from = Integer.parseInt(params.getOrDefault("NextToken", "0"));
+        int to = Math.min(metrics.size(), from + LIST_METRICS_PAGE_SIZE);
+        StringBuilder result = new StringBuilder("<Metrics>");
+        metrics.subList(Math.min(from, to), to).forEach(result::append);
+        result.append("</Metrics>");
+        if (to < metrics.size()) {
+            result.append("<NextToken>").append(to).append("</NextToken>");
+        }
+        return result.toString();
+    }
+
+    private String getMetricData(Map<String, String> params) {
+        Instant end = Instant.parse(params.get("EndTime")).truncatedTo(ChronoUnit.SECONDS);
+        StringBuilder result = new StringBuilder("<MetricDataResults>");
+        for (int i = 1; params.containsKey(format("MetricDataQueries.member.%d.Id", i)); i++) {
+            String prefix = format("MetricDataQueries.member.%d.", i);
+            int period = Integer.parseInt(params.getOrDefault(prefix + "MetricStat.Period", "60"));
+            result.append("<member><Id>").append(params.get(prefix + "Id")).append("</Id>")
+                    .append("<Label>").append(params.getOrDefault(prefix + "Label", "")).append("</Label>")
+                    .append("<Timestamps>");
+            List<String> values = new ArrayList<>();
+            for (int j = inventory.getDatapointsPerQuery(); j > 0; j--) {
+                result.append("<member>").append(end.minusSeconds((long) period * j)).append("</member>");
+                values.add(format("<member>%.1f</member>", ThreadLocalRandom.current().nextDouble(100)));
+            }
+            result.append("</Timestamps><Values>");
+            values.forEach(result::append);
+            result.append("</Values><StatusCode>Complete</StatusCode></member>");
+        }
+        return result.append("</MetricDataResults>").toString();
+    }
+
+    private String describeAlarms() {
+        StringBuilder result = new StringBuilder("<MetricAlarms>");
+        inventory.resources("sqs").stream().limit(inventory.getAlarmCount()).forEach(resource ->
+                result.append(format(
+                        "<member><AlarmName>%s-alarm</AlarmName>" +
+                                "<AlarmArn>arn:aws:cloudwatch:%s:%s:alarm:%s-alarm</AlarmArn>" +
+                                "<StateValue>ALARM</StateValue><StateReason>Threshold Crossed</StateReason>" +
+                                "<StateUpdatedTimestamp>%s</StateUpdatedTimestamp>" +
+                                "<Namespace>AWS/SQS</Namespace><MetricName>NumberOfMessagesSent</MetricName>" +
+                                "<Dimensions><member><Name>QueueName</Name><Value>%s</Value></member></Dimensions>" +
+                                "<Threshold>10.0</Threshold><ComparisonOperator>GreaterThanThreshold" +
+                                "</ComparisonOperator></member>",
+                        resource.getName(), inventory.getRegion(), inventory.getAccountId(), resource.getName(),
+                        Instant.now().truncatedTo(ChronoUnit.SECONDS), resource.getName())));
+        return result.append("</MetricAlarms>").toString();
+    }
+
+    private String assumeRole(Map<String, String> params) {
+        return format("<Credentials><AccessKeyId>FAKEACCESSKEY</AccessKeyId>" +
+                        "<SecretAccessKey>fakeSecretKey</SecretAccessKey><SessionToken>fakeSessionToken</SessionToken>" +
+                        "<Expiration>%s</Expiration></Credentials><AssumedRoleUser><Arn>%s/%s</Arn>" +
+                        "<AssumedRoleId>FAKE:%s</AssumedRoleId></AssumedRoleUser>",
+                Instant.now().plusSeconds(3600).truncatedTo(ChronoUnit.SECONDS), params.get("RoleArn"),
+                params.get("RoleSessionName"), params.get("RoleSessionName"));
+    }
+
+    private void getResources(JsonNode request, ObjectNode response) {
+        List<String> services = new ArrayList<>();
+        request.path("ResourceTypeFilters").forEach(filter -> services.add(filter.asText().split(":")[0]));
+        Map<String, List<String>> tagFilters = new TreeMap<>();
+        request.path("TagFilters").forEach(filter -> {
+            List<String> values = new ArrayList<>();
+            filter.path("Values").forEach(value -> values.add(value.asText()));
+            tagFilters.put(filter.path("Key").asText(), values);
+        });
+
+        List<Resource> matching = inventory.getResourceTypes().stream()
+                .filter(type -> services.isEmpty() || services.contains(type.getService()))
+                .flatMap(type -> inventory.resources(type.getService()).stream())
+                .filter(resource -> tagFilters.entrySet().stream().allMatch(filter ->
+                        resource.getTags().containsKey(filter.getKey()) && (filter.getValue().isEmpty() ||
+                                filter.getValue().contains(resource.getTags().get(filter.getKey())))))
+                .collect(Collectors.toList());
+
+        String token = request.path("PaginationToken").asText("");
+        int from = token.isEmpty() ? 0 : Integer.parseInt(token);
+        int to = Math.min(matching.size(), from + GET_RESOURCES_PAGE_SIZE);
+        ArrayNode mappings = response.putArray("ResourceTagMappingList");
+        matching.subList(Math.min(from, to), to).forEach(resource -> {
+            ObjectNode mapping = mappings.addObject().put("ResourceARN", resource.getArn());
+            ArrayNode tags = mapping.putArray("Tags");
+            resource.getTags().forEach((key, value) -> tags.addObject().put("Key", key).put("Value", value));
+        });
+        if (to < matching.size()) {
+            response.put("PaginationToken", String.valueOf(to));
+        }
+    }
+
+    /**
+     * Applies the latency profile to the request and decides whether it is throttled
+     */
+    private boolean delayAndThrottle(String operation) throws InterruptedException {
+        requestCounts.computeIfAbsent(operation, k -> new AtomicInteger()).incrementAndGet();
+        long delay = profile.getLatencyMillis();
+        if (profile.getLatencyJitterMillis() > 0) {
+            delay += ThreadLocalRandom.current().nextLong(profile.getLatencyJitterMillis());
+        }
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+        double throttleRate = profile.getThrottleRates().getOrDefault(operation, profile.getThrottleRate());
+        if (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+            throttledCounts.computeIfAbsent(operation, k -> new AtomicInteger()).incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.getResponseHeaders().add("x-amzn-RequestId", requestId());
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+        Map<String, String> params = new TreeMap<>();
+        for (String pair : body.split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+                        URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private String requestId() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * The synthetic resources served by the stub. Resources are generated per type, with the CloudWatch metrics of
+     * each resource keyed by the dimension that identifies the resource.
+     */
+    @Getter
+    @Builder
+    public static class Inventory {
+        @Builder.Default
+        private final String accountId = "123456789012";
+        @Builder.Default
+        private final String region = "us-west-2";
+        @Builder.Default
+        private final Map<String, Integer> resourceCounts = ImmutableMap.of(
+                "sqs", 50, "lambda", 50, "dynamodb", 20, "ec2", 20);
+        @Builder.Default
+        private final int datapointsPerQuery = 1;
+        @Builder.Default
+        private final int alarmCount = 5;
+        private final Map<String, List<Resource>> resourcesByService = new ConcurrentHashMap<>();
+
+        public List<ResourceType> getResourceTypes() {
+            return ResourceType.ALL.stream()
+                    .filter(type -> resourceCounts.getOrDefault(type.getService(), 0) > 0)
+                    .collect(Collectors.toList());
+        }
+
+        public List<Resource> resources(String service) {
+            return resourcesByService.computeIfAbsent(service, k -> {
+                Optional<ResourceType> type = ResourceType.ALL.stream()
+                        .filter(t -> t.getService().equals(service))
+                        .findFirst();
+                if (!type.isPresent()) {
+                    return Collections.emptyList();
+                }
+                List<Resource> resources = new ArrayList<>();
+                for (int i = 0; i < resourceCounts.getOrDefault(service, 0); i++) {
+                    String name = format("%s-%d", type.get().getNamePrefix(), i);
+                    resources.add(new Resource(name, format(type.get().getArnFormat(), region, accountId, name),
+                            ImmutableMap.of("env", "fake", "index", String.valueOf(i))));
+                }
+                return resources;
+            });
+        }
+    }
+
+    /**
+     * Latency and throttling applied to every request. Throttle rates are the fraction of requests rejected with a
+     * throttling error, optionally per operation name like <code>ListMetrics</code> or <code>GetResources</code>
+     */
+    @Getter
+    @Builder
+    public static class Profile {
+        @Builder.Default
+        private final long latencyMillis = 0;
+        @Builder.Default
+        private final long latencyJitterMillis = 0;
+        @Builder.Default
+        private final double throttleRate = 0;
+        @Builder.Default
+        private final Map<String, Double> throttleRates = Collections.emptyMap();
+        @Builder.Default
+        private final int serverThreads = 16;
+    }
+
+    @Getter
+    public static class ResourceType {
+        static final List<ResourceType> ALL = ImmutableList.of(
+                new ResourceType("sqs", "queue", "arn:aws:sqs:%s:%s:%s", "AWS/SQS", "QueueName",
+                        ImmutableList.of("NumberOfMessagesSent", "ApproximateNumberOfMessagesVisible")),
+                new ResourceType("lambda", "function", "arn:aws:lambda:%s:%s:function:%s", "AWS/Lambda",
+                        "FunctionName", ImmutableList.of("Invocations", "Errors", "Duration")),
+                new ResourceType("dynamodb", "table", "arn:aws:dynamodb:%s:%s:table/%s", "AWS/DynamoDB",
+                        "TableName", ImmutableList.of("ConsumedReadCapacityUnits", "ConsumedWriteCapacityUnits")),
+                new ResourceType("ec2", "i", "arn:aws:ec2:%s:%s:instance/%s", "AWS/EC2", "InstanceId",
+                        ImmutableList.of("CPUUtilization")));
+
+        private final String service;
+        private final String namePrefix;
+        private final String arnFormat;
+        private final String namespace;
+        private final String dimension;
+        private final List<String> metrics;
+
+        ResourceType(String service, String namePrefix, String arnFormat, String namespace, String dimension,
+                     List<String> metrics) {
+            this.service = service;
+            this.namePrefix = namePrefix;
+            this.arnFormat = arnFormat;
+            this.namespace = namespace;
+            this.dimension = dimension;
+            this.metrics = metrics;
+        }
+    }
+
+    @Getter
+    public static class Resource {
+        private final String name;
+        private final String arn;
+        private final Map<String, String> tags;
+
+        Resource(String name, String arn, Map<String, String> tags) {
+            this.name = name;
+            this.arn = arn;
+            this.tags = tags;
+        }
+    }
+}
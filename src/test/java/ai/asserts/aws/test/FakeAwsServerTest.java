@@ -0,0 +1,143 @@
+/*
+ *  Copyright © 2020.
+ *  Asserts, Inc. - All Rights Reserved
+ */
+package ai.asserts.aws.test;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.CloudWatchException;
+import software.amazon.awssdk.services.cloudwatch.model.DescribeAlarmsResponse;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.ListMetricsRequest;
+import software.amazon.awssdk.services.cloudwatch.model.ListMetricsResponse;
+import software.amazon.awssdk.services.cloudwatch.model.Metric;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
+import software.amazon.awssdk.services.cloudwatch.model.MetricStat;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesRequest;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesResponse;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.TagFilter;
+
+import java.io.IOException;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FakeAwsServerTest {
+    private FakeAwsServer server;
+
+    @AfterEach
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void cloudWatchAPIs() throws IOException {
+        server = start(FakeAwsServer.Profile.builder().build());
+        CloudWatchClient client = CloudWatchClient.builder()
+                .endpointOverride(server.getEndpoint())
+                .region(Region.US_WEST_2)
+                .credentialsProvider(credentials())
+                .build();
+
+        // 300 queues with 2 metrics each, in pages of 500
+        ListMetricsResponse page1 = client.listMetrics(ListMetricsRequest.builder().namespace("AWS/SQS").build());
+        assertEquals(500, page1.metrics().size());
+        assertEquals("QueueName", page1.metrics().get(0).dimensions().get(0).name());
+        ListMetricsResponse page2 = client.listMetrics(ListMetricsRequest.builder()
+                .namespace("AWS/SQS")
+                .nextToken(page1.nextToken())
+                .build());
+        assertEquals(100, page2.metrics().size());
+        assertNull(page2.nextToken());
+
+        Metric metric = page1.metrics().get(0);
+        GetMetricDataResponse data = client.getMetricData(GetMetricDataRequest.builder()
+                .startTime(Instant.now().minusSeconds(300))
+                .endTime(Instant.now())
+                .metricDataQueries(MetricDataQuery.builder()
+                        .id("q_1")
+                        .metricStat(MetricStat.builder().metric(metric).period(60).stat("Sum").build())
+                        .build())
+                .build());
+        assertEquals(1, data.metricDataResults().size());
+        assertEquals("q_1", data.metricDataResults().get(0).id());
+        assertEquals(2, data.metricDataResults().get(0).values().size());
+
+        DescribeAlarmsResponse alarms = client.describeAlarms();
+        assertEquals(5, alarms.metricAlarms().size());
+        assertNotNull(alarms.metricAlarms().get(0).stateUpdatedTimestamp());
+        assertEquals(1, server.getRequestCount("DescribeAlarms"));
+    }
+
+    @Test
+    public void getResources() throws IOException {
+        server = start(FakeAwsServer.Profile.builder().build());
+        ResourceGroupsTaggingApiClient client = ResourceGroupsTaggingApiClient.builder()
+                .endpointOverride(server.getEndpoint())
+                .region(Region.US_WEST_2)
+                .credentialsProvider(credentials())
+                .build();
+
+        GetResourcesResponse page1 = client.getResources(GetResourcesRequest.builder()
+                .resourceTypeFilters("sqs")
+                .build());
+        assertEquals(100, page1.resourceTagMappingList().size());
+        assertEquals("arn:aws:sqs:us-west-2:123456789012:queue-0", page1.resourceTagMappingList().get(0).resourceARN());
+
+        GetResourcesResponse filtered = client.getResources(GetResourcesRequest.builder()
+                .resourceTypeFilters("lambda:function")
+                .tagFilters(TagFilter.builder().key("index").values("7").build())
+                .build());
+        assertEquals(1, filtered.resourceTagMappingList().size());
+        assertEquals("arn:aws:lambda:us-west-2:123456789012:function:function-7",
+                filtered.resourceTagMappingList().get(0).resourceARN());
+    }
+
+    @Test
+    public void throttling() throws IOException {
+        server = start(FakeAwsServer.Profile.builder()
+                .throttleRates(ImmutableMap.of("ListMetrics", 1.0D))
+                .build());
+        CloudWatchClient client = CloudWatchClient.builder()
+                .endpointOverride(server.getEndpoint())
+                .region(Region.US_WEST_2)
+                .credentialsProvider(credentials())
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .retryPolicy(RetryPolicy.none())
+                        .build())
+                .build();
+
+        CloudWatchException exception = assertThrows(CloudWatchException.class, client::listMetrics);
+        assertEquals("Throttling", exception.awsErrorDetails().errorCode());
+        assertEquals(1, server.getThrottledCounts().get("ListMetrics").get());
+
+        // Other operations are not throttled
+        assertEquals(5, client.describeAlarms().metricAlarms().size());
+    }
+
+    private FakeAwsServer start(FakeAwsServer.Profile profile) throws IOException {
+        FakeAwsServer fakeAwsServer = new FakeAwsServer(FakeAwsServer.Inventory.builder()
+                .resourceCounts(ImmutableMap.of("sqs", 300, "lambda", 10))
+                .datapointsPerQuery(2)
+                .build(), profile, 0);
+        fakeAwsServer.start();
+        return fakeAwsServer;
+    }
+
+    private StaticCredentialsProvider credentials() {
+        return StaticCredentialsProvider.create(AwsBasicCredentials.create("fake", "fake"));
+    }
+}